@@ -0,0 +1,297 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Input of the benchmarks: the tiny reference bundled with them (two random
+ * contigs of 10 kb), indexed with bwa index, and paired reads simulated from
+ * it with a fixed seed, so every run measures the same work.
+ *
+ * @author José M. Abuín
+ */
+class BenchmarkData {
+
+	static final int READ_LENGTH = 100;
+	static final int INSERT_SIZE = 300;
+
+	private static final String REFERENCE = "/tiny.fa";
+
+	private static final byte[] NEW_LINE = "\n".getBytes();
+	private static final byte[] SEP = "<sep>".getBytes();
+	private static final byte[] PART = "<part>".getBytes();
+
+	private static String indexPrefix = null;
+	private static ArrayList<String> contigs = null;
+
+	private final byte[][] names;
+	private final byte[][] sequences1;
+	private final byte[][] sequences2;
+	private final byte[] quality;
+
+	/**
+	 * Simulates pairs of reads from both ends of fragments of INSERT_SIZE bases, the second mate reverse
+	 * complemented, with 1% of substitutions
+	 *
+	 * @param numPairs Number of pairs
+	 * @param seed Seed of the simulation
+	 * @throws IOException If the reference could not be read
+	 */
+	BenchmarkData(int numPairs, long seed) throws IOException {
+
+		ArrayList<String> reference = getContigs();
+		Random random = new Random(seed);
+
+		this.names = new byte[numPairs][];
+		this.sequences1 = new byte[numPairs][];
+		this.sequences2 = new byte[numPairs][];
+
+		for (int i = 0; i < numPairs; i++) {
+			String contig = reference.get(random.nextInt(reference.size()));
+			int start = random.nextInt(contig.length() - INSERT_SIZE);
+
+			this.names[i] = ("sim_" + i).getBytes();
+			this.sequences1[i] = mutate(contig.substring(start, start + READ_LENGTH), random);
+			this.sequences2[i] = mutate(reverseComplement(contig.substring(start + INSERT_SIZE - READ_LENGTH, start + INSERT_SIZE)), random);
+		}
+
+		this.quality = new byte[READ_LENGTH];
+		Arrays.fill(this.quality, (byte) 'I');
+	}
+
+	/**
+	 * Copies the bundled reference to a temporary directory and indexes it with bwa index. It is done once per JVM
+	 *
+	 * @return The prefix of the index
+	 * @throws IOException If the reference could not be copied or indexed
+	 */
+	static synchronized String getIndexPrefix() throws IOException {
+
+		if (indexPrefix == null) {
+			File dir = createTempDir("BigBWA-bench-index");
+			File reference = new File(dir, "tiny.fa");
+
+			InputStream in = BenchmarkData.class.getResourceAsStream(REFERENCE);
+
+			if (in == null) {
+				throw new IOException("The reference " + REFERENCE + " is not in the classpath");
+			}
+
+			OutputStream out = new FileOutputStream(reference);
+
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+
+				while ((read = in.read(buffer)) > 0) {
+					out.write(buffer, 0, read);
+				}
+			}
+			finally {
+				in.close();
+				out.close();
+			}
+
+			if (BwaJni.Bwa_Jni(new String[] {"bwa", "index", reference.getPath()}) != 0) {
+				throw new IOException("Could not index " + reference);
+			}
+
+			indexPrefix = reference.getPath();
+		}
+
+		return indexPrefix;
+	}
+
+	/**
+	 * @param prefix Prefix of the directory name
+	 * @return A new directory, removed when the JVM exits if it is empty
+	 * @throws IOException If it could not be created
+	 */
+	static File createTempDir(String prefix) throws IOException {
+
+		File dir = File.createTempFile(prefix, "");
+
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create the directory " + dir);
+		}
+
+		dir.deleteOnExit();
+
+		return dir;
+	}
+
+	/**
+	 * @return The number of pairs
+	 */
+	int size() {
+		return this.names.length;
+	}
+
+	/**
+	 * @param mate 1 or 2
+	 * @return The reads of one mate as a FASTQ file
+	 */
+	byte[] toFastq(int mate) {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (int i = 0; i < this.size(); i++) {
+			this.writeRead(out, i, mate, NEW_LINE);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return One record per pair, as written by Fq2FqBigDataPaired.py: the lines of each mate separated by
+	 *         "&lt;sep&gt;" and the mates by "&lt;part&gt;"
+	 */
+	Text[] toFq2FqRecords() {
+
+		Text[] records = new Text[this.size()];
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (int i = 0; i < this.size(); i++) {
+			out.reset();
+			this.writeRead(out, i, 1, SEP);
+			out.write(PART, 0, PART.length);
+			this.writeRead(out, i, 2, SEP);
+
+			records[i] = new Text(out.toByteArray());
+		}
+
+		return records;
+	}
+
+	/**
+	 * Adds the pairs to a batch of the in-memory aligner
+	 *
+	 * @param batch Batch of paired reads
+	 * @param numPairs Number of pairs, from the first one
+	 */
+	void addTo(BwaReadBatch batch, int numPairs) {
+
+		for (int i = 0; i < numPairs; i++) {
+			String name = new String(this.names[i]);
+			String quality = new String(this.quality);
+
+			batch.add(name, new String(this.sequences1[i]), quality);
+			batch.add(name, new String(this.sequences2[i]), quality);
+		}
+	}
+
+	private void writeRead(ByteArrayOutputStream out, int read, int mate, byte[] separator) {
+
+		byte[] sequence = (mate == 1) ? this.sequences1[read] : this.sequences2[read];
+
+		out.write('@');
+		out.write(this.names[read], 0, this.names[read].length);
+		out.write('/');
+		out.write('0' + mate);
+		out.write(separator, 0, separator.length);
+		out.write(sequence, 0, sequence.length);
+		out.write(separator, 0, separator.length);
+		out.write('+');
+		out.write(separator, 0, separator.length);
+		out.write(this.quality, 0, this.quality.length);
+		out.write(separator, 0, separator.length);
+	}
+
+	private static synchronized ArrayList<String> getContigs() throws IOException {
+
+		if (contigs == null) {
+			InputStream in = BenchmarkData.class.getResourceAsStream(REFERENCE);
+
+			if (in == null) {
+				throw new IOException("The reference " + REFERENCE + " is not in the classpath");
+			}
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+			ArrayList<StringBuilder> sequences = new ArrayList<StringBuilder>();
+			String line;
+
+			try {
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith(">")) {
+						sequences.add(new StringBuilder());
+					}
+					else if (!sequences.isEmpty()) {
+						sequences.get(sequences.size() - 1).append(line.trim());
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+
+			contigs = new ArrayList<String>();
+
+			for (StringBuilder sequence : sequences) {
+				contigs.add(sequence.toString());
+			}
+		}
+
+		return contigs;
+	}
+
+	private static byte[] mutate(String sequence, Random random) {
+
+		byte[] bases = sequence.getBytes();
+
+		for (int i = 0; i < bases.length; i++) {
+			if (random.nextInt(100) == 0) {
+				bases[i] = (byte) "ACGT".charAt(random.nextInt(4));
+			}
+		}
+
+		return bases;
+	}
+
+	private static String reverseComplement(String sequence) {
+
+		StringBuilder complement = new StringBuilder(sequence.length());
+
+		for (int i = sequence.length() - 1; i >= 0; i--) {
+			switch (sequence.charAt(i)) {
+				case 'A': complement.append('T'); break;
+				case 'C': complement.append('G'); break;
+				case 'G': complement.append('C'); break;
+				case 'T': complement.append('A'); break;
+				default: complement.append('N');
+			}
+		}
+
+		return complement.toString();
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of going through JNI to bwa, in microseconds per call, with the tiny
+ * reference so that the alignment itself is small: a call that does nothing
+ * in bwa, a batch of the in-memory aligner (copying the reads in and the SAM
+ * records out) and a whole "bwa mem" command run with BwaJni.Bwa_Jni, which
+ * parses its arguments, attaches to the cached index and reads and writes
+ * files.
+ *
+ * @author José M. Abuín
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JniBenchmark {
+
+	@Param({"1", "100", "1000"})
+	public int pairs;
+
+	private BwaMemAligner aligner;
+	private BwaReadBatch batch;
+
+	private File dir;
+	private String[] memCommand;
+	private long[] stats = new long[BwaJni.NUM_STATS];
+
+	@Setup
+	public void setup() throws IOException {
+
+		String indexPrefix = BenchmarkData.getIndexPrefix();
+		BenchmarkData data = new BenchmarkData(this.pairs, 1);
+
+		this.aligner = new BwaMemAligner(indexPrefix, "");
+		this.batch = new BwaReadBatch(true);
+		data.addTo(this.batch, this.pairs);
+
+		this.dir = BenchmarkData.createTempDir("BigBWA-bench-jni");
+
+		File reads1 = new File(this.dir, "reads_1.fq");
+		File reads2 = new File(this.dir, "reads_2.fq");
+
+		write(reads1, data.toFastq(1));
+		write(reads2, data.toFastq(2));
+
+		this.memCommand = new String[] {"bwa", "mem", "-f", new File(this.dir, "reads.sam").getPath(), indexPrefix,
+				reads1.getPath(), reads2.getPath()};
+	}
+
+	@TearDown
+	public void tearDown() {
+
+		this.aligner.close();
+
+		for (File file : this.dir.listFiles()) {
+			file.delete();
+		}
+
+		this.dir.delete();
+	}
+
+	/**
+	 * A native call that only reads a field of the aligner
+	 */
+	@Benchmark
+	public int emptyCall() {
+		return this.aligner.getChunkSize();
+	}
+
+	@Benchmark
+	public byte[] alignBatch() throws IOException {
+		return this.aligner.align(this.batch);
+	}
+
+	@Benchmark
+	public int memCommand() {
+		return BwaJni.Bwa_Jni(this.memCommand, this.stats);
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+}
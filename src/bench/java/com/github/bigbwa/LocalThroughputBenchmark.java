@@ -0,0 +1,549 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Runs whole BigBWA jobs in this JVM with the LocalJobRunner, so the
+ * throughput of the mapper and reducer pipeline can be compared between
+ * versions without a cluster.
+ *
+ * A random reference of "benchGenomeMB" megabases is generated and indexed
+ * with the bwa of BigBWA, and "benchPairs" pairs are simulated from it with a
+ * known error profile: substitutions whose rate grows along the read from
+ * half to one and a half times "benchErrorRate", as in Illumina reads, with
+ * qualities that match it, and insertions and deletions of one base with
+ * "benchIndelRate". Then a job with a reducer is run for each algorithm in
+ * "benchModes" and each type of reads in "benchReads": the two FASTQ files
+ * of the pairs, or the first one as single reads.
+ *
+ * For each job it reports the reads aligned per second of wall time, the
+ * phases of the tasks from the BwaCounters, and the peak resident memory of
+ * the process, which holds the tasks and bwa. It is printed as a table and,
+ * if "benchOutput" is given, written to that file as JSON. The files are
+ * written to "benchWorkDir", or to a temporary directory that is removed at
+ * the end unless "benchKeepFiles" is true.
+ *
+ * Other -D options are passed to the jobs.
+ *
+ * @author José M. Abuín
+ */
+public class LocalThroughputBenchmark extends Configured implements Tool {
+
+	private static final String[] ALGORITHMS = {"mem", "aln", "bwasw"};
+	private static final String[] ALGORITHM_OPTIONS = {"-m", "-a", "-b"};
+
+	// Counters reported as phases, in milliseconds
+	private static final BwaCounters[] PHASES = {BwaCounters.INDEX_LOAD_MS, BwaCounters.MEM_MS, BwaCounters.ALN_MS,
+			BwaCounters.SAMSE_MS, BwaCounters.SAMPE_MS, BwaCounters.BWASW_MS, BwaCounters.UPLOAD_MS, BwaCounters.MERGE_MS};
+
+	private Random random;
+
+	private int readLength;
+	private int insertSize;
+	private int insertStd;
+	private double errorRate;
+	private double indelRate;
+
+	public static void main(String[] args) throws Exception {
+
+		int res = ToolRunner.run(new Configuration(), new LocalThroughputBenchmark(), args);
+		System.exit(res);
+
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+
+		Configuration conf = this.getConf();
+
+		int genomeMB = conf.getInt("benchGenomeMB", 4);
+		int contigMB = conf.getInt("benchContigMB", 1);
+		int pairs = conf.getInt("benchPairs", 100000);
+		int partitions = conf.getInt("benchPartitions", 2);
+		String[] modes = conf.getTrimmedStrings("benchModes", ALGORITHMS);
+		String[] readTypes = conf.getTrimmedStrings("benchReads", "paired", "single");
+
+		this.random = new Random(conf.getLong("benchSeed", 1));
+		this.readLength = conf.getInt("benchReadLength", 100);
+		this.insertSize = conf.getInt("benchInsertSize", 300);
+		this.insertStd = conf.getInt("benchInsertStd", 30);
+		this.errorRate = conf.getDouble("benchErrorRate", 0.01);
+		this.indelRate = conf.getDouble("benchIndelRate", 0.0005);
+
+		// A directory given by the user is kept
+		boolean tempDir = (conf.get("benchWorkDir") == null);
+		File workDir = tempDir ? BenchmarkData.createTempDir("BigBWA-local") : new File(conf.get("benchWorkDir"));
+
+		if (!workDir.isDirectory() && !workDir.mkdirs()) {
+			System.err.println("Could not create the directory " + workDir + ". Aborting.");
+			return 1;
+		}
+
+		LinkedHashMap<String, Object> setup = new LinkedHashMap<String, Object>();
+		ArrayList<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+
+		try {
+			// Reference
+			long startTime = System.currentTimeMillis();
+
+			ArrayList<byte[]> contigs = this.generateGenome((long) genomeMB << 20, contigMB << 20);
+			File reference = new File(workDir, "synthetic.fa");
+			writeFasta(contigs, reference);
+
+			setup.put("generate_reference_ms", System.currentTimeMillis() - startTime);
+
+			startTime = System.currentTimeMillis();
+
+			if (BwaJni.Bwa_Jni(new String[] {"bwa", "index", reference.getPath()}) != 0) {
+				System.err.println("Could not index " + reference + ". Aborting.");
+				return 1;
+			}
+
+			setup.put("index_ms", System.currentTimeMillis() - startTime);
+
+			// Reads
+			startTime = System.currentTimeMillis();
+
+			File reads1 = new File(workDir, "reads_1.fq");
+			File reads2 = new File(workDir, "reads_2.fq");
+			this.simulatePairs(contigs, pairs, reads1, reads2);
+
+			setup.put("simulate_reads_ms", System.currentTimeMillis() - startTime);
+
+			contigs.clear();
+
+			// Jobs
+			for (String mode : modes) {
+				int algorithm = -1;
+
+				for (int i = 0; i < ALGORITHMS.length; i++) {
+					if (ALGORITHMS[i].equals(mode)) {
+						algorithm = i;
+					}
+				}
+
+				if (algorithm < 0) {
+					System.err.println("Unknown mode " + mode + ". It must be one of mem, aln or bwasw.");
+					return 1;
+				}
+
+				for (String readType : readTypes) {
+					boolean paired = readType.equals("paired");
+
+					ArrayList<String> jobArgs = new ArrayList<String>();
+					jobArgs.add(ALGORITHM_OPTIONS[algorithm]);
+					jobArgs.add(paired ? "-p" : "-s");
+
+					if (!paired) {
+						jobArgs.add("-q");
+					}
+
+					jobArgs.add("-r");
+					jobArgs.add("-n");
+					jobArgs.add(String.valueOf(partitions));
+					jobArgs.add("--index");
+					jobArgs.add(reference.getPath());
+
+					jobArgs.add(reads1.getPath());
+
+					if (paired) {
+						jobArgs.add(reads2.getPath());
+					}
+
+					jobArgs.add(new File(workDir, "Output_" + mode + "_" + readType).getPath());
+
+					results.add(this.runJob(mode, readType, jobArgs.toArray(new String[jobArgs.size()]), workDir));
+				}
+			}
+		}
+		finally {
+			if (tempDir && !conf.getBoolean("benchKeepFiles", false)) {
+				FileUtil.fullyDelete(workDir);
+			}
+		}
+
+		setup.put("genome_bases", (long) genomeMB << 20);
+		setup.put("pairs", pairs);
+		setup.put("read_length", this.readLength);
+		setup.put("insert_size", this.insertSize);
+		setup.put("insert_std", this.insertStd);
+		setup.put("substitution_rate", this.errorRate);
+		setup.put("indel_rate", this.indelRate);
+		setup.put("partitions", partitions);
+
+		printTable(results);
+
+		if (conf.get("benchOutput") != null) {
+			Writer out = new FileWriter(conf.get("benchOutput"));
+
+			try {
+				out.write("{\"setup\": " + toJson(setup) + ",\n \"runs\": [");
+
+				for (int i = 0; i < results.size(); i++) {
+					out.write(((i > 0) ? ",\n  " : "\n  ") + toJson(results.get(i)));
+				}
+
+				out.write("\n]}\n");
+			}
+			finally {
+				out.close();
+			}
+
+			System.out.println("Results written to " + conf.get("benchOutput"));
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Runs a job with a copy of the configuration, so the settings of one job do not go to the next
+	 */
+	private Map<String, Object> runJob(String mode, String readType, String[] args, File workDir) throws Exception {
+
+		Configuration conf = new Configuration(this.getConf());
+		conf.set("mapreduce.framework.name", "local");
+		conf.set("fs.defaultFS", "file:///");
+
+		if (conf.get("benchWorkDir") == null) {
+			conf.set("hadoop.tmp.dir", new File(workDir, "hadoop").getPath());
+		}
+
+		BigBWA bigbwa = new BigBWA();
+		bigbwa.setConf(conf);
+
+		resetPeakMemory();
+
+		long startTime = System.currentTimeMillis();
+		int ret = bigbwa.run(args);
+		long wallTime = System.currentTimeMillis() - startTime;
+
+		LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("mode", mode);
+		result.put("reads", readType);
+		result.put("succeeded", ret == 0);
+		result.put("wall_ms", wallTime);
+
+		Job job = bigbwa.getJob();
+
+		if (job != null) {
+			Counters counters = job.getCounters();
+
+			long reads = counters.findCounter(BwaCounters.READS).getValue();
+			long records = counters.findCounter(BwaCounters.SAM_RECORDS).getValue();
+
+			result.put("aligned_reads", reads);
+			result.put("reads_per_second", (wallTime > 0) ? reads * 1000 / wallTime : 0);
+
+			for (BwaCounters phase : PHASES) {
+				long value = counters.findCounter(phase).getValue();
+
+				if (value > 0) {
+					result.put(phase.name().toLowerCase(Locale.ROOT), value);
+				}
+			}
+
+			result.put("sam_records", records);
+			result.put("mapped_percent", (records > 0) ? 100.0 * counters.findCounter(BwaCounters.MAPPED_READS).getValue() / records : 0.0);
+		}
+
+		result.put("peak_rss_mb", getPeakMemoryKB() >> 10);
+
+		return result;
+	}
+
+	/**
+	 * Random contigs with the base composition of the human genome
+	 */
+	private ArrayList<byte[]> generateGenome(long bases, int contigBases) {
+
+		ArrayList<byte[]> contigs = new ArrayList<byte[]>();
+
+		for (long generated = 0; generated < bases; generated += contigBases) {
+			byte[] contig = new byte[(int) Math.min(contigBases, bases - generated)];
+
+			for (int i = 0; i < contig.length; i++) {
+				int r = this.random.nextInt(100);
+				contig[i] = (byte) ((r < 30) ? 'A' : (r < 50) ? 'C' : (r < 70) ? 'G' : 'T');
+			}
+
+			contigs.add(contig);
+		}
+
+		return contigs;
+	}
+
+	private static void writeFasta(ArrayList<byte[]> contigs, File file) throws IOException {
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+
+		try {
+			for (int i = 0; i < contigs.size(); i++) {
+				byte[] contig = contigs.get(i);
+
+				out.write((">contig" + (i + 1) + "\n").getBytes());
+
+				for (int start = 0; start < contig.length; start += 60) {
+					out.write(contig, start, Math.min(60, contig.length - start));
+					out.write('\n');
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes pairs of reads from both ends of fragments of the genome, the second mate from the reverse strand
+	 */
+	private void simulatePairs(ArrayList<byte[]> contigs, int pairs, File file1, File file2) throws IOException {
+
+		OutputStream out1 = new BufferedOutputStream(new FileOutputStream(file1), 1 << 20);
+		OutputStream out2 = new BufferedOutputStream(new FileOutputStream(file2), 1 << 20);
+
+		// Bases after the read, for the deletions
+		int slack = this.readLength / 4 + 8;
+
+		byte[] quality = new byte[this.readLength];
+
+		for (int i = 0; i < this.readLength; i++) {
+			quality[i] = (byte) (33 + Math.max(2, Math.min(41, (int) Math.round(-10 * Math.log10(this.getErrorRate(i))))));
+		}
+
+		try {
+			for (int i = 0; i < pairs; i++) {
+				byte[] contig = contigs.get(this.random.nextInt(contigs.size()));
+
+				int fragment = Math.max(this.readLength + slack, (int) Math.round(this.insertSize + this.random.nextGaussian() * this.insertStd));
+				fragment = Math.min(fragment, contig.length);
+
+				int start = this.random.nextInt(contig.length - fragment + 1);
+
+				byte[] template1 = new byte[Math.min(this.readLength + slack, fragment)];
+				byte[] template2 = new byte[template1.length];
+
+				for (int j = 0; j < template1.length; j++) {
+					template1[j] = contig[start + j];
+					template2[j] = complement(contig[start + fragment - 1 - j]);
+				}
+
+				byte[] name = ("@sim_" + (i + 1) + "_" + start).getBytes();
+
+				writeRead(out1, name, "/1\n", this.sequence(template1), quality);
+				writeRead(out2, name, "/2\n", this.sequence(template2), quality);
+			}
+		}
+		finally {
+			out1.close();
+			out2.close();
+		}
+	}
+
+	/**
+	 * Substitution rate at a position of the read
+	 */
+	private double getErrorRate(int position) {
+		return this.errorRate * (0.5 + (double) position / Math.max(1, this.readLength - 1));
+	}
+
+	/**
+	 * Reads the template from its start, adding the errors of the profile
+	 */
+	private byte[] sequence(byte[] template) {
+
+		byte[] read = new byte[this.readLength];
+		int position = 0;
+
+		for (int i = 0; i < this.readLength; i++) {
+			double r = this.random.nextDouble();
+
+			if (r < this.indelRate / 2) {
+				read[i] = (byte) "ACGT".charAt(this.random.nextInt(4));
+				continue;
+			}
+
+			if ((r < this.indelRate) && (position + 1 < template.length)) {
+				position++;
+			}
+
+			byte base = template[Math.min(position++, template.length - 1)];
+
+			if (this.random.nextDouble() < this.getErrorRate(i)) {
+				byte substitution;
+
+				do {
+					substitution = (byte) "ACGT".charAt(this.random.nextInt(4));
+				} while (substitution == base);
+
+				base = substitution;
+			}
+
+			read[i] = base;
+		}
+
+		return read;
+	}
+
+	private static void writeRead(OutputStream out, byte[] name, String mate, byte[] sequence, byte[] quality) throws IOException {
+		out.write(name);
+		out.write(mate.getBytes());
+		out.write(sequence);
+		out.write('\n');
+		out.write('+');
+		out.write('\n');
+		out.write(quality);
+		out.write('\n');
+	}
+
+	private static byte complement(byte base) {
+		switch (base) {
+			case 'A': return 'T';
+			case 'C': return 'G';
+			case 'G': return 'C';
+			case 'T': return 'A';
+			default: return 'N';
+		}
+	}
+
+	/**
+	 * Resets the peak resident memory of the process, in Linux. Elsewhere the peak is the one of the whole run
+	 */
+	private static void resetPeakMemory() {
+		try {
+			Writer out = new FileWriter("/proc/self/clear_refs");
+
+			try {
+				out.write("5");
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			// Not available
+		}
+	}
+
+	/**
+	 * @return The peak resident memory of the process in KB, or 0 if it is not known
+	 */
+	private static long getPeakMemoryKB() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+
+			try {
+				String line;
+
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmHWM:")) {
+						return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			// Not available
+		}
+
+		return 0;
+	}
+
+	private static void printTable(ArrayList<Map<String, Object>> results) {
+
+		System.out.println();
+		System.out.println(String.format("%-6s %-7s %10s %10s %12s %10s %10s %10s %10s %10s %8s",
+				"Mode", "Reads", "Reads", "Wall ms", "Reads/s", "Index ms", "BWA ms", "Upload ms", "Merge ms", "Peak MB", "Mapped"));
+
+		for (Map<String, Object> result : results) {
+			long bwa = 0;
+
+			for (BwaCounters phase : PHASES) {
+				if ((phase != BwaCounters.INDEX_LOAD_MS) && (phase != BwaCounters.UPLOAD_MS) && (phase != BwaCounters.MERGE_MS)) {
+					bwa += getLong(result, phase.name().toLowerCase(Locale.ROOT));
+				}
+			}
+
+			System.out.println(String.format(Locale.ROOT, "%-6s %-7s %10d %10d %12d %10d %10d %10d %10d %10d %7.2f%%",
+					result.get("mode"), result.get("reads"), getLong(result, "aligned_reads"), getLong(result, "wall_ms"),
+					getLong(result, "reads_per_second"), getLong(result, "index_load_ms"), bwa, getLong(result, "upload_ms"),
+					getLong(result, "merge_ms"), getLong(result, "peak_rss_mb"),
+					(result.get("mapped_percent") != null) ? (Double) result.get("mapped_percent") : 0.0));
+		}
+
+		System.out.println();
+	}
+
+	private static long getLong(Map<String, Object> result, String key) {
+		Object value = result.get(key);
+		return (value instanceof Number) ? ((Number) value).longValue() : 0;
+	}
+
+	private static String toJson(Map<String, Object> values) {
+
+		StringBuilder json = new StringBuilder("{");
+
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			if (json.length() > 1) {
+				json.append(", ");
+			}
+
+			json.append('"').append(entry.getKey()).append("\": ");
+
+			if (entry.getValue() instanceof String) {
+				json.append('"').append(entry.getValue()).append('"');
+			}
+			else if (entry.getValue() instanceof Double) {
+				json.append(String.format(Locale.ROOT, "%.4f", (Double) entry.getValue()));
+			}
+			else {
+				json.append(entry.getValue());
+			}
+		}
+
+		return json.append('}').toString();
+	}
+
+}
@@ -0,0 +1,172 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of the input records in the mappers, in reads per second: the
+ * records of Fq2FqBigDataPaired.py scanned as in BigBWAMap.map(), the same
+ * records added to a batch of the in-memory aligner, and a FASTQ file read
+ * with FastqRecordReader as with -q.
+ *
+ * @author José M. Abuín
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperParsingBenchmark {
+
+	private static final int NUM_PAIRS = 10000;
+
+	private Text[] records;
+	private File fastqFile;
+
+	private BigBWA.BigBWAMap.FieldScanner fields1 = new BigBWA.BigBWAMap.FieldScanner();
+	private BigBWA.BigBWAMap.FieldScanner fields2 = new BigBWA.BigBWAMap.FieldScanner();
+	private BwaReadBatch batch = new BwaReadBatch(true);
+
+	private Configuration conf = new Configuration();
+
+	@Setup
+	public void setup() throws IOException {
+
+		BenchmarkData data = new BenchmarkData(NUM_PAIRS, 1);
+
+		this.records = data.toFq2FqRecords();
+
+		this.fastqFile = File.createTempFile("BigBWA-bench", ".fq");
+
+		FileOutputStream out = new FileOutputStream(this.fastqFile);
+
+		try {
+			out.write(data.toFastq(1));
+		}
+		finally {
+			out.close();
+		}
+
+		this.conf.set("fs.defaultFS", "file:///");
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.fastqFile.delete();
+	}
+
+	/**
+	 * Finds the mates and the fields of each record, and counts its bases
+	 */
+	@Benchmark
+	@OperationsPerInvocation(2 * NUM_PAIRS)
+	public void scanFq2Fq(Blackhole blackhole) {
+
+		for (Text record : this.records) {
+			this.scan(record);
+
+			blackhole.consume(this.fields1.countBases() + this.fields2.countBases());
+		}
+	}
+
+	/**
+	 * Scans each record and adds its reads to a batch, which is emptied when it reaches the size bwa mem reads at once
+	 */
+	@Benchmark
+	@OperationsPerInvocation(2 * NUM_PAIRS)
+	public void addToBatch(Blackhole blackhole) {
+
+		this.batch.clear();
+
+		for (Text record : this.records) {
+			this.scan(record);
+
+			for (int i = 0; i + 3 < this.fields1.size() && i + 3 < this.fields2.size(); i += 4) {
+				this.fields1.addRead(record.getBytes(), i, this.batch);
+				this.fields2.addRead(record.getBytes(), i, this.batch);
+			}
+
+			if (this.batch.getNumBases() >= 10000000) {
+				blackhole.consume(this.batch.getDataLength());
+				this.batch.clear();
+			}
+		}
+
+		blackhole.consume(this.batch.getDataLength());
+	}
+
+	/**
+	 * Reads all the records of a FASTQ file of single reads
+	 */
+	@Benchmark
+	@OperationsPerInvocation(NUM_PAIRS)
+	public void fastqRecordReader(Blackhole blackhole) throws IOException {
+
+		FastqRecordReader reader = new FastqRecordReader();
+
+		try {
+			reader.initialize(new FileSplit(new Path(this.fastqFile.toURI()), 0, this.fastqFile.length(), null),
+					new TaskAttemptContextImpl(this.conf, new TaskAttemptID()));
+
+			while (reader.nextKeyValue()) {
+				blackhole.consume(reader.getCurrentValue().getLength());
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private void scan(Text record) {
+
+		byte[] data = record.getBytes();
+		int length = record.getLength();
+		int part = BigBWA.BigBWAMap.FieldScanner.indexOf(data, 0, length, BigBWA.BigBWAMap.FieldScanner.PART);
+
+		this.fields1.scan(data, 0, part);
+		this.fields2.scan(data, part + BigBWA.BigBWAMap.FieldScanner.PART.length, length);
+	}
+
+}
@@ -0,0 +1,145 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging of the mapper outputs in BigBWAReducer, in milliseconds per merge:
+ * SamOutputMerger joining the header and record files of several mappers in
+ * the local file system, which can not concatenate them, so they are copied
+ * by the reading threads. The files are written again before each merge, out
+ * of the measured time, as the merge removes them.
+ *
+ * @author José M. Abuín
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MergeBenchmark {
+
+	private static final int RECORDS_PER_MAPPER = 20000;
+
+	@Param({"4", "16"})
+	public int mappers;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private byte[] records;
+	private ArrayList<String> headers = new ArrayList<String>();
+
+	private File dir;
+	private ArrayList<Path> recordPaths = new ArrayList<Path>();
+	private Path target;
+
+	private FileSystem fs;
+
+	@Setup
+	public void setup() throws IOException {
+
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		this.fs = FileSystem.getLocal(conf).getRawFileSystem();
+
+		// Records of paired reads as bwa writes them, with the sequences of the simulated reads
+		BenchmarkData data = new BenchmarkData(RECORDS_PER_MAPPER / 2, 1);
+		StringBuilder sam = new StringBuilder();
+		String[] fastq = new String(data.toFastq(1)).split("\n");
+
+		for (int i = 0; i < RECORDS_PER_MAPPER; i++) {
+			String name = fastq[(i / 2) * 4].substring(1, fastq[(i / 2) * 4].length() - 2);
+			String sequence = fastq[(i / 2) * 4 + 1];
+
+			sam.append(name).append('\t').append((i % 2 == 0) ? 99 : 147).append("\tchrA\t").append(1 + (i * 7) % 9700)
+					.append("\t60\t100M\t=\t").append(1 + (i * 7) % 9700 + 200).append("\t300\t").append(sequence).append('\t')
+					.append(fastq[(i / 2) * 4 + 3]).append("\tNM:i:1\tMD:Z:50A49\tAS:i:95\tXS:i:0\n");
+		}
+
+		this.records = sam.toString().getBytes("UTF-8");
+
+		for (int i = 0; i < this.mappers; i++) {
+			this.headers.add("@SQ\tSN:chrA\tLN:10000\n@SQ\tSN:chrB\tLN:10000\n@RG\tID:lane" + (i % 4) + "\tSM:sample\n"
+					+ "@PG\tID:bwa\tPN:bwa\tVN:0.7.15-r1140\tCL:bwa mem -t 4 tiny.fa\n");
+		}
+
+		this.dir = BenchmarkData.createTempDir("BigBWA-bench-merge");
+		this.target = new Path(new File(this.dir, "part-r-00000").toURI());
+
+		for (int i = 0; i < this.mappers; i++) {
+			this.recordPaths.add(new Path(new File(this.dir, "Output" + i + ".sam").toURI()));
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void writeMapperOutputs() throws IOException {
+		for (int i = 0; i < this.mappers; i++) {
+			write(new File(this.recordPaths.get(i).toUri()), this.records);
+			write(new File(SamOutputMerger.getHeaderPath(this.recordPaths.get(i)).toUri()), this.headers.get(i).getBytes("UTF-8"));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.fs.delete(new Path(this.dir.toURI()), true);
+	}
+
+	@Benchmark
+	public void merge() throws IOException {
+		new SamOutputMerger(this.fs, this.threads, 1 << 20).merge(this.recordPaths, this.target);
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing of the temporary FASTQ files that bwa reads in the mappers, in
+ * reads per second: the records of Fq2FqBigDataPaired.py written field by
+ * field to the files of both mates, as BigBWAMap.map() does, and FASTQ
+ * records copied as they come with -q. The files are closed but not synced,
+ * as in the mappers.
+ *
+ * @author José M. Abuín
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TempFileWriteBenchmark {
+
+	private static final int NUM_PAIRS = 10000;
+
+	@Param({"65536", "1048576"})
+	public int bufferSize;
+
+	private Text[] records;
+	private byte[][] fastqRecords;
+
+	private File dir;
+	private File file1;
+	private File file2;
+
+	private BigBWA.BigBWAMap.FieldScanner fields1 = new BigBWA.BigBWAMap.FieldScanner();
+	private BigBWA.BigBWAMap.FieldScanner fields2 = new BigBWA.BigBWAMap.FieldScanner();
+
+	@Setup
+	public void setup() throws IOException {
+
+		BenchmarkData data = new BenchmarkData(NUM_PAIRS, 1);
+
+		this.records = data.toFq2FqRecords();
+
+		// Records of 4 lines of a FASTQ file, as FastqRecordReader gives them
+		byte[] fastq = data.toFastq(1);
+		this.fastqRecords = new byte[NUM_PAIRS][];
+
+		int start = 0;
+		int lines = 0;
+
+		for (int i = 0; i < fastq.length; i++) {
+			if ((fastq[i] == '\n') && (++lines % 4 == 0)) {
+				this.fastqRecords[lines / 4 - 1] = Arrays.copyOfRange(fastq, start, i + 1);
+				start = i + 1;
+			}
+		}
+
+		this.dir = BenchmarkData.createTempDir("BigBWA-bench-tmp");
+		this.file1 = new File(this.dir, "HadoopTMPFile-1");
+		this.file2 = new File(this.dir, "HadoopTMPFile-1_2");
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.file1.delete();
+		this.file2.delete();
+		this.dir.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(2 * NUM_PAIRS)
+	public void writeFq2FqPairs() throws IOException {
+
+		OutputStream out1 = new BufferedOutputStream(new FileOutputStream(this.file1), this.bufferSize);
+		OutputStream out2 = new BufferedOutputStream(new FileOutputStream(this.file2), this.bufferSize);
+
+		try {
+			for (Text record : this.records) {
+				byte[] data = record.getBytes();
+				int length = record.getLength();
+				int part = BigBWA.BigBWAMap.FieldScanner.indexOf(data, 0, length, BigBWA.BigBWAMap.FieldScanner.PART);
+
+				this.fields1.scan(data, 0, part);
+				this.fields2.scan(data, part + BigBWA.BigBWAMap.FieldScanner.PART.length, length);
+
+				this.fields1.write(data, out1);
+				this.fields2.write(data, out2);
+			}
+		}
+		finally {
+			out1.close();
+			out2.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM_PAIRS)
+	public void writeFastq() throws IOException {
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(this.file1), this.bufferSize);
+
+		try {
+			for (byte[] record : this.fastqRecords) {
+				out.write(record);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Key of the alignments in the coordinate sort: reference id, position and
+ * the order in which the mapper wrote them, which keeps the sort stable.
+ * Reads without reference go after all the references, and the SAM headers
+ * of the mappers use HEADER as reference, so they go before everything.
+ *
+ * Keys are serialized as 16 bytes and compared without deserializing them.
+ *
+ * @author José M. Abuín
+ */
+public class AlignmentKey implements WritableComparable<AlignmentKey> {
+
+	public static final int HEADER = -1;
+	public static final int UNMAPPED = Integer.MAX_VALUE;
+
+	private int reference;
+	private int position;
+	private long order;
+
+	public AlignmentKey() {
+	}
+
+	/**
+	 * @param reference Id of the reference, UNMAPPED or HEADER
+	 * @param position 0-based position in the reference
+	 * @param order Order of the alignment in the output of the mapper
+	 */
+	public AlignmentKey(int reference, int position, long order) {
+		this.set(reference, position, order);
+	}
+
+	public void set(int reference, int position, long order) {
+		this.reference = reference;
+		this.position = position;
+		this.order = order;
+	}
+
+	/**
+	 * @return The id of the reference, UNMAPPED or HEADER
+	 */
+	public int getReference() {
+		return this.reference;
+	}
+
+	/**
+	 * @return The 0-based position in the reference
+	 */
+	public int getPosition() {
+		return this.position;
+	}
+
+	/**
+	 * @return The order of the alignment in the output of the mapper
+	 */
+	public long getOrder() {
+		return this.order;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(this.reference);
+		out.writeInt(this.position);
+		out.writeLong(this.order);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		this.reference = in.readInt();
+		this.position = in.readInt();
+		this.order = in.readLong();
+	}
+
+	@Override
+	public int compareTo(AlignmentKey other) {
+
+		if (this.reference != other.reference) {
+			return (this.reference < other.reference) ? -1 : 1;
+		}
+
+		if (this.position != other.position) {
+			return (this.position < other.position) ? -1 : 1;
+		}
+
+		return (this.order < other.order) ? -1 : ((this.order == other.order) ? 0 : 1);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return (other instanceof AlignmentKey) && (this.compareTo((AlignmentKey) other) == 0);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * this.reference + this.position) + (int) (this.order ^ (this.order >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return this.reference + ":" + this.position + ":" + this.order;
+	}
+
+	/**
+	 * Compares the serialized keys
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(AlignmentKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+
+			int reference1 = readInt(b1, s1);
+			int reference2 = readInt(b2, s2);
+
+			if (reference1 != reference2) {
+				return (reference1 < reference2) ? -1 : 1;
+			}
+
+			int position1 = readInt(b1, s1 + 4);
+			int position2 = readInt(b2, s2 + 4);
+
+			if (position1 != position2) {
+				return (position1 < position2) ? -1 : 1;
+			}
+
+			long order1 = readLong(b1, s1 + 8);
+			long order2 = readLong(b2, s2 + 8);
+
+			return (order1 < order2) ? -1 : ((order1 == order2) ? 0 : 1);
+		}
+	}
+
+	static {
+		WritableComparator.define(AlignmentKey.class, new Comparator());
+	}
+
+}
@@ -0,0 +1,218 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Turns the SAM text written by bwa into a BAM file. The header lines are
+ * kept until the first record arrives, and then the BAM header is written
+ * with the sequences of the reference dictionary, which also give the
+ * reference ids of the records. Each SAM line is encoded by a
+ * BamRecordEncoder, and the result is compressed by a BgzfOutputStream.
+ *
+ * Subclasses can send the header and the records somewhere else by
+ * overriding writeHeader() and writeRecord().
+ *
+ * @author José M. Abuín
+ */
+public class BamOutputStream extends OutputStream {
+
+	private BgzfOutputStream bgzf = null;
+
+	protected BamRecordEncoder encoder;
+
+	// Current SAM line
+	private byte[] line = new byte[4096];
+	private int lineLength = 0;
+
+	private boolean headerWritten = false;
+	private ByteArrayOutputStream samHeader = new ByteArrayOutputStream();
+
+	private long numRecords = 0;
+
+	/**
+	 * @param out Stream for the BAM file. It is closed with this one
+	 * @param dictionary Sequences of the reference, or null to take them from the "@SQ" lines of the SAM header
+	 * @param threads Number of compression threads
+	 * @param level Compression level, from 0 to 9, or -1 for the zlib default
+	 */
+	public BamOutputStream(OutputStream out, ReferenceDictionary dictionary, int threads, int level) {
+		this.bgzf = new BgzfOutputStream(out, threads, level);
+		this.encoder = new BamRecordEncoder(dictionary);
+	}
+
+	/**
+	 * For subclasses that do not write a BAM file
+	 *
+	 * @param dictionary Sequences of the reference, or null to take them from the "@SQ" lines of the SAM header
+	 */
+	protected BamOutputStream(ReferenceDictionary dictionary) {
+		this.encoder = new BamRecordEncoder(dictionary);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		if (b == '\n') {
+			this.processLine();
+			return;
+		}
+
+		if (this.lineLength == this.line.length) {
+			this.line = Arrays.copyOf(this.line, this.line.length * 2);
+		}
+
+		this.line[this.lineLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+
+		int end = offset + length;
+
+		while (offset < end) {
+			int newLine = offset;
+
+			while ((newLine < end) && (data[newLine] != '\n')) {
+				newLine++;
+			}
+
+			int copied = newLine - offset;
+
+			if (this.lineLength + copied > this.line.length) {
+				this.line = Arrays.copyOf(this.line, Math.max(this.line.length * 2, this.lineLength + copied));
+			}
+
+			System.arraycopy(data, offset, this.line, this.lineLength, copied);
+			this.lineLength += copied;
+
+			if (newLine < end) {
+				this.processLine();
+				newLine++;
+			}
+
+			offset = newLine;
+		}
+	}
+
+	/**
+	 * Compresses the records written so far. A partial last line is kept until its end arrives
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		if (this.headerWritten && (this.bgzf != null)) {
+			this.bgzf.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (this.lineLength > 0) {
+			this.processLine();
+		}
+
+		if (!this.headerWritten) {
+			this.startRecords();
+		}
+
+		if (this.bgzf != null) {
+			this.bgzf.close();
+		}
+	}
+
+	/**
+	 * @return The number of records written
+	 */
+	public long getNumRecords() {
+		return this.numRecords;
+	}
+
+	/**
+	 * Writes the header. The records start in their own block, so the header can be replaced without decompressing them
+	 *
+	 * @param samHeader The SAM header lines given by bwa
+	 * @throws IOException If the header could not be written
+	 */
+	protected void writeHeader(String samHeader) throws IOException {
+
+		byte[] header = this.encoder.encodeHeader(samHeader);
+
+		this.bgzf.write(header, 0, header.length);
+		this.bgzf.endBlock();
+	}
+
+	/**
+	 * Writes an encoded record
+	 *
+	 * @param record Array with the record, starting with its block size
+	 * @param length Length of the record
+	 * @throws IOException If the record could not be written
+	 */
+	protected void writeRecord(byte[] record, int length) throws IOException {
+		this.bgzf.write(record, 0, length);
+	}
+
+	private void startRecords() throws IOException {
+
+		this.writeHeader(new String(this.samHeader.toByteArray(), "UTF-8"));
+
+		this.headerWritten = true;
+		this.samHeader = null;
+	}
+
+	private void processLine() throws IOException {
+
+		int length = this.lineLength;
+		this.lineLength = 0;
+
+		if ((length > 0) && (this.line[length - 1] == '\r')) {
+			length--;
+		}
+
+		if (length == 0) {
+			return;
+		}
+
+		if (this.line[0] == '@') {
+			if (this.headerWritten) {
+				throw new IOException("SAM header line after the first record: " + new String(this.line, 0, length));
+			}
+
+			this.samHeader.write(this.line, 0, length);
+			this.samHeader.write('\n');
+			return;
+		}
+
+		if (!this.headerWritten) {
+			this.startRecords();
+		}
+
+		int recordLength = this.encoder.encode(this.line, length);
+		this.writeRecord(this.encoder.getRecord(), recordLength);
+		this.numRecords++;
+	}
+
+}
@@ -0,0 +1,582 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes SAM text into BAM. Each SAM line is turned into a binary record in
+ * a buffer that is reused for every record, so no objects are created per
+ * line. The reference dictionary gives the ids of the reference names.
+ *
+ * @author José M. Abuín
+ */
+public class BamRecordEncoder {
+
+	private static final byte[] MAGIC = {'B', 'A', 'M', 1};
+
+	// Code of each base in the 4 bits encoding of BAM
+	private static final byte[] BASE_CODES = new byte[256];
+
+	static {
+		Arrays.fill(BASE_CODES, (byte) 15);
+
+		String bases = "=ACMGRSVTWYHKDBN";
+
+		for (int i = 0; i < bases.length(); i++) {
+			BASE_CODES[bases.charAt(i)] = (byte) i;
+			BASE_CODES[Character.toLowerCase(bases.charAt(i))] = (byte) i;
+		}
+	}
+
+	private static final String CIGAR_OPERATIONS = "MIDNSHP=X";
+
+	private ReferenceDictionary dictionary;
+
+	// SAM line being encoded
+	private byte[] line;
+
+	// Positions of the tabs of the current line
+	private int[] tabs = new int[64];
+	private int numFields = 0;
+
+	private byte[] record = new byte[4096];
+	private int recordLength = 0;
+
+	/**
+	 * @param dictionary Sequences of the reference, or null to take them from the "@SQ" lines given to encodeHeader()
+	 */
+	public BamRecordEncoder(ReferenceDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Encodes the BAM header. The "@SQ" lines come from the dictionary, after "@HD" and before the rest of the lines.
+	 * Without a dictionary, it is taken from the "@SQ" lines of the SAM header
+	 *
+	 * @param samHeader The SAM header lines, each one ended by a new line
+	 * @return The BAM header, with the text and the list of references
+	 * @throws IOException If the header has no dictionary and its "@SQ" lines are wrong
+	 */
+	public byte[] encodeHeader(String samHeader) throws IOException {
+
+		String[] samLines = samHeader.split("\n");
+
+		if (this.dictionary == null) {
+			this.dictionary = new ReferenceDictionary();
+
+			for (String samLine : samLines) {
+				if (samLine.startsWith("@SQ\t")) {
+					this.dictionary.add(getHeaderField(samLine, "SN"), Integer.parseInt(getHeaderField(samLine, "LN")));
+				}
+			}
+		}
+
+		StringBuilder text = new StringBuilder();
+
+		for (String samLine : samLines) {
+			if (samLine.startsWith("@HD\t")) {
+				text.append(samLine).append('\n');
+			}
+		}
+
+		text.append(this.dictionary.toSamHeader());
+
+		for (String samLine : samLines) {
+			if (!samLine.isEmpty() && !samLine.startsWith("@HD\t") && !samLine.startsWith("@SQ\t")) {
+				text.append(samLine).append('\n');
+			}
+		}
+
+		byte[] textBytes = text.toString().getBytes("UTF-8");
+
+		this.recordLength = 0;
+		this.appendBytes(MAGIC, 0, MAGIC.length);
+		this.appendInt(textBytes.length);
+		this.appendBytes(textBytes, 0, textBytes.length);
+		this.appendInt(this.dictionary.size());
+
+		for (int i = 0; i < this.dictionary.size(); i++) {
+			byte[] name = this.dictionary.getName(i).getBytes("UTF-8");
+
+			this.appendInt(name.length + 1);
+			this.appendBytes(name, 0, name.length);
+			this.appendByte(0);
+			this.appendInt(this.dictionary.getLength(i));
+		}
+
+		return Arrays.copyOf(this.record, this.recordLength);
+	}
+
+	/**
+	 * @param samLine A header line
+	 * @param tag Tag of the field
+	 * @return The value of the field
+	 * @throws IOException If the line has no such field
+	 */
+	public static String getHeaderField(String samLine, String tag) throws IOException {
+
+		for (String field : samLine.split("\t")) {
+			if (field.startsWith(tag + ":")) {
+				return field.substring(tag.length() + 1);
+			}
+		}
+
+		throw new IOException("No " + tag + " field in header line " + samLine);
+	}
+
+	/**
+	 * @return The array with the last encoded record. Only the length returned by encode() is valid
+	 */
+	public byte[] getRecord() {
+		return this.record;
+	}
+
+	/**
+	 * @return The dictionary with the ids of the references
+	 */
+	public ReferenceDictionary getDictionary() {
+		return this.dictionary;
+	}
+
+	/**
+	 * @param record A BAM record, starting with its block size
+	 * @return The id of the reference of the record, -1 for unmapped reads without position
+	 */
+	public static int getRefId(byte[] record) {
+		return readInt(record, 4);
+	}
+
+	/**
+	 * @param record A BAM record, starting with its block size
+	 * @return The 0-based position of the record
+	 */
+	public static int getPosition(byte[] record) {
+		return readInt(record, 8);
+	}
+
+	private static int readInt(byte[] array, int position) {
+		return (array[position] & 0xff) | ((array[position + 1] & 0xff) << 8) | ((array[position + 2] & 0xff) << 16) | ((array[position + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * Encodes a SAM record. The result is kept in getRecord() until the next call
+	 *
+	 * @param line Array with the SAM line, without its new line
+	 * @param length Length of the line
+	 * @return The length of the BAM record, including its block size field
+	 * @throws IOException If the line is not a valid SAM record
+	 */
+	public int encode(byte[] line, int length) throws IOException {
+
+		this.line = line;
+		this.numFields = 0;
+
+		for (int i = 0; i < length; i++) {
+			if (this.line[i] == '\t') {
+				if (this.numFields == this.tabs.length) {
+					this.tabs = Arrays.copyOf(this.tabs, this.tabs.length * 2);
+				}
+
+				this.tabs[this.numFields++] = i;
+			}
+		}
+
+		// End of the last field
+		if (this.numFields == this.tabs.length) {
+			this.tabs = Arrays.copyOf(this.tabs, this.tabs.length * 2);
+		}
+
+		this.tabs[this.numFields++] = length;
+
+		if (this.numFields < 11) {
+			throw new IOException("SAM record with " + this.numFields + " fields: " + new String(this.line, 0, length));
+		}
+
+		int refId = this.parseRefId(2, -1);
+		int pos = (int) this.parseInt(3) - 1;
+		int mapq = (int) this.parseInt(4);
+		int flag = (int) this.parseInt(1);
+		int nextRefId = this.parseRefId(6, refId);
+		int nextPos = (int) this.parseInt(7) - 1;
+		int tlen = (int) this.parseInt(8);
+
+		int nameStart = this.fieldStart(0);
+		int nameLength = this.tabs[0] - nameStart;
+
+		int cigarStart = this.fieldStart(5);
+		int cigarEnd = this.tabs[5];
+		boolean noCigar = (cigarEnd - cigarStart == 1) && (this.line[cigarStart] == '*');
+
+		int seqStart = this.fieldStart(9);
+		int seqLength = this.tabs[9] - seqStart;
+
+		if ((seqLength == 1) && (this.line[seqStart] == '*')) {
+			seqLength = 0;
+		}
+
+		int qualStart = this.fieldStart(10);
+		boolean noQual = (this.tabs[10] - qualStart == 1) && (this.line[qualStart] == '*');
+
+		if (!noQual && (this.tabs[10] - qualStart != seqLength)) {
+			throw new IOException("Different lengths of bases and qualities: " + new String(this.line, 0, length));
+		}
+
+		// Fixed part of the record, the size and bin are filled in after the CIGAR
+		this.recordLength = 0;
+		this.appendInt(0);
+		this.appendInt(refId);
+		this.appendInt(pos);
+		this.appendByte(nameLength + 1);
+		this.appendByte(mapq);
+		this.appendShort(0);
+		this.appendShort(0);
+		this.appendShort(flag);
+		this.appendInt(seqLength);
+		this.appendInt(nextRefId);
+		this.appendInt(nextPos);
+		this.appendInt(tlen);
+
+		this.appendBytes(this.line, nameStart, nameLength);
+		this.appendByte(0);
+
+		// CIGAR operations and the length in the reference they cover
+		int numCigar = 0;
+		int referenceLength = 0;
+
+		if (!noCigar) {
+			int operationLength = 0;
+
+			for (int i = cigarStart; i < cigarEnd; i++) {
+				byte c = this.line[i];
+
+				if ((c >= '0') && (c <= '9')) {
+					operationLength = operationLength * 10 + (c - '0');
+					continue;
+				}
+
+				int operation = CIGAR_OPERATIONS.indexOf(c);
+
+				if (operation < 0) {
+					throw new IOException("Wrong CIGAR operation '" + (char) c + "': " + new String(this.line, 0, length));
+				}
+
+				this.appendInt((operationLength << 4) | operation);
+
+				// M, D, N, = and X consume the reference
+				if ((operation == 0) || (operation == 2) || (operation == 3) || (operation == 7) || (operation == 8)) {
+					referenceLength += operationLength;
+				}
+
+				operationLength = 0;
+				numCigar++;
+			}
+		}
+
+		writeShort(this.record, 16, numCigar);
+		writeShort(this.record, 14, reg2bin(pos, pos + ((referenceLength > 0) ? referenceLength : 1)));
+
+		// Bases, two per byte
+		this.ensureRecordCapacity((seqLength + 1) / 2 + seqLength);
+
+		for (int i = 0; i < seqLength; i += 2) {
+			int high = BASE_CODES[this.line[seqStart + i] & 0xff];
+			int low = (i + 1 < seqLength) ? BASE_CODES[this.line[seqStart + i + 1] & 0xff] : 0;
+
+			this.record[this.recordLength++] = (byte) ((high << 4) | low);
+		}
+
+		// Qualities without the offset of 33, or 0xff if there are none
+		for (int i = 0; i < seqLength; i++) {
+			this.record[this.recordLength++] = noQual ? (byte) 0xff : (byte) (this.line[qualStart + i] - 33);
+		}
+
+		for (int field = 11; field < this.numFields; field++) {
+			this.encodeTag(field, length);
+		}
+
+		writeInt(this.record, 0, this.recordLength - 4);
+
+		return this.recordLength;
+	}
+
+	/**
+	 * Encodes an optional field "TG:T:value"
+	 */
+	private void encodeTag(int field, int length) throws IOException {
+
+		int start = this.fieldStart(field);
+		int end = this.tabs[field];
+
+		if ((end - start < 5) || (this.line[start + 2] != ':') || (this.line[start + 4] != ':')) {
+			throw new IOException("Wrong optional field in SAM record: " + new String(this.line, 0, length));
+		}
+
+		byte type = this.line[start + 3];
+		int valueStart = start + 5;
+
+		this.appendBytes(this.line, start, 2);
+
+		switch (type) {
+			case 'A':
+				this.appendByte(type);
+				this.appendByte(this.line[valueStart]);
+				break;
+
+			case 'i':
+				this.appendInteger(parseLong(this.line, valueStart, end));
+				break;
+
+			case 'f':
+				this.appendByte('f');
+				this.appendInt(Float.floatToIntBits(Float.parseFloat(new String(this.line, valueStart, end - valueStart))));
+				break;
+
+			case 'Z':
+			case 'H':
+				this.appendByte(type);
+				this.appendBytes(this.line, valueStart, end - valueStart);
+				this.appendByte(0);
+				break;
+
+			case 'B':
+				this.encodeArray(valueStart, end);
+				break;
+
+			default:
+				throw new IOException("Unknown type of optional field '" + (char) type + "': " + new String(this.line, 0, length));
+		}
+	}
+
+	/**
+	 * Encodes the value of a "B" field: the type of the elements followed by the elements separated by commas
+	 */
+	private void encodeArray(int start, int end) throws IOException {
+
+		byte subtype = this.line[start];
+
+		this.appendByte('B');
+		this.appendByte(subtype);
+
+		int countPosition = this.recordLength;
+		this.appendInt(0);
+
+		int count = 0;
+		int elementStart = start + 2;
+
+		while (elementStart < end) {
+			int elementEnd = elementStart;
+
+			while ((elementEnd < end) && (this.line[elementEnd] != ',')) {
+				elementEnd++;
+			}
+
+			switch (subtype) {
+				case 'c':
+				case 'C':
+					this.appendByte((int) parseLong(this.line, elementStart, elementEnd));
+					break;
+				case 's':
+				case 'S':
+					this.appendShort((int) parseLong(this.line, elementStart, elementEnd));
+					break;
+				case 'i':
+				case 'I':
+					this.appendInt((int) parseLong(this.line, elementStart, elementEnd));
+					break;
+				case 'f':
+					this.appendInt(Float.floatToIntBits(Float.parseFloat(new String(this.line, elementStart, elementEnd - elementStart))));
+					break;
+				default:
+					throw new IOException("Unknown type of array '" + (char) subtype + "'");
+			}
+
+			count++;
+			elementStart = elementEnd + 1;
+		}
+
+		writeInt(this.record, countPosition, count);
+	}
+
+	/**
+	 * Appends an integer field with the smallest type that holds it, as samtools does
+	 */
+	private void appendInteger(long value) {
+
+		if (value < 0) {
+			if (value >= Byte.MIN_VALUE) {
+				this.appendByte('c');
+				this.appendByte((int) value);
+			}
+			else if (value >= Short.MIN_VALUE) {
+				this.appendByte('s');
+				this.appendShort((int) value);
+			}
+			else {
+				this.appendByte('i');
+				this.appendInt((int) value);
+			}
+		}
+		else {
+			if (value <= 0xff) {
+				this.appendByte('C');
+				this.appendByte((int) value);
+			}
+			else if (value <= 0xffff) {
+				this.appendByte('S');
+				this.appendShort((int) value);
+			}
+			else {
+				this.appendByte('I');
+				this.appendInt((int) value);
+			}
+		}
+	}
+
+	private int fieldStart(int field) {
+		return (field == 0) ? 0 : this.tabs[field - 1] + 1;
+	}
+
+	private long parseInt(int field) throws IOException {
+		return parseLong(this.line, this.fieldStart(field), this.tabs[field]);
+	}
+
+	/**
+	 * Id of the reference in a field, -1 for "*", or the given one for "="
+	 */
+	private int parseRefId(int field, int sameRefId) throws IOException {
+
+		int start = this.fieldStart(field);
+		int fieldLength = this.tabs[field] - start;
+
+		if (fieldLength == 1) {
+			if (this.line[start] == '*') {
+				return -1;
+			}
+			else if (this.line[start] == '=') {
+				return sameRefId;
+			}
+		}
+
+		String name = new String(this.line, start, fieldLength, "UTF-8");
+		int id = this.dictionary.getId(name);
+
+		if (id < 0) {
+			throw new IOException("Reference " + name + " is not in the dictionary of the index");
+		}
+
+		return id;
+	}
+
+	private static long parseLong(byte[] data, int start, int end) throws IOException {
+
+		if (start >= end) {
+			throw new IOException("Empty number in SAM record");
+		}
+
+		boolean negative = (data[start] == '-');
+		int i = (negative || (data[start] == '+')) ? start + 1 : start;
+
+		long value = 0;
+
+		for (; i < end; i++) {
+			if ((data[i] < '0') || (data[i] > '9')) {
+				throw new IOException("Wrong number in SAM record: " + new String(data, start, end - start));
+			}
+
+			value = value * 10 + (data[i] - '0');
+		}
+
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Bin of the BAM index for an alignment, as computed by samtools
+	 *
+	 * @param begin First position, 0-based
+	 * @param end Position after the last one
+	 * @return The bin of the smallest region that contains the alignment
+	 */
+	public static int reg2bin(int begin, int end) {
+
+		end--;
+
+		if (begin >> 14 == end >> 14) {
+			return ((1 << 15) - 1) / 7 + (begin >> 14);
+		}
+		if (begin >> 17 == end >> 17) {
+			return ((1 << 12) - 1) / 7 + (begin >> 17);
+		}
+		if (begin >> 20 == end >> 20) {
+			return ((1 << 9) - 1) / 7 + (begin >> 20);
+		}
+		if (begin >> 23 == end >> 23) {
+			return ((1 << 6) - 1) / 7 + (begin >> 23);
+		}
+		if (begin >> 26 == end >> 26) {
+			return ((1 << 3) - 1) / 7 + (begin >> 26);
+		}
+
+		return 0;
+	}
+
+	private void ensureRecordCapacity(int extraBytes) {
+		if (this.recordLength + extraBytes > this.record.length) {
+			this.record = Arrays.copyOf(this.record, Math.max(this.record.length * 2, this.recordLength + extraBytes));
+		}
+	}
+
+	private void appendByte(int value) {
+		this.ensureRecordCapacity(1);
+		this.record[this.recordLength++] = (byte) value;
+	}
+
+	private void appendShort(int value) {
+		this.ensureRecordCapacity(2);
+		writeShort(this.record, this.recordLength, value);
+		this.recordLength += 2;
+	}
+
+	private void appendInt(int value) {
+		this.ensureRecordCapacity(4);
+		writeInt(this.record, this.recordLength, value);
+		this.recordLength += 4;
+	}
+
+	private void appendBytes(byte[] data, int start, int length) {
+		this.ensureRecordCapacity(length);
+		System.arraycopy(data, start, this.record, this.recordLength, length);
+		this.recordLength += length;
+	}
+
+	private static void writeShort(byte[] array, int position, int value) {
+		array[position] = (byte) value;
+		array[position + 1] = (byte) (value >> 8);
+	}
+
+	private static void writeInt(byte[] array, int position, int value) {
+		array[position] = (byte) value;
+		array[position + 1] = (byte) (value >> 8);
+		array[position + 2] = (byte) (value >> 16);
+		array[position + 3] = (byte) (value >> 24);
+	}
+
+}
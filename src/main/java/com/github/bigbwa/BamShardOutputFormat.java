@@ -0,0 +1,74 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Writes the output of each reducer of the coordinate sort as a shard of a
+ * BAM file: a BGZF file with the bytes given by the reducer, which are the
+ * BAM header in the first shard and the encoded records in all of them. Only
+ * the last shard ends with the BGZF end of file marker, so the shards can be
+ * concatenated, in the order of their names, into a valid BAM file.
+ *
+ * @author José M. Abuín
+ */
+public class BamShardOutputFormat extends FileOutputFormat<NullWritable, BytesWritable> {
+
+	@Override
+	public RecordWriter<NullWritable, BytesWritable> getRecordWriter(TaskAttemptContext context) throws IOException {
+
+		Configuration conf = context.getConfiguration();
+
+		Path file = this.getDefaultWorkFile(context, ".bam");
+		FileSystem fs = file.getFileSystem(conf);
+
+		final BgzfOutputStream out = new BgzfOutputStream(fs.create(file, false),
+				conf.getInt("bamThreads", Math.min(4, Runtime.getRuntime().availableProcessors())),
+				conf.getInt("bamCompression", -1));
+
+		int shard = context.getTaskAttemptID().getTaskID().getId();
+
+		out.setEofBlock(shard == context.getNumReduceTasks() - 1);
+
+		return new RecordWriter<NullWritable, BytesWritable>() {
+
+			@Override
+			public void write(NullWritable key, BytesWritable value) throws IOException {
+				out.write(value.getBytes(), 0, value.getLength());
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) throws IOException {
+				out.close();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,377 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads a BGZF file (the blocked gzip written by bgzip) from a block start.
+ * BGZF blocks are independent gzip members of at most 64 KB, so a file can be
+ * decompressed from any block, and positions are kept as virtual offsets:
+ * the address of the block in the compressed file in the upper 48 bits, and
+ * the offset inside the uncompressed block in the lower 16.
+ *
+ * The stream remembers the blocks it has decompressed, so the position of a
+ * byte counted from the first block can be turned into its virtual offset.
+ *
+ * @author José M. Abuín
+ */
+public class BgzfInputStream extends InputStream {
+
+	private static final int HEADER_SIZE = 18;
+	private static final int MAX_BLOCK_SIZE = 65536;
+
+	private FSDataInputStream in;
+	private long fileLength;
+
+	private long nextBlockAddress;
+	private long blockAddress = -1;
+
+	// First block that starts at the end of the split or after it
+	private long splitEnd = Long.MAX_VALUE;
+	private long blockAtSplitEnd = -1;
+
+	private byte[] compressed = new byte[MAX_BLOCK_SIZE];
+	private byte[] block = new byte[MAX_BLOCK_SIZE];
+	private int blockLength = 0;
+	private int blockPos = 0;
+
+	private Inflater inflater = new Inflater(true);
+
+	// Start, in uncompressed bytes from the first block, address and length of the blocks not yet discarded
+	private long uncompressedRead = 0;
+	private ArrayDeque<long[]> blocks = new ArrayDeque<long[]>();
+
+	/**
+	 * @param in The BGZF file
+	 * @param blockAddress Position of the block where reading starts
+	 * @param fileLength Length of the compressed file
+	 */
+	public BgzfInputStream(FSDataInputStream in, long blockAddress, long fileLength) {
+		this.in = in;
+		this.nextBlockAddress = blockAddress;
+		this.fileLength = fileLength;
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		if ((this.blockPos == this.blockLength) && !this.readBlock()) {
+			return -1;
+		}
+
+		return this.block[this.blockPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+
+		if (length == 0) {
+			return 0;
+		}
+
+		// Empty blocks, as the end of file marker, are skipped
+		while (this.blockPos == this.blockLength) {
+			if (!this.readBlock()) {
+				return -1;
+			}
+		}
+
+		int copied = Math.min(length, this.blockLength - this.blockPos);
+		System.arraycopy(this.block, this.blockPos, buffer, offset, copied);
+		this.blockPos += copied;
+
+		return copied;
+	}
+
+	private boolean readBlock() throws IOException {
+
+		if (this.nextBlockAddress >= this.fileLength) {
+			return false;
+		}
+
+		long address = this.nextBlockAddress;
+		int blockSize = readBlockSize(this.in, address);
+
+		if (blockSize < 0) {
+			throw new IOException("Invalid BGZF block at position " + address);
+		}
+
+		this.in.readFully(address, this.compressed, 0, blockSize);
+
+		int extraLength = (this.compressed[10] & 0xff) | ((this.compressed[11] & 0xff) << 8);
+		int dataStart = 12 + extraLength;
+		int dataLength = blockSize - dataStart - 8;
+		int uncompressedLength = readInt(this.compressed, blockSize - 4);
+
+		this.inflater.reset();
+		this.inflater.setInput(this.compressed, dataStart, dataLength);
+
+		try {
+			int inflated = 0;
+
+			while (inflated < uncompressedLength) {
+				int n = this.inflater.inflate(this.block, inflated, uncompressedLength - inflated);
+
+				if (n == 0 && (this.inflater.finished() || this.inflater.needsInput())) {
+					break;
+				}
+
+				inflated += n;
+			}
+
+			if (inflated != uncompressedLength) {
+				throw new IOException("Truncated BGZF block at position " + address);
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Corrupted BGZF block at position " + address, e);
+		}
+
+		this.uncompressedRead += this.blockLength;
+		this.blockLength = uncompressedLength;
+		this.blockPos = 0;
+		this.nextBlockAddress = address + blockSize;
+		this.blockAddress = address;
+
+		if ((address >= this.splitEnd) && (this.blockAtSplitEnd < 0)) {
+			this.blockAtSplitEnd = address;
+		}
+
+		this.blocks.addLast(new long[] {this.uncompressedRead, address, uncompressedLength});
+
+		return true;
+	}
+
+	/**
+	 * @param splitEnd Position in the compressed file where the split being read ends
+	 */
+	public void setSplitEnd(long splitEnd) {
+		this.splitEnd = splitEnd;
+	}
+
+	/**
+	 * @return The address of the first block at the end of the split or after it, or -1 if it has not been read yet
+	 */
+	public long getBlockAtSplitEnd() {
+		return this.blockAtSplitEnd;
+	}
+
+	/**
+	 * @return The address of the block being read, or -1 if no block has been read yet
+	 */
+	public long getBlockAddress() {
+		return this.blockAddress;
+	}
+
+	/**
+	 * Gives the virtual offset of a byte already read. Positions must be asked in increasing order,
+	 * since the blocks before the asked one are forgotten
+	 *
+	 * @param uncompressedPos Position of the byte, counting the uncompressed bytes from the first block
+	 * @return The virtual offset of the byte
+	 */
+	public long getVirtualOffset(long uncompressedPos) {
+
+		// Blocks that end before the position are not needed any more
+		while (this.blocks.size() > 1) {
+			long[] first = this.blocks.pollFirst();
+
+			if (this.blocks.peekFirst()[0] > uncompressedPos) {
+				this.blocks.addFirst(first);
+				break;
+			}
+		}
+
+		long[] current = this.blocks.peekFirst();
+
+		if (current == null) {
+			return this.nextBlockAddress << 16;
+		}
+
+		long offset = uncompressedPos - current[0];
+
+		// The byte is the first one of a block that has not been read yet
+		if (offset >= current[2]) {
+			return this.nextBlockAddress << 16;
+		}
+
+		return (current[1] << 16) | offset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.inflater.end();
+		this.in.close();
+	}
+
+	/**
+	 * Checks if a file is BGZF compressed by looking at the header of its first block
+	 *
+	 * @param fs The file system of the file
+	 * @param file The file to check
+	 * @return True if the file starts with a BGZF block
+	 * @throws IOException If the file could not be read
+	 */
+	public static boolean isBgzf(FileSystem fs, Path file) throws IOException {
+
+		FSDataInputStream in = fs.open(file);
+
+		try {
+			return readBlockSize(in, 0) > 0;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds the first block that starts at a position or after it. The .gzi index written by
+	 * "bgzip -i" is used if it exists, otherwise the file is scanned for a block header
+	 *
+	 * @param fs The file system of the file
+	 * @param file The BGZF file
+	 * @param in The open BGZF file
+	 * @param position Position where the search starts
+	 * @param fileLength Length of the compressed file
+	 * @return The address of the block, or the length of the file if there are no more blocks
+	 * @throws IOException If the file could not be read
+	 */
+	public static long findBlock(FileSystem fs, Path file, FSDataInputStream in, long position, long fileLength) throws IOException {
+
+		if (position == 0) {
+			return 0;
+		}
+
+		Path indexFile = file.suffix(".gzi");
+
+		if (fs.exists(indexFile)) {
+			return findBlockInIndex(fs, indexFile, position, fileLength);
+		}
+
+		byte[] window = new byte[2 * MAX_BLOCK_SIZE];
+
+		for (long windowStart = position; windowStart < fileLength; windowStart += MAX_BLOCK_SIZE) {
+
+			int length = (int) Math.min(window.length, fileLength - windowStart);
+			in.readFully(windowStart, window, 0, length);
+
+			for (int i = 0; i < Math.min(length, MAX_BLOCK_SIZE); i++) {
+
+				if ((window[i] != 31) || ((window[i + 1] & 0xff) != 139)) {
+					continue;
+				}
+
+				long candidate = windowStart + i;
+				int blockSize = readBlockSize(in, candidate);
+
+				// A block header followed by another one, or by the end of the file, is not a coincidence
+				if ((blockSize > 0) && ((candidate + blockSize == fileLength) || (readBlockSize(in, candidate + blockSize) > 0))) {
+					return candidate;
+				}
+			}
+		}
+
+		return fileLength;
+	}
+
+	private static long findBlockInIndex(FileSystem fs, Path indexFile, long position, long fileLength) throws IOException {
+
+		FSDataInputStream index = fs.open(indexFile);
+		byte[] entry = new byte[8];
+
+		try {
+			index.readFully(0, entry, 0, 8);
+			long numEntries = readLong(entry, 0);
+			long low = 0;
+			long high = numEntries;
+
+			// Entries are sorted pairs of compressed and uncompressed offsets, without the first block
+			while (low < high) {
+				long middle = (low + high) >>> 1;
+
+				index.readFully(8 + 16 * middle, entry, 0, 8);
+
+				if (readLong(entry, 0) < position) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+
+			if (low == numEntries) {
+				return fileLength;
+			}
+
+			index.readFully(8 + 16 * low, entry, 0, 8);
+
+			return readLong(entry, 0);
+		}
+		catch (EOFException e) {
+			throw new IOException("Truncated BGZF index " + indexFile, e);
+		}
+		finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * @return The total size of the BGZF block that starts at the given address, or -1 if there is no block there
+	 */
+	private static int readBlockSize(FSDataInputStream in, long address) throws IOException {
+
+		byte[] header = new byte[HEADER_SIZE];
+
+		try {
+			in.readFully(address, header, 0, HEADER_SIZE);
+		}
+		catch (EOFException e) {
+			return -1;
+		}
+
+		// gzip magic, deflate, FEXTRA flag and the "BC" subfield with the block size
+		if (((header[0] & 0xff) != 31) || ((header[1] & 0xff) != 139) || (header[2] != 8) || ((header[3] & 4) == 0)
+				|| (header[12] != 'B') || (header[13] != 'C') || (header[14] != 2) || (header[15] != 0)) {
+			return -1;
+		}
+
+		return ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8)
+				| ((buffer[offset + 2] & 0xff) << 16) | ((buffer[offset + 3] & 0xff) << 24);
+	}
+
+	private static long readLong(byte[] buffer, int offset) {
+		return (readInt(buffer, offset) & 0xffffffffL) | ((long) readInt(buffer, offset + 4) << 32);
+	}
+
+}
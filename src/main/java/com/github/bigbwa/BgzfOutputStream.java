@@ -0,0 +1,340 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BGZF file, as bgzip does, compressing the blocks in a pool of
+ * threads. Data is cut in blocks of 0xff00 bytes, each block is compressed
+ * as an independent gzip member by one of the threads, and the compressed
+ * blocks are written in order by the thread that writes to the stream. The
+ * number of blocks being compressed is limited to twice the threads, so the
+ * memory used does not depend on the size of the output.
+ *
+ * The end of file marker is written when the stream is closed, unless it
+ * is disabled with setEofBlock().
+ *
+ * @author José M. Abuín
+ */
+public class BgzfOutputStream extends OutputStream {
+
+	// Uncompressed bytes per block, as in htslib, so the compressed block always fits in 64 KB
+	public static final int BLOCK_DATA_SIZE = 0xff00;
+
+	private static final int HEADER_SIZE = 18;
+	private static final int FOOTER_SIZE = 8;
+	private static final int MAX_BLOCK_SIZE = 65536;
+
+	private static final byte[] EOF_BLOCK = {
+		0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+		0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+	};
+
+	private OutputStream out;
+
+	private byte[] buffer = new byte[BLOCK_DATA_SIZE];
+	private int bufferLength = 0;
+
+	private ExecutorService pool = null;
+	private BlockingQueue<Deflater> deflaters;
+	private ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<Future<byte[]>>();
+	private int maxPendingBlocks;
+
+	private long compressedBytes = 0;
+
+	private boolean eofBlock = true;
+	private boolean closed = false;
+
+	/**
+	 * @param out Stream for the compressed blocks. It is closed with this one
+	 * @param threads Number of compression threads. With 0, blocks are compressed by the thread that writes
+	 * @param level Compression level, from 0 to 9, or -1 for the zlib default
+	 */
+	public BgzfOutputStream(OutputStream out, int threads, int level) {
+
+		this.out = out;
+
+		int numDeflaters = Math.max(1, threads);
+
+		this.deflaters = new ArrayBlockingQueue<Deflater>(numDeflaters);
+
+		for (int i = 0; i < numDeflaters; i++) {
+			this.deflaters.add(new Deflater(level, true));
+		}
+
+		if (threads > 0) {
+			this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "BigBWA-bgzf");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		this.maxPendingBlocks = 2 * numDeflaters;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		if (this.bufferLength == BLOCK_DATA_SIZE) {
+			this.endBlock();
+		}
+
+		this.buffer[this.bufferLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+
+		while (length > 0) {
+			if (this.bufferLength == BLOCK_DATA_SIZE) {
+				this.endBlock();
+			}
+
+			int copied = Math.min(length, BLOCK_DATA_SIZE - this.bufferLength);
+			System.arraycopy(data, offset, this.buffer, this.bufferLength, copied);
+
+			this.bufferLength += copied;
+			offset += copied;
+			length -= copied;
+		}
+	}
+
+	/**
+	 * Ends the current block, so the next data starts a new one. Nothing is done if the block is empty
+	 *
+	 * @throws IOException If a block could not be compressed or written
+	 */
+	public void endBlock() throws IOException {
+
+		if (this.bufferLength == 0) {
+			return;
+		}
+
+		final byte[] data = this.buffer;
+		final int length = this.bufferLength;
+
+		this.buffer = new byte[BLOCK_DATA_SIZE];
+		this.bufferLength = 0;
+
+		if (this.pool == null) {
+			try {
+				this.writeBlock(this.compressBlock(data, length));
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while compressing a BGZF block");
+			}
+
+			return;
+		}
+
+		this.pendingBlocks.add(this.pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws InterruptedException {
+				return compressBlock(data, length);
+			}
+		}));
+
+		while (this.pendingBlocks.size() > this.maxPendingBlocks) {
+			this.writeNextBlock();
+		}
+	}
+
+	/**
+	 * Writes the data written so far as complete blocks, and flushes the underlying stream
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		this.endBlock();
+
+		while (!this.pendingBlocks.isEmpty()) {
+			this.writeNextBlock();
+		}
+
+		this.out.flush();
+	}
+
+	/**
+	 * @return The number of compressed bytes written to the underlying stream. After flush(), it is the address of the next block
+	 */
+	public long getCompressedBytes() {
+		return this.compressedBytes;
+	}
+
+	/**
+	 * @param eofBlock Whether the end of file marker is written at close. Without it, other BGZF files can be appended to this one
+	 */
+	public void setEofBlock(boolean eofBlock) {
+		this.eofBlock = eofBlock;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (this.closed) {
+			return;
+		}
+
+		this.closed = true;
+
+		try {
+			this.flush();
+
+			if (this.eofBlock) {
+				this.out.write(EOF_BLOCK);
+				this.compressedBytes += EOF_BLOCK.length;
+			}
+		}
+		finally {
+			if (this.pool != null) {
+				this.pool.shutdownNow();
+			}
+
+			for (Deflater deflater : this.deflaters) {
+				deflater.end();
+			}
+
+			this.out.close();
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+
+		try {
+			this.writeBlock(this.pendingBlocks.poll().get());
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while compressing a BGZF block");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Could not compress a BGZF block", e.getCause());
+		}
+	}
+
+	private void writeBlock(byte[] block) throws IOException {
+		this.out.write(block);
+		this.compressedBytes += block.length;
+	}
+
+	private byte[] compressBlock(byte[] data, int length) throws InterruptedException {
+
+		byte[] block = new byte[MAX_BLOCK_SIZE];
+
+		Deflater deflater = this.deflaters.take();
+		int compressedLength;
+
+		try {
+			compressedLength = deflate(deflater, data, length, block);
+
+			// Data that does not compress is stored, which always fits in a block
+			if (compressedLength < 0) {
+				Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+
+				try {
+					compressedLength = deflate(store, data, length, block);
+				}
+				finally {
+					store.end();
+				}
+			}
+		}
+		finally {
+			this.deflaters.put(deflater);
+		}
+
+		int blockSize = HEADER_SIZE + compressedLength + FOOTER_SIZE;
+
+		// gzip header with the BC extra field holding the block size minus one
+		block[0] = 0x1f;
+		block[1] = (byte) 0x8b;
+		block[2] = 0x08;
+		block[3] = 0x04;
+		block[4] = block[5] = block[6] = block[7] = 0;
+		block[8] = 0;
+		block[9] = (byte) 0xff;
+		block[10] = 0x06;
+		block[11] = 0x00;
+		block[12] = 'B';
+		block[13] = 'C';
+		block[14] = 0x02;
+		block[15] = 0x00;
+		block[16] = (byte) ((blockSize - 1) & 0xff);
+		block[17] = (byte) (((blockSize - 1) >> 8) & 0xff);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		int footer = HEADER_SIZE + compressedLength;
+
+		writeInt(block, footer, (int) crc.getValue());
+		writeInt(block, footer + 4, length);
+
+		byte[] result = new byte[blockSize];
+		System.arraycopy(block, 0, result, 0, blockSize);
+
+		return result;
+	}
+
+	/**
+	 * @return The compressed length, or -1 if it does not fit in a block
+	 */
+	private static int deflate(Deflater deflater, byte[] data, int length, byte[] block) {
+
+		int capacity = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+
+		int compressedLength = 0;
+
+		while (!deflater.finished() && (compressedLength < capacity)) {
+			compressedLength += deflater.deflate(block, HEADER_SIZE + compressedLength, capacity - compressedLength);
+		}
+
+		return deflater.finished() ? compressedLength : -1;
+	}
+
+	private static void writeInt(byte[] array, int position, int value) {
+		array[position] = (byte) value;
+		array[position + 1] = (byte) (value >> 8);
+		array[position + 2] = (byte) (value >> 16);
+		array[position + 3] = (byte) (value >> 24);
+	}
+
+}
@@ -19,16 +19,18 @@
 
 package com.github.bigbwa;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 
 import org.apache.commons.logging.Log;
@@ -36,16 +38,26 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -55,6 +67,9 @@ public class BigBWA extends Configured implements Tool {
 
 	private static final Log LOG = LogFactory.getLog(BigBWA.class);
 
+	//Job of the last run, to read its counters
+	private Job job = null;
+
 	public static void main(String[] args) throws Exception {
 
 		int res = ToolRunner.run(new Configuration(), new BigBWA(), args);
@@ -107,12 +122,28 @@ public class BigBWA extends Configured implements Tool {
 		}
 
 		//==================Index election==================
+		IndexLocalizer localizer = null;
+
 		if(!options.getIndexPath().equals("")){
 			conf.set("indexRoute",options.getIndexPath());
+
+			//An index in HDFS is copied to the nodes through the distributed cache
+			if(IndexLocalizer.isRemote(conf, options.getIndexPath())) {
+				try {
+					localizer = new IndexLocalizer(conf, options.getIndexPath());
+					LOG.info("Index "+options.getIndexPath()+" is localized from "+localizer.getArchive());
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					LOG.error(e.toString());
+
+					return 1;
+				}
+			}
 		}
 		else{
 			System.err.println("No index has been found. Aborting.");
-			System.exit(1);
+			return 1;
 		}
 		
 		//==================Type of reads election==================
@@ -135,6 +166,138 @@ public class BigBWA extends Configured implements Tool {
 			conf.set("useReducer", "false");
 		}
 
+		//==================In-memory alignment==================
+		//The pipelined alignment works on the in-memory batches
+		if(options.isInMemory() || options.isPipeline()){
+			if(options.isMemAlgorithm()){
+				conf.set("inMemory", "true");
+				conf.set("pipeline", String.valueOf(options.isPipeline()));
+			}
+			else{
+				LOG.warn("In-memory alignment is only available with the mem algorithm. Using temporary files.");
+				conf.set("inMemory", "false");
+				conf.set("pipeline", "false");
+			}
+		}
+		else{
+			conf.set("inMemory", "false");
+			conf.set("pipeline", "false");
+		}
+
+		//==================Output format==================
+		//The sorted output is written in BAM format by the reducers
+		if(options.isSortOutput()){
+			conf.set("sort", "true");
+			options.setBamOutput(true);
+		}
+		else{
+			conf.set("sort", "false");
+		}
+
+		if(options.isBamOutput()){
+			conf.set("bam", "true");
+
+			//The reducer joins SAM text, so BAM files are left as the mappers write them
+			if(useReducer){
+				LOG.warn("The reducer can not merge BAM files. Each mapper output is kept as a BAM file.");
+				useReducer = false;
+				conf.set("useReducer", "false");
+			}
+		}
+		else{
+			conf.set("bam", "false");
+		}
+
+		//==================Duplicate marking==================
+		//The alignment writes SAM files to a directory of its own, and the duplicate marking writes the output as asked
+		boolean markDuplicates = conf.getBoolean("markDuplicates", false);
+		boolean markBam = false;
+		boolean markMerge = false;
+
+		if(markDuplicates) {
+			if(options.isSortOutput()) {
+				LOG.warn("Duplicates can not be marked in the sorted output. They are not marked.");
+				markDuplicates = false;
+			}
+			else {
+				markBam = options.isBamOutput();
+				markMerge = useReducer;
+
+				conf.set("bam", "false");
+				conf.set("useReducer", "false");
+				useReducer = false;
+			}
+		}
+
+		//==================Checkpoints==================
+		//Chunks are committed by the in-memory alignment, which aligns the reads in order as they are read
+		if(conf.getLong("checkpointReads", 0) > 0) {
+			if(!options.isMemAlgorithm() || options.isBamOutput()) {
+				LOG.warn("Checkpoints are only available with the mem algorithm and SAM output. They are disabled.");
+				conf.setLong("checkpointReads", 0);
+			}
+			else {
+				if(!conf.get("inMemory").equals("true")) {
+					LOG.info("Checkpoints need the in-memory alignment. It is enabled.");
+					conf.set("inMemory", "true");
+				}
+
+				//Attempts running at the same time would commit the same chunks
+				conf.setBoolean("mapreduce.map.speculative", false);
+			}
+		}
+
+		//==================Work queue==================
+		//The mappers take small chunks of the input from a queue in HDFS, and write the output of each one as they go
+		boolean workQueue = conf.getBoolean("workQueue", false);
+
+		if(workQueue) {
+			if(!options.isMemAlgorithm() || options.isSortOutput()) {
+				LOG.warn("The work queue is only available with the mem algorithm and unsorted output. It is disabled.");
+				workQueue = false;
+			}
+			else {
+				if(!conf.get("inMemory").equals("true")) {
+					LOG.info("The work queue needs the in-memory alignment. It is enabled.");
+					conf.set("inMemory", "true");
+				}
+
+				//The chunks of the queue are committed as they are aligned, so no other checkpoints are needed
+				conf.setLong("checkpointReads", 0);
+
+				//A speculative attempt would only be one more mapper, loading the index again
+				conf.setBoolean("mapreduce.map.speculative", false);
+			}
+		}
+
+		//==================Shared index==================
+		if(options.isSharedIndex()){
+			conf.set("sharedIndex", "true");
+		}
+		else{
+			conf.set("sharedIndex", "false");
+		}
+
+		//==================Input format==================
+		//With two input files, the mates are read from the original FASTQ files
+		boolean twoFiles = !options.getInputPath2().isEmpty();
+
+		if(twoFiles && !options.isPairedReads()){
+			System.err.println("Two input files can only be used with paired reads. Aborting.");
+			return 1;
+		}
+
+		if(options.isFastqInput() || twoFiles){
+			conf.set("fastqInput", "true");
+		}
+		else{
+			conf.set("fastqInput", "false");
+		}
+
+		if(twoFiles){
+			conf.set("inputPath2", options.getInputPath2());
+		}
+
 		//=================Number of threads and RG are changed by bwa options======================
 		if(!options.getBwaArgs().isEmpty()) {
 			conf.set("bwaArgs",options.getBwaArgs());
@@ -155,10 +318,87 @@ public class BigBWA extends Configured implements Tool {
 		inputPath = options.getInputPath();
 		outputPath = options.getOutputPath();
 
+		String finalOutputPath = outputPath;
+
+		if(markDuplicates) {
+			outputPath = conf.get("markDuplicatesDir", finalOutputPath+"_aligned");
+		}
+
 		conf.set("outputGenomics",outputPath);
 		
 		//==================Partition number==================
-		if(options.getPartitionNumber() != 0) {
+		//With the work queue, the mappers are as many as the partitions, or as the planner says that fit in the cluster
+		int queueWorkers = options.getPartitionNumber();
+
+		if(options.isPlanJob()) {
+			//Splits, bwa threads and container memory are chosen from the index, the input and the cluster
+			try {
+				FileSystem fs = FileSystem.get(conf);
+
+				long length = fs.getContentSummary(new Path(inputPath)).getLength();
+
+				ClusterResources cluster = ClusterResources.fromConfiguration(conf);
+				JobPlanner planner = new JobPlanner(cluster);
+
+				long indexBytes = (localizer != null) ? localizer.getIndexBytes() : JobPlanner.getIndexBytes(options.getIndexPath());
+
+				if(indexBytes == 0) {
+					LOG.warn("Index "+options.getIndexPath()+" not found in this machine. Its size is not taken into account");
+				}
+
+				planner.setIndexBytes(indexBytes);
+				planner.setInputBytes(length);
+				planner.setHeapMB(conf.getInt("plannerHeapMB", 1024));
+				planner.setThreadMemoryMB(conf.getInt("plannerThreadMemoryMB", 300));
+				planner.setOverheadMB(conf.getInt("plannerOverheadMB", 256));
+				planner.setMinSplitBytes(conf.getLong("plannerMinSplitMB", 128) << 20);
+				planner.setWaves(conf.getInt("plannerWaves", 1));
+
+				//Values given by the user are kept
+				planner.setFixedSplits(options.getPartitionNumber());
+				planner.setFixedThreads(JobPlanner.getBwaThreads(options.getBwaArgs()));
+
+				if(isUserSet(conf, "mapreduce.map.memory.mb")) {
+					planner.setFixedMemoryMB(conf.getInt("mapreduce.map.memory.mb", 0));
+				}
+
+				JobPlanner.Plan plan = planner.plan();
+
+				LOG.info("Cluster: "+cluster);
+				LOG.info("Plan: "+plan);
+
+				if(queueWorkers == 0) {
+					queueWorkers = plan.getConcurrentMappers();
+				}
+
+				conf.set("mapreduce.input.fileinputformat.split.maxsize", String.valueOf(plan.getSplitBytes()));
+				conf.set("mapreduce.input.fileinputformat.split.minsize", String.valueOf(plan.getSplitBytes()));
+
+				if(JobPlanner.getBwaThreads(options.getBwaArgs()) == 0) {
+					conf.setInt("bwaThreads", plan.getThreads());
+				}
+
+				if(!isUserSet(conf, "mapreduce.map.memory.mb")) {
+					conf.setInt("mapreduce.map.memory.mb", plan.getContainerMemoryMB());
+				}
+
+				if(!isUserSet(conf, "mapreduce.map.cpu.vcores")) {
+					conf.setInt("mapreduce.map.cpu.vcores", plan.getThreads());
+				}
+
+				if(!isUserSet(conf, "mapreduce.map.java.opts")) {
+					conf.set("mapreduce.map.java.opts", "-Xmx"+plan.getHeapMB()+"m");
+				}
+			}
+			catch (IOException e) {
+
+				e.printStackTrace();
+				LOG.error(e.toString());
+
+				return 1;
+			}
+		}
+		else if(options.getPartitionNumber() != 0) {
 			try {
 				FileSystem fs = FileSystem.get(conf);
 				
@@ -169,8 +409,6 @@ public class BigBWA extends Configured implements Tool {
 
 				long length = cSummary.getLength();
 
-
-				fs.close();
 				
 				conf.set("mapreduce.input.fileinputformat.split.maxsize", String.valueOf((length)/options.getPartitionNumber()));
 				conf.set("mapreduce.input.fileinputformat.split.minsize", String.valueOf((length)/options.getPartitionNumber()));
@@ -180,7 +418,7 @@ public class BigBWA extends Configured implements Tool {
 				e.printStackTrace();
 				LOG.error(e.toString());
 
-				System.exit(1);
+				return 1;
 			}
 			
 		}
@@ -192,39 +430,198 @@ public class BigBWA extends Configured implements Tool {
 		
 		job.setJarByClass(BigBWA.class);
 		job.setMapperClass(BigBWAMap.class);
+
+		if(localizer != null) {
+			localizer.addTo(job);
+		}
+
+		if(twoFiles){
+			job.setInputFormatClass(FastqPairedInputFormat.class);
+		}
+		else if(options.isFastqInput()){
+			job.setInputFormatClass(FastqInputFormat.class);
+		}
 		//job.setCombinerClass(BigBWACombiner.class);
 
-		if(useReducer){
+		if(options.isSortOutput()){
+			//Each reducer sorts a range of the genome, so the reducer outputs are sorted one after the other
+			int numReducers = conf.getInt("sortReducers", Math.max(1, options.getPartitionNumber()));
+
+			try {
+				ReferenceDictionary dictionary = (localizer != null) ? localizer.getDictionary() : ReferenceDictionary.fromIndex(options.getIndexPath());
+
+				job.getConfiguration().set(GenomeRangePartitioner.BOUNDARIES,
+						GenomeRangePartitioner.computeBoundaries(dictionary, numReducers, conf.getInt("sortBinSize", 1 << 20)));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				LOG.error(e.toString());
+
+				return 1;
+			}
+
+			LOG.info("Sorting the output in "+numReducers+" reducers, and one more for the unmapped reads. Genome ranges: "+job.getConfiguration().get(GenomeRangePartitioner.BOUNDARIES));
+
+			job.setReducerClass(BigBWASortReducer.class);
+			job.setPartitionerClass(GenomeRangePartitioner.class);
+
+			job.setMapOutputKeyClass(AlignmentKey.class);
+			job.setMapOutputValueClass(BytesWritable.class);
+
+			job.setOutputFormatClass(BamShardOutputFormat.class);
+			job.setOutputKeyClass(NullWritable.class);
+			job.setOutputValueClass(BytesWritable.class);
+
+			//The unmapped reads have a reducer of their own, after the ones of the genome
+			job.setNumReduceTasks(numReducers + 1);
+		}
+		else if(useReducer){
 			job.setReducerClass(BigBWAReducer.class);
 
 			job.setMapOutputKeyClass(IntWritable.class);
 			job.setMapOutputValueClass(Text.class);
 
+			//The reducer writes the final file by itself, so no empty part file has to be committed over it
+			LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+
+			//Two attempts merging at the same time would take the mapper outputs from each other
+			job.getConfiguration().setBoolean("mapreduce.reduce.speculative", false);
+
 			job.setNumReduceTasks(1);
 		}
 		else{
 			job.setNumReduceTasks(0);
 		}
 
-		job.setOutputKeyClass(NullWritable.class);
-		job.setOutputValueClass(Text.class);
+		if(!options.isSortOutput()){
+			job.setOutputKeyClass(NullWritable.class);
+			job.setOutputValueClass(Text.class);
+		}
 
 
 
 		FileInputFormat.addInputPath(job, new Path(inputPath));
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
-		
-		return(job.waitForCompletion(true) ? 0 : 1);
+		//The splits of the input become the chunks of the queue, next to the output directory
+		Path queueDir = null;
+
+		if(workQueue) {
+			try {
+				queueDir = new Path(conf.get(ChunkQueue.DIR, outputPath+"_queue"));
+
+				long chunkBytes = conf.getLong("queueChunkMB", 64) << 20;
+				int numChunks = ChunkQueue.create(job, queueDir, chunkBytes);
+
+				int workers = conf.getInt(ChunkQueueInputFormat.WORKERS, (queueWorkers > 0) ? queueWorkers : (numChunks + 3) / 4);
+				job.getConfiguration().setInt(ChunkQueueInputFormat.WORKERS, Math.max(1, Math.min(workers, numChunks)));
+
+				LOG.info("Work queue "+queueDir+" with "+numChunks+" chunks of "+(chunkBytes >> 20)+" MB for "
+						+job.getConfiguration().getInt(ChunkQueueInputFormat.WORKERS, 1)+" mappers");
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				LOG.error(e.toString());
+
+				return 1;
+			}
+		}
+
+		this.job = job;
+
+		boolean success = job.waitForCompletion(true);
+
+		//Outputs of attempts that were killed before renaming them, and of the chunks of the queue they were aligning
+		if(success) {
+			FileSystem fs = FileSystem.get(conf);
+			FileStatus[] attemptOutputs = fs.globStatus(new Path(outputPath, ".{Output,Chunk}*"));
+
+			if(attemptOutputs != null) {
+				for(FileStatus attemptOutput : attemptOutputs) {
+					fs.delete(attemptOutput.getPath(), false);
+				}
+			}
+		}
+
+		if(success && (queueDir != null)) {
+			if(!ChunkQueue.isEmpty(job.getConfiguration(), queueDir)) {
+				LOG.error("The work queue "+queueDir+" has chunks that were not aligned");
+				return 1;
+			}
+
+			queueDir.getFileSystem(conf).delete(queueDir, true);
+		}
+
+		//The duplicates are marked by a second job, which reads the SAM files of the alignment
+		if(success && markDuplicates) {
+			Configuration markConf = new Configuration(conf);
+
+			markConf.set("bam", String.valueOf(markBam));
+			markConf.set("useReducer", String.valueOf(markMerge));
+
+			int numReducers = conf.getInt("markDuplicatesReducers", Math.max(1, options.getPartitionNumber()));
+
+			Job markJob = DuplicateMarker.createJob(markConf, new Path(outputPath), new Path(finalOutputPath), numReducers);
+
+			success = markJob.waitForCompletion(true);
+
+			if(success) {
+				FileSystem fs = FileSystem.get(conf);
+
+				if(markMerge) {
+					ArrayList<Path> records = new ArrayList<Path>();
+
+					for(int i = 0; i < numReducers; i++) {
+						records.add(DuplicateMarker.getOutputPath(finalOutputPath, i, false));
+					}
+
+					SamOutputMerger merger = new SamOutputMerger(fs, conf.getInt("mergeThreads", 4), conf.getInt("mergeChunkSize", 8 << 20));
+					merger.merge(records, new Path(finalOutputPath, "part-r-00000"));
+				}
+
+				fs.delete(new Path(outputPath), true);
+			}
+		}
+
+		return(success ? 0 : 1);
+	}
+
+	/**
+	 * @return The job of the last run, or null if it did not get to create one
+	 */
+	public Job getJob() {
+		return this.job;
+	}
+
+	/**
+	 * @param conf Job configuration
+	 * @param key Name of a property
+	 * @return Whether the property was given by the user or the site files, and not only by the Hadoop defaults
+	 */
+	private static boolean isUserSet(Configuration conf, String key) {
+
+		String[] sources = conf.getPropertySources(key);
+
+		if(sources == null) {
+			return false;
+		}
+
+		for(String source : sources) {
+			if(!source.endsWith("-default.xml")) {
+				return true;
+			}
+		}
+
+		return false;
 	}
 
 
 	//Mapper class. We follow the In-Mapper Combining pattern
-	public static class BigBWAMap extends Mapper<Object,Text,IntWritable,Text> {
+	public static class BigBWAMap extends Mapper<Object,Text,Writable,Writable> {
 
 		File fout;
 		FileOutputStream fos;
-		BufferedWriter bw;
+		BufferedOutputStream bw;
 		int identificador;
 		
 		String tmpFileString = "";
@@ -238,16 +635,22 @@ public class BigBWA extends Configured implements Tool {
 		String saiFile2 = "";
 		
 		FileOutputStream fos2;
-		BufferedWriter bw2;
+		BufferedOutputStream bw2;
 
-		String[] initValues;
-		String[] values1;
-		String[] values2;
+		//Fields of the mates in the current input record
+		FieldScanner fields1 = new FieldScanner();
+		FieldScanner fields2 = new FieldScanner();
 
 		String tmpDir;
 		String indexRoute;
 
+		//Local directories of the temporary files, each one in a different disk if possible
+		StripedLocalDirs localDirs = null;
+
 		String bwaArgs = "";
+
+		//Threads of bwa chosen by the planner, or 0 to leave the bwa default
+		int bwaThreads = 0;
 		
 		String outputFileName = "";
 
@@ -260,9 +663,54 @@ public class BigBWA extends Configured implements Tool {
 		boolean pairedReads = false;
 		boolean singleReads = false;
 
+		//Input values are whole FASTQ records instead of lines from Fq2FqBigData.py
+		boolean fastqInput = false;
+		int[] lineStarts = new int[9];
+
+		//In-memory alignment
+		boolean inMemory = false;
+		BwaMemAligner aligner;
+		BwaReadBatch batch;
+		int batchSize;
+		OutputStream samOutput;
+
+		//Batches aligned in background while the input is read
+		BwaAlignmentPipeline pipeline = null;
+		int pipelineBatches = 0;
+
+		//Chunks of reads committed to HDFS as they are aligned, so a new attempt only aligns the rest
+		ChunkCheckpoint checkpoint = null;
+		long checkpointReads = 0;
+		int chunk = 0;
+		long chunkReads = 0;
+		long[] chunkStats = new long[BwaJni.NUM_STATS];
+
+		//Chunks of the input taken from the work queue, each one with its own output
+		boolean workQueue = false;
+
+		//BAM output
+		boolean bamOutput = false;
+		ReferenceDictionary dictionary = null;
+
+		//The records are sent to the reducers to be sorted by coordinate
+		boolean sortOutput = false;
+
+		//The header and the records are written to different files, so the reducer can join the outputs without reading them
+		boolean mergeOutput = false;
+
+		//Index shared by the tasks of the node
+		BwaSharedIndex sharedIndex = null;
+
+		//Index copied to the node through the distributed cache
+		IndexLocalizer.LocalIndex localIndex = null;
+
+		//Statistics of the task and of the bwa commands, published as counters at the end
+		long[] counters = new long[BwaCounters.values().length];
+		long[] bwaStats = new long[BwaJni.NUM_STATS];
+
 		//In the setup, we create each split local file
 		@Override
-		protected void setup(Context context) {
+		protected void setup(Context context) throws IOException, InterruptedException {
 
 			identificador = context.getTaskAttemptID().getTaskID().getId();
 			jobID = context.getJobID().getId();
@@ -283,6 +731,10 @@ public class BigBWA extends Configured implements Tool {
 
 			this.outputDir = conf.get("outputGenomics");
 
+			if((conf.get("fastqInput")!=null)&&(conf.get("fastqInput").equals("true"))) {
+				this.fastqInput = true;
+			}
+
 			File tmpFile = new File(tmpDir);
 
 			if(tmpDir == null || tmpDir.isEmpty() || !tmpFile.isDirectory() || !tmpFile.canWrite()) {
@@ -291,97 +743,580 @@ public class BigBWA extends Configured implements Tool {
 
 			indexRoute = conf.get("indexRoute");
 
-			tmpFileString = tmpDir+"/HadoopTMPFile-"+identificador+"-"+String.valueOf(jobID);
+			//The localized index is read ahead while the mapper reads its input
+			if(conf.get(IndexLocalizer.LINK) != null) {
+				this.localIndex = new IndexLocalizer.LocalIndex(conf);
+				this.indexRoute = this.localIndex.getIndexPrefix();
+
+				if(conf.getBoolean("indexPrefetch", true)) {
+					this.localIndex.startPrefetch();
+				}
+			}
+
+			//The index stays loaded between BWA calls of this task while it fits in the budget
+			BwaJni.Bwa_Index_Cache_Budget(conf.getLong("indexCacheMB", 0) * 1024 * 1024);
+
+			//Mapped indexes are shared through the page cache with the other tasks of the node
+			String indexMmap = conf.get("indexMmap", "false");
+
+			if(indexMmap.equals("packed")) {
+				BwaJni.Bwa_Index_Mmap(BwaJni.INDEX_MMAP_PACKED);
+			}
+			else if(indexMmap.equals("true") || indexMmap.equals("files")) {
+				BwaJni.Bwa_Index_Mmap(BwaJni.INDEX_MMAP_FILES);
+			}
+			else {
+				BwaJni.Bwa_Index_Mmap(BwaJni.INDEX_MMAP_OFF);
+			}
+
+			if((conf.get("sharedIndex")!=null)&&(conf.get("sharedIndex").equals("true"))) {
+				this.awaitIndex();
+
+				long startTime = System.currentTimeMillis();
+
+				this.sharedIndex = new BwaSharedIndex(this.indexRoute, conf.getLong("sharedIndexLinger", 300));
+				this.counters[BwaCounters.INDEX_LOAD_MS.ordinal()] += System.currentTimeMillis() - startTime;
+
+				if(this.sharedIndex.isAttached()) {
+					LOG.info("Index "+this.indexRoute+" attached from shared memory");
+				}
+				else if(this.sharedIndex.isLoaded()) {
+					LOG.info("Index "+this.indexRoute+" loaded into shared memory");
+				}
+				else {
+					LOG.info("Index "+this.indexRoute+" could not be shared. It is loaded by this task");
+				}
+			}
+
+			if((conf.get("bwaArgs")!=null) && (!conf.get("bwaArgs").equals(""))) {
+				this.bwaArgs = conf.get("bwaArgs");
+			}
+
+			this.bwaThreads = conf.getInt("bwaThreads", 0);
+
+			if((conf.get("bam")!=null)&&(conf.get("bam").equals("true"))) {
+				this.bamOutput = true;
+				this.dictionary = ReferenceDictionary.fromIndex(this.indexRoute);
+			}
+
+			if((conf.get("sort")!=null)&&(conf.get("sort").equals("true"))) {
+				this.sortOutput = true;
+			}
+
+			if((conf.get("useReducer")!=null)&&(conf.get("useReducer").equals("true"))) {
+				this.mergeOutput = true;
+			}
+
+			if((conf.get("inMemory")!=null)&&(conf.get("inMemory").equals("true"))) {
+				//Reads are sent to BWA in batches, so no temporary FASTQ files are needed
+				this.inMemory = true;
+				this.pairedReads = conf.get("paired").equals("true");
+				this.singleReads = !this.pairedReads;
+
+				this.awaitIndex();
+				this.aligner = new BwaMemAligner(this.indexRoute, (this.bwaThreads > 0) ? this.bwaArgs+" -t "+this.bwaThreads : this.bwaArgs);
+				this.batchSize = this.aligner.getChunkSize();
+
+				if((conf.get("pipeline")!=null)&&(conf.get("pipeline").equals("true"))) {
+					this.pipelineBatches = conf.getInt("pipelineBatches", 2);
+				}
+
+				if(conf.getLong("checkpointReads", 0) > 0) {
+					this.checkpointReads = conf.getLong("checkpointReads", 0);
+					this.checkpoint = new ChunkCheckpoint(FileSystem.get(conf), new Path(this.outputDir), "Output"+this.identificador,
+							context.getTaskAttemptID().toString());
+
+					this.startChunk();
+					return;
+				}
+
+				//The outputs are created for each chunk taken from the queue
+				if(conf.get(ChunkQueue.DIR) != null) {
+					this.workQueue = true;
+					return;
+				}
+
+				//The SAM records are written straight to HDFS, to a file of the attempt renamed at the end
+				this.startOutput(this.createOutput(context, this.getAttemptOutputPath(context)));
+
+				return;
+			}
+
+			//The FASTQ files of the mates, the .sai files and the output are placed in different local directories.
+			//Their sizes are estimated from the split: the SAM output takes about three times the input
+			this.localDirs = new StripedLocalDirs(conf, tmpDir, this.identificador);
+
+			long splitBytes = context.getInputSplit().getLength();
+			boolean paired = conf.get("paired").equals("true");
+
+			tmpFileString = this.localDirs.place("HadoopTMPFile-"+identificador+"-"+String.valueOf(jobID), splitBytes);
+
+			if(paired){
+				tmpFileString2 = this.localDirs.place("HadoopTMPFile-"+identificador+"_2"+"-"+String.valueOf(jobID), splitBytes);
+			}
+
+			this.outputFileName = this.localDirs.place("Output"+this.identificador+"-"+String.valueOf(jobID)+".sam", 3 * splitBytes);
+
+			if(this.alnAlgorithm){
+				this.saiFile1 = this.localDirs.place(new File(tmpFileString).getName()+".sai", splitBytes / 4);
+
+				if(paired){
+					this.saiFile2 = this.localDirs.place(new File(tmpFileString2).getName()+".sai", splitBytes / 4);
+				}
+			}
 
 			fout = new File(tmpFileString);
 			try {
-				fos = new FileOutputStream(fout);
+				fos = this.localDirs.create(tmpFileString);
 			} catch (FileNotFoundException e) {
 				
 				LOG.error(e.toString());
 				e.printStackTrace();
 			}
 
-			bw = new BufferedWriter(new OutputStreamWriter(fos));
+			bw = new BufferedOutputStream(fos, 1 << 20);
 
 
-			if((conf.get("paired").equals("true"))){
+			if(paired){
 
 				this.pairedReads = true;
 
-				tmpFileString2 = tmpDir+"/HadoopTMPFile-"+identificador+"_2"+"-"+String.valueOf(jobID);
 				fout2 = new File(tmpFileString2);
 
 				try {
-					fos2 = new FileOutputStream(fout2);
+					fos2 = this.localDirs.create(tmpFileString2);
 				} catch (FileNotFoundException e) {
 					e.printStackTrace();
 				}
 
-				bw2 = new BufferedWriter(new OutputStreamWriter(fos2));
+				bw2 = new BufferedOutputStream(fos2, 1 << 20);
 			}
 			else if((conf.get("single").equals("true"))){
 				this.singleReads = true;
 			}
 
-			if((conf.get("bwaArgs")!=null) && (!conf.get("bwaArgs").equals(""))) {
-				this.bwaArgs = conf.get("bwaArgs");
+		} 
+
+		//With the work queue, the input of the mapper is read from the chunks it takes
+		@Override
+		public void run(Context context) throws IOException, InterruptedException {
+
+			if(context.getConfiguration().get(ChunkQueue.DIR) == null) {
+				super.run(context);
+				return;
 			}
 
-			this.outputFileName = tmpDir+"/Output"+this.identificador+"-"+String.valueOf(jobID)+".sam";
+			this.setup(context);
 
-		} 
+			try {
+				this.runQueue(context);
+			}
+			finally {
+				this.cleanup(context);
+			}
+		}
+
+		/**
+		 * Takes chunks from the work queue until it is empty. The reads of each chunk are aligned as the input of
+		 * the mapper, and its output is written with the name of this attempt and renamed when the chunk is done
+		 *
+		 * @param context The mapper context. "queueLeaseSeconds" and "queuePollSeconds" set the time after which
+		 *                the chunks of failed attempts are taken, and how often they are checked
+		 * @throws IOException If the queue could not be read or a chunk could not be aligned
+		 * @throws InterruptedException If the task is interrupted
+		 */
+		@SuppressWarnings("unchecked")
+		private void runQueue(Context context) throws IOException, InterruptedException {
+
+			Configuration conf = context.getConfiguration();
+			FileSystem fs = FileSystem.get(conf);
+			String attempt = context.getTaskAttemptID().toString();
+
+			InputFormat<Object, Text> format = ReflectionUtils.newInstance(conf.getClass(ChunkQueue.INPUT_FORMAT, TextInputFormat.class, InputFormat.class), conf);
+
+			ChunkQueue queue = new ChunkQueue(conf, new Path(conf.get(ChunkQueue.DIR)), attempt,
+					conf.getLong("queueLeaseSeconds", 600) * 1000, conf.getLong("queuePollSeconds", 10) * 1000);
+
+			try {
+				ChunkQueue.Chunk chunk;
+
+				while((chunk = queue.claim()) != null) {
+					String extension = this.bamOutput ? ".bam" : ".sam";
+
+					Path output = new Path(this.outputDir, chunk.getName()+extension);
+					Path attemptOutput = new Path(this.outputDir, "."+chunk.getName()+"."+attempt+extension);
+
+					//The read ids, which break the ties between equally good hits, start again in each chunk, so its
+					//output does not depend on the chunks this mapper took before
+					this.aligner.setReadOrdinal(0);
+
+					this.startOutput(this.createOutput(context, attemptOutput));
+
+					RecordReader<Object, Text> reader = format.createRecordReader(chunk.getSplit(), context);
+
+					try {
+						reader.initialize(chunk.getSplit(), context);
+
+						while(reader.nextKeyValue()) {
+							this.map(reader.getCurrentKey(), reader.getCurrentValue(), context);
+						}
+					}
+					finally {
+						reader.close();
+					}
+
+					this.alignBatch();
+
+					if(this.pipeline != null) {
+						this.pipeline.close();
+						this.pipeline = null;
+					}
+
+					long uploadStart = System.currentTimeMillis();
+
+					this.samOutput.close();
+					this.samOutput = null;
+
+					//A chunk whose lease expired may have been written by another mapper too, with the same output
+					if(this.mergeOutput) {
+						this.replace(fs, SamOutputMerger.getHeaderPath(attemptOutput), SamOutputMerger.getHeaderPath(output));
+					}
+
+					this.replace(fs, attemptOutput, output);
+
+					if(queue.finish(chunk)) {
+						this.counters[BwaCounters.QUEUE_CHUNKS.ordinal()]++;
+
+						if(chunk.isTaken()) {
+							this.counters[BwaCounters.TAKEN_CHUNKS.ordinal()]++;
+						}
+					}
+
+					this.counters[BwaCounters.UPLOAD_MS.ordinal()] += System.currentTimeMillis() - uploadStart;
+
+					context.progress();
+				}
+			}
+			finally {
+				queue.close();
+			}
+
+			LOG.info(this.counters[BwaCounters.QUEUE_CHUNKS.ordinal()]+" chunks aligned from the work queue, "
+					+this.counters[BwaCounters.TAKEN_CHUNKS.ordinal()]+" of them taken from failed attempts");
+		}
+
+		private void replace(FileSystem fs, Path source, Path target) throws IOException {
+
+			fs.delete(target, false);
+
+			if(!fs.rename(source, target)) {
+				throw new IOException("Could not rename "+source+" to "+target);
+			}
+		}
 
 		//In the map method, we write the FASTQ reads to the corresponding local files
 		@Override
 		public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-			try{
 
-				//Configuration conf = context.getConfiguration();
+			if(this.inMemory){
+				this.addToBatch(value);
+				return;
+			}
+
+			if(this.fastqInput){
+				this.writeFastq(value);
+				return;
+			}
+
+			//The fields are copied from the bytes of the record, without decoding them
+			if(!this.scanFields(value)){
+				this.counters[BwaCounters.MALFORMED_RECORDS.ordinal()]++;
+
+				String record = value.toString();
+				LOG.warn("Wrong input record: "+((record.length() > 200) ? record.substring(0, 200)+"..." : record));
+				return;
+			}
+
+			this.counters[BwaCounters.READS.ordinal()] += this.fields1.size() / 4;
+			this.counters[BwaCounters.BASES.ordinal()] += this.fields1.countBases();
+
+			if(this.pairedReads){
+				this.counters[BwaCounters.READS.ordinal()] += this.fields2.size() / 4;
+				this.counters[BwaCounters.BASES.ordinal()] += this.fields2.countBases();
+			}
+
+			this.fields1.write(value.getBytes(), bw);
 
-				if(this.pairedReads){
+			if(this.pairedReads){
+				this.fields2.write(value.getBytes(), bw2);
+			}
+		}
+
+		/**
+		 * Finds the FASTQ lines of a record from Fq2FqBigData.py, separated by "<sep>", and the mates of
+		 * Fq2FqBigDataPaired.py, separated by "<part>"
+		 *
+		 * @param value The input record
+		 * @return False if the record of paired reads does not have two mates
+		 */
+		private boolean scanFields(Text value) {
+
+			byte[] data = value.getBytes();
+			int length = value.getLength();
+
+			if(this.pairedReads){
+				int part = FieldScanner.indexOf(data, 0, length, FieldScanner.PART);
+
+				if(part < 0) {
+					return false;
+				}
+
+				this.fields1.scan(data, 0, part);
+				this.fields2.scan(data, part + FieldScanner.PART.length, length);
+			}
+			else{
+				this.fields1.scan(data, 0, length);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Writes a FASTQ record, or the two mates of a pair, to the local files
+		 *
+		 * @param value The FASTQ lines of the record, each one ended by a new line
+		 * @throws IOException If the record could not be written
+		 */
+		private void writeFastq(Text value) throws IOException {
+
+			byte[] data = value.getBytes();
+			int length = value.getLength();
+
+			//Reads and bases, from the sequence lines (the second of each four)
+			int lineStart = 0;
+			int numLines = 0;
+
+			for(int i = 0; i < length; i++) {
+				if(data[i] == '\n') {
+					if(numLines % 4 == 1) {
+						this.counters[BwaCounters.BASES.ordinal()] += i - lineStart;
+					}
+
+					numLines++;
+					lineStart = i + 1;
+				}
+			}
 
-					initValues = value.toString().split("<part>");
+			this.counters[BwaCounters.READS.ordinal()] += numLines / 4;
 
-					values1 = initValues[0].split("<sep>");
-					values2 = initValues[1].split("<sep>");
+			if(this.pairedReads){
+				//The second mate starts after the fourth line
+				int secondMate = 0;
+				int lines = 0;
 
-					for(String newValue: values1){
-						bw.write(newValue);
-						bw.newLine();
+				while(secondMate < length && lines < 4) {
+					if(data[secondMate++] == '\n') {
+						lines++;
 					}
+				}
+
+				bw.write(data, 0, secondMate);
+				bw2.write(data, secondMate, length - secondMate);
+			}
+			else{
+				bw.write(data, 0, length);
+			}
+		}
+
+		/**
+		 * Adds the reads of an input record to the current batch, and aligns the batch when it
+		 * reaches the size that bwa mem would read at once
+		 *
+		 * @param value Input record, with the FASTQ lines separated by "<sep>" and mates by "<part>",
+		 *              or the FASTQ lines of the record when reading FASTQ files
+		 * @throws IOException If the batch could not be aligned or written
+		 */
+		private void addToBatch(Text value) throws IOException {
+
+			if(this.fastqInput){
+				this.addFastqToBatch(value);
+			}
+			else if(this.scanFields(value)){
+				byte[] data = value.getBytes();
+
+				for(int i = 0; i + 3 < this.fields1.size(); i += 4) {
+					if(this.pairedReads && i + 3 >= this.fields2.size()) {
+						break;
+					}
+
+					this.fields1.addRead(data, i, this.batch);
+
+					if(this.pairedReads) {
+						this.fields2.addRead(data, i, this.batch);
+					}
+				}
+			}
+
+			//As bseq_read() in bwa, batches always have an even number of reads
+			if((this.batch.getNumBases() >= this.batchSize) && (this.batch.size() % 2 == 0)) {
+				this.alignBatch();
+			}
+		}
+
+		/**
+		 * Adds the reads of a FASTQ record, or of a pair, to the batch without creating Strings
+		 *
+		 * @param value The FASTQ lines of the record, each one ended by a new line
+		 */
+		private void addFastqToBatch(Text value) {
+
+			byte[] data = value.getBytes();
+			int numLines = 0;
+
+			this.lineStarts[0] = 0;
+
+			for(int i = 0; i < value.getLength() && numLines < 8; i++) {
+				if(data[i] == '\n') {
+					this.lineStarts[++numLines] = i + 1;
+				}
+			}
+
+			for(int i = 0; i + 4 <= numLines; i += 4) {
+				//The name skips the leading '@', and no field includes its new line
+				this.batch.add(data, this.lineStarts[i] + 1, this.lineStarts[i+1] - this.lineStarts[i] - 2,
+						this.lineStarts[i+1], this.lineStarts[i+2] - this.lineStarts[i+1] - 1,
+						this.lineStarts[i+3], this.lineStarts[i+4] - this.lineStarts[i+3] - 1);
+			}
+		}
+
+		private void alignBatch() throws IOException {
+
+			int reads = this.batch.size();
+
+			this.counters[BwaCounters.READS.ordinal()] += reads;
+			this.counters[BwaCounters.BASES.ordinal()] += this.batch.getNumBases();
+
+			if(this.samOutput == null) {
+				//The chunk was committed by a previous attempt. Its reads are counted, so the next chunks get the same read ids
+				this.aligner.skip(reads);
+				this.batch.clear();
+			}
+			else if(this.pipeline != null) {
+				this.batch = this.pipeline.submit(this.batch);
+			}
+			else if(this.batch.size() > 0) {
+				this.samOutput.write(this.aligner.align(this.batch));
+				this.batch.clear();
+			}
+
+			//Chunks end with a batch, so the batches of a chunk are the same in every attempt
+			if(this.checkpoint != null) {
+				this.chunkReads += reads;
+
+				if(this.chunkReads >= this.checkpointReads) {
+					this.finishChunk();
+
+					this.chunk++;
+					this.chunkReads = 0;
+					this.startChunk();
+				}
+			}
+		}
+
+		/**
+		 * Starts writing the SAM records of the in-memory alignment to an output, through the pipeline if there is one
+		 *
+		 * @param out The output in HDFS
+		 * @throws IOException If the header could not be written
+		 */
+		private void startOutput(OutputStream out) throws IOException {
+
+			this.samOutput = new BufferedOutputStream(out, 1 << 20);
+			this.samOutput.write(this.aligner.getHeader());
+
+			if(this.pipelineBatches > 0) {
+				this.pipeline = new BwaAlignmentPipeline(this.aligner, this.samOutput, this.pairedReads, this.pipelineBatches);
+				this.batch = this.pipeline.getBatch();
+			}
+			else {
+				this.batch = new BwaReadBatch(this.pairedReads);
+			}
+		}
+
+		/**
+		 * Starts the current chunk. The reads of a chunk committed by a previous attempt are read but not aligned
+		 *
+		 * @throws IOException If the output of the chunk could not be created
+		 */
+		private void startChunk() throws IOException {
+
+			if(this.checkpoint.isCommitted(this.chunk)) {
+				this.samOutput = null;
+				this.batch = new BwaReadBatch(this.pairedReads);
+			}
+			else {
+				this.startOutput(this.checkpoint.create(this.chunk));
+			}
+		}
+
+		/**
+		 * Commits the current chunk once its last batch has been aligned, or checks that a committed chunk has
+		 * the same reads as when it was committed
+		 *
+		 * @throws IOException If the chunk could not be committed or the input has changed
+		 */
+		private void finishChunk() throws IOException {
+
+			if(this.samOutput == null) {
+				if(this.chunkReads != this.checkpoint.getReads(this.chunk)) {
+					throw new IOException("Chunk "+this.chunk+" had "+this.checkpoint.getReads(this.chunk)+" reads when it was committed and "
+							+this.chunkReads+" now. The input has changed");
+				}
+
+				this.addBwaStats(this.checkpoint.getStats(this.chunk));
+				this.counters[BwaCounters.RESUMED_CHUNKS.ordinal()]++;
+
+				return;
+			}
+
+			if(this.pipeline != null) {
+				this.pipeline.close();
+				this.pipeline = null;
+			}
 
-					for(String newValue: values2){
-						bw2.write(newValue);
-						bw2.newLine();
-					}
+			long uploadStart = System.currentTimeMillis();
 
-					values1=null;
-					values2=null;
-					initValues=null;
+			this.samOutput.close();
+			this.samOutput = null;
 
-				}
-				else{
-					values1 = value.toString().split("<sep>");
+			//The aligner adds the statistics of all its batches
+			long[] stats = this.aligner.getStats();
+			long[] delta = new long[BwaJni.NUM_STATS];
 
-					for(String newValue: values1){
-						bw.write(newValue);
-						bw.newLine();
+			for(int i = 0; i < BwaJni.NUM_STATS; i++) {
+				delta[i] = stats[i] - this.chunkStats[i];
+			}
 
-					}
-					values1=null;
-				}
+			this.chunkStats = stats;
 
+			this.checkpoint.commit(this.chunk, this.chunkReads, delta);
 
-			}
-			catch(Exception e){
-				System.out.println(e.toString());
-			}
+			this.counters[BwaCounters.UPLOAD_MS.ordinal()] += System.currentTimeMillis() - uploadStart;
+			this.counters[BwaCounters.COMMITTED_CHUNKS.ordinal()]++;
 		}
 
 		//Finally, the computation and the calling to BWA methods, it is made in the cleanup method
 		@Override
-		public void cleanup(Context context) throws InterruptedException{
+		public void cleanup(Context context) throws IOException, InterruptedException{
+
+			if(this.inMemory){
+				this.cleanupInMemory(context);
+				return;
+			}
+
+			this.awaitIndex();
+
+			BwaOutputPipe outputPipe = null;
 
 			try {
 
@@ -395,42 +1330,79 @@ public class BigBWA extends Configured implements Tool {
 					bw2.close();
 				}
 
-				this.run(0);
+				//The SAM output goes to HDFS through a named pipe while bwa writes it
+				FileSystem fs = FileSystem.get(context.getConfiguration());
+
+				if(conf.getBoolean("streamOutput", true)) {
+					try {
+						outputPipe = new BwaOutputPipe(new File(new File(this.outputFileName).getParent(), "Output"+this.identificador+"-"+String.valueOf(jobID)+".pipe").getPath(), this.createOutput(context, this.getAttemptOutputPath(context)));
+						this.outputFileName = outputPipe.getPath();
+						outputPipe.start();
+					}
+					catch (IOException e) {
+						LOG.warn("The output could not be streamed to HDFS. It is staged in "+this.outputFileName+": "+e.toString());
+						outputPipe = null;
+					}
+				}
+
+				this.runStep(0);
 
 				//In case of the ALN algorithm, more executions of BWA are needed
 				if (this.alnAlgorithm) {
 
-					this.saiFile1 = tmpFileString + ".sai";
 					//The next execution of BWA in the case of ALN algorithm
-					this.run(1);
+					this.runStep(1);
 
 					//Finally, if we are talking about paired reads and aln algorithm, a final execution is needed
 					if (this.pairedReads) {
-						this.run(2);
+						this.runStep(2);
 
 						//Delete .sai file number 2
-						this.saiFile2 = tmpFileString2 + ".sai";
-						File tmpSaiFile2 = new File(tmpFileString2 + ".sai");
+						File tmpSaiFile2 = new File(this.saiFile2);
 						tmpSaiFile2.delete();
 					}
 
 					//Delete *.sai file number 1
-					File tmpSaiFile1 = new File(tmpFileString + ".sai");
+					File tmpSaiFile1 = new File(this.saiFile1);
 					tmpSaiFile1.delete();
 				}
 
 
 				//We copy the results to HDFS and delete tmp files from local filesystem
-				FileSystem fs = FileSystem.get(context.getConfiguration());
+				long uploadStart = System.currentTimeMillis();
+
+				if(outputPipe != null) {
+					outputPipe.finish();
+					outputPipe = null;
+				}
+				else if(this.bamOutput || this.mergeOutput) {
+					OutputStream hdfsOutputStream = this.createOutput(context, this.getAttemptOutputPath(context));
+					IOUtils.copyBytes(new FileInputStream(outputFileName), hdfsOutputStream, conf, true);
+					this.localDirs.addRead(outputFileName, System.currentTimeMillis() - uploadStart);
+				}
+				else {
+					fs.copyFromLocalFile(new Path(outputFileName), this.getAttemptOutputPath(context));
+					this.localDirs.addRead(outputFileName, System.currentTimeMillis() - uploadStart);
+				}
+
+				this.commitOutput(context);
+
+				long copyStart = System.currentTimeMillis();
 
-				fs.copyFromLocalFile(new Path(outputFileName), new Path(this.outputDir+"/Output"+this.identificador+".sam"));
 				fs.copyFromLocalFile(new Path(tmpFileString), new Path(this.outputDir+"/Input"+this.identificador+"_1.fq"));
+				this.localDirs.addRead(tmpFileString, System.currentTimeMillis() - copyStart);
 
 				if (this.pairedReads) {
+					copyStart = System.currentTimeMillis();
+
 					fs.copyFromLocalFile(new Path(tmpFileString2), new Path(outputDir+"/Input"+this.identificador+"_2.fq"));
+					this.localDirs.addRead(tmpFileString2, System.currentTimeMillis() - copyStart);
+
 					fout2.delete();
 				}
 
+				this.counters[BwaCounters.UPLOAD_MS.ordinal()] += System.currentTimeMillis() - uploadStart;
+
 
 				File outputFile = new File(outputFileName);
 				outputFile.delete();
@@ -439,10 +1411,10 @@ public class BigBWA extends Configured implements Tool {
 
 
 				if((conf.get("useReducer")!=null)&&(conf.get("useReducer").equals("true"))){
-					context.write(new IntWritable(this.identificador), new Text(outputDir+"/Output"+this.identificador+".sam"));
+					context.write(new IntWritable(this.identificador), new Text(this.getOutputPath()));
 				}
 
-
+				this.releaseIndex(conf);
 
 
 			} catch (Exception e) {
@@ -450,10 +1422,27 @@ public class BigBWA extends Configured implements Tool {
 				e.printStackTrace();
 				
 				//Clean temporary files
+
+				//Output pipe
+				if(outputPipe != null){
+					outputPipe.abort();
+				}
+
+				//Output of the attempt in HDFS
+				if(!this.sortOutput){
+					FileSystem fs = FileSystem.get(context.getConfiguration());
+					Path attemptOutput = this.getAttemptOutputPath(context);
+
+					fs.delete(attemptOutput, false);
+					fs.delete(SamOutputMerger.getHeaderPath(attemptOutput), false);
+				}
 				
 				//FASTQ splits
 				this.fout.delete();
-				this.fout2.delete();
+
+				if(this.fout2 != null){
+					this.fout2.delete();
+				}
 				
 				//SAI outputs
 				if(!this.saiFile1.isEmpty()){
@@ -471,11 +1460,266 @@ public class BigBWA extends Configured implements Tool {
 					File tempFile = new File(this.outputFileName);
 					tempFile.delete();
 				}
-				
 
-				
+				//The attempt fails, so a truncated output is never taken as the output of the task
+				if(e instanceof IOException){
+					throw (IOException) e;
+				}
+				else if(e instanceof InterruptedException){
+					throw (InterruptedException) e;
+				}
+
+				throw new IOException(e);
+			}
+			finally {
+				this.publishCounters(context);
+			}
+
+		}
+
+		/**
+		 * Cleanup for the in-memory alignment. The last batch is aligned and the SAM file in HDFS is closed
+		 *
+		 * @param context The mapper context
+		 * @throws IOException If the last batch could not be aligned or the output could not be written
+		 * @throws InterruptedException If the task is interrupted while writing the output
+		 */
+		private void cleanupInMemory(Context context) throws IOException, InterruptedException {
+
+			try {
+				if(this.checkpoint != null) {
+					this.cleanupChunks(context);
+					return;
+				}
+
+				//The outputs of the chunks of the queue are already written, and the reducer finds them in the queue
+				if(this.workQueue) {
+					return;
+				}
+
+				if(this.pipeline != null) {
+					this.pipeline.close();
+
+					LOG.info("Pipeline wait times (ms). Input: "+this.pipeline.getReadWaitTime()+". Alignment: "
+							+this.pipeline.getAlignWaitTime()+". Output: "+this.pipeline.getWriteWaitTime());
+				}
+				else {
+					this.alignBatch();
+				}
+
+				long uploadStart = System.currentTimeMillis();
+
+				this.samOutput.close();
+				this.commitOutput(context);
+
+				this.counters[BwaCounters.UPLOAD_MS.ordinal()] += System.currentTimeMillis() - uploadStart;
+
+				Configuration conf = context.getConfiguration();
+
+				if((conf.get("useReducer")!=null)&&(conf.get("useReducer").equals("true"))){
+					context.write(new IntWritable(this.identificador), new Text(this.getOutputPath()));
+				}
+
+			}
+			finally {
+				this.counters[BwaCounters.MEM_MS.ordinal()] += this.aligner.getAlignTime() / 1000000;
+				this.addBwaStats(this.aligner.getStats());
+
+				this.aligner.close();
+				this.releaseIndex(context.getConfiguration());
+
+				this.publishCounters(context);
+			}
+		}
+
+		/**
+		 * Commits the last chunk and joins the chunks into the output of the task. When the reducer merges the outputs,
+		 * the chunks are given to it instead
+		 *
+		 * @param context The mapper context
+		 * @throws IOException If the last chunk could not be committed or the chunks could not be joined
+		 * @throws InterruptedException If the task is interrupted while writing the output
+		 */
+		private void cleanupChunks(Context context) throws IOException, InterruptedException {
+
+			this.alignBatch();
+			this.finishChunk();
+
+			Configuration conf = context.getConfiguration();
+			List<Path> chunks = this.checkpoint.getChunks(this.chunk + 1);
+
+			if(this.mergeOutput) {
+				for(Path chunkPath : chunks) {
+					context.write(new IntWritable(this.identificador), new Text(chunkPath.toString()));
+				}
+			}
+			else {
+				long mergeStart = System.currentTimeMillis();
+
+				SamOutputMerger merger = new SamOutputMerger(FileSystem.get(conf), conf.getInt("mergeThreads", 4), conf.getInt("mergeChunkSize", 8 << 20));
+				merger.merge(chunks, new Path(this.getOutputPath()));
+
+				this.counters[BwaCounters.MERGE_MS.ordinal()] += System.currentTimeMillis() - mergeStart;
+			}
+
+			this.checkpoint.delete();
+
+			LOG.info((this.chunk + 1)+" chunks written, "+this.counters[BwaCounters.RESUMED_CHUNKS.ordinal()]+" of them by previous attempts");
+		}
+
+		/**
+		 * Adds the statistics of a bwa command to the ones of the task
+		 *
+		 * @param stats Statistics returned by BwaJni
+		 */
+		private void addBwaStats(long[] stats) {
+			for(int i = 0; i < BwaJni.NUM_STATS; i++) {
+				this.bwaStats[i] += stats[i];
+			}
+		}
+
+		/**
+		 * Sets the counters of the task, so they are added in the job history
+		 *
+		 * @param context The mapper context
+		 */
+		private void publishCounters(Context context) {
+
+			this.counters[BwaCounters.SAM_RECORDS.ordinal()] += this.bwaStats[BwaJni.STAT_RECORDS];
+			this.counters[BwaCounters.SAM_BYTES.ordinal()] += this.bwaStats[BwaJni.STAT_SAM_BYTES];
+			this.counters[BwaCounters.MAPPED_READS.ordinal()] += this.bwaStats[BwaJni.STAT_MAPPED];
+			this.counters[BwaCounters.UNMAPPED_READS.ordinal()] += this.bwaStats[BwaJni.STAT_UNMAPPED];
+			this.counters[BwaCounters.PROPER_PAIR_READS.ordinal()] += this.bwaStats[BwaJni.STAT_PROPER_PAIRS];
+			this.counters[BwaCounters.SEED_MS.ordinal()] += this.bwaStats[BwaJni.STAT_SEED_NS] / 1000000;
+			this.counters[BwaCounters.EXTEND_MS.ordinal()] += this.bwaStats[BwaJni.STAT_EXTEND_NS] / 1000000;
+			this.counters[BwaCounters.INSERT_SIZE_BATCHES.ordinal()] += this.bwaStats[BwaJni.STAT_INSERT_SIZE_BATCHES];
+			this.counters[BwaCounters.INSERT_SIZE_AVG_SUM.ordinal()] += this.bwaStats[BwaJni.STAT_INSERT_SIZE_AVG];
+			this.counters[BwaCounters.INSERT_SIZE_STD_SUM.ordinal()] += this.bwaStats[BwaJni.STAT_INSERT_SIZE_STD];
+			this.counters[BwaCounters.INDEX_LOAD_MS.ordinal()] += this.bwaStats[BwaJni.STAT_INDEX_LOAD_NS] / 1000000;
+
+			StringBuilder summary = new StringBuilder();
+
+			for(BwaCounters counter : BwaCounters.values()) {
+				long value = this.counters[counter.ordinal()];
+
+				if(value != 0) {
+					context.getCounter(counter).increment(value);
+					summary.append(' ').append(counter.name()).append('=').append(value);
+				}
+			}
+
+			LOG.info("Task statistics:"+summary);
+
+			if(this.localDirs != null) {
+				this.localDirs.publishCounters(context);
+			}
+
+			Arrays.fill(this.counters, 0);
+			Arrays.fill(this.bwaStats, 0);
+		}
+
+		/**
+		 * @return The HDFS path of the output of this task
+		 */
+		private String getOutputPath() {
+			return this.outputDir+"/Output"+this.identificador+(this.bamOutput ? ".bam" : ".sam");
+		}
+
+		/**
+		 * @param context The mapper context
+		 * @return The HDFS path where this attempt writes the output of the task, hidden until it is committed
+		 */
+		private Path getAttemptOutputPath(Context context) {
+			return new Path(this.outputDir, ".Output"+this.identificador+"."+context.getTaskAttemptID()+(this.bamOutput ? ".bam" : ".sam"));
+		}
+
+		/**
+		 * Renames the output of this attempt, and its header with "useReducer", to the output of the task. Another
+		 * attempt of the same task may have written it already, with the same records
+		 *
+		 * @param context The mapper context
+		 * @throws IOException If the output could not be renamed
+		 */
+		private void commitOutput(Context context) throws IOException {
+
+			//Sorted records go to the reducers, not to a file
+			if(this.sortOutput) {
+				return;
+			}
+
+			FileSystem fs = FileSystem.get(context.getConfiguration());
+			Path attemptOutput = this.getAttemptOutputPath(context);
+			Path output = new Path(this.getOutputPath());
+
+			if(this.mergeOutput) {
+				this.replace(fs, SamOutputMerger.getHeaderPath(attemptOutput), SamOutputMerger.getHeaderPath(output));
+			}
+
+			this.replace(fs, attemptOutput, output);
+		}
+
+		/**
+		 * Creates the output of this task in HDFS. With BAM output, the SAM text written to it is encoded and compressed.
+		 * With sorted output, the encoded records are sent to the reducers instead, and when the reducer merges the outputs,
+		 * the header goes to its own file
+		 *
+		 * @param context The mapper context. "bamThreads" and "bamCompression" set the compression threads and level
+		 * @param outputPath The HDFS path of the output
+		 * @return The stream for the SAM text
+		 * @throws IOException If the file could not be created
+		 */
+		private OutputStream createOutput(Context context, Path outputPath) throws IOException {
+
+			Configuration conf = context.getConfiguration();
+
+			if(this.sortOutput) {
+				return new SortedAlignmentOutput(context, this.dictionary, this.identificador);
+			}
+
+			OutputStream out = FileSystem.get(conf).create(outputPath, true);
+
+			if(this.mergeOutput) {
+				out = new SamHeaderSplitter(FileSystem.get(conf).create(SamOutputMerger.getHeaderPath(outputPath), true), out);
+			}
+
+			if(this.bamOutput) {
+				int threads = conf.getInt("bamThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+				out = new BamOutputStream(out, this.dictionary, threads, conf.getInt("bamCompression", -1));
+			}
+
+			return out;
+		}
+
+		/**
+		 * Waits until the localized index has been read ahead and checked, before bwa loads it
+		 *
+		 * @throws IOException If the localized index is not valid
+		 */
+		private void awaitIndex() throws IOException {
+			if(this.localIndex != null) {
+				long startTime = System.currentTimeMillis();
+
+				this.localIndex.await();
+				this.counters[BwaCounters.INDEX_LOAD_MS.ordinal()] += System.currentTimeMillis() - startTime;
+			}
+		}
+
+		/**
+		 * Frees the cached index once the task is done, unless it has to be kept for later tasks in this JVM,
+		 * and releases the lease on the shared index
+		 *
+		 * @param conf The job configuration
+		 * @throws IOException If the lease could not be released
+		 */
+		private void releaseIndex(Configuration conf) throws IOException {
+			if(!conf.getBoolean("keepIndex", false)) {
+				BwaJni.Bwa_Index_Cache_Release(this.indexRoute);
 			}
 
+			if(this.sharedIndex != null) {
+				this.sharedIndex.close();
+				this.sharedIndex = null;
+			}
 		}
 
 		/**
@@ -542,15 +1786,21 @@ public class BigBWA extends Configured implements Tool {
 				//parameters.add(this.bwaArgs);
 			}
 
+			//samse and sampe have no threads option
+			if ((this.bwaThreads > 0) && !algorithm.equals("samse") && !algorithm.equals("sampe")) {
+				parameters.add("-t");
+				parameters.add(String.valueOf(this.bwaThreads));
+			}
+
 			//The third parameter is the output file===================================================
 			parameters.add("-f");
 
 			if (algorithm.equals("aln")) {
 				if (alnStep == 0) {
-					parameters.add(this.tmpFileString + ".sai");
+					parameters.add(this.saiFile1);
 				}
 				else if (alnStep == 1 && this.pairedReads) {
-					parameters.add(this.tmpFileString2 + ".sai");
+					parameters.add(this.saiFile2);
 				}
 			}
 			else {
@@ -584,15 +1834,15 @@ public class BigBWA extends Configured implements Tool {
 
 			//If "sampe" the input files are the .sai from previous steps
 			else if (algorithm.equals("sampe")) {
-				parameters.add(this.tmpFileString + ".sai");
-				parameters.add(this.tmpFileString2 + ".sai");
+				parameters.add(this.saiFile1);
+				parameters.add(this.saiFile2);
 				parameters.add(this.tmpFileString);
 				parameters.add(this.tmpFileString2);
 			}
 
 			//If "samse", only one .sai file
 			else if (algorithm.equals("samse")) {
-				parameters.add(this.tmpFileString + ".sai");
+				parameters.add(this.saiFile1);
 				parameters.add(this.tmpFileString);
 			}
 
@@ -612,7 +1862,17 @@ public class BigBWA extends Configured implements Tool {
 			String[] parametersArray = parseParameters(alnStep);
 
 			// Call to JNI with the selected parameters
-			int returnCode = BwaJni.Bwa_Jni(parametersArray);
+			long[] stats = new long[BwaJni.NUM_STATS];
+			long startTime = System.currentTimeMillis();
+
+			int returnCode = BwaJni.Bwa_Jni(parametersArray, stats);
+
+			this.counters[getStepCounter(parametersArray[1]).ordinal()] += System.currentTimeMillis() - startTime;
+
+			if(this.localDirs != null) {
+				this.localDirs.addCommand(parametersArray, System.currentTimeMillis() - startTime);
+			}
+			this.addBwaStats(stats);
 
 			if (returnCode != 0) {
 				LOG.error("["+this.getClass().getName()+"] :: BWA exited with error code: " + String.valueOf(returnCode));
@@ -623,21 +1883,164 @@ public class BigBWA extends Configured implements Tool {
 			return 0;
 		}
 
+		/**
+		 * Runs a step of BWA, failing the attempt if BWA fails
+		 *
+		 * @param alnStep An integer that indicates at with phase of the aln step the program is
+		 * @throws IOException If BWA exited with an error
+		 */
+		private void runStep(int alnStep) throws IOException {
+
+			int returnCode = this.run(alnStep);
+
+			if(returnCode != 0) {
+				throw new IOException("BWA exited with error code "+returnCode+" in step "+alnStep);
+			}
+		}
+
+
+		/**
+		 * @param algorithm The bwa command of a step
+		 * @return The counter of the time of the step
+		 */
+		private static BwaCounters getStepCounter(String algorithm) {
+
+			if(algorithm.equals("aln")) {
+				return BwaCounters.ALN_MS;
+			}
+			else if(algorithm.equals("samse")) {
+				return BwaCounters.SAMSE_MS;
+			}
+			else if(algorithm.equals("sampe")) {
+				return BwaCounters.SAMPE_MS;
+			}
+			else if(algorithm.equals("bwasw")) {
+				return BwaCounters.BWASW_MS;
+			}
+
+			return BwaCounters.MEM_MS;
+		}
+
+		/**
+		 * Positions of the fields of a record separated by "<sep>". As String.split(), it drops the empty fields at the end.
+		 * It is visible in the package for the benchmarks
+		 */
+		static class FieldScanner {
+
+			static final byte[] SEP = "<sep>".getBytes();
+			static final byte[] PART = "<part>".getBytes();
+
+			private int[] starts = new int[16];
+			private int[] ends = new int[16];
+			private int numFields = 0;
+
+			void scan(byte[] data, int start, int end) {
+
+				this.numFields = 0;
+
+				int fieldStart = start;
+				int separator;
+
+				while((separator = indexOf(data, fieldStart, end, SEP)) >= 0) {
+					this.add(fieldStart, separator);
+					fieldStart = separator + SEP.length;
+				}
+
+				this.add(fieldStart, end);
+
+				while(this.numFields > 1 && this.starts[this.numFields - 1] == this.ends[this.numFields - 1]) {
+					this.numFields--;
+				}
+			}
+
+			private void add(int start, int end) {
+
+				if(this.numFields == this.starts.length) {
+					this.starts = Arrays.copyOf(this.starts, this.numFields * 2);
+					this.ends = Arrays.copyOf(this.ends, this.numFields * 2);
+				}
+
+				this.starts[this.numFields] = start;
+				this.ends[this.numFields] = end;
+				this.numFields++;
+			}
+
+			int size() {
+				return this.numFields;
+			}
+
+			/**
+			 * Length of the sequence fields, the second of each four
+			 */
+			long countBases() {
+
+				long bases = 0;
+
+				for(int i = 1; i < this.numFields; i += 4) {
+					bases += this.ends[i] - this.starts[i];
+				}
+
+				return bases;
+			}
+
+			/**
+			 * Writes each field as a line
+			 */
+			void write(byte[] data, OutputStream out) throws IOException {
+				for(int i = 0; i < this.numFields; i++) {
+					out.write(data, this.starts[i], this.ends[i] - this.starts[i]);
+					out.write('\n');
+				}
+			}
+
+			/**
+			 * Adds the read whose name is the given field, and whose bases and qualities are one and three fields after it
+			 */
+			void addRead(byte[] data, int nameField, BwaReadBatch batch) {
+
+				int nameStart = this.starts[nameField];
+
+				if(nameStart < this.ends[nameField] && (data[nameStart] == '@' || data[nameStart] == '>')) {
+					nameStart++;
+				}
+
+				batch.add(data, nameStart, this.ends[nameField] - nameStart,
+						this.starts[nameField + 1], this.ends[nameField + 1] - this.starts[nameField + 1],
+						this.starts[nameField + 3], this.ends[nameField + 3] - this.starts[nameField + 3]);
+			}
+
+			static int indexOf(byte[] data, int start, int end, byte[] pattern) {
+
+				for(int i = start; i <= end - pattern.length; i++) {
+					int j = 0;
+
+					while(j < pattern.length && data[i + j] == pattern[j]) {
+						j++;
+					}
+
+					if(j == pattern.length) {
+						return i;
+					}
+				}
+
+				return -1;
+			}
+		}
 	}
 
+	/**
+	 * Reducer that joins the outputs of the mappers. It gets the path of each mapper output, and appends them to
+	 * the final file after a header merged from all of them, without reading the records (see SamOutputMerger)
+	 */
 	public static class BigBWAReducer extends Reducer<IntWritable,Text,NullWritable,Text> {
 
-		//private String outputFile;
-		//private String outputDir;
-		private HashMap<Integer,String> inputFiles;
+		//Outputs of the mappers, sorted by mapper, and by chunk when the mappers write checkpoints
+		private TreeMap<Integer,TreeSet<String>> inputFiles;
 
 		@Override
 		protected void setup(Context context) {
 
-			//this.outputDir = context.getConfiguration().get("outputGenomics");
-			//this.outputFile = this.outputDir+"/FinalOutput.sam";
-
-			this.inputFiles = new HashMap<Integer,String>();
+			this.inputFiles = new TreeMap<Integer,TreeSet<String>>();
 
 		}
 
@@ -645,11 +2048,15 @@ public class BigBWA extends Configured implements Tool {
 		public void reduce(IntWritable key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
 			try{
 
-				//In theory, there is just one value per key
+				//There is one value per key, or one per chunk. Chunk names sort in the order of the chunks
+				TreeSet<String> files = new TreeSet<String>();
+
 				for (Text val : values) {
-					inputFiles.put(key.get(), val.toString());
+					files.add(val.toString());
 				}
 
+				inputFiles.put(key.get(), files);
+
 			}
 			catch(Exception e){
 				System.out.println(e.toString());
@@ -659,43 +2066,93 @@ public class BigBWA extends Configured implements Tool {
 		@Override
 		public void cleanup(Context context) throws IOException, InterruptedException {
 
-			FileSystem fs = FileSystem.get(context.getConfiguration());
+			Configuration conf = context.getConfiguration();
+			FileSystem fs = FileSystem.get(conf);
+
+			ArrayList<Path> records = new ArrayList<Path>();
 
-			int fileNumber = this.inputFiles.size();
+			for(TreeSet<String> currentFiles: this.inputFiles.values()){
+				for(String currentFile: currentFiles){
+					records.add(new Path(currentFile));
+				}
+			}
+
+			//With the work queue, the outputs are the ones of the done chunks, as the mappers of failed attempts also wrote some
+			if(conf.get(ChunkQueue.DIR) != null) {
+				for(String chunk: ChunkQueue.getDone(conf, new Path(conf.get(ChunkQueue.DIR)))) {
+					records.add(new Path(conf.get("outputGenomics"), chunk+".sam"));
+				}
+			}
 
-			boolean readHeader = true;
+			//The final file is in the output directory, next to the mapper outputs, so they can be concatenated to it
+			Path finalOutput = new Path(conf.get("outputGenomics"), "part-r-00000");
 
-			for(int i = 0; i< fileNumber; i++){
+			SamOutputMerger merger = new SamOutputMerger(fs, conf.getInt("mergeThreads", 4), conf.getInt("mergeChunkSize", 8 << 20));
 
-				String currentFile = this.inputFiles.get(i);
+			long startTime = System.currentTimeMillis();
 
-				BufferedReader d = new BufferedReader(new InputStreamReader(fs.open(new Path(currentFile))));
+			merger.merge(records, finalOutput);
 
-				String line = "";
+			long mergeTime = System.currentTimeMillis() - startTime;
 
-				while ((line = d.readLine())!=null) {
+			context.getCounter(BwaCounters.MERGE_MS).increment(mergeTime);
 
-					if((line.startsWith("@") && readHeader) || (!line.startsWith("@")) ){
-						//bufferOut.write(line);
-						context.write(NullWritable.get(), new Text(line));
-					}
+			LOG.info("Merged "+records.size()+" mapper outputs into "+finalOutput+" in "+mergeTime+" ms"
+					+(merger.isConcatenated() ? " with HDFS concat" : " copying them"));
 
+		}
 
-				}
+	}
+
+	/**
+	 * Reducer of the coordinate sort. It gets the BAM records of its range of the genome already sorted by the
+	 * shuffle, and writes them as they come. The first reducer also writes the BAM header, built from the
+	 * SAM header of the first mapper.
+	 */
+	public static class BigBWASortReducer extends Reducer<AlignmentKey,BytesWritable,NullWritable,BytesWritable> {
+
+		private boolean headerWritten = false;
+
+		@Override
+		public void reduce(AlignmentKey key, Iterable<BytesWritable> values, Context context) throws IOException, InterruptedException {
+
+			if(key.getReference() == AlignmentKey.HEADER) {
+				//All the mappers send the same header, so only the first one is used
+				if(!this.headerWritten) {
+					BytesWritable samHeader = values.iterator().next();
 
-				readHeader = false;
+					byte[] header = this.buildHeader(new String(samHeader.getBytes(), 0, samHeader.getLength(), "UTF-8"));
 
-				d.close();
+					context.write(NullWritable.get(), new BytesWritable(header));
+					this.headerWritten = true;
+				}
 
-				fs.delete(new Path(currentFile), true);
+				return;
+			}
 
+			for (BytesWritable record : values) {
+				context.write(NullWritable.get(), record);
 			}
+		}
+
+		/**
+		 * @param samHeader The SAM header of a mapper
+		 * @return The BAM header, with the "@HD" line saying that the file is sorted by coordinate
+		 * @throws IOException If the header could not be encoded
+		 */
+		private byte[] buildHeader(String samHeader) throws IOException {
 
-			//bufferOut.close();
+			StringBuilder header = new StringBuilder("@HD\tVN:1.6\tSO:coordinate\n");
 
+			for (String line : samHeader.split("\n")) {
+				if(!line.isEmpty() && !line.startsWith("@HD")) {
+					header.append(line).append('\n');
+				}
+			}
+
+			return new BamRecordEncoder(null).encodeHeader(header.toString());
 		}
 
 	}
 
 }
-
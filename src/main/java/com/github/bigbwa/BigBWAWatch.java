@@ -0,0 +1,374 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Incremental alignment of the FASTQ files that arrive to a directory, as the
+ * lanes of a sequencing run are copied to HDFS. It takes the options of
+ * BigBWA followed by the watched directory and an output directory:
+ *
+ *   BigBWAWatch [BigBWA options] watchDir outputDir
+ *
+ * Every "watchInterval" seconds the directory is listed, and each new file
+ * that is complete is aligned by a BigBWA job into its own directory of the
+ * output tree. With paired reads, files named as first mates (lane_1.fq,
+ * lane_R1_001.fastq.gz...) are aligned together with their second mates, and
+ * files named as second mates are only aligned with their first ones. Other
+ * files are aligned alone, as BigBWA aligns a single input.
+ *
+ * A file is complete when a file with its name and ".done" exists, or when
+ * it is closed (in HDFS) and its size and modification time have not changed
+ * since the last listing or for "watchSettleSeconds". Names starting with
+ * "." or "_", and the files "hdfs dfs -put" is still copying, are ignored.
+ *
+ * The aligned inputs are recorded in the "_bigbwa_manifest" file of the
+ * output directory, so a restarted watch skips them. Inputs whose jobs fail
+ * are retried "watchRetries" times and then recorded as failed. The watch
+ * ends when the directory has a "_COMPLETE" file ("watchStopFile") and all
+ * its files have been aligned, or after one listing if "watchOnce" is true.
+ *
+ * @author José M. Abuín
+ */
+public class BigBWAWatch extends Configured implements Tool {
+
+	private static final Log LOG = LogFactory.getLog(BigBWAWatch.class);
+
+	public static final String MANIFEST = "_bigbwa_manifest";
+
+	// First mate tags: the last "_1", "_R1", ".1" or ".R1" followed by "_" or "."
+	private static final Pattern FIRST_MATE = Pattern.compile("^(.*[._]R?)1([._][^/]*)$");
+	private static final Pattern SECOND_MATE = Pattern.compile("^(.*[._]R?)2([._][^/]*)$");
+
+	private static final Pattern FASTQ_EXTENSION = Pattern.compile("\\.(fq|fastq)(\\.gz|\\.bz2)?$");
+
+	private FileSystem fs;
+	private Path outputDir;
+
+	// Manifest lines and the inputs they record, done or failed
+	private ArrayList<String> manifest = new ArrayList<String>();
+	private HashSet<String> recorded = new HashSet<String>();
+
+	// Size and modification time of each file in the last listing, and failed jobs of each input
+	private HashMap<String, long[]> lastSeen = new HashMap<String, long[]>();
+	private HashMap<String, Integer> failures = new HashMap<String, Integer>();
+
+	public static void main(String[] args) throws Exception {
+
+		int res = ToolRunner.run(new Configuration(), new BigBWAWatch(), args);
+		System.exit(res);
+
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+
+		Configuration conf = this.getConf();
+
+		if (args.length < 2) {
+			System.err.println("Usage: BigBWAWatch [BigBWA options] watchDir outputDir");
+			return 1;
+		}
+
+		String[] bwaArgs = Arrays.copyOfRange(args, 0, args.length - 2);
+		Path watchDir = new Path(args[args.length - 2]);
+
+		// The options are checked once, as BigBWA would check them for a single input
+		BwaOptions options = new BwaOptions(args);
+		boolean paired = options.isPairedReads();
+
+		// A file system of its own, as the jobs run in this JVM and may close the cached one
+		this.fs = FileSystem.newInstance(watchDir.toUri(), conf);
+		this.outputDir = this.fs.makeQualified(new Path(args[args.length - 1]));
+
+		long intervalMillis = conf.getLong("watchInterval", 60) * 1000;
+		long settleMillis = conf.getLong("watchSettleSeconds", 120) * 1000;
+		int retries = conf.getInt("watchRetries", 2);
+		boolean once = conf.getBoolean("watchOnce", false);
+		String pattern = conf.get("watchPattern", "*.{fq,fastq,fq.gz,fastq.gz}");
+		Path stopFile = new Path(watchDir, conf.get("watchStopFile", "_COMPLETE"));
+
+		this.fs.mkdirs(this.outputDir);
+		this.readManifest();
+
+		LOG.info("Watching " + watchDir + " for " + pattern + ". Aligned inputs are recorded in " + new Path(this.outputDir, MANIFEST));
+
+		while (true) {
+			// Once the stop file is there, the files that are still in the directory are complete
+			boolean last = once || this.fs.exists(stopFile);
+
+			List<Path[]> inputs = this.findInputs(watchDir, pattern, paired, last, settleMillis);
+
+			for (Path[] input : inputs) {
+				String key = input[0].toString();
+				Path batchDir = this.getBatchDir(input[0]);
+
+				LOG.info("Aligning " + key + ((input.length > 1) ? " and " + input[1] : "") + " into " + batchDir);
+
+				if (this.align(bwaArgs, input, batchDir)) {
+					this.record("done", input, batchDir);
+				}
+				else {
+					int failed = this.failures.containsKey(key) ? this.failures.get(key) + 1 : 1;
+					this.failures.put(key, failed);
+
+					LOG.error("Could not align " + key + " (" + failed + " of " + (retries + 1) + " attempts)");
+
+					if (failed > retries) {
+						this.record("failed", input, batchDir);
+					}
+				}
+			}
+
+			if (last && (inputs.isEmpty() || once)) {
+				break;
+			}
+
+			if (inputs.isEmpty()) {
+				Thread.sleep(intervalMillis);
+			}
+		}
+
+		LOG.info("Watch of " + watchDir + " finished. " + this.manifest.size() + " inputs in the manifest");
+
+		this.fs.close();
+
+		return 0;
+	}
+
+	/**
+	 * Complete inputs that are not in the manifest, each one as a single file or as the two files of a pair
+	 */
+	private List<Path[]> findInputs(Path watchDir, String pattern, boolean paired, boolean last, long settleMillis) throws IOException {
+
+		FileStatus[] statuses = this.fs.globStatus(new Path(watchDir, pattern));
+		HashMap<String, FileStatus> files = new HashMap<String, FileStatus>();
+		HashSet<String> complete = new HashSet<String>();
+
+		List<Path[]> inputs = new ArrayList<Path[]>();
+
+		if (statuses == null) {
+			return inputs;
+		}
+
+		for (FileStatus status : statuses) {
+			String name = status.getPath().getName();
+
+			if (status.isDirectory() || name.startsWith(".") || name.startsWith("_") || name.endsWith("._COPYING_")) {
+				continue;
+			}
+
+			files.put(name, status);
+
+			if (last || this.isComplete(status, settleMillis)) {
+				complete.add(name);
+			}
+		}
+
+		Arrays.sort(statuses);
+
+		for (FileStatus status : statuses) {
+			String name = status.getPath().getName();
+
+			if (!complete.contains(name) || this.recorded.contains(status.getPath().toString())) {
+				continue;
+			}
+
+			Matcher firstMate = FIRST_MATE.matcher(name);
+
+			if (paired && firstMate.matches()) {
+				// A pair is aligned when both files are complete
+				String mateName = firstMate.group(1) + "2" + firstMate.group(2);
+
+				if (complete.contains(mateName)) {
+					inputs.add(new Path[] {status.getPath(), files.get(mateName).getPath()});
+				}
+				else if (last) {
+					LOG.warn("Second mate " + mateName + " of " + name + " not found. It is not aligned");
+				}
+			}
+			else if (!paired || !SECOND_MATE.matcher(name).matches()) {
+				inputs.add(new Path[] {status.getPath()});
+			}
+		}
+
+		return inputs;
+	}
+
+	private boolean isComplete(FileStatus status, long settleMillis) throws IOException {
+
+		Path path = status.getPath();
+
+		if (this.fs.exists(path.suffix(".done"))) {
+			return true;
+		}
+
+		long[] previous = this.lastSeen.put(path.toString(), new long[] {status.getLen(), status.getModificationTime()});
+
+		// HDFS updates the modification time when the file is closed, not while it is written
+		if (!this.isClosed(path)) {
+			return false;
+		}
+
+		boolean unchanged = (previous != null) && (previous[0] == status.getLen()) && (previous[1] == status.getModificationTime());
+
+		return unchanged || (System.currentTimeMillis() - status.getModificationTime() >= settleMillis);
+	}
+
+	/**
+	 * @return Whether the file is closed, in file systems that tell it, as HDFS. hadoop-hdfs is not a dependency of
+	 *         BigBWA, so the method is looked up at run time
+	 */
+	private boolean isClosed(Path path) {
+		try {
+			Method isFileClosed = this.fs.getClass().getMethod("isFileClosed", Path.class);
+
+			return (Boolean) isFileClosed.invoke(this.fs, path);
+		}
+		catch (NoSuchMethodException e) {
+			return true;
+		}
+		catch (Exception e) {
+			LOG.warn("Could not check whether " + path + " is closed: " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * @return A directory of the output tree for the input, named after its first file
+	 */
+	private Path getBatchDir(Path input) throws IOException {
+
+		String name = FASTQ_EXTENSION.matcher(input.getName()).replaceFirst("");
+		Path batchDir = new Path(this.outputDir, name);
+
+		for (int i = 1; this.fs.exists(batchDir); i++) {
+			batchDir = new Path(this.outputDir, name + "-" + i);
+		}
+
+		return batchDir;
+	}
+
+	private boolean align(String[] bwaArgs, Path[] input, Path batchDir) {
+
+		String[] args = Arrays.copyOf(bwaArgs, bwaArgs.length + input.length + 1);
+
+		for (int i = 0; i < input.length; i++) {
+			args[bwaArgs.length + i] = input[i].toString();
+		}
+
+		args[args.length - 1] = batchDir.toString();
+
+		try {
+			// Each job gets its own copy of the configuration, as BigBWA changes it
+			return ToolRunner.run(new Configuration(this.getConf()), new BigBWA(), args) == 0;
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			LOG.error(e.toString());
+
+			return false;
+		}
+	}
+
+	private void readManifest() throws IOException {
+
+		Path manifestPath = new Path(this.outputDir, MANIFEST);
+
+		if (!this.fs.exists(manifestPath)) {
+			return;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(this.fs.open(manifestPath), "UTF-8"));
+
+		try {
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					this.manifest.add(line);
+					this.recorded.add(line.split("\t")[1]);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		LOG.info(this.recorded.size() + " inputs already in the manifest");
+	}
+
+	/**
+	 * Adds an input to the manifest. Lines have the status, the first and second files ("-" for single files), their
+	 * bytes and the output directory. The whole manifest is written again and renamed over the old one
+	 */
+	private void record(String status, Path[] input, Path batchDir) throws IOException {
+
+		long bytes = 0;
+
+		for (Path file : input) {
+			bytes += this.fs.getFileStatus(file).getLen();
+		}
+
+		this.manifest.add(status + "\t" + input[0] + "\t" + ((input.length > 1) ? input[1].toString() : "-") + "\t" + bytes + "\t" + batchDir);
+		this.recorded.add(input[0].toString());
+
+		Path manifestPath = new Path(this.outputDir, MANIFEST);
+		Path tmpPath = new Path(this.outputDir, MANIFEST + ".tmp");
+
+		OutputStream out = this.fs.create(tmpPath, true);
+
+		try {
+			for (String line : this.manifest) {
+				out.write((line + "\n").getBytes("UTF-8"));
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		FileContext.getFileContext(this.outputDir.toUri(), this.getConf()).rename(tmpPath, manifestPath, Options.Rename.OVERWRITE);
+	}
+
+}
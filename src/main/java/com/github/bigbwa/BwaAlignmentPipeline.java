@@ -0,0 +1,309 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Aligns batches of reads while the next ones are being read. The batches
+ * filled by the caller are aligned by a background thread, and the SAM
+ * records are written to the output by a third one, so reading the input,
+ * aligning and writing overlap.
+ *
+ * Memory is bounded by a fixed pool of batches: the caller gets an empty
+ * batch from submit(), and blocks there while all of them are waiting to be
+ * aligned. The same applies to the SAM records waiting to be written.
+ * Batches are aligned one by one and in order, so the output is the same as
+ * aligning them in the calling thread.
+ *
+ * <pre>
+ * BwaAlignmentPipeline pipeline = new BwaAlignmentPipeline(aligner, out, true, 2);
+ * BwaReadBatch batch = pipeline.getBatch();
+ * ... add reads to batch ...
+ * batch = pipeline.submit(batch);
+ * ...
+ * pipeline.close();
+ * </pre>
+ *
+ * @author José M. Abuín
+ */
+public class BwaAlignmentPipeline implements Closeable {
+
+	// Marks the end of the batches and of the results
+	private static final BwaReadBatch NO_MORE_BATCHES = new BwaReadBatch(false);
+	private static final byte[] NO_MORE_RESULTS = new byte[0];
+
+	private BwaMemAligner aligner;
+	private OutputStream out;
+
+	private BlockingQueue<BwaReadBatch> freeBatches;
+	private BlockingQueue<BwaReadBatch> pendingBatches;
+	private BlockingQueue<byte[]> pendingResults;
+
+	private BwaReadBatch currentBatch;
+
+	private Thread alignThread;
+	private Thread writeThread;
+
+	// First error of the background threads, reported to the caller
+	private volatile Throwable error = null;
+
+	private boolean closed = false;
+
+	// Time in ms each stage has been waiting for the others
+	private long readWait = 0;
+	private volatile long alignWait = 0;
+	private volatile long writeWait = 0;
+
+	/**
+	 * Starts the align and write threads
+	 *
+	 * @param aligner Aligner for the batches. It is only used by the align thread
+	 * @param out Output for the SAM records. It is only used by the write thread
+	 * @param paired If the batches contain pairs of mates
+	 * @param queuedBatches Number of filled batches that can wait to be aligned, and of results that can wait to be written
+	 */
+	public BwaAlignmentPipeline(BwaMemAligner aligner, OutputStream out, boolean paired, int queuedBatches) {
+
+		this.aligner = aligner;
+		this.out = out;
+
+		queuedBatches = Math.max(1, queuedBatches);
+
+		// One batch is being filled, one aligned and the rest wait in the queue
+		this.freeBatches = new ArrayBlockingQueue<BwaReadBatch>(queuedBatches + 2);
+		this.pendingBatches = new ArrayBlockingQueue<BwaReadBatch>(queuedBatches + 1);
+		this.pendingResults = new ArrayBlockingQueue<byte[]>(queuedBatches + 1);
+
+		for (int i = 0; i < queuedBatches + 1; i++) {
+			this.freeBatches.add(new BwaReadBatch(paired));
+		}
+
+		this.currentBatch = new BwaReadBatch(paired);
+
+		this.alignThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				alignBatches();
+			}
+		}, "BigBWA-align");
+
+		this.writeThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeResults();
+			}
+		}, "BigBWA-write");
+
+		this.alignThread.setDaemon(true);
+		this.writeThread.setDaemon(true);
+
+		this.alignThread.start();
+		this.writeThread.start();
+	}
+
+	/**
+	 * @return The batch to add reads to
+	 */
+	public BwaReadBatch getBatch() {
+		return this.currentBatch;
+	}
+
+	/**
+	 * Queues a batch to be aligned. It blocks while all the batches are waiting to be aligned
+	 *
+	 * @param batch The batch returned by getBatch() or by the previous call
+	 * @return An empty batch to add the next reads to
+	 * @throws IOException If a previous batch could not be aligned or written
+	 */
+	public BwaReadBatch submit(BwaReadBatch batch) throws IOException {
+
+		this.checkError();
+
+		if (batch.size() == 0) {
+			return batch;
+		}
+
+		try {
+			long startTime = System.currentTimeMillis();
+
+			this.pendingBatches.put(batch);
+			this.currentBatch = this.freeBatches.take();
+
+			this.readWait += System.currentTimeMillis() - startTime;
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while queuing a batch of reads");
+		}
+
+		return this.currentBatch;
+	}
+
+	/**
+	 * Aligns the last batch, waits for all the results to be written and stops the threads.
+	 * The output stream is flushed but not closed
+	 *
+	 * @throws IOException If a batch could not be aligned or written
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (this.closed) {
+			return;
+		}
+
+		try {
+			this.submit(this.currentBatch);
+		}
+		finally {
+			this.closed = true;
+
+			try {
+				this.pendingBatches.put(NO_MORE_BATCHES);
+				this.alignThread.join();
+				this.writeThread.join();
+			}
+			catch (InterruptedException e) {
+				this.alignThread.interrupt();
+				this.writeThread.interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the alignments");
+			}
+		}
+
+		this.checkError();
+
+		this.out.flush();
+	}
+
+	/**
+	 * @return The time in ms the input has waited for a free batch
+	 */
+	public long getReadWaitTime() {
+		return this.readWait;
+	}
+
+	/**
+	 * @return The time in ms the aligner has waited for a filled batch or for room for its results
+	 */
+	public long getAlignWaitTime() {
+		return this.alignWait;
+	}
+
+	/**
+	 * @return The time in ms the output has waited for results
+	 */
+	public long getWriteWaitTime() {
+		return this.writeWait;
+	}
+
+	private void alignBatches() {
+
+		try {
+			while (true) {
+				long startTime = System.currentTimeMillis();
+				BwaReadBatch batch = this.pendingBatches.take();
+				this.alignWait += System.currentTimeMillis() - startTime;
+
+				if (batch == NO_MORE_BATCHES) {
+					break;
+				}
+
+				// After an error, batches are only recycled so the reader never blocks forever
+				if (this.error == null) {
+					try {
+						byte[] result = this.aligner.align(batch);
+
+						startTime = System.currentTimeMillis();
+						this.pendingResults.put(result);
+						this.alignWait += System.currentTimeMillis() - startTime;
+					}
+					catch (Throwable e) {
+						this.setError(e);
+					}
+				}
+
+				batch.clear();
+				this.freeBatches.put(batch);
+			}
+		}
+		catch (InterruptedException e) {
+			this.setError(e);
+		}
+		finally {
+			try {
+				this.pendingResults.put(NO_MORE_RESULTS);
+			}
+			catch (InterruptedException e) {
+				this.setError(e);
+			}
+		}
+	}
+
+	private void writeResults() {
+
+		try {
+			while (true) {
+				long startTime = System.currentTimeMillis();
+				byte[] result = this.pendingResults.take();
+				this.writeWait += System.currentTimeMillis() - startTime;
+
+				if (result == NO_MORE_RESULTS) {
+					break;
+				}
+
+				if (this.error == null) {
+					try {
+						this.out.write(result);
+					}
+					catch (Throwable e) {
+						this.setError(e);
+					}
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			this.setError(e);
+		}
+	}
+
+	private synchronized void setError(Throwable e) {
+		if (this.error == null) {
+			this.error = e;
+		}
+	}
+
+	private void checkError() throws IOException {
+
+		Throwable e = this.error;
+
+		if (e instanceof IOException) {
+			throw new IOException(e.getMessage(), e);
+		}
+		else if (e != null) {
+			throw new IOException("Error in the alignment pipeline: " + e.toString(), e);
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+/**
+ * Counters of the BigBWA tasks. Hadoop adds them over all the tasks in the
+ * job history, and keeps the values of each task, so slow nodes can be found.
+ * Times are in milliseconds. Bwa times are added over its threads, so they
+ * can be greater than the time of the task.
+ *
+ * The average insert size of the job is INSERT_SIZE_AVG_SUM divided by
+ * INSERT_SIZE_BATCHES, as bwa estimates it for each batch of reads.
+ *
+ * @author José M. Abuín
+ */
+public enum BwaCounters {
+
+	// Input of the mappers
+	READS,
+	BASES,
+	MALFORMED_RECORDS,
+
+	// Time of each phase
+	INDEX_LOAD_MS,
+	MEM_MS,
+	ALN_MS,
+	SAMSE_MS,
+	SAMPE_MS,
+	BWASW_MS,
+	UPLOAD_MS,
+	MERGE_MS,
+
+	// Statistics of bwa
+	SAM_RECORDS,
+	SAM_BYTES,
+	MAPPED_READS,
+	UNMAPPED_READS,
+	PROPER_PAIR_READS,
+	SEED_MS,
+	EXTEND_MS,
+	INSERT_SIZE_BATCHES,
+	INSERT_SIZE_AVG_SUM,
+	INSERT_SIZE_STD_SUM,
+
+	// Chunks of the in-memory alignment with checkpoints
+	COMMITTED_CHUNKS,
+	RESUMED_CHUNKS,
+
+	// Chunks of the work queue
+	QUEUE_CHUNKS,
+	TAKEN_CHUNKS,
+
+	// Reads marked by the duplicate marking
+	DUPLICATE_READS
+
+}
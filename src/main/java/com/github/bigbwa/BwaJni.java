@@ -38,23 +38,241 @@ public class BwaJni {
 		}
 	}
 
-	private native int bwa_jni(int argc, String[] argv, int[] lenStrings);
+	// Statistics of a bwa command, in the order of the array returned by Bwa_Jni and Bwa_Mem_Stats. Times are in
+	// nanoseconds, added over the threads of the command
+	public static final int STAT_RECORDS = 0;
+	public static final int STAT_MAPPED = 1;
+	public static final int STAT_UNMAPPED = 2;
+	public static final int STAT_PROPER_PAIRS = 3;
+	public static final int STAT_SAM_BYTES = 4;
+	public static final int STAT_SEED_NS = 5;
+	public static final int STAT_EXTEND_NS = 6;
+	public static final int STAT_INSERT_SIZE_BATCHES = 7;
+	public static final int STAT_INSERT_SIZE_AVG = 8;
+	public static final int STAT_INSERT_SIZE_STD = 9;
+	public static final int STAT_INDEX_LOAD_NS = 10;
+	public static final int NUM_STATS = 11;
+
+	// How indexes are loaded into the cache, see Bwa_Index_Mmap
+	public static final int INDEX_MMAP_OFF = 0;
+	public static final int INDEX_MMAP_FILES = 1;
+	public static final int INDEX_MMAP_PACKED = 2;
+
+	private native int bwa_jni(int argc, String[] argv, int[] lenStrings, long[] stats);
 	
+	/**
+	 * Runs a bwa command, as bwa main() would. Each call has its own output and option parser,
+	 * so several threads can run commands at the same time
+	 *
+	 * @param args Command line of bwa, starting with "bwa". The output file is given with -f
+	 * @return The return code of bwa
+	 */
 	public static int Bwa_Jni(String[] args) {
+		return Bwa_Jni(args, null);
+	}
+
+	/**
+	 * Runs a bwa command and gets its statistics: SAM records written, mapped and unmapped reads, time spent
+	 * in the seeding and extension steps of bwa mem, insert size estimates and index load time
+	 *
+	 * @param args Command line of bwa, starting with "bwa". The output file is given with -f
+	 * @param stats Array of NUM_STATS elements where the statistics are written, or null
+	 * @return The return code of bwa
+	 */
+	public static int Bwa_Jni(String[] args, long[] stats) {
 		
 		int[] lenStrings = new int[args.length];
 		
 		int i=0;
 		
 		for(String argumento: args){
-			lenStrings[i] = argumento.length();
+			lenStrings[i++] = argumento.length();
 		}
 		
 		//new BwaJni().bwa_jni(args.length, args, lenStrings);
-		int returnCode = new BwaJni().bwa_jni(args.length, args, lenStrings);
+		int returnCode = new BwaJni().bwa_jni(args.length, args, lenStrings, stats);
 
 		return returnCode;
 	}
 
-}
+	private static native long bwa_mem_init(String indexPrefix, String[] memArgs);
+	private static native int bwa_mem_chunk_size(long handle);
+	private static native byte[] bwa_mem_header(long handle);
+	private static native byte[] bwa_mem_align(long handle, int numReads, byte[] data, int dataLength, int[] offsets, boolean paired);
+	private static native void bwa_mem_destroy(long handle);
+	private static native long[] bwa_mem_stats(long handle);
+	private static native long bwa_mem_get_read_ordinal(long handle);
+	private static native void bwa_mem_set_read_ordinal(long handle, long ordinal);
+
+	/**
+	 * Loads the index and parses the BWA-MEM options for in-process alignment
+	 *
+	 * @param indexPrefix Prefix of the index created by bwa
+	 * @param memArgs Options of "bwa mem", without the algorithm name, index or input files
+	 * @return A handle for the other Bwa_Mem_* functions, or 0 if the index could not be loaded
+	 */
+	public static long Bwa_Mem_Init(String indexPrefix, String[] memArgs) {
+		return bwa_mem_init(indexPrefix, memArgs);
+	}
+
+	/**
+	 * Number of bases that "bwa mem" would read from the FASTQ files before each alignment round
+	 *
+	 * @param handle Handle returned by Bwa_Mem_Init
+	 * @return The chunk size in bases (-K option, or 10M bases per thread by default)
+	 */
+	public static int Bwa_Mem_Chunk_Size(long handle) {
+		return bwa_mem_chunk_size(handle);
+	}
+
+	/**
+	 * SAM header for the loaded index, as "bwa mem" prints it
+	 *
+	 * @param handle Handle returned by Bwa_Mem_Init
+	 * @return The header lines, ending in a new line
+	 */
+	public static byte[] Bwa_Mem_Header(long handle) {
+		return bwa_mem_header(handle);
+	}
+
+	/**
+	 * Aligns a batch of reads with mem_process_seqs
+	 *
+	 * @param handle Handle returned by Bwa_Mem_Init
+	 * @param batch The reads to align. In paired batches mates are consecutive
+	 * @return The SAM records of the batch, in the same order as the reads
+	 */
+	public static byte[] Bwa_Mem_Align(long handle, BwaReadBatch batch) {
+		return bwa_mem_align(handle, batch.size(), batch.getData(), batch.getDataLength(), batch.getOffsets(), batch.isPaired());
+	}
+
+	/**
+	 * Frees the index and options of an in-process aligner
+	 *
+	 * @param handle Handle returned by Bwa_Mem_Init
+	 */
+	public static void Bwa_Mem_Destroy(long handle) {
+		bwa_mem_destroy(handle);
+	}
+
+	/**
+	 * Statistics of an in-process aligner, added over all the batches it aligned
+	 *
+	 * @param handle Handle returned by Bwa_Mem_Init
+	 * @return NUM_STATS values, as the ones of Bwa_Jni
+	 */
+	public static long[] Bwa_Mem_Stats(long handle) {
+		return bwa_mem_stats(handle);
+	}
+
+	/**
+	 * Number of reads processed by an in-process aligner, which is the id of its next read. bwa uses the ids to break
+	 * the ties between equally good alignments
+	 *
+	 * @param handle Handle returned by Bwa_Mem_Init
+	 * @return The id of the next read
+	 */
+	public static long Bwa_Mem_Get_Read_Ordinal(long handle) {
+		return bwa_mem_get_read_ordinal(handle);
+	}
+
+	/**
+	 * Sets the id of the next read of an in-process aligner
+	 *
+	 * @param handle Handle returned by Bwa_Mem_Init
+	 * @param ordinal The id of the next read
+	 */
+	public static void Bwa_Mem_Set_Read_Ordinal(long handle, long ordinal) {
+		bwa_mem_set_read_ordinal(handle, ordinal);
+	}
 
+	private static native void bwa_index_cache_budget(long bytes);
+	private static native int bwa_index_cache_release(String indexPrefix);
+	private static native long bwa_index_cache_bytes();
+
+	/**
+	 * Sets the memory budget of the index cache. Indexes that are not in use are freed,
+	 * least recently used first, to stay within it
+	 *
+	 * @param bytes Maximum number of bytes used by cached indexes, 0 for no limit
+	 */
+	public static void Bwa_Index_Cache_Budget(long bytes) {
+		bwa_index_cache_budget(bytes);
+	}
+
+	/**
+	 * Frees a cached index. If it is in use, it is freed when its last user finishes
+	 *
+	 * @param indexPrefix Prefix of the index to free, or null to free all of them
+	 * @return The number of indexes freed right away
+	 */
+	public static int Bwa_Index_Cache_Release(String indexPrefix) {
+		return bwa_index_cache_release(indexPrefix);
+	}
+
+	/**
+	 * @return The number of bytes used by the indexes in the cache
+	 */
+	public static long Bwa_Index_Cache_Bytes() {
+		return bwa_index_cache_bytes();
+	}
+
+	private static native void bwa_index_mmap(int mode);
+
+	/**
+	 * Sets how the indexes that are not cached yet are loaded. Mapped indexes are shared with the other
+	 * processes of the node through the page cache, and fall back to reading the files when they can not be mapped
+	 *
+	 * @param mode INDEX_MMAP_OFF to read the files, INDEX_MMAP_FILES to map the .bwt, .sa and .pac files or
+	 *             INDEX_MMAP_PACKED to map a single .bwaidx file, written next to the index the first time
+	 */
+	public static void Bwa_Index_Mmap(int mode) {
+		bwa_index_mmap(mode);
+	}
+
+	private static native int bwa_shm_stage(String indexPrefix, String tmpFile);
+	private static native boolean bwa_shm_test(String indexPrefix);
+	private static native int bwa_shm_drop(String indexPrefix);
+
+	/**
+	 * Loads an index from disk and copies it to shared memory, as "bwa shm" does
+	 *
+	 * @param indexPrefix Prefix of the index to stage
+	 * @param tmpFile File used to reduce the peak memory while staging, or null
+	 * @return 0 if the index was staged, -1 otherwise
+	 */
+	public static int Bwa_Shm_Stage(String indexPrefix, String tmpFile) {
+		return bwa_shm_stage(indexPrefix, tmpFile);
+	}
+
+	/**
+	 * @param indexPrefix Prefix of the index
+	 * @return True if an index with the same name is in shared memory
+	 */
+	public static boolean Bwa_Shm_Test(String indexPrefix) {
+		return bwa_shm_test(indexPrefix);
+	}
+
+	/**
+	 * Removes an index from shared memory. Processes that already mapped it keep using it
+	 *
+	 * @param indexPrefix Prefix or name of the index
+	 * @return 1 if the index was in shared memory, 0 otherwise
+	 */
+	public static int Bwa_Shm_Drop(String indexPrefix) {
+		return bwa_shm_drop(indexPrefix);
+	}
+
+	private static native int bwa_mkfifo(String path);
+
+	/**
+	 * Creates a named pipe, so bwa can write its output to it while Java reads it
+	 *
+	 * @param path Path of the new pipe
+	 * @return 0 if the pipe was created, -1 otherwise
+	 */
+	public static int Bwa_Mkfifo(String path) {
+		return bwa_mkfifo(path);
+	}
+
+}
@@ -0,0 +1,167 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * BWA-MEM aligner that works inside the JVM process. The index is loaded once
+ * and batches of reads are aligned without writing them to disk.
+ *
+ * <pre>
+ * BwaMemAligner aligner = new BwaMemAligner("/Data/HumanBase/hg19", "-t 4");
+ * BwaReadBatch batch = new BwaReadBatch(false);
+ * batch.add("@read1", "ACGT...", "IIII...");
+ * byte[] sam = aligner.align(batch);
+ * aligner.close();
+ * </pre>
+ *
+ * @author José M. Abuín
+ */
+public class BwaMemAligner implements Closeable {
+
+	private long handle;
+
+	// Time spent aligning batches, in nanoseconds
+	private long alignTime = 0;
+
+	/**
+	 * Loads the index and sets the BWA-MEM options
+	 *
+	 * @param indexPrefix Prefix for the index created by bwa
+	 * @param bwaArgs Options of "bwa mem" separated by spaces, as given with -w
+	 * @throws IOException If the index can not be loaded or the options are wrong
+	 */
+	public BwaMemAligner(String indexPrefix, String bwaArgs) throws IOException {
+
+		ArrayList<String> memArgs = new ArrayList<String>();
+
+		if (bwaArgs != null) {
+			for (String argument : bwaArgs.split(" ")) {
+				if (!argument.isEmpty()) {
+					memArgs.add(argument);
+				}
+			}
+		}
+
+		this.handle = BwaJni.Bwa_Mem_Init(indexPrefix, memArgs.toArray(new String[memArgs.size()]));
+
+		if (this.handle == 0) {
+			throw new IOException("Could not load index " + indexPrefix + " with options '" + bwaArgs + "'");
+		}
+	}
+
+	/**
+	 * @return The SAM header of the alignments, ending in a new line
+	 */
+	public byte[] getHeader() {
+		return BwaJni.Bwa_Mem_Header(this.checkHandle());
+	}
+
+	/**
+	 * Number of bases "bwa mem" aligns at once. Batches of this size give the
+	 * same results as running "bwa mem" over the FASTQ files.
+	 *
+	 * @return The batch size in bases
+	 */
+	public int getChunkSize() {
+		return BwaJni.Bwa_Mem_Chunk_Size(this.checkHandle());
+	}
+
+	/**
+	 * Aligns a batch of reads. Consecutive calls behave as consecutive chunks
+	 * of the same "bwa mem" run.
+	 *
+	 * @param batch Reads to align
+	 * @return SAM records of the reads, one per line
+	 * @throws IOException If BWA could not align the batch
+	 */
+	public byte[] align(BwaReadBatch batch) throws IOException {
+
+		long startTime = System.nanoTime();
+
+		byte[] result = BwaJni.Bwa_Mem_Align(this.checkHandle(), batch);
+
+		this.alignTime += System.nanoTime() - startTime;
+
+		if (result == null) {
+			throw new IOException("BWA could not align a batch of " + batch.size() + " reads");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Counts reads as aligned without aligning them, so the next batches get the read ids, and so the same
+	 * alignments among equally good ones, as if the reads had been aligned
+	 *
+	 * @param reads Number of reads skipped
+	 */
+	public void skip(int reads) {
+		long handle = this.checkHandle();
+		BwaJni.Bwa_Mem_Set_Read_Ordinal(handle, BwaJni.Bwa_Mem_Get_Read_Ordinal(handle) + reads);
+	}
+
+	/**
+	 * Sets the id of the next read, which bwa uses to choose among equally good alignments. Batches aligned
+	 * after the same id give the same output
+	 *
+	 * @param ordinal The id of the next read
+	 */
+	public void setReadOrdinal(long ordinal) {
+		BwaJni.Bwa_Mem_Set_Read_Ordinal(this.checkHandle(), ordinal);
+	}
+
+	/**
+	 * @return The time spent aligning batches, in nanoseconds
+	 */
+	public long getAlignTime() {
+		return this.alignTime;
+	}
+
+	/**
+	 * @return The statistics of the batches aligned so far, as described in BwaJni
+	 */
+	public long[] getStats() {
+		return BwaJni.Bwa_Mem_Stats(this.checkHandle());
+	}
+
+	/**
+	 * Frees the index and the options in the native side
+	 */
+	@Override
+	public void close() {
+		if (this.handle != 0) {
+			BwaJni.Bwa_Mem_Destroy(this.handle);
+			this.handle = 0;
+		}
+	}
+
+	private long checkHandle() {
+		if (this.handle == 0) {
+			throw new IllegalStateException("The aligner has been closed");
+		}
+
+		return this.handle;
+	}
+
+}
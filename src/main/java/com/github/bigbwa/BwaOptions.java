@@ -50,6 +50,20 @@ public class BwaOptions {
 
 	private boolean useReducer		= false;
 
+	private boolean inMemory		= false;
+
+	private boolean sharedIndex		= false;
+
+	private boolean fastqInput		= false;
+
+	private boolean pipeline		= false;
+
+	private boolean bamOutput		= false;
+
+	private boolean sortOutput		= false;
+
+	private boolean planJob			= false;
+
 	private String correctUse =
 			"yarn jar --class com.github.bigbwa.BigBWA BigBWA-2.0.jar";// [SparkBWA Options] Input.fastq [Input2.fastq] Output\n";
 
@@ -63,7 +77,7 @@ public class BwaOptions {
 
 	private String headerAlt = "yarn jar --class com.github.bigbwa.BigBWA BigBWA-2.1.jar\n" +
 			"       [-a | -b | -m]  [-h] [-i <Index prefix>]   [-n <Number of\n" +
-			"       partitions>] [-p | -s] [-r]  [-w <\"BWA arguments\">]\n" +
+			"       partitions>] [-p | -s] [-q] [-r] [-e] [-l] [-x] [-o] [-c] [-u]  [-w <\"BWA arguments\">]\n" +
 			"       <FASTQ file> <SAM file output>";
 
 	// Footer to show when the program is not launched correctly
@@ -108,9 +122,9 @@ public class BwaOptions {
 			if(groupName.contains("algorithm")) {
 				System.out.println("BWA algorithm options: ");
 			}
-			//else if (groupName.contains("sort")) {
-			//	System.out.println("Sorting options: ");
-			//}
+			else if (groupName.contains("sort")) {
+				System.out.println("Sorting options: ");
+			}
 			else if (groupName.contains("help")) {
 				System.out.println("Help options: ");
 			}
@@ -129,6 +143,24 @@ public class BwaOptions {
 			else if(groupName.contains("The program is going to merge")){
 				System.out.println("Reducer options: ");
 			}
+			else if(groupName.contains("aligned in memory")){
+				System.out.println("In-memory alignment options: ");
+			}
+			else if(groupName.contains("shared by all the tasks")){
+				System.out.println("Shared index options: ");
+			}
+			else if(groupName.contains("standard FASTQ files")){
+				System.out.println("Input format options: ");
+			}
+			else if(groupName.contains("while the input is still being read")){
+				System.out.println("Pipelined alignment options: ");
+			}
+			else if(groupName.contains("BAM format")){
+				System.out.println("Output format options: ");
+			}
+			else if(groupName.contains("cluster resources")){
+				System.out.println("Planning options: ");
+			}
 			else{
 				System.out.println(groupName + "options: ");
 			}
@@ -281,6 +313,41 @@ public class BwaOptions {
 				this.useReducer = true;
 			}
 
+			// In-memory alignment
+			if (cmd.hasOption('e') || cmd.hasOption("inmemory")) {
+				this.inMemory = true;
+			}
+
+			// Shared index
+			if (cmd.hasOption('x') || cmd.hasOption("sharedindex")) {
+				this.sharedIndex = true;
+			}
+
+			// Input format
+			if (cmd.hasOption('q') || cmd.hasOption("fastq")) {
+				this.fastqInput = true;
+			}
+
+			// Pipelined alignment
+			if (cmd.hasOption('l') || cmd.hasOption("pipeline")) {
+				this.pipeline = true;
+			}
+
+			// BAM output
+			if (cmd.hasOption('o') || cmd.hasOption("bam")) {
+				this.bamOutput = true;
+			}
+
+			// Coordinate-sorted output
+			if (cmd.hasOption('c') || cmd.hasOption("sort")) {
+				this.sortOutput = true;
+			}
+
+			// Resource-aware planning
+			if (cmd.hasOption('u') || cmd.hasOption("plan")) {
+				this.planJob = true;
+			}
+
 			// Help
 			if (cmd.hasOption('h') || cmd.hasOption("help")) {
 				//formatter.printHelp(correctUse, header, options, footer, true);
@@ -407,6 +474,55 @@ public class BwaOptions {
 
 		privateOptions.addOptionGroup(reducerGroup);
 
+		OptionGroup inMemoryGroup = new OptionGroup();
+		Option inMemory = new Option("e", "inmemory", false, "Reads are aligned in memory with the BWA-MEM library API, without temporary FASTQ files. Only for the mem algorithm");
+
+		inMemoryGroup.addOption(inMemory);
+
+		privateOptions.addOptionGroup(inMemoryGroup);
+
+		OptionGroup sharedIndexGroup = new OptionGroup();
+		Option sharedIndex = new Option("x", "sharedindex", false, "The index is staged in shared memory (/dev/shm) and shared by all the tasks of a node");
+
+		sharedIndexGroup.addOption(sharedIndex);
+
+		privateOptions.addOptionGroup(sharedIndexGroup);
+
+		OptionGroup inputFormatGroup = new OptionGroup();
+		Option fastq = new Option("q", "fastq", false, "Input files are standard FASTQ files, without converting them with Fq2FqBigData.py");
+
+		inputFormatGroup.addOption(fastq);
+
+		privateOptions.addOptionGroup(inputFormatGroup);
+
+		OptionGroup pipelineGroup = new OptionGroup();
+		Option pipeline = new Option("l", "pipeline", false, "Batches of reads are aligned in background while the input is still being read. Implies -e");
+
+		pipelineGroup.addOption(pipeline);
+
+		privateOptions.addOptionGroup(pipelineGroup);
+
+		OptionGroup outputFormatGroup = new OptionGroup();
+		Option bam = new Option("o", "bam", false, "Output files are written in BAM format, compressed in several threads");
+
+		outputFormatGroup.addOption(bam);
+
+		privateOptions.addOptionGroup(outputFormatGroup);
+
+		OptionGroup sortGroup = new OptionGroup();
+		Option sort = new Option("c", "sort", false, "The alignments are sorted by coordinate in several reducers, each one writing a part of the BAM output. Implies -o");
+
+		sortGroup.addOption(sort);
+
+		privateOptions.addOptionGroup(sortGroup);
+
+		OptionGroup planGroup = new OptionGroup();
+		Option plan = new Option("u", "plan", false, "Splits, bwa -t and container memory are planned from the index size, the input size and the cluster resources");
+
+		planGroup.addOption(plan);
+
+		privateOptions.addOptionGroup(planGroup);
+
 		/* OptionGroup sorting = new OptionGroup();
 
 		Option hdfs = new Option("f", "hdfs", false, "The HDFS is used to perform the input FASTQ reads sort");
@@ -711,4 +827,116 @@ public class BwaOptions {
 	public void setuseReducer( boolean newValueReducer){
 		this.useReducer = newValueReducer;
 	}
+
+	/**
+	 * Getter for the option of aligning the reads in memory
+	 * @return A boolean value that indicates if the reads are sent to BWA-MEM without temporary files
+	 */
+	public boolean isInMemory() {
+		return this.inMemory;
+	}
+
+	/**
+	 * Setter for the option of aligning the reads in memory
+	 * @param inMemory The new value for the in-memory option
+	 */
+	public void setInMemory(boolean inMemory) {
+		this.inMemory = inMemory;
+	}
+
+	/**
+	 * Getter for the option of sharing the index among the tasks of a node
+	 * @return A boolean value that indicates if the index is staged in shared memory
+	 */
+	public boolean isSharedIndex() {
+		return this.sharedIndex;
+	}
+
+	/**
+	 * Setter for the option of sharing the index among the tasks of a node
+	 * @param sharedIndex The new value for the shared index option
+	 */
+	public void setSharedIndex(boolean sharedIndex) {
+		this.sharedIndex = sharedIndex;
+	}
+
+	/**
+	 * Getter for the option of reading standard FASTQ files
+	 * @return A boolean value that indicates if the input files are in FASTQ format
+	 */
+	public boolean isFastqInput() {
+		return this.fastqInput;
+	}
+
+	/**
+	 * Setter for the option of reading standard FASTQ files
+	 * @param fastqInput The new value for the FASTQ input option
+	 */
+	public void setFastqInput(boolean fastqInput) {
+		this.fastqInput = fastqInput;
+	}
+
+	/**
+	 * Getter for the option of aligning the reads while the input is read
+	 * @return A boolean value that indicates if input, alignment and output are pipelined
+	 */
+	public boolean isPipeline() {
+		return this.pipeline;
+	}
+
+	/**
+	 * Setter for the option of aligning the reads while the input is read
+	 * @param pipeline The new value for the pipeline option
+	 */
+	public void setPipeline(boolean pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Getter for the option of writing the output in BAM format
+	 * @return A boolean value that indicates if the output files are BAM files
+	 */
+	public boolean isBamOutput() {
+		return this.bamOutput;
+	}
+
+	/**
+	 * Setter for the option of writing the output in BAM format
+	 * @param bamOutput The new value for the BAM output option
+	 */
+	public void setBamOutput(boolean bamOutput) {
+		this.bamOutput = bamOutput;
+	}
+
+	/**
+	 * Getter for the option of sorting the output by coordinate
+	 * @return A boolean value that indicates if the output is sorted by coordinate in the reducers
+	 */
+	public boolean isSortOutput() {
+		return this.sortOutput;
+	}
+
+	/**
+	 * Setter for the option of sorting the output by coordinate
+	 * @param sortOutput The new value for the sort option
+	 */
+	public void setSortOutput(boolean sortOutput) {
+		this.sortOutput = sortOutput;
+	}
+
+	/**
+	 * Getter for the option of planning the job from the cluster resources
+	 * @return A boolean value that indicates if the splits, threads and memory are chosen automatically
+	 */
+	public boolean isPlanJob() {
+		return this.planJob;
+	}
+
+	/**
+	 * Setter for the option of planning the job from the cluster resources
+	 * @param planJob The new value for the plan option
+	 */
+	public void setPlanJob(boolean planJob) {
+		this.planJob = planJob;
+	}
 }
@@ -0,0 +1,179 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Named pipe that takes the SAM output of bwa and copies it to HDFS while bwa
+ * is still writing it, so the output is not staged in the local disk. The
+ * pipe is given to bwa as its output file, and a thread reads it until bwa
+ * closes it at the end of its run.
+ *
+ * @author José M. Abuín
+ */
+public class BwaOutputPipe {
+
+	private File pipe;
+	private OutputStream destination;
+
+	private Thread copyThread;
+
+	private volatile IOException error = null;
+	private volatile long bytesCopied = 0;
+
+	/**
+	 * Creates the named pipe
+	 *
+	 * @param pipePath Local path for the pipe
+	 * @param destination Stream where the output is copied to. It is closed at the end of the copy
+	 * @throws IOException If the pipe could not be created
+	 */
+	public BwaOutputPipe(String pipePath, OutputStream destination) throws IOException {
+
+		this.pipe = new File(pipePath);
+		this.destination = destination;
+
+		this.pipe.delete();
+
+		if (BwaJni.Bwa_Mkfifo(pipePath) != 0) {
+			throw new IOException("Could not create the named pipe " + pipePath);
+		}
+	}
+
+	/**
+	 * Starts copying. The thread waits until bwa opens the pipe
+	 */
+	public void start() {
+
+		this.copyThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				copy();
+			}
+		}, "BigBWA-output");
+
+		this.copyThread.setDaemon(true);
+		this.copyThread.start();
+	}
+
+	/**
+	 * Waits until bwa closes the pipe and the output is in the destination, and removes the pipe
+	 *
+	 * @throws IOException If the output could not be copied
+	 */
+	public void finish() throws IOException {
+
+		try {
+			this.copyThread.join();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while copying the output of " + this.pipe);
+		}
+		finally {
+			this.pipe.delete();
+		}
+
+		if (this.error != null) {
+			throw this.error;
+		}
+	}
+
+	/**
+	 * Removes the pipe after a failure. If bwa never opened it, the copy thread is left waiting, as it is a daemon thread
+	 */
+	public void abort() {
+		this.pipe.delete();
+	}
+
+	/**
+	 * @return The path bwa has to write to
+	 */
+	public String getPath() {
+		return this.pipe.getPath();
+	}
+
+	/**
+	 * @return The number of bytes copied so far
+	 */
+	public long getBytesCopied() {
+		return this.bytesCopied;
+	}
+
+	private void copy() {
+
+		InputStream in = null;
+		OutputStream out = this.destination;
+
+		try {
+			// Opening the pipe blocks until bwa opens it for writing
+			in = new FileInputStream(this.pipe);
+
+			byte[] buffer = new byte[1 << 20];
+			int read;
+
+			// If the destination fails, the pipe is still drained so bwa neither blocks nor gets a broken pipe
+			while ((read = in.read(buffer)) > 0) {
+				if (out != null) {
+					try {
+						out.write(buffer, 0, read);
+						this.bytesCopied += read;
+					}
+					catch (IOException e) {
+						this.error = e;
+						out = null;
+					}
+				}
+			}
+
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+		catch (IOException e) {
+			if (this.error == null) {
+				this.error = e;
+			}
+		}
+		finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+
+				if (out != null) {
+					out.close();
+				}
+			}
+			catch (IOException e) {
+				if (this.error == null) {
+					this.error = e;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.util.Arrays;
+
+/**
+ * A batch of reads packed the way the native side builds its bseq1_t array.
+ * Each read is stored as "name\0seq\0qual\0" in a single byte array, and the
+ * start of the three fields is kept in an int array. In paired batches the two
+ * mates of a pair are consecutive reads.
+ *
+ * @author José M. Abuín
+ */
+public class BwaReadBatch {
+
+	private byte[] data;
+	private int dataLength = 0;
+
+	private int[] offsets;
+	private int numReads = 0;
+
+	private long numBases = 0;
+
+	private boolean paired;
+
+	/**
+	 * Creates an empty batch
+	 *
+	 * @param paired If mates of the same pair are going to be added one after the other
+	 */
+	public BwaReadBatch(boolean paired) {
+		this.paired = paired;
+		this.data = new byte[1 << 20];
+		this.offsets = new int[3 * 4096];
+	}
+
+	/**
+	 * Adds a read to the batch
+	 *
+	 * @param record Array containing the read fields
+	 * @param nameStart Position of the read name, without the leading '@' or '>'
+	 * @param nameLength Length of the read name
+	 * @param seqStart Position of the bases
+	 * @param seqLength Number of bases
+	 * @param qualStart Position of the qualities
+	 * @param qualLength Length of the qualities, 0 if there are none
+	 */
+	public void add(byte[] record, int nameStart, int nameLength, int seqStart, int seqLength, int qualStart, int qualLength) {
+		this.add(record, nameStart, nameLength, record, seqStart, seqLength, record, qualStart, qualLength);
+	}
+
+	/**
+	 * Adds a read given by its FASTQ lines
+	 *
+	 * @param name The name line, with or without the leading '@'
+	 * @param seq The bases
+	 * @param qual The qualities
+	 */
+	public void add(String name, String seq, String qual) {
+
+		byte[] nameBytes = name.getBytes();
+		byte[] seqBytes = seq.getBytes();
+		byte[] qualBytes = qual.getBytes();
+
+		int nameStart = (nameBytes.length > 0 && (nameBytes[0] == '@' || nameBytes[0] == '>')) ? 1 : 0;
+
+		this.add(nameBytes, nameStart, nameBytes.length - nameStart, seqBytes, 0, seqBytes.length, qualBytes, 0, qualBytes.length);
+	}
+
+	private void add(byte[] name, int nameStart, int nameLength, byte[] seq, int seqStart, int seqLength, byte[] qual, int qualStart, int qualLength) {
+
+		// As bwa, the name ends in the first blank
+		for (int i = 0; i < nameLength; i++) {
+			if (name[nameStart + i] == ' ' || name[nameStart + i] == '\t') {
+				nameLength = i;
+				break;
+			}
+		}
+
+		this.ensureCapacity(nameLength + seqLength + qualLength + 3);
+
+		int base = 3 * this.numReads;
+
+		this.offsets[base] = this.addField(name, nameStart, nameLength);
+		this.offsets[base + 1] = this.addField(seq, seqStart, seqLength);
+		this.offsets[base + 2] = this.addField(qual, qualStart, qualLength);
+
+		this.numReads++;
+		this.numBases += seqLength;
+	}
+
+	private int addField(byte[] source, int start, int length) {
+
+		int fieldStart = this.dataLength;
+
+		System.arraycopy(source, start, this.data, this.dataLength, length);
+		this.dataLength += length;
+		this.data[this.dataLength++] = 0;
+
+		return fieldStart;
+	}
+
+	private void ensureCapacity(int extraBytes) {
+
+		if (this.dataLength + extraBytes > this.data.length) {
+			this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.dataLength + extraBytes));
+		}
+
+		if (3 * (this.numReads + 1) > this.offsets.length) {
+			this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+		}
+	}
+
+	/**
+	 * Empties the batch, keeping the allocated buffers
+	 */
+	public void clear() {
+		this.dataLength = 0;
+		this.numReads = 0;
+		this.numBases = 0;
+	}
+
+	/**
+	 * @return The number of reads in the batch, counting both mates in paired batches
+	 */
+	public int size() {
+		return this.numReads;
+	}
+
+	/**
+	 * @return The number of bases in the batch
+	 */
+	public long getNumBases() {
+		return this.numBases;
+	}
+
+	/**
+	 * @return True if the batch contains pairs of mates
+	 */
+	public boolean isPaired() {
+		return this.paired;
+	}
+
+	/**
+	 * @return The array with the packed reads. Only the first getDataLength() bytes are valid
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * @return The number of valid bytes in the data array
+	 */
+	public int getDataLength() {
+		return this.dataLength;
+	}
+
+	/**
+	 * @return The start of the name, bases and qualities of each read
+	 */
+	public int[] getOffsets() {
+		return this.offsets;
+	}
+
+}
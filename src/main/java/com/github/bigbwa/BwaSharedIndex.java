@@ -0,0 +1,402 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Index shared by all the tasks of a node through the shared memory of bwa
+ * ("bwa shm"). The first task stages the index into /dev/shm and the next ones
+ * attach to it. Each task holds a lease, a file named after its process, while
+ * it uses the index. When the last lease is released the index is dropped
+ * after a linger time, so tasks that start shortly after can still attach.
+ * The JVM that releases the last lease drops it when the linger time ends if
+ * it is still running. Otherwise, as each task has its own JVM in YARN, the
+ * index stays in shared memory until a later task of the node finds it idle
+ * for longer than its linger time. Leases of processes that no longer exist
+ * are ignored.
+ *
+ * All the changes to the shared memory of the node are serialized with a lock
+ * file, since bwa keeps the list of staged indexes in a single table.
+ *
+ * @author José M. Abuín
+ */
+public class BwaSharedIndex implements Closeable {
+
+	private static final Log LOG = LogFactory.getLog(BwaSharedIndex.class);
+
+	private static final String SHM_DIR = "/dev/shm";
+	private static final String PREFIX = "bigbwa-";
+	private static final String LEASES = ".leases";
+	private static final String NODE_LOCK = PREFIX + "node.lock";
+
+	private static final String[] INDEX_EXTENSIONS = {".bwt", ".sa", ".pac", ".ann", ".amb"};
+
+	private static final AtomicInteger leaseCounter = new AtomicInteger(0);
+
+	// Indexes used by this JVM with their linger time, dropped at exit if they are idle, and the timer that drops them after the linger time
+	private static final Map<String, Long> usedIndexes = new HashMap<String, Long>();
+	private static Timer lingerTimer = null;
+
+	private String indexPrefix;
+	private String name;
+	private long lingerMillis;
+
+	private File leaseFile = null;
+
+	private boolean attached = false;
+	private boolean loaded = false;
+
+	/**
+	 * Attaches to the index in shared memory, staging it first if no other task has done it
+	 *
+	 * @param indexPrefix Prefix for the index created by bwa
+	 * @param lingerSeconds Time the index stays in shared memory after its last user finishes
+	 * @throws IOException If the lock of the node could not be taken
+	 */
+	public BwaSharedIndex(String indexPrefix, long lingerSeconds) throws IOException {
+
+		this.indexPrefix = indexPrefix;
+		this.name = new File(indexPrefix).getName();
+		this.lingerMillis = lingerSeconds * 1000;
+
+		// Tasks running in the same JVM can not take the file lock twice
+		synchronized (BwaSharedIndex.class) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(SHM_DIR, NODE_LOCK), "rw");
+			FileLock lock = lockFile.getChannel().lock();
+
+			try {
+				// Indexes nobody has used for a while are freed before taking more shared memory
+				this.evictIdleIndexes();
+
+				if (BwaJni.Bwa_Shm_Test(this.indexPrefix)) {
+					this.attached = true;
+				}
+				else if (this.fitsInSharedMemory()) {
+					String tmpFile = System.getProperty("java.io.tmpdir") + "/bwashm-" + this.name + "-" + getPid();
+
+					if (BwaJni.Bwa_Shm_Stage(this.indexPrefix, tmpFile) == 0) {
+						this.loaded = true;
+					}
+					else {
+						LOG.warn("Could not stage index " + this.indexPrefix + " in shared memory");
+					}
+				}
+
+				if (this.isShared()) {
+					File leaseDir = getLeaseDir(this.name);
+
+					if (!leaseDir.isDirectory() && !leaseDir.mkdirs()) {
+						throw new IOException("Could not create the lease directory " + leaseDir.getPath());
+					}
+
+					this.leaseFile = new File(leaseDir, getPid() + "-" + leaseCounter.incrementAndGet());
+					this.leaseFile.createNewFile();
+
+					addUsedIndex(this.indexPrefix, this.lingerMillis);
+				}
+			}
+			finally {
+				lock.release();
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * @return True if the index was already in shared memory
+	 */
+	public boolean isAttached() {
+		return this.attached;
+	}
+
+	/**
+	 * @return True if this task staged the index in shared memory
+	 */
+	public boolean isLoaded() {
+		return this.loaded;
+	}
+
+	/**
+	 * @return True if the index is used from shared memory. If false, each task loads its own copy
+	 */
+	public boolean isShared() {
+		return this.attached || this.loaded;
+	}
+
+	/**
+	 * Releases the lease of this task. The last user drops the index if there is no linger time, or
+	 * schedules it to be dropped once the linger time ends
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (this.leaseFile == null) {
+			return;
+		}
+
+		synchronized (BwaSharedIndex.class) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(SHM_DIR, NODE_LOCK), "rw");
+			FileLock lock = lockFile.getChannel().lock();
+
+			try {
+				this.leaseFile.delete();
+				this.leaseFile = null;
+
+				// The modification time of the lease directory tells when the index was last used
+				getLeaseDir(this.name).setLastModified(System.currentTimeMillis());
+
+				if (!hasLiveLeases(getLeaseDir(this.name))) {
+					if (this.lingerMillis <= 0) {
+						dropIfIdle(this.indexPrefix, 0);
+					}
+					else {
+						scheduleDrop(this.indexPrefix, this.lingerMillis);
+					}
+				}
+			}
+			finally {
+				lock.release();
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Drops an index after the linger time, if it has not been used again in the node meanwhile. The timer does not
+	 * keep the JVM alive, so if it exits first the index is left for the next tasks of the node
+	 *
+	 * @param indexPrefix Prefix for the index created by bwa
+	 * @param lingerMillis Linger time
+	 */
+	private static synchronized void scheduleDrop(final String indexPrefix, final long lingerMillis) {
+
+		if (lingerTimer == null) {
+			lingerTimer = new Timer("BigBWA shared index linger", true);
+		}
+
+		lingerTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					dropLocked(indexPrefix, lingerMillis);
+				}
+				catch (IOException e) {
+					LOG.warn("Could not drop index " + indexPrefix + " from shared memory: " + e.getMessage());
+				}
+			}
+		}, lingerMillis);
+	}
+
+	/**
+	 * Remembers an index used by this JVM, so it is dropped when the JVM exits if it is idle
+	 *
+	 * @param indexPrefix Prefix for the index created by bwa
+	 * @param lingerMillis Linger time
+	 */
+	private static synchronized void addUsedIndex(String indexPrefix, long lingerMillis) {
+
+		if (usedIndexes.isEmpty()) {
+			Runtime.getRuntime().addShutdownHook(new Thread("BigBWA shared index release") {
+				@Override
+				public void run() {
+					releaseUsedIndexes();
+				}
+			});
+		}
+
+		usedIndexes.put(indexPrefix, lingerMillis);
+	}
+
+	/**
+	 * Drops the indexes used by this JVM that no other process holds and that are over their linger time. The leases
+	 * of this process are released first, as its tasks are over
+	 */
+	private static void releaseUsedIndexes() {
+
+		Map<String, Long> indexes;
+
+		synchronized (BwaSharedIndex.class) {
+			indexes = new HashMap<String, Long>(usedIndexes);
+		}
+
+		for (Map.Entry<String, Long> index : indexes.entrySet()) {
+			String indexPrefix = index.getKey();
+
+			File[] leases = getLeaseDir(new File(indexPrefix).getName()).listFiles();
+
+			if (leases != null) {
+				for (File lease : leases) {
+					if (lease.getName().startsWith(getPid() + "-")) {
+						lease.delete();
+					}
+				}
+			}
+
+			try {
+				dropLocked(indexPrefix, index.getValue());
+			}
+			catch (IOException e) {
+				LOG.warn("Could not drop index " + indexPrefix + " from shared memory: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Takes the lock of the node and drops an index if it is idle
+	 */
+	private static void dropLocked(String indexPrefix, long lingerMillis) throws IOException {
+
+		synchronized (BwaSharedIndex.class) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(SHM_DIR, NODE_LOCK), "rw");
+			FileLock lock = lockFile.getChannel().lock();
+
+			try {
+				dropIfIdle(indexPrefix, lingerMillis);
+			}
+			finally {
+				lock.release();
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Drops an index that has no live leases and has not been used during the linger time. The lock of the node must be held
+	 *
+	 * @param indexPrefix Prefix for the index created by bwa
+	 * @param lingerMillis Linger time
+	 */
+	private static void dropIfIdle(String indexPrefix, long lingerMillis) {
+
+		File leaseDir = getLeaseDir(new File(indexPrefix).getName());
+
+		if (System.currentTimeMillis() - leaseDir.lastModified() < lingerMillis || hasLiveLeases(leaseDir)) {
+			return;
+		}
+
+		if (BwaJni.Bwa_Shm_Drop(indexPrefix) > 0) {
+			LOG.info("Index " + indexPrefix + " removed from shared memory");
+		}
+	}
+
+	/**
+	 * Drops the indexes of the node that have no live leases and have not been used during the linger time
+	 */
+	private void evictIdleIndexes() {
+
+		File[] leaseDirs = new File(SHM_DIR).listFiles();
+
+		if (leaseDirs == null) {
+			return;
+		}
+
+		for (File leaseDir : leaseDirs) {
+
+			String fileName = leaseDir.getName();
+
+			if (!fileName.startsWith(PREFIX) || !fileName.endsWith(LEASES)) {
+				continue;
+			}
+
+			String otherName = fileName.substring(PREFIX.length(), fileName.length() - LEASES.length());
+
+			if (otherName.equals(this.name) || System.currentTimeMillis() - leaseDir.lastModified() < this.lingerMillis) {
+				continue;
+			}
+
+			if (!hasLiveLeases(leaseDir) && BwaJni.Bwa_Shm_Drop(otherName) > 0) {
+				LOG.info("Idle index " + otherName + " removed from shared memory");
+			}
+		}
+	}
+
+	/**
+	 * Checks if any lease of the directory belongs to a running process. The ones that do not are deleted
+	 *
+	 * @param leaseDir Directory with the leases of an index
+	 * @return True if some process holds a lease
+	 */
+	private static boolean hasLiveLeases(File leaseDir) {
+
+		File[] leases = leaseDir.listFiles();
+		boolean live = false;
+
+		if (leases == null) {
+			return false;
+		}
+
+		for (File lease : leases) {
+			String pid = lease.getName().split("-")[0];
+
+			if (new File("/proc/" + pid).exists()) {
+				live = true;
+			}
+			else {
+				lease.delete();
+			}
+		}
+
+		return live;
+	}
+
+	/**
+	 * Checks that /dev/shm has room for the index, since running out of space while staging kills the process
+	 */
+	private boolean fitsInSharedMemory() {
+
+		long indexSize = 0;
+
+		for (String extension : INDEX_EXTENSIONS) {
+			indexSize += new File(this.indexPrefix + extension).length();
+		}
+
+		long available = new File(SHM_DIR).getUsableSpace();
+
+		if (indexSize == 0 || available < indexSize) {
+			LOG.warn("Index " + this.indexPrefix + " (" + indexSize + " bytes) does not fit in " + SHM_DIR + " (" + available + " bytes available)");
+			return false;
+		}
+
+		return true;
+	}
+
+	private static File getLeaseDir(String indexName) {
+		return new File(SHM_DIR, PREFIX + indexName + LEASES);
+	}
+
+	private static String getPid() {
+		return ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+	}
+
+}
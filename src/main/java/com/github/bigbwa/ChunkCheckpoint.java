@@ -0,0 +1,282 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Outputs of a map task written in chunks of reads, each one committed to
+ * HDFS as soon as it is aligned, so a new attempt of the task only aligns
+ * the chunks that were not committed. Chunks are numbered from 0 in the order
+ * of the input, and the reads of a chunk are the same in every attempt, as
+ * the split and the batches are.
+ *
+ * Each chunk is written as a header and a records file (see
+ * SamHeaderSplitter) next to the output of the task, so SamOutputMerger can
+ * join them with HDFS concat. They are written with names of the attempt and
+ * renamed when the chunk is committed. Then a checkpoint record with the
+ * number of reads and the bwa statistics of the chunk is written to the
+ * "_checkpoints" directory of the output. A chunk is committed when its
+ * record and its records file exist.
+ *
+ * @author José M. Abuín
+ */
+public class ChunkCheckpoint {
+
+	private static final Log LOG = LogFactory.getLog(ChunkCheckpoint.class);
+
+	public static final String CHECKPOINT_DIR = "_checkpoints";
+
+	private FileSystem fs;
+	private Path outputDir;
+	private String name;
+	private String attempt;
+
+	private Path checkpointDir;
+
+	// Reads and bwa statistics of the chunks committed by previous attempts
+	private HashMap<Integer, Long> committedReads = new HashMap<Integer, Long>();
+	private HashMap<Integer, long[]> committedStats = new HashMap<Integer, long[]>();
+
+	/**
+	 * Reads the checkpoint records of the task
+	 *
+	 * @param fs File system of the output
+	 * @param outputDir Output directory of the job
+	 * @param name Name of the output of the task, as "Output3"
+	 * @param attempt Id of the task attempt, for the names of the files being written
+	 * @throws IOException If the records could not be read
+	 */
+	public ChunkCheckpoint(FileSystem fs, Path outputDir, String name, String attempt) throws IOException {
+
+		this.fs = fs;
+		this.outputDir = outputDir;
+		this.name = name;
+		this.attempt = attempt;
+
+		this.checkpointDir = new Path(new Path(outputDir, CHECKPOINT_DIR), name);
+
+		if (!this.fs.exists(this.checkpointDir)) {
+			return;
+		}
+
+		for (FileStatus status : this.fs.listStatus(this.checkpointDir)) {
+			String recordName = status.getPath().getName();
+
+			if (recordName.startsWith(".")) {
+				continue;
+			}
+
+			int chunk = Integer.parseInt(recordName);
+
+			// The records file may have been merged already by an attempt that failed afterwards
+			if (this.fs.exists(this.getRecordsPath(chunk))) {
+				this.readRecord(status.getPath(), chunk);
+			}
+		}
+
+		if (!this.committedReads.isEmpty()) {
+			LOG.info(this.committedReads.size() + " chunks of " + name + " were committed by previous attempts");
+		}
+	}
+
+	/**
+	 * @param chunk Number of the chunk
+	 * @return Whether a previous attempt committed the chunk
+	 */
+	public boolean isCommitted(int chunk) {
+		return this.committedReads.containsKey(chunk);
+	}
+
+	/**
+	 * @param chunk Number of a committed chunk
+	 * @return The number of reads of the chunk
+	 */
+	public long getReads(int chunk) {
+		return this.committedReads.get(chunk);
+	}
+
+	/**
+	 * @param chunk Number of a committed chunk
+	 * @return The bwa statistics of the chunk, as described in BwaJni
+	 */
+	public long[] getStats(int chunk) {
+		return this.committedStats.get(chunk);
+	}
+
+	/**
+	 * @param chunk Number of the chunk
+	 * @return The path of the records file of the chunk once it is committed
+	 */
+	public Path getRecordsPath(int chunk) {
+		return new Path(this.outputDir, String.format("%s-%06d.sam", this.name, chunk));
+	}
+
+	/**
+	 * @param numChunks Number of chunks of the task
+	 * @return The records files of all the chunks, in order
+	 */
+	public List<Path> getChunks(int numChunks) {
+
+		List<Path> chunks = new ArrayList<Path>();
+
+		for (int i = 0; i < numChunks; i++) {
+			chunks.add(this.getRecordsPath(i));
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Creates the output of a chunk, with names of this attempt
+	 *
+	 * @param chunk Number of the chunk
+	 * @return The stream for the SAM text of the chunk
+	 * @throws IOException If the files could not be created
+	 */
+	public OutputStream create(int chunk) throws IOException {
+		return new SamHeaderSplitter(this.fs.create(SamOutputMerger.getHeaderPath(this.getAttemptPath(chunk)), true),
+				this.fs.create(this.getAttemptPath(chunk), true));
+	}
+
+	/**
+	 * Renames the output of a chunk, once it is closed, and writes its checkpoint record
+	 *
+	 * @param chunk Number of the chunk
+	 * @param reads Number of reads of the chunk
+	 * @param stats Bwa statistics of the chunk
+	 * @throws IOException If the files could not be renamed or the record could not be written
+	 */
+	public void commit(int chunk, long reads, long[] stats) throws IOException {
+
+		Path records = this.getRecordsPath(chunk);
+
+		// Files left by an attempt that did not write the record are replaced
+		this.rename(SamOutputMerger.getHeaderPath(this.getAttemptPath(chunk)), SamOutputMerger.getHeaderPath(records));
+		this.rename(this.getAttemptPath(chunk), records);
+
+		StringBuilder record = new StringBuilder();
+		record.append("reads=").append(reads).append('\n').append("stats=");
+
+		for (int i = 0; i < stats.length; i++) {
+			record.append((i > 0) ? "," : "").append(stats[i]);
+		}
+
+		record.append('\n');
+
+		Path recordPath = new Path(this.checkpointDir, String.format("%06d", chunk));
+		Path tmpPath = new Path(this.checkpointDir, "." + recordPath.getName() + "." + this.attempt);
+
+		OutputStream out = this.fs.create(tmpPath, true);
+
+		try {
+			out.write(record.toString().getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+
+		this.rename(tmpPath, recordPath);
+	}
+
+	/**
+	 * Removes the checkpoint records of the task, once its output is complete, and the chunks of failed attempts
+	 *
+	 * @throws IOException If the records could not be removed
+	 */
+	public void delete() throws IOException {
+
+		this.fs.delete(this.checkpointDir, true);
+
+		// The directory of the checkpoints goes away with the last task. Tasks that write later create it again
+		Path parent = this.checkpointDir.getParent();
+
+		if (this.fs.exists(parent) && (this.fs.listStatus(parent).length == 0)) {
+			this.fs.delete(parent, false);
+		}
+
+		// Outputs of chunks that failed attempts did not commit
+		FileStatus[] leftovers = this.fs.globStatus(new Path(this.outputDir, "." + this.name + "-*"));
+
+		if (leftovers != null) {
+			for (FileStatus leftover : leftovers) {
+				this.fs.delete(leftover.getPath(), false);
+			}
+		}
+	}
+
+	private Path getAttemptPath(int chunk) {
+		return new Path(this.outputDir, String.format(".%s-%06d.%s.sam", this.name, chunk, this.attempt));
+	}
+
+	private void rename(Path source, Path target) throws IOException {
+
+		this.fs.delete(target, false);
+
+		if (!this.fs.rename(source, target)) {
+			throw new IOException("Could not rename " + source + " to " + target);
+		}
+	}
+
+	private void readRecord(Path recordPath, int chunk) throws IOException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(this.fs.open(recordPath), "UTF-8"));
+
+		try {
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("reads=")) {
+					this.committedReads.put(chunk, Long.parseLong(line.substring(6)));
+				}
+				else if (line.startsWith("stats=")) {
+					String[] values = line.substring(6).split(",");
+					long[] stats = new long[BwaJni.NUM_STATS];
+
+					for (int i = 0; i < Math.min(values.length, stats.length); i++) {
+						stats[i] = Long.parseLong(values[i]);
+					}
+
+					this.committedStats.put(chunk, stats);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		if (!this.committedReads.containsKey(chunk) || !this.committedStats.containsKey(chunk)) {
+			throw new IOException("Wrong checkpoint record " + recordPath);
+		}
+	}
+
+}
@@ -0,0 +1,453 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Queue of small chunks of the input, kept as files in HDFS, from which the
+ * mappers take chunks to align until it is empty. The chunks are the splits
+ * of the input format of the job computed with a small split size, so the
+ * mappers that get slow reads take fewer chunks than the others instead of
+ * being left alone at the end of the job.
+ *
+ * Each chunk is a file in the "pending" directory with its split. A mapper
+ * takes it by renaming it to the "claimed" directory with the name of its
+ * attempt, which only one mapper can do, and moves it to the "done"
+ * directory once its output is written. While a mapper aligns a chunk, it
+ * updates the modification time of the claimed file, and chunks not updated
+ * during the lease time are taken by other mappers, as their attempt failed.
+ * The queue is empty when there are no pending nor claimed chunks.
+ *
+ * @author José M. Abuín
+ */
+public class ChunkQueue {
+
+	private static final Log LOG = LogFactory.getLog(ChunkQueue.class);
+
+	public static final String DIR = "queueDir";
+	public static final String INPUT_FORMAT = "queueInputFormat";
+
+	private static final String PENDING = "pending";
+	private static final String CLAIMED = "claimed";
+	private static final String DONE = "done";
+
+	private FileSystem fs;
+	private Path dir;
+	private String attempt;
+	private long leaseMillis;
+	private long pollMillis;
+
+	private Configuration conf;
+
+	// Pending chunks of the last listing. Chunks taken by other mappers are skipped when the rename fails
+	private List<FileStatus> pending = new ArrayList<FileStatus>();
+	private Random random;
+
+	private Chunk current = null;
+	private Timer heartbeat = null;
+
+	/**
+	 * A chunk taken from the queue
+	 */
+	public static class Chunk {
+
+		private String name;
+		private InputSplit split;
+		private Path claimedPath;
+		private boolean taken;
+
+		private Chunk(String name, InputSplit split, Path claimedPath, boolean taken) {
+			this.name = name;
+			this.split = split;
+			this.claimedPath = claimedPath;
+			this.taken = taken;
+		}
+
+		/**
+		 * @return The name of the chunk, as "Chunk000012", which sorts in the order of the input
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return The split to read
+		 */
+		public InputSplit getSplit() {
+			return this.split;
+		}
+
+		/**
+		 * @return Whether the chunk was taken from a failed attempt
+		 */
+		public boolean isTaken() {
+			return this.taken;
+		}
+	}
+
+	/**
+	 * Opens the queue for a mapper
+	 *
+	 * @param conf Job configuration
+	 * @param dir Directory of the queue
+	 * @param attempt Id of the task attempt, which owns the chunks it claims
+	 * @param leaseMillis Time after which a claimed chunk not updated is taken by other mappers
+	 * @param pollMillis Time between checks of the chunks claimed by other mappers, once there are no pending chunks
+	 * @throws IOException If the file system could not be opened
+	 */
+	public ChunkQueue(Configuration conf, Path dir, String attempt, long leaseMillis, long pollMillis) throws IOException {
+
+		this.conf = conf;
+		this.fs = dir.getFileSystem(conf);
+		this.dir = dir;
+		this.attempt = attempt;
+		this.leaseMillis = leaseMillis;
+		this.pollMillis = pollMillis;
+
+		// Mappers start at different chunks of the listing, so they do not all try to rename the same ones
+		this.random = new Random(attempt.hashCode());
+	}
+
+	/**
+	 * Fills the queue with the splits of the input format of a job, and makes the job read from the queue
+	 *
+	 * @param job The job, with its input paths and input format already set
+	 * @param dir Directory of the queue. A queue left there by a previous run is replaced
+	 * @param chunkBytes Size of the chunks
+	 * @return The number of chunks
+	 * @throws IOException If the splits could not be computed or written
+	 * @throws InterruptedException If the splits could not be computed
+	 */
+	public static int create(Job job, Path dir, long chunkBytes) throws IOException, InterruptedException {
+
+		Configuration conf = job.getConfiguration();
+		FileSystem fs = dir.getFileSystem(conf);
+
+		// The splits are computed with the input format of the job, on a copy of its configuration
+		Job chunkJob = Job.getInstance(new Configuration(conf));
+
+		chunkJob.getConfiguration().setLong("mapreduce.input.fileinputformat.split.maxsize", chunkBytes);
+		chunkJob.getConfiguration().setLong("mapreduce.input.fileinputformat.split.minsize", 1);
+
+		Class<? extends InputFormat<?, ?>> formatClass;
+
+		try {
+			formatClass = job.getInputFormatClass();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+
+		List<InputSplit> splits = ReflectionUtils.newInstance(formatClass, conf).getSplits(chunkJob);
+
+		fs.delete(dir, true);
+
+		Path pendingDir = new Path(dir, PENDING);
+
+		fs.mkdirs(pendingDir);
+		fs.mkdirs(new Path(dir, CLAIMED));
+		fs.mkdirs(new Path(dir, DONE));
+
+		for (int i = 0; i < splits.size(); i++) {
+			InputSplit split = splits.get(i);
+
+			Path tmpPath = new Path(dir, "." + getName(i));
+			FSDataOutputStream out = fs.create(tmpPath, true);
+
+			try {
+				Text.writeString(out, split.getClass().getName());
+				((Writable) split).write(out);
+			}
+			finally {
+				out.close();
+			}
+
+			// Chunks appear in the queue complete
+			if (!fs.rename(tmpPath, new Path(pendingDir, getName(i)))) {
+				throw new IOException("Could not add " + tmpPath + " to the queue");
+			}
+		}
+
+		conf.set(DIR, dir.toString());
+		conf.set(INPUT_FORMAT, formatClass.getName());
+
+		job.setInputFormatClass(ChunkQueueInputFormat.class);
+
+		return splits.size();
+	}
+
+	/**
+	 * @param conf Job configuration
+	 * @param dir Directory of the queue
+	 * @return The names of the chunks in the done directory, in the order of the input
+	 * @throws IOException If the directory could not be listed
+	 */
+	public static List<String> getDone(Configuration conf, Path dir) throws IOException {
+
+		List<String> names = new ArrayList<String>();
+
+		for (FileStatus status : dir.getFileSystem(conf).listStatus(new Path(dir, DONE))) {
+			names.add(status.getPath().getName());
+		}
+
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+
+		return Arrays.asList(sorted);
+	}
+
+	/**
+	 * @param conf Job configuration
+	 * @param dir Directory of the queue
+	 * @return Whether there are no pending nor claimed chunks
+	 * @throws IOException If the directories could not be listed
+	 */
+	public static boolean isEmpty(Configuration conf, Path dir) throws IOException {
+
+		FileSystem fs = dir.getFileSystem(conf);
+
+		return (fs.listStatus(new Path(dir, PENDING)).length == 0) && (fs.listStatus(new Path(dir, CLAIMED)).length == 0);
+	}
+
+	/**
+	 * Takes the next chunk. When there are no pending chunks, it waits for the chunks claimed by other mappers to be
+	 * done, and takes the ones whose lease expires
+	 *
+	 * @return The chunk, or null if the queue is empty
+	 * @throws IOException If the queue could not be read
+	 * @throws InterruptedException If the task is interrupted while waiting
+	 */
+	public Chunk claim() throws IOException, InterruptedException {
+
+		while (true) {
+			Chunk chunk = this.claimPending();
+
+			if (chunk == null) {
+				chunk = this.claimExpired();
+			}
+
+			if (chunk != null) {
+				this.startHeartbeat(chunk);
+				return chunk;
+			}
+
+			if (this.fs.listStatus(new Path(this.dir, CLAIMED)).length == 0 && this.fs.listStatus(new Path(this.dir, PENDING)).length == 0) {
+				return null;
+			}
+
+			Thread.sleep(this.pollMillis);
+		}
+	}
+
+	/**
+	 * Moves a chunk to the done directory, once its output is written
+	 *
+	 * @param chunk The chunk
+	 * @return False if another mapper took the chunk because its lease expired. The output is the same
+	 * @throws IOException If the chunk could not be moved
+	 */
+	public boolean finish(Chunk chunk) throws IOException {
+
+		this.stopHeartbeat();
+
+		if (this.fs.rename(chunk.claimedPath, new Path(new Path(this.dir, DONE), chunk.name))) {
+			return true;
+		}
+
+		if (this.fs.exists(chunk.claimedPath)) {
+			throw new IOException("Could not move " + chunk.claimedPath + " to the done chunks");
+		}
+
+		LOG.warn("Chunk " + chunk.name + " was taken by another mapper before it was finished");
+
+		return false;
+	}
+
+	/**
+	 * Stops updating the lease of the current chunk. The chunk is taken by other mappers once the lease expires
+	 */
+	public void close() {
+		this.stopHeartbeat();
+	}
+
+	private static String getName(int chunk) {
+		return String.format("Chunk%06d", chunk);
+	}
+
+	private Chunk claimPending() throws IOException {
+
+		Path pendingDir = new Path(this.dir, PENDING);
+
+		for (int listing = 0; listing < 2; listing++) {
+			if (this.pending.isEmpty()) {
+				this.pending.addAll(Arrays.asList(this.fs.listStatus(pendingDir)));
+
+				if (this.pending.isEmpty()) {
+					return null;
+				}
+
+				// The listing is rotated, keeping the order of the input after the first chunk
+				int start = this.random.nextInt(this.pending.size());
+				List<FileStatus> rotated = new ArrayList<FileStatus>(this.pending.subList(start, this.pending.size()));
+
+				rotated.addAll(this.pending.subList(0, start));
+				this.pending = rotated;
+			}
+
+			while (!this.pending.isEmpty()) {
+				Chunk chunk = this.take(this.pending.remove(0).getPath(), false);
+
+				if (chunk != null) {
+					return chunk;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private Chunk claimExpired() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		for (FileStatus status : this.fs.listStatus(new Path(this.dir, CLAIMED))) {
+			if (now - status.getModificationTime() > this.leaseMillis) {
+				Chunk chunk = this.take(status.getPath(), true);
+
+				if (chunk != null) {
+					LOG.warn("Chunk " + chunk.name + " taken from " + status.getPath().getName() + ", not updated for "
+							+ ((now - status.getModificationTime()) / 1000) + " seconds");
+					return chunk;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Renames a chunk to the claimed directory with the name of this attempt, and reads its split
+	 *
+	 * @return The chunk, or null if another mapper renamed it first
+	 */
+	private Chunk take(Path path, boolean taken) throws IOException {
+
+		String fileName = path.getName();
+		String name = taken ? fileName.substring(0, fileName.indexOf('.')) : fileName;
+
+		Path claimedPath = new Path(new Path(this.dir, CLAIMED), name + "." + this.attempt);
+
+		// Some file systems fail instead of returning false when another mapper renamed the chunk first
+		try {
+			if (!this.fs.rename(path, claimedPath)) {
+				return null;
+			}
+
+			// The rename keeps the old modification time, which would make the chunk look expired
+			this.fs.setTimes(claimedPath, System.currentTimeMillis(), -1);
+		}
+		catch (FileNotFoundException e) {
+			return null;
+		}
+
+		FSDataInputStream in = this.fs.open(claimedPath);
+
+		try {
+			Class<? extends InputSplit> splitClass = this.conf.getClassByName(Text.readString(in)).asSubclass(InputSplit.class);
+
+			InputSplit split = ReflectionUtils.newInstance(splitClass, this.conf);
+			((Writable) split).readFields(in);
+
+			return new Chunk(name, split, claimedPath, taken);
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private synchronized void startHeartbeat(Chunk chunk) {
+
+		this.current = chunk;
+
+		if (this.heartbeat == null) {
+			this.heartbeat = new Timer("ChunkQueue heartbeat", true);
+
+			long period = Math.max(1000, this.leaseMillis / 4);
+
+			this.heartbeat.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					touch();
+				}
+			}, period, period);
+		}
+	}
+
+	private synchronized void touch() {
+
+		if (this.current == null) {
+			return;
+		}
+
+		try {
+			this.fs.setTimes(this.current.claimedPath, System.currentTimeMillis(), -1);
+		}
+		catch (IOException e) {
+			LOG.warn("Could not update the lease of " + this.current.claimedPath + ": " + e.toString());
+		}
+	}
+
+	private synchronized void stopHeartbeat() {
+
+		this.current = null;
+
+		if (this.heartbeat != null) {
+			this.heartbeat.cancel();
+			this.heartbeat = null;
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Input format of the jobs that read from a ChunkQueue. It gives one empty
+ * split to each mapper, whose number is set in "queueWorkers", and the
+ * mappers read the chunks they take from the queue with the input format of
+ * the chunks, stored by ChunkQueue in "queueInputFormat".
+ *
+ * @author José M. Abuín
+ */
+public class ChunkQueueInputFormat extends InputFormat<LongWritable, Text> {
+
+	public static final String WORKERS = "queueWorkers";
+
+	/**
+	 * Split of a mapper of the queue, with no data of its own
+	 */
+	public static class WorkerSplit extends InputSplit implements Writable {
+
+		private int worker;
+
+		public WorkerSplit() {
+		}
+
+		public WorkerSplit(int worker) {
+			this.worker = worker;
+		}
+
+		@Override
+		public long getLength() {
+			return 0;
+		}
+
+		@Override
+		public String[] getLocations() {
+			return new String[0];
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(this.worker);
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			this.worker = in.readInt();
+		}
+
+		@Override
+		public String toString() {
+			return "Queue worker " + this.worker;
+		}
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) {
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		int workers = Math.max(1, job.getConfiguration().getInt(WORKERS, 1));
+
+		for (int i = 0; i < workers; i++) {
+			splits.add(new WorkerSplit(i));
+		}
+
+		return splits;
+	}
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+
+		// The records come from the chunks of the queue, read by the mapper
+		return new RecordReader<LongWritable, Text>() {
+
+			@Override
+			public void initialize(InputSplit split, TaskAttemptContext context) {
+			}
+
+			@Override
+			public boolean nextKeyValue() {
+				return false;
+			}
+
+			@Override
+			public LongWritable getCurrentKey() {
+				return null;
+			}
+
+			@Override
+			public Text getCurrentValue() {
+				return null;
+			}
+
+			@Override
+			public float getProgress() {
+				return 0;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+}
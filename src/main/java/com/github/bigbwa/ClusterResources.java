@@ -0,0 +1,174 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.NodeState;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+
+/**
+ * Memory and cores of the nodes where the tasks can run, and the limits of
+ * the YARN scheduler for each container. It is read from the ResourceManager,
+ * or given by hand with the "clusterNodes", "clusterNodeMemoryMB" and
+ * "clusterNodeVcores" properties, which describe a cluster of equal nodes.
+ *
+ * @author José M. Abuín
+ */
+public class ClusterResources {
+
+	private ArrayList<Integer> nodeMemory = new ArrayList<Integer>();
+	private ArrayList<Integer> nodeVcores = new ArrayList<Integer>();
+
+	private int minAllocationMB;
+	private int maxAllocationMB;
+	private int maxAllocationVcores;
+
+	/**
+	 * @param minAllocationMB Memory of the smallest container. Containers get multiples of it
+	 * @param maxAllocationMB Memory of the biggest container
+	 * @param maxAllocationVcores Cores of the biggest container
+	 */
+	public ClusterResources(int minAllocationMB, int maxAllocationMB, int maxAllocationVcores) {
+		this.minAllocationMB = Math.max(1, minAllocationMB);
+		this.maxAllocationMB = maxAllocationMB;
+		this.maxAllocationVcores = maxAllocationVcores;
+	}
+
+	/**
+	 * Reads the scheduler limits from the configuration, and the nodes from the "cluster*" properties or,
+	 * if they are not set, from the ResourceManager
+	 *
+	 * @param conf Job configuration
+	 * @return The resources of the cluster
+	 * @throws IOException If the ResourceManager could not be asked
+	 */
+	public static ClusterResources fromConfiguration(Configuration conf) throws IOException {
+
+		ClusterResources cluster = new ClusterResources(
+				conf.getInt(YarnConfiguration.RM_SCHEDULER_MINIMUM_ALLOCATION_MB, YarnConfiguration.DEFAULT_RM_SCHEDULER_MINIMUM_ALLOCATION_MB),
+				conf.getInt(YarnConfiguration.RM_SCHEDULER_MAXIMUM_ALLOCATION_MB, YarnConfiguration.DEFAULT_RM_SCHEDULER_MAXIMUM_ALLOCATION_MB),
+				conf.getInt(YarnConfiguration.RM_SCHEDULER_MAXIMUM_ALLOCATION_VCORES, YarnConfiguration.DEFAULT_RM_SCHEDULER_MAXIMUM_ALLOCATION_VCORES));
+
+		int numNodes = conf.getInt("clusterNodes", 0);
+
+		if (numNodes > 0) {
+			for (int i = 0; i < numNodes; i++) {
+				cluster.addNode(conf.getInt("clusterNodeMemoryMB", YarnConfiguration.DEFAULT_NM_PMEM_MB),
+						conf.getInt("clusterNodeVcores", YarnConfiguration.DEFAULT_NM_VCORES));
+			}
+
+			return cluster;
+		}
+
+		YarnClient yarnClient = YarnClient.createYarnClient();
+
+		try {
+			yarnClient.init(conf);
+			yarnClient.start();
+
+			for (NodeReport node : yarnClient.getNodeReports(NodeState.RUNNING)) {
+				cluster.addNode(node.getCapability().getMemory(), node.getCapability().getVirtualCores());
+			}
+		}
+		catch (YarnException e) {
+			throw new IOException("Could not get the nodes from the ResourceManager", e);
+		}
+		finally {
+			yarnClient.stop();
+		}
+
+		return cluster;
+	}
+
+	/**
+	 * @param memoryMB Memory of the node available for containers
+	 * @param vcores Cores of the node available for containers
+	 */
+	public void addNode(int memoryMB, int vcores) {
+		this.nodeMemory.add(memoryMB);
+		this.nodeVcores.add(vcores);
+	}
+
+	/**
+	 * @return The number of nodes
+	 */
+	public int getNumNodes() {
+		return this.nodeMemory.size();
+	}
+
+	/**
+	 * @param node Number of the node
+	 * @return The memory of the node available for containers
+	 */
+	public int getNodeMemoryMB(int node) {
+		return this.nodeMemory.get(node);
+	}
+
+	/**
+	 * @param node Number of the node
+	 * @return The cores of the node available for containers
+	 */
+	public int getNodeVcores(int node) {
+		return this.nodeVcores.get(node);
+	}
+
+	/**
+	 * @return The memory of the smallest container
+	 */
+	public int getMinAllocationMB() {
+		return this.minAllocationMB;
+	}
+
+	/**
+	 * @return The memory of the biggest container
+	 */
+	public int getMaxAllocationMB() {
+		return this.maxAllocationMB;
+	}
+
+	/**
+	 * @return The cores of the biggest container
+	 */
+	public int getMaxAllocationVcores() {
+		return this.maxAllocationVcores;
+	}
+
+	@Override
+	public String toString() {
+
+		long memory = 0;
+		long vcores = 0;
+
+		for (int i = 0; i < this.getNumNodes(); i++) {
+			memory += this.getNodeMemoryMB(i);
+			vcores += this.getNodeVcores(i);
+		}
+
+		return this.getNumNodes() + " nodes, " + vcores + " vcores, " + memory + " MB. Containers from "
+				+ this.minAllocationMB + " MB to " + this.maxAllocationMB + " MB and " + this.maxAllocationVcores + " vcores";
+	}
+
+}
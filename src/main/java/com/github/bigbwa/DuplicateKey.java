@@ -0,0 +1,305 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Key of the templates (the records of a read or a pair) in the duplicate
+ * marking. Templates are grouped by library and by the unclipped 5'
+ * position and strand of their ends, and in each group they are sorted by
+ * score, so the reducer gets the best one first. Pairs are keyed by both
+ * ends, lower end first, and reads whose mate is not mapped by their only
+ * end. Each end of a pair is also sent as a marker to the key of a single
+ * read, where markers go first, as single reads at the position of a pair
+ * are always duplicates. Unmapped templates are groups of their own.
+ *
+ * @author José M. Abuín
+ */
+public class DuplicateKey implements WritableComparable<DuplicateKey> {
+
+	public static final byte PAIR = 0;
+	public static final byte FRAGMENT = 1;
+	public static final byte UNMAPPED = 2;
+
+	private byte type;
+	private String library = "";
+
+	private String reference1 = "";
+	private int position1;
+	private boolean reverse1;
+
+	private String reference2 = "";
+	private int position2;
+	private boolean reverse2;
+
+	private boolean marker;
+	private int score;
+	private String name = "";
+
+	public DuplicateKey() {
+	}
+
+	/**
+	 * Sets the key of a pair. The ends are sorted, so both orders give the same key
+	 */
+	public void setPair(String library, String reference1, int position1, boolean reverse1,
+			String reference2, int position2, boolean reverse2, int score, String name) {
+
+		boolean swap = compareEnds(reference1, position1, reverse1, reference2, position2, reverse2) > 0;
+
+		this.type = PAIR;
+		this.library = library;
+
+		this.reference1 = swap ? reference2 : reference1;
+		this.position1 = swap ? position2 : position1;
+		this.reverse1 = swap ? reverse2 : reverse1;
+
+		this.reference2 = swap ? reference1 : reference2;
+		this.position2 = swap ? position1 : position2;
+		this.reverse2 = swap ? reverse1 : reverse2;
+
+		this.marker = false;
+		this.score = score;
+		this.name = name;
+	}
+
+	/**
+	 * Sets the key of a single read, or of the marker of an end of a pair
+	 */
+	public void setFragment(String library, String reference, int position, boolean reverse, boolean marker, int score, String name) {
+
+		this.type = FRAGMENT;
+		this.library = library;
+
+		this.reference1 = reference;
+		this.position1 = position;
+		this.reverse1 = reverse;
+
+		this.reference2 = "";
+		this.position2 = 0;
+		this.reverse2 = false;
+
+		this.marker = marker;
+		this.score = score;
+		this.name = name;
+	}
+
+	/**
+	 * Sets the key of a template without mapped reads
+	 */
+	public void setUnmapped(String name) {
+
+		this.type = UNMAPPED;
+		this.library = "";
+
+		this.reference1 = "";
+		this.position1 = 0;
+		this.reverse1 = false;
+
+		this.reference2 = "";
+		this.position2 = 0;
+		this.reverse2 = false;
+
+		this.marker = false;
+		this.score = 0;
+		this.name = name;
+	}
+
+	/**
+	 * @return PAIR, FRAGMENT or UNMAPPED
+	 */
+	public byte getType() {
+		return this.type;
+	}
+
+	/**
+	 * @return Whether the key is the marker of an end of a pair, with no records
+	 */
+	public boolean isMarker() {
+		return this.marker;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(this.type);
+		Text.writeString(out, this.library);
+		Text.writeString(out, this.reference1);
+		out.writeInt(this.position1);
+		out.writeBoolean(this.reverse1);
+		Text.writeString(out, this.reference2);
+		out.writeInt(this.position2);
+		out.writeBoolean(this.reverse2);
+		out.writeBoolean(this.marker);
+		out.writeInt(this.score);
+		Text.writeString(out, this.name);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		this.type = in.readByte();
+		this.library = Text.readString(in);
+		this.reference1 = Text.readString(in);
+		this.position1 = in.readInt();
+		this.reverse1 = in.readBoolean();
+		this.reference2 = Text.readString(in);
+		this.position2 = in.readInt();
+		this.reverse2 = in.readBoolean();
+		this.marker = in.readBoolean();
+		this.score = in.readInt();
+		this.name = Text.readString(in);
+	}
+
+	/**
+	 * Compares the fields that make the groups of duplicates
+	 */
+	public int compareGroup(DuplicateKey other) {
+
+		if (this.type != other.type) {
+			return (this.type < other.type) ? -1 : 1;
+		}
+
+		if (this.type == UNMAPPED) {
+			return this.name.compareTo(other.name);
+		}
+
+		int result = this.library.compareTo(other.library);
+
+		if (result == 0) {
+			result = compareEnds(this.reference1, this.position1, this.reverse1, other.reference1, other.position1, other.reverse1);
+		}
+
+		if (result == 0) {
+			result = compareEnds(this.reference2, this.position2, this.reverse2, other.reference2, other.position2, other.reverse2);
+		}
+
+		return result;
+	}
+
+	@Override
+	public int compareTo(DuplicateKey other) {
+
+		int result = this.compareGroup(other);
+
+		if (result != 0) {
+			return result;
+		}
+
+		// Markers, then higher scores, then names, so the choice does not depend on the order of the input
+		if (this.marker != other.marker) {
+			return this.marker ? -1 : 1;
+		}
+
+		if (this.score != other.score) {
+			return (this.score > other.score) ? -1 : 1;
+		}
+
+		return this.name.compareTo(other.name);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return (other instanceof DuplicateKey) && (this.compareTo((DuplicateKey) other) == 0);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * this.groupHashCode() + this.name.hashCode();
+	}
+
+	/**
+	 * @return The hash code of the fields that make the groups of duplicates
+	 */
+	public int groupHashCode() {
+
+		if (this.type == UNMAPPED) {
+			return this.name.hashCode();
+		}
+
+		int hash = this.type;
+
+		hash = 31 * hash + this.library.hashCode();
+		hash = 31 * hash + this.reference1.hashCode();
+		hash = 31 * hash + this.position1;
+		hash = 31 * hash + (this.reverse1 ? 1 : 0);
+		hash = 31 * hash + this.reference2.hashCode();
+		hash = 31 * hash + this.position2;
+		hash = 31 * hash + (this.reverse2 ? 1 : 0);
+
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return this.type + ":" + this.library + ":" + this.reference1 + ":" + this.position1 + (this.reverse1 ? "-" : "+")
+				+ ":" + this.reference2 + ":" + this.position2 + (this.reverse2 ? "-" : "+") + (this.marker ? ":marker" : "")
+				+ ":" + this.score + ":" + this.name;
+	}
+
+	private static int compareEnds(String reference1, int position1, boolean reverse1, String reference2, int position2, boolean reverse2) {
+
+		int result = reference1.compareTo(reference2);
+
+		if (result != 0) {
+			return result;
+		}
+
+		if (position1 != position2) {
+			return (position1 < position2) ? -1 : 1;
+		}
+
+		return (reverse1 == reverse2) ? 0 : (reverse1 ? 1 : -1);
+	}
+
+	/**
+	 * Groups the keys of the same duplicates in one call of the reducer
+	 */
+	public static class GroupComparator extends WritableComparator {
+
+		public GroupComparator() {
+			super(DuplicateKey.class, true);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public int compare(WritableComparable a, WritableComparable b) {
+			return ((DuplicateKey) a).compareGroup((DuplicateKey) b);
+		}
+	}
+
+	/**
+	 * Sends the keys of the same duplicates to the same reducer
+	 */
+	public static class GroupPartitioner<V> extends Partitioner<DuplicateKey, V> {
+
+		@Override
+		public int getPartition(DuplicateKey key, V value, int numPartitions) {
+			return (key.groupHashCode() & Integer.MAX_VALUE) % numPartitions;
+		}
+	}
+
+}
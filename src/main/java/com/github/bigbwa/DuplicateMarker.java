@@ -0,0 +1,503 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+/**
+ * Job that marks the duplicates in the SAM outputs of the alignment, run
+ * after it. As Picard MarkDuplicates, the mappers read each output file
+ * whole, take the records of each read or pair (a template) together, and
+ * key them by library and by the unclipped 5' position and strand of their
+ * ends (see DuplicateKey). Each reducer gets the templates of its keys with
+ * the best one first, by the sum of its base qualities of at least 15, and
+ * sets the flag 0x400 in the mapped records of the others.
+ *
+ * The reducers write their records after the header of the alignment, as
+ * "Output<reducer>.sam" or ".bam" in the output directory, the same as the
+ * mappers of the alignment do. They are written in the work directory of
+ * each attempt, so only the files of the committed attempts are kept. With "useReducer", the header goes to its
+ * own file, so the outputs can be joined by SamOutputMerger.
+ *
+ * @author José M. Abuín
+ */
+public class DuplicateMarker {
+
+	private static final Log LOG = LogFactory.getLog(DuplicateMarker.class);
+
+	public static final String HEADER = "markDuplicatesHeader";
+
+	// Lowest base quality added to the score of a template, as in Picard
+	private static final int MIN_SCORE_QUALITY = 15;
+
+	/**
+	 * Creates the job that marks the duplicates in the SAM files of the alignment
+	 *
+	 * @param conf Configuration of the alignment. "bam" and "useReducer" choose the output as in the alignment
+	 * @param input Output directory of the alignment
+	 * @param output Output directory of the duplicate marking
+	 * @param numReducers Number of reducers
+	 * @return The job
+	 * @throws IOException If the alignment has no SAM files
+	 */
+	public static Job createJob(Configuration conf, Path input, Path output, int numReducers) throws IOException {
+
+		Job job = Job.getInstance(conf, "BigBWA_MarkDuplicates_"+output);
+		Configuration jobConf = job.getConfiguration();
+
+		FileSystem fs = input.getFileSystem(conf);
+		Path outputs = new Path(input, "{Output,Chunk}*.sam");
+		FileStatus[] files = fs.globStatus(outputs);
+
+		if ((files == null) || (files.length == 0)) {
+			throw new IOException("No SAM files found in "+input);
+		}
+
+		// The alignment outputs share the header
+		jobConf.set(HEADER, files[0].getPath().toString());
+		jobConf.set("outputGenomics", output.toString());
+
+		job.setJarByClass(DuplicateMarker.class);
+
+		job.setInputFormatClass(SamInputFormat.class);
+		job.setMapperClass(MarkMapper.class);
+		job.setMapOutputKeyClass(DuplicateKey.class);
+		job.setMapOutputValueClass(Text.class);
+
+		job.setPartitionerClass(DuplicateKey.GroupPartitioner.class);
+		job.setGroupingComparatorClass(DuplicateKey.GroupComparator.class);
+
+		job.setReducerClass(MarkReducer.class);
+		job.setNumReduceTasks(numReducers);
+
+		// The reducers write their files by themselves
+		LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(Text.class);
+
+		FileInputFormat.addInputPath(job, outputs);
+		FileOutputFormat.setOutputPath(job, output);
+
+		return job;
+	}
+
+	/**
+	 * @param outputDir Output directory of the duplicate marking
+	 * @param reducer Number of the reducer
+	 * @param bam Whether the output is BAM
+	 * @return The path of the output of the reducer
+	 */
+	public static Path getOutputPath(String outputDir, int reducer, boolean bam) {
+		return new Path(outputDir, "Output"+reducer+(bam ? ".bam" : ".sam"));
+	}
+
+	/**
+	 * SAM files read whole by each mapper, so the records of a template are never separated
+	 */
+	public static class SamInputFormat extends TextInputFormat {
+
+		@Override
+		protected boolean isSplitable(JobContext context, Path file) {
+			return false;
+		}
+	}
+
+	/**
+	 * Mapper that keys the templates. The records of a template are consecutive in the output of bwa
+	 */
+	public static class MarkMapper extends Mapper<LongWritable, Text, DuplicateKey, Text> {
+
+		// Library of each read group, from the "@RG" lines of the header
+		private HashMap<String, String> libraries = new HashMap<String, String>();
+
+		private String templateName = null;
+		private List<String[]> template = new ArrayList<String[]>();
+		private StringBuilder records = new StringBuilder();
+
+		private DuplicateKey key = new DuplicateKey();
+		private Text value = new Text();
+
+		@Override
+		public void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+
+			String text = line.toString();
+
+			if (text.startsWith("@")) {
+				if (text.startsWith("@RG\t")) {
+					this.addReadGroup(text);
+				}
+
+				return;
+			}
+
+			String[] fields = text.split("\t");
+
+			if (fields.length < 11) {
+				LOG.warn("Wrong SAM record: "+text);
+				return;
+			}
+
+			if (!fields[0].equals(this.templateName)) {
+				this.writeTemplate(context);
+				this.templateName = fields[0];
+			}
+
+			this.template.add(fields);
+			this.records.append(text).append('\n');
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			this.writeTemplate(context);
+		}
+
+		private void addReadGroup(String line) {
+
+			String id = null;
+			String library = null;
+
+			for (String field : line.split("\t")) {
+				if (field.startsWith("ID:")) {
+					id = field.substring(3);
+				}
+				else if (field.startsWith("LB:")) {
+					library = field.substring(3);
+				}
+			}
+
+			if ((id != null) && (library != null)) {
+				this.libraries.put(id, library);
+			}
+		}
+
+		/**
+		 * Sends the records of the current template with its key, and for pairs, the markers of its ends
+		 */
+		private void writeTemplate(Context context) throws IOException, InterruptedException {
+
+			if (this.template.isEmpty()) {
+				return;
+			}
+
+			// Primary records of the mapped reads, and the score of the template
+			String[] end1 = null;
+			String[] end2 = null;
+			int score = 0;
+
+			for (String[] fields : this.template) {
+				int flag = Integer.parseInt(fields[1]);
+
+				if ((flag & 0x900) == 0) {
+					score += getScore(fields[10]);
+
+					if ((flag & 0x4) == 0) {
+						if (end1 == null) {
+							end1 = fields;
+						}
+						else {
+							end2 = fields;
+						}
+					}
+				}
+			}
+
+			this.value.set(this.records.toString());
+
+			if (end1 == null) {
+				this.key.setUnmapped(this.templateName);
+				context.write(this.key, this.value);
+			}
+			else if (end2 == null) {
+				this.key.setFragment(this.getLibrary(end1), end1[2], getUnclippedStart(end1), isReverse(end1), false, score, this.templateName);
+				context.write(this.key, this.value);
+			}
+			else {
+				String library = this.getLibrary(end1);
+
+				this.key.setPair(library, end1[2], getUnclippedStart(end1), isReverse(end1),
+						end2[2], getUnclippedStart(end2), isReverse(end2), score, this.templateName);
+				context.write(this.key, this.value);
+
+				Text empty = new Text();
+
+				this.key.setFragment(library, end1[2], getUnclippedStart(end1), isReverse(end1), true, 0, this.templateName);
+				context.write(this.key, empty);
+
+				this.key.setFragment(library, end2[2], getUnclippedStart(end2), isReverse(end2), true, 0, this.templateName);
+				context.write(this.key, empty);
+			}
+
+			this.template.clear();
+			this.records.setLength(0);
+		}
+
+		private String getLibrary(String[] fields) {
+
+			for (int i = 11; i < fields.length; i++) {
+				if (fields[i].startsWith("RG:Z:")) {
+					String library = this.libraries.get(fields[i].substring(5));
+
+					if (library != null) {
+						return library;
+					}
+				}
+			}
+
+			return "Unknown Library";
+		}
+	}
+
+	/**
+	 * @param quality The qualities of a read, in Phred+33
+	 * @return The sum of the qualities of at least 15
+	 */
+	static int getScore(String quality) {
+
+		int score = 0;
+
+		for (int i = 0; i < quality.length(); i++) {
+			int value = quality.charAt(i) - 33;
+
+			if (value >= MIN_SCORE_QUALITY) {
+				score += value;
+			}
+		}
+
+		return score;
+	}
+
+	/**
+	 * @param fields Fields of a mapped record
+	 * @return Whether the read is mapped to the reverse strand
+	 */
+	static boolean isReverse(String[] fields) {
+		return (Integer.parseInt(fields[1]) & 0x10) != 0;
+	}
+
+	/**
+	 * @param fields Fields of a mapped record
+	 * @return The 1-based position of the 5' end of the read, with its clipped bases: the start for the forward
+	 *         strand, and the end for the reverse strand
+	 */
+	static int getUnclippedStart(String[] fields) {
+
+		int position = Integer.parseInt(fields[3]);
+		String cigar = fields[5];
+
+		boolean reverse = isReverse(fields);
+
+		int length = 0;
+		int referenceLength = 0;
+		int leadingClip = 0;
+		int trailingClip = 0;
+		boolean aligned = false;
+
+		for (int i = 0; i < cigar.length(); i++) {
+			char c = cigar.charAt(i);
+
+			if (Character.isDigit(c)) {
+				length = length * 10 + (c - '0');
+				continue;
+			}
+
+			if ((c == 'S') || (c == 'H')) {
+				if (aligned) {
+					trailingClip += length;
+				}
+				else {
+					leadingClip += length;
+				}
+			}
+			else if ((c == 'M') || (c == 'D') || (c == 'N') || (c == '=') || (c == 'X')) {
+				referenceLength += length;
+				aligned = true;
+			}
+
+			length = 0;
+		}
+
+		if (reverse) {
+			return position + referenceLength - 1 + trailingClip;
+		}
+
+		return position - leadingClip;
+	}
+
+	/**
+	 * Reducer that marks the duplicates. The first template of a group is kept, unless it is a single read at the
+	 * position of a pair
+	 */
+	public static class MarkReducer extends Reducer<DuplicateKey, Text, NullWritable, Text> {
+
+		private OutputStream output;
+
+		private long duplicates = 0;
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+
+			Configuration conf = context.getConfiguration();
+			FileSystem fs = FileSystem.get(conf);
+
+			boolean bam = (conf.get("bam")!=null)&&(conf.get("bam").equals("true"));
+			boolean merge = (conf.get("useReducer")!=null)&&(conf.get("useReducer").equals("true"));
+
+			// The files go to the work directory of the attempt, and the committer moves them to the output directory
+			Path workPath = FileOutputFormat.getWorkOutputPath(context);
+			Path outputPath = getOutputPath(workPath.toString(), context.getTaskAttemptID().getTaskID().getId(), bam);
+			OutputStream out = fs.create(outputPath, true);
+
+			if (merge) {
+				out = new SamHeaderSplitter(fs.create(SamOutputMerger.getHeaderPath(outputPath), true), out);
+			}
+
+			if (bam) {
+				int threads = conf.getInt("bamThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+				out = new BamOutputStream(out, null, threads, conf.getInt("bamCompression", -1));
+			}
+
+			this.output = new BufferedOutputStream(out, 1 << 20);
+
+			// The header of the alignment
+			Path headerPath = new Path(conf.get(HEADER));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(headerPath.getFileSystem(conf).open(headerPath), "UTF-8"));
+
+			try {
+				String line;
+
+				while (((line = reader.readLine()) != null) && line.startsWith("@")) {
+					this.output.write((line + "\n").getBytes("UTF-8"));
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+
+		@Override
+		public void reduce(DuplicateKey key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+
+			boolean pairAtPosition = false;
+			boolean kept = false;
+
+			// The key changes with each value, and markers come first
+			for (Text value : values) {
+				if (key.isMarker()) {
+					pairAtPosition = true;
+					continue;
+				}
+
+				boolean duplicate = (key.getType() != DuplicateKey.UNMAPPED) && (kept || pairAtPosition);
+
+				kept = true;
+
+				this.writeTemplate(value, duplicate);
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException {
+
+			this.output.close();
+
+			context.getCounter(BwaCounters.DUPLICATE_READS).increment(this.duplicates);
+
+			LOG.info(this.duplicates+" reads marked as duplicates");
+		}
+
+		private void writeTemplate(Text value, boolean duplicate) throws IOException {
+
+			byte[] data = value.getBytes();
+			int length = value.getLength();
+
+			if (!duplicate) {
+				this.output.write(data, 0, length);
+				return;
+			}
+
+			int lineStart = 0;
+
+			while (lineStart < length) {
+				int lineEnd = lineStart;
+
+				while ((lineEnd < length) && (data[lineEnd] != '\n')) {
+					lineEnd++;
+				}
+
+				// The flag is the second field
+				int flagStart = lineStart;
+
+				while (data[flagStart] != '\t') {
+					flagStart++;
+				}
+
+				flagStart++;
+
+				int flagEnd = flagStart;
+				int flag = 0;
+
+				while (data[flagEnd] != '\t') {
+					flag = flag * 10 + (data[flagEnd++] - '0');
+				}
+
+				if ((flag & 0x4) == 0) {
+					if ((flag & 0x900) == 0) {
+						this.duplicates++;
+					}
+
+					flag |= 0x400;
+				}
+
+				this.output.write(data, lineStart, flagStart - lineStart);
+				this.output.write(String.valueOf(flag).getBytes("UTF-8"));
+				this.output.write(data, flagEnd, Math.min(lineEnd + 1, length) - flagEnd);
+
+				lineStart = lineEnd + 1;
+			}
+		}
+	}
+
+}
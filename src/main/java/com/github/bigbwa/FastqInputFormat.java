@@ -0,0 +1,157 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Input format for standard 4-line FASTQ files, so they do not need to be
+ * converted with Fq2FqBigData.py. Each value is a whole FASTQ record, with its
+ * four lines ended by '\n'. With paired reads, the file is read as interleaved
+ * and each value holds the two mates of a pair, one record after the other.
+ * BGZF compressed files (bgzip) are split as uncompressed ones, and other
+ * compressed files are read by a single mapper.
+ *
+ * Splits are cut by size, unless "splitBalance" is "reads" or "bases". Then
+ * uncompressed files are indexed with FastqOffsetIndex and the splits get
+ * the same number of records (pairs, with paired reads) or of bases. They
+ * are cut at record starts, so the mates of a pair are never separated.
+ *
+ * @author José M. Abuín
+ */
+public class FastqInputFormat extends FileInputFormat<LongWritable, Text> {
+
+	private static final Log LOG = LogFactory.getLog(FastqInputFormat.class);
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+		return new FastqRecordReader();
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+		Configuration conf = job.getConfiguration();
+		String balance = conf.get("splitBalance", "bytes");
+
+		if (!balance.equals("reads") && !balance.equals("bases")) {
+			return super.getSplits(job);
+		}
+
+		boolean byBases = balance.equals("bases");
+		boolean interleaved = (conf.get("paired") != null) && (conf.get("paired").equals("true"));
+
+		List<FileStatus> files = this.listStatus(job);
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+
+		for (FileStatus status : files) {
+			if (codecs.getCodec(status.getPath()) != null) {
+				LOG.warn("Compressed files can not be indexed. Splits are cut by size");
+				return super.getSplits(job);
+			}
+		}
+
+		Path[] paths = new Path[files.size()];
+		int numSplits = 0;
+
+		for (int i = 0; i < files.size(); i++) {
+			FileStatus status = files.get(i);
+			long splitSize = this.computeSplitSize(status.getBlockSize(), getMinSplitSize(job), getMaxSplitSize(job));
+
+			paths[i] = status.getPath();
+			numSplits += (int) ((status.getLen() + splitSize - 1) / splitSize);
+		}
+
+		FastqOffsetIndex[] indexes = FastqOffsetIndex.load(conf, paths, conf.getInt("splitIndexInterval", FastqOffsetIndex.DEFAULT_INTERVAL), interleaved);
+
+		// Each file gets a share of the splits as big as its share of the reads or bases
+		double total = 0;
+
+		for (FastqOffsetIndex index : indexes) {
+			total += byBases ? index.getNumBases() : index.getNumRecords();
+		}
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+
+		for (int i = 0; i < files.size(); i++) {
+			FileStatus status = files.get(i);
+			FileSystem fs = status.getPath().getFileSystem(conf);
+
+			double weight = byBases ? indexes[i].getNumBases() : indexes[i].getNumRecords();
+			int fileSplits = (int) Math.max(1, Math.round(numSplits * weight / Math.max(1, total)));
+
+			long[] firstRecords = FastqOffsetIndex.cut(new FastqOffsetIndex[] {indexes[i]}, fileSplits, byBases);
+
+			for (int j = 0; j < firstRecords.length; j++) {
+				long start = indexes[i].locate(firstRecords[j])[0];
+				long end = (j + 1 < firstRecords.length) ? indexes[i].locate(firstRecords[j + 1])[0] : status.getLen();
+
+				BlockLocation[] blocks = fs.getFileBlockLocations(status, start, 1);
+				String[] hosts = (blocks.length > 0) ? blocks[0].getHosts() : null;
+
+				splits.add(new FileSplit(status.getPath(), start, end - start, hosts));
+			}
+		}
+
+		LOG.info("Splits with the same number of " + (byBases ? "bases" : "reads") + ": " + splits.size());
+
+		return splits;
+	}
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path file) {
+
+		CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+
+		if (codec == null) {
+			return true;
+		}
+
+		// BGZF blocks can be decompressed independently. Other compressed files are read by a single mapper
+		try {
+			return BgzfInputStream.isBgzf(file.getFileSystem(context.getConfiguration()), file);
+		}
+		catch (IOException e) {
+			LOG.warn("Could not check if " + file + " is BGZF compressed: " + e.toString());
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,549 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+
+/**
+ * Sparse index of the records of a FASTQ file. It keeps the number of records
+ * and bases, and the position of some records (anchors) with the bases before
+ * them, so the position of any record is found by seeking to the anchor
+ * before it and skipping less than "interval" records.
+ *
+ * Files are indexed in chunks by a pool of threads. The anchors of a chunk are
+ * its first record and every "interval" records after it, and their ordinals
+ * are known once the records of the previous chunks have been counted. In an
+ * interleaved file each record is a pair, so anchors always start a pair.
+ *
+ * The index of a file can be saved next to it (a hidden file, so it is not
+ * taken as input), and it is used again while the file does not change.
+ *
+ * @author José M. Abuín
+ */
+public class FastqOffsetIndex {
+
+	private static final Log LOG = LogFactory.getLog(FastqOffsetIndex.class);
+
+	public static final int DEFAULT_INTERVAL = 1024;
+	public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+	private static final String SUFFIX = ".fqi";
+	private static final int MAGIC = 0x46514931; // "FQI1"
+
+	private Path file;
+	private long numRecords = 0;
+	private long numBases = 0;
+
+	private long[] anchorOrdinals = new long[0];
+	private long[] anchorOffsets = new long[0];
+	private long[] anchorBases = new long[0];
+
+	private FastqOffsetIndex(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return The indexed file
+	 */
+	public Path getFile() {
+		return this.file;
+	}
+
+	/**
+	 * @return The number of FASTQ records in the file
+	 */
+	public long getNumRecords() {
+		return this.numRecords;
+	}
+
+	/**
+	 * @return The number of bases of all the records in the file
+	 */
+	public long getNumBases() {
+		return this.numBases;
+	}
+
+	/**
+	 * @return The ordinals of the anchors, where splits can start
+	 */
+	public long[] getAnchorOrdinals() {
+		return this.anchorOrdinals;
+	}
+
+	/**
+	 * Finds the anchor to start reading a record from
+	 *
+	 * @param ordinal Number of the record, starting at 0
+	 * @return The position of the closest anchor before the record, and the number of records to skip from it
+	 */
+	public long[] locate(long ordinal) {
+
+		int anchor = Arrays.binarySearch(this.anchorOrdinals, ordinal);
+
+		if (anchor < 0) {
+			anchor = -anchor - 2;
+		}
+
+		return new long[] {this.anchorOffsets[anchor], ordinal - this.anchorOrdinals[anchor]};
+	}
+
+	/**
+	 * Bases of the records before a given one. It is exact at the anchors, and interpolated between them
+	 *
+	 * @param ordinal Number of the record, starting at 0
+	 * @return The number of bases of the records before it
+	 */
+	public long getBasesBefore(long ordinal) {
+
+		if (ordinal >= this.numRecords) {
+			return this.numBases;
+		}
+
+		int anchor = Arrays.binarySearch(this.anchorOrdinals, ordinal);
+
+		if (anchor >= 0) {
+			return this.anchorBases[anchor];
+		}
+
+		anchor = -anchor - 2;
+
+		long nextOrdinal = (anchor + 1 < this.anchorOrdinals.length) ? this.anchorOrdinals[anchor + 1] : this.numRecords;
+		long nextBases = (anchor + 1 < this.anchorOrdinals.length) ? this.anchorBases[anchor + 1] : this.numBases;
+
+		return this.anchorBases[anchor] + (nextBases - this.anchorBases[anchor]) * (ordinal - this.anchorOrdinals[anchor])
+				/ (nextOrdinal - this.anchorOrdinals[anchor]);
+	}
+
+	/**
+	 * Chooses where the splits of a file, or of several files read together, start. Splits start at anchors of the
+	 * first file and have about the same number of records or bases
+	 *
+	 * @param indexes Indexes of files with the same number of records, as the two files of paired reads
+	 * @param numSplits Number of splits wanted
+	 * @param byBases Whether the splits have the same number of bases, or of records
+	 * @return The ordinals of the first record of each split. There may be less splits than wanted
+	 */
+	public static long[] cut(FastqOffsetIndex[] indexes, int numSplits, boolean byBases) {
+
+		long[] anchors = indexes[0].anchorOrdinals;
+
+		if ((indexes[0].numRecords == 0) || (anchors.length == 0)) {
+			return new long[0];
+		}
+
+		double total = weight(indexes, indexes[0].numRecords, byBases);
+
+		ArrayList<Long> starts = new ArrayList<Long>();
+		starts.add(0L);
+
+		int anchor = 0;
+
+		for (int i = 1; i < numSplits; i++) {
+			double target = total * i / numSplits;
+
+			while ((anchor + 1 < anchors.length) && (weight(indexes, anchors[anchor + 1], byBases) <= target)) {
+				anchor++;
+			}
+
+			int chosen = anchor;
+
+			if ((anchor + 1 < anchors.length)
+					&& (weight(indexes, anchors[anchor + 1], byBases) - target < target - weight(indexes, anchors[anchor], byBases))) {
+				chosen = anchor + 1;
+			}
+
+			if (anchors[chosen] > starts.get(starts.size() - 1)) {
+				starts.add(anchors[chosen]);
+			}
+		}
+
+		long[] result = new long[starts.size()];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = starts.get(i);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Records or bases of all the files before a record
+	 */
+	private static long weight(FastqOffsetIndex[] indexes, long ordinal, boolean byBases) {
+
+		if (!byBases) {
+			return ordinal;
+		}
+
+		long bases = 0;
+
+		for (FastqOffsetIndex index : indexes) {
+			bases += index.getBasesBefore(ordinal);
+		}
+
+		return bases;
+	}
+
+	/**
+	 * Indexes several files in a single parallel pass
+	 *
+	 * @param conf The job configuration. "indexThreads" and "indexChunkMB" set the threads and the size of the chunks
+	 * @param files Uncompressed FASTQ files to index
+	 * @param interval Records between two anchors
+	 * @return The index of each file, in the same order
+	 * @throws IOException If a file could not be read
+	 */
+	public static FastqOffsetIndex[] build(Configuration conf, Path[] files, int interval) throws IOException {
+		return build(conf, files, interval, false);
+	}
+
+	/**
+	 * Indexes several files in a single parallel pass
+	 *
+	 * @param conf The job configuration. "indexThreads" and "indexChunkMB" set the threads and the size of the chunks
+	 * @param files Uncompressed FASTQ files to index
+	 * @param interval Records between two anchors
+	 * @param interleaved Whether the files have the two mates of each pair one after the other. Then records are pairs
+	 * @return The index of each file, in the same order
+	 * @throws IOException If a file could not be read
+	 */
+	public static FastqOffsetIndex[] build(Configuration conf, Path[] files, int interval, boolean interleaved) throws IOException {
+
+		int numThreads = conf.getInt("indexThreads", Runtime.getRuntime().availableProcessors());
+		long chunkSize = conf.getLong("indexChunkMB", DEFAULT_CHUNK_SIZE / (1024 * 1024)) * 1024 * 1024;
+
+		// Records are read as the mappers read them: one by one, or pairs in interleaved files
+		final Configuration chunkConf = new Configuration(conf);
+		chunkConf.set("paired", String.valueOf(interleaved));
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		List<List<Future<long[]>>> chunks = new ArrayList<List<Future<long[]>>>();
+
+		long startTime = System.currentTimeMillis();
+
+		try {
+			for (Path file : files) {
+				FileSystem fs = file.getFileSystem(conf);
+				long length = fs.getFileStatus(file).getLen();
+
+				List<Future<long[]>> fileChunks = new ArrayList<Future<long[]>>();
+
+				for (long start = 0; start < length; start += chunkSize) {
+					final FileSplit chunk = new FileSplit(file, start, Math.min(chunkSize, length - start), null);
+					final int chunkInterval = interval;
+
+					fileChunks.add(pool.submit(new Callable<long[]>() {
+						@Override
+						public long[] call() throws IOException {
+							return indexChunk(chunkConf, chunk, chunkInterval);
+						}
+					}));
+				}
+
+				chunks.add(fileChunks);
+			}
+
+			FastqOffsetIndex[] indexes = new FastqOffsetIndex[files.length];
+
+			for (int i = 0; i < files.length; i++) {
+				indexes[i] = new FastqOffsetIndex(files[i]);
+				indexes[i].merge(chunks.get(i), interval);
+			}
+
+			LOG.info("Indexed " + files.length + " FASTQ files in " + (System.currentTimeMillis() - startTime) + " ms");
+
+			return indexes;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the saved indexes of the files, and builds and saves the ones that are missing or older than their file.
+	 * "splitIndexSave" set to false disables saving them
+	 *
+	 * @param conf The job configuration
+	 * @param files Uncompressed FASTQ files to index
+	 * @param interval Records between two anchors
+	 * @param interleaved Whether the files have the two mates of each pair one after the other. Then records are pairs
+	 * @return The index of each file, in the same order
+	 * @throws IOException If a file could not be read
+	 */
+	public static FastqOffsetIndex[] load(Configuration conf, Path[] files, int interval, boolean interleaved) throws IOException {
+
+		boolean save = conf.getBoolean("splitIndexSave", true);
+
+		FastqOffsetIndex[] indexes = new FastqOffsetIndex[files.length];
+		ArrayList<Path> missing = new ArrayList<Path>();
+
+		for (int i = 0; i < files.length; i++) {
+			indexes[i] = read(conf, files[i], interval, interleaved);
+
+			if (indexes[i] == null) {
+				missing.add(files[i]);
+			}
+		}
+
+		if (missing.isEmpty()) {
+			LOG.info("Using the saved indexes of " + files.length + " FASTQ files");
+			return indexes;
+		}
+
+		FastqOffsetIndex[] built = build(conf, missing.toArray(new Path[missing.size()]), interval, interleaved);
+
+		for (int i = 0, j = 0; i < files.length; i++) {
+			if (indexes[i] == null) {
+				indexes[i] = built[j++];
+
+				if (save) {
+					indexes[i].write(conf, interval, interleaved);
+				}
+			}
+		}
+
+		return indexes;
+	}
+
+	/**
+	 * @param file A FASTQ file
+	 * @return The path where its index is saved
+	 */
+	public static Path getIndexPath(Path file) {
+		return new Path(file.getParent(), "." + file.getName() + SUFFIX);
+	}
+
+	/**
+	 * Saves the index next to its file. It is not an error if it can not be saved
+	 */
+	private void write(Configuration conf, int interval, boolean interleaved) {
+
+		Path indexPath = getIndexPath(this.file);
+
+		try {
+			FileSystem fs = this.file.getFileSystem(conf);
+			FileStatus status = fs.getFileStatus(this.file);
+
+			DataOutputStream out = fs.create(indexPath, true);
+
+			try {
+				out.writeInt(MAGIC);
+				out.writeLong(status.getLen());
+				out.writeLong(status.getModificationTime());
+				out.writeInt(interval);
+				out.writeBoolean(interleaved);
+				out.writeLong(this.numRecords);
+				out.writeLong(this.numBases);
+				out.writeInt(this.anchorOrdinals.length);
+
+				for (int i = 0; i < this.anchorOrdinals.length; i++) {
+					out.writeLong(this.anchorOrdinals[i]);
+					out.writeLong(this.anchorOffsets[i]);
+					out.writeLong(this.anchorBases[i]);
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			LOG.warn("Could not save the index of " + this.file + " in " + indexPath + ": " + e.toString());
+		}
+	}
+
+	/**
+	 * @return The saved index of the file, or null if there is none for the current file and the same options
+	 */
+	private static FastqOffsetIndex read(Configuration conf, Path file, int interval, boolean interleaved) {
+
+		Path indexPath = getIndexPath(file);
+
+		try {
+			FileSystem fs = file.getFileSystem(conf);
+
+			if (!fs.exists(indexPath)) {
+				return null;
+			}
+
+			FileStatus status = fs.getFileStatus(file);
+			DataInputStream in = fs.open(indexPath);
+
+			try {
+				if ((in.readInt() != MAGIC) || (in.readLong() != status.getLen()) || (in.readLong() != status.getModificationTime())
+						|| (in.readInt() != interval) || (in.readBoolean() != interleaved)) {
+					return null;
+				}
+
+				FastqOffsetIndex index = new FastqOffsetIndex(file);
+				index.numRecords = in.readLong();
+				index.numBases = in.readLong();
+
+				int numAnchors = in.readInt();
+
+				index.anchorOrdinals = new long[numAnchors];
+				index.anchorOffsets = new long[numAnchors];
+				index.anchorBases = new long[numAnchors];
+
+				for (int i = 0; i < numAnchors; i++) {
+					index.anchorOrdinals[i] = in.readLong();
+					index.anchorOffsets[i] = in.readLong();
+					index.anchorBases[i] = in.readLong();
+				}
+
+				return index;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			LOG.warn("Could not read the index of " + file + " from " + indexPath + ". It is built again: " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Joins the anchors of the chunks, giving them the ordinals and bases of the whole file
+	 */
+	private void merge(List<Future<long[]>> chunks, int interval) throws IOException {
+
+		ArrayList<Long> ordinals = new ArrayList<Long>();
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		ArrayList<Long> bases = new ArrayList<Long>();
+
+		for (Future<long[]> future : chunks) {
+			long[] chunk;
+
+			try {
+				chunk = future.get();
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted while indexing " + this.file, e);
+			}
+			catch (ExecutionException e) {
+				throw new IOException("Could not index " + this.file, e.getCause());
+			}
+
+			// The chunk has its number of records and bases, and then the position of each anchor and the bases before it
+			for (int i = 2; i < chunk.length; i += 2) {
+				ordinals.add(this.numRecords + (long) ((i - 2) / 2) * interval);
+				offsets.add(chunk[i]);
+				bases.add(this.numBases + chunk[i + 1]);
+			}
+
+			this.numRecords += chunk[0];
+			this.numBases += chunk[1];
+		}
+
+		this.anchorOrdinals = new long[ordinals.size()];
+		this.anchorOffsets = new long[offsets.size()];
+		this.anchorBases = new long[bases.size()];
+
+		for (int i = 0; i < ordinals.size(); i++) {
+			this.anchorOrdinals[i] = ordinals.get(i);
+			this.anchorOffsets[i] = offsets.get(i);
+			this.anchorBases[i] = bases.get(i);
+		}
+	}
+
+	/**
+	 * Counts the records and bases that start in a chunk and takes the position of every "interval" records
+	 *
+	 * @return The number of records and bases, followed by the position of each anchor and the bases before it
+	 */
+	private static long[] indexChunk(Configuration conf, FileSplit chunk, int interval) throws IOException {
+
+		FastqRecordReader reader = new FastqRecordReader();
+		ArrayList<Long> anchors = new ArrayList<Long>();
+		long count = 0;
+		long bases = 0;
+
+		try {
+			reader.initialize(chunk, new TaskAttemptContextImpl(conf, new TaskAttemptID()));
+
+			while (reader.nextKeyValue()) {
+				if (count % interval == 0) {
+					anchors.add(reader.getCurrentKey().get());
+					anchors.add(bases);
+				}
+				count++;
+				bases += countBases(reader.getCurrentValue());
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		long[] result = new long[anchors.size() + 2];
+		result[0] = count;
+		result[1] = bases;
+
+		for (int i = 0; i < anchors.size(); i++) {
+			result[i + 2] = anchors.get(i);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return The length of the sequence lines (the second of each four) of a value with one or more records
+	 */
+	private static long countBases(Text value) {
+
+		byte[] bytes = value.getBytes();
+		long bases = 0;
+		int line = 0;
+		int lineStart = 0;
+
+		for (int i = 0; i < value.getLength(); i++) {
+			if (bytes[i] == '\n') {
+				if (line % 4 == 1) {
+					bases += i - lineStart;
+				}
+				line++;
+				lineStart = i + 1;
+			}
+		}
+
+		return bases;
+	}
+
+}
@@ -0,0 +1,158 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Reads the pairs of a FastqPairSplit from the two FASTQ files at the same
+ * time. As with interleaved input, each value holds the four lines of the
+ * first mate followed by the four lines of the second one, and the key is the
+ * ordinal of the pair.
+ *
+ * @author José M. Abuín
+ */
+public class FastqPairRecordReader extends RecordReader<LongWritable, Text> {
+
+	private static final byte[] NEW_LINE = {'\n'};
+
+	private FastqPairSplit split;
+
+	private LineReader[] in = new LineReader[2];
+	private Decompressor[] decompressors = new Decompressor[2];
+
+	private long pairsRead = 0;
+
+	private Text line = new Text();
+
+	private LongWritable key = new LongWritable();
+	private Text value = new Text();
+
+	@Override
+	public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+
+		this.split = (FastqPairSplit) genericSplit;
+		Configuration conf = context.getConfiguration();
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+
+		for (int mate = 0; mate < 2; mate++) {
+			Path file = this.split.getFile(mate);
+			FSDataInputStream fileIn = file.getFileSystem(conf).open(file);
+			CompressionCodec codec = codecs.getCodec(file);
+
+			if (codec != null) {
+				// Compressed files are read whole, by a single split
+				this.decompressors[mate] = CodecPool.getDecompressor(codec);
+				this.in[mate] = new LineReader(codec.createInputStream(fileIn, this.decompressors[mate]), conf);
+			}
+			else {
+				fileIn.seek(this.split.getAnchor(mate));
+				this.in[mate] = new LineReader(fileIn, conf);
+			}
+
+			for (long i = 0; i < 4 * this.split.getSkip(mate); i++) {
+				if (this.in[mate].readLine(this.line) == 0) {
+					throw new IOException("Unexpected end of " + file + " while looking for pair " + this.split.getFirstPair());
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException {
+
+		if ((this.split.getNumPairs() >= 0) && (this.pairsRead >= this.split.getNumPairs())) {
+			return false;
+		}
+
+		this.value.clear();
+
+		for (int mate = 0; mate < 2; mate++) {
+			for (int i = 0; i < 4; i++) {
+				if (this.in[mate].readLine(this.line) == 0) {
+					if ((this.split.getNumPairs() < 0) && (mate == 0) && (i == 0)) {
+						return false;
+					}
+
+					throw new IOException("Unexpected end of " + this.split.getFile(mate) + " at pair " + (this.split.getFirstPair() + this.pairsRead)
+							+ ". Both files must have the same number of reads");
+				}
+
+				this.value.append(this.line.getBytes(), 0, this.line.getLength());
+				this.value.append(NEW_LINE, 0, 1);
+			}
+		}
+
+		this.key.set(this.split.getFirstPair() + this.pairsRead);
+		this.pairsRead++;
+
+		return true;
+	}
+
+	@Override
+	public LongWritable getCurrentKey() {
+		return this.key;
+	}
+
+	@Override
+	public Text getCurrentValue() {
+		return this.value;
+	}
+
+	@Override
+	public float getProgress() {
+
+		if (this.split.getNumPairs() <= 0) {
+			return 0.0f;
+		}
+
+		return Math.min(1.0f, this.pairsRead / (float) this.split.getNumPairs());
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		for (int mate = 0; mate < 2; mate++) {
+			if (this.in[mate] != null) {
+				this.in[mate].close();
+			}
+
+			if (this.decompressors[mate] != null) {
+				CodecPool.returnDecompressor(this.decompressors[mate]);
+				this.decompressors[mate] = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+ * A range of pairs read from two FASTQ files, one with each mate. The range
+ * is given by the ordinal of its first pair and the number of pairs, and the
+ * position of that pair in each file by an anchor of its index and the
+ * number of records to skip after it.
+ *
+ * @author José M. Abuín
+ */
+public class FastqPairSplit extends InputSplit implements Writable {
+
+	private Path[] files = new Path[2];
+	private long[] anchors = new long[2];
+	private long[] skips = new long[2];
+
+	private long firstPair;
+	private long numPairs;
+
+	private long length;
+	private String[] hosts;
+
+	public FastqPairSplit() {
+	}
+
+	/**
+	 * @param file1 File with the first mates
+	 * @param location1 Anchor and records to skip in the first file, as given by FastqOffsetIndex.locate()
+	 * @param file2 File with the second mates
+	 * @param location2 Anchor and records to skip in the second file
+	 * @param firstPair Ordinal of the first pair of the split
+	 * @param numPairs Number of pairs of the split, or -1 to read until the end of the files
+	 * @param length Approximate number of bytes of the split
+	 * @param hosts Nodes where the data of the split is
+	 */
+	public FastqPairSplit(Path file1, long[] location1, Path file2, long[] location2, long firstPair, long numPairs, long length, String[] hosts) {
+		this.files[0] = file1;
+		this.files[1] = file2;
+		this.anchors[0] = location1[0];
+		this.anchors[1] = location2[0];
+		this.skips[0] = location1[1];
+		this.skips[1] = location2[1];
+		this.firstPair = firstPair;
+		this.numPairs = numPairs;
+		this.length = length;
+		this.hosts = hosts;
+	}
+
+	/**
+	 * @param mate 0 for the first mates, 1 for the second ones
+	 * @return The file with the mates
+	 */
+	public Path getFile(int mate) {
+		return this.files[mate];
+	}
+
+	/**
+	 * @param mate 0 for the first mates, 1 for the second ones
+	 * @return The position where reading starts in the file
+	 */
+	public long getAnchor(int mate) {
+		return this.anchors[mate];
+	}
+
+	/**
+	 * @param mate 0 for the first mates, 1 for the second ones
+	 * @return The number of records to skip after the anchor
+	 */
+	public long getSkip(int mate) {
+		return this.skips[mate];
+	}
+
+	/**
+	 * @return The ordinal of the first pair of the split
+	 */
+	public long getFirstPair() {
+		return this.firstPair;
+	}
+
+	/**
+	 * @return The number of pairs of the split, or -1 if the files are read until the end
+	 */
+	public long getNumPairs() {
+		return this.numPairs;
+	}
+
+	@Override
+	public long getLength() {
+		return this.length;
+	}
+
+	@Override
+	public String[] getLocations() {
+		return (this.hosts == null) ? new String[0] : this.hosts;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+
+		for (int i = 0; i < 2; i++) {
+			Text.writeString(out, this.files[i].toString());
+			out.writeLong(this.anchors[i]);
+			out.writeLong(this.skips[i]);
+		}
+
+		out.writeLong(this.firstPair);
+		out.writeLong(this.numPairs);
+		out.writeLong(this.length);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+
+		for (int i = 0; i < 2; i++) {
+			this.files[i] = new Path(Text.readString(in));
+			this.anchors[i] = in.readLong();
+			this.skips[i] = in.readLong();
+		}
+
+		this.firstPair = in.readLong();
+		this.numPairs = in.readLong();
+		this.length = in.readLong();
+
+		// Locations are only used when scheduling the tasks
+		this.hosts = null;
+	}
+
+	@Override
+	public String toString() {
+		return this.files[0] + ":" + this.anchors[0] + "+" + this.skips[0] + " " + this.files[1] + ":" + this.anchors[1] + "+" + this.skips[1]
+				+ " pairs " + this.firstPair + "-" + (this.numPairs < 0 ? "end" : String.valueOf(this.firstPair + this.numPairs));
+	}
+
+}
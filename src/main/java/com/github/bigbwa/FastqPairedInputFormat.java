@@ -0,0 +1,136 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * Input format for paired reads stored in two FASTQ files, the first mates in
+ * the input path of the job and the second ones in "inputPath2". Splits are
+ * planned by pair number, so both files are cut at the same pairs, using a
+ * FastqOffsetIndex of each file. The number of pairs of each split follows
+ * the usual split size of the first file, so --partitions still applies.
+ * With "splitBalance" set to "bases", splits have the same number of bases
+ * instead of pairs, which evens the work of the mappers when the length of
+ * the reads changes along the files.
+ *
+ * Compressed files can not be indexed, and they are read by a single mapper.
+ *
+ * @author José M. Abuín
+ */
+public class FastqPairedInputFormat extends FileInputFormat<LongWritable, Text> {
+
+	private static final Log LOG = LogFactory.getLog(FastqPairedInputFormat.class);
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+		return new FastqPairRecordReader();
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+		Configuration conf = job.getConfiguration();
+
+		Path file1 = getInputPaths(job)[0];
+		Path file2 = new Path(conf.get("inputPath2"));
+
+		FileSystem fs = file1.getFileSystem(conf);
+		FileStatus status1 = fs.getFileStatus(file1);
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+
+		if ((codecs.getCodec(file1) != null) || (codecs.getCodec(file2) != null)) {
+			LOG.warn("Compressed paired files are read by a single mapper");
+			splits.add(new FastqPairSplit(file1, new long[] {0, 0}, file2, new long[] {0, 0}, 0, -1, status1.getLen(), null));
+			return splits;
+		}
+
+		FastqOffsetIndex[] indexes = FastqOffsetIndex.load(conf, new Path[] {file1, file2}, conf.getInt("splitIndexInterval", FastqOffsetIndex.DEFAULT_INTERVAL), false);
+
+		long numPairs = indexes[0].getNumRecords();
+
+		if (numPairs != indexes[1].getNumRecords()) {
+			throw new IOException(file1 + " has " + numPairs + " reads and " + file2 + " has " + indexes[1].getNumRecords()
+					+ ". Both files must have the same number of reads");
+		}
+
+		if (numPairs == 0) {
+			return splits;
+		}
+
+		long splitSize = this.computeSplitSize(status1.getBlockSize(), getMinSplitSize(job), getMaxSplitSize(job));
+		long pairsPerSplit = Math.max(1, (long) Math.ceil(numPairs * (double) splitSize / status1.getLen()));
+
+		int numSplits = (int) ((numPairs + pairsPerSplit - 1) / pairsPerSplit);
+		long[] firstPairs;
+
+		if (conf.get("splitBalance", "reads").equals("bases")) {
+			// Pairs of shorter reads are given to the same mapper in greater numbers
+			firstPairs = FastqOffsetIndex.cut(indexes, numSplits, true);
+		}
+		else {
+			firstPairs = new long[numSplits];
+
+			for (int i = 0; i < firstPairs.length; i++) {
+				firstPairs[i] = i * pairsPerSplit;
+			}
+		}
+
+		for (int i = 0; i < firstPairs.length; i++) {
+
+			long firstPair = firstPairs[i];
+			long pairs = ((i + 1 < firstPairs.length) ? firstPairs[i + 1] : numPairs) - firstPair;
+
+			long[] location1 = indexes[0].locate(firstPair);
+			long[] location2 = indexes[1].locate(firstPair);
+
+			BlockLocation[] blocks = fs.getFileBlockLocations(status1, location1[0], 1);
+			String[] hosts = (blocks.length > 0) ? blocks[0].getHosts() : null;
+
+			splits.add(new FastqPairSplit(file1, location1, file2, location2, firstPair, pairs, pairs * status1.getLen() / numPairs, hosts));
+		}
+
+		LOG.info("Total pairs: " + numPairs + ". Pairs per split: " + pairsPerSplit + ". Number of splits: " + splits.size());
+
+		return splits;
+	}
+
+}
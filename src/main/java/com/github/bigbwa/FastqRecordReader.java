@@ -0,0 +1,363 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Reads the FASTQ records of a split. A split owns the records that start
+ * inside it, so the reader of a split that does not start at the beginning of
+ * the file first looks for the first record start: a line beginning with '@'
+ * followed two lines later by a line beginning with '+', and with bases and
+ * qualities of the same length. A quality line that begins with '@' does not
+ * pass the test, because the line two positions after it holds bases.
+ *
+ * With paired reads, mates are expected one after the other, and the reader
+ * also checks the names of two consecutive records to start at the first mate.
+ *
+ * BGZF files are split by compressed position. The reader starts at the first
+ * block of its split and always skips the first line, since it can not know if
+ * the block begins a line. That is why a split owns the records that start in
+ * its blocks, and also a record that starts exactly at the beginning of the
+ * first block after it. Keys are the virtual offsets of the records.
+ *
+ * @author José M. Abuín
+ */
+public class FastqRecordReader extends RecordReader<LongWritable, Text> {
+
+	private static final byte[] NEW_LINE = {'\n'};
+
+	private long start;
+	private long end;
+	private long pos;
+
+	private FSDataInputStream fileIn;
+	private LineReader in;
+	private Decompressor decompressor = null;
+	private long compressedLength = 0;
+	private BgzfInputStream bgzfIn = null;
+
+	private int recordsPerValue = 1;
+
+	// Lines read while looking for the first record, and not returned yet
+	private ArrayList<Text> lookahead = new ArrayList<Text>();
+	private ArrayList<Long> lookaheadPos = new ArrayList<Long>();
+
+	private Text line = new Text();
+
+	private LongWritable key = new LongWritable();
+	private Text value = new Text();
+
+	@Override
+	public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+
+		FileSplit split = (FileSplit) genericSplit;
+		Configuration conf = context.getConfiguration();
+
+		Path file = split.getPath();
+		FileSystem fs = file.getFileSystem(conf);
+
+		if ((conf.get("paired") != null) && (conf.get("paired").equals("true"))) {
+			this.recordsPerValue = 2;
+		}
+
+		this.start = split.getStart();
+		this.end = this.start + split.getLength();
+
+		this.fileIn = fs.open(file);
+
+		CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+
+		if ((codec != null) && BgzfInputStream.isBgzf(fs, file)) {
+			long fileLength = fs.getFileStatus(file).getLen();
+			long firstBlock = BgzfInputStream.findBlock(fs, file, this.fileIn, this.start, fileLength);
+
+			this.bgzfIn = new BgzfInputStream(this.fileIn, firstBlock, fileLength);
+			this.bgzfIn.setSplitEnd(this.end);
+			this.in = new LineReader(this.bgzfIn, conf);
+			this.pos = 0;
+
+			if (firstBlock != 0) {
+				this.pos += this.in.readLine(new Text());
+				this.findFirstRecord();
+			}
+			return;
+		}
+
+		if (codec != null) {
+			// The whole file belongs to this split
+			this.decompressor = CodecPool.getDecompressor(codec);
+			this.compressedLength = split.getLength();
+			this.in = new LineReader(codec.createInputStream(this.fileIn, this.decompressor), conf);
+			this.start = 0;
+			this.end = Long.MAX_VALUE;
+			this.pos = 0;
+			return;
+		}
+
+		if (this.start == 0) {
+			this.in = new LineReader(this.fileIn, conf);
+			this.pos = 0;
+			return;
+		}
+
+		// Starting one byte before, so a line that begins exactly at the split start is not skipped
+		this.fileIn.seek(this.start - 1);
+		this.in = new LineReader(this.fileIn, conf);
+		this.pos = this.start - 1;
+		this.pos += this.in.readLine(new Text());
+
+		this.findFirstRecord();
+	}
+
+	/**
+	 * Discards lines until the lookahead begins with a record (or with the first mate of a pair)
+	 */
+	private void findFirstRecord() throws IOException {
+
+		while (this.fillLookahead(4)) {
+
+			if (!this.isRecordStart(0)) {
+				this.dropLookahead(1);
+				continue;
+			}
+
+			if ((this.recordsPerValue == 2) && this.fillLookahead(8)
+					&& this.isRecordStart(4) && !sameReadName(this.lookahead.get(0), this.lookahead.get(4))) {
+				// This is the second mate of a pair that started in the previous split
+				this.dropLookahead(4);
+			}
+
+			return;
+		}
+
+		// Only the end of a record that started in the previous split is left
+		this.lookahead.clear();
+		this.lookaheadPos.clear();
+	}
+
+	private boolean isRecordStart(int first) {
+
+		Text header = this.lookahead.get(first);
+		Text bases = this.lookahead.get(first + 1);
+		Text separator = this.lookahead.get(first + 2);
+		Text qualities = this.lookahead.get(first + 3);
+
+		return (header.getLength() > 0) && (header.getBytes()[0] == '@')
+				&& (separator.getLength() > 0) && (separator.getBytes()[0] == '+')
+				&& (bases.getLength() == qualities.getLength());
+	}
+
+	/**
+	 * Compares two FASTQ headers as bwa does: the name ends at the first blank, and the "/1" or "/2" suffixes are ignored
+	 */
+	private static boolean sameReadName(Text header1, Text header2) {
+
+		int length1 = readNameLength(header1);
+		int length2 = readNameLength(header2);
+
+		if (length1 != length2) {
+			return false;
+		}
+
+		byte[] bytes1 = header1.getBytes();
+		byte[] bytes2 = header2.getBytes();
+
+		for (int i = 1; i < length1; i++) {
+			if (bytes1[i] != bytes2[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int readNameLength(Text header) {
+
+		byte[] bytes = header.getBytes();
+		int length = 0;
+
+		while ((length < header.getLength()) && (bytes[length] != ' ') && (bytes[length] != '\t')) {
+			length++;
+		}
+
+		if ((length > 2) && (bytes[length - 2] == '/') && ((bytes[length - 1] == '1') || (bytes[length - 1] == '2'))) {
+			length -= 2;
+		}
+
+		return length;
+	}
+
+	private boolean fillLookahead(int numLines) throws IOException {
+
+		while (this.lookahead.size() < numLines) {
+			Text newLine = new Text();
+			long linePos = this.pos;
+			int consumed = this.in.readLine(newLine);
+
+			if (consumed == 0) {
+				return false;
+			}
+
+			this.pos += consumed;
+			this.lookahead.add(newLine);
+			this.lookaheadPos.add(linePos);
+		}
+
+		return true;
+	}
+
+	private void dropLookahead(int numLines) {
+		for (int i = 0; i < numLines; i++) {
+			this.lookahead.remove(0);
+			this.lookaheadPos.remove(0);
+		}
+	}
+
+	/**
+	 * Reads the next line, from the lookahead if there are lines left in it
+	 *
+	 * @return The position of the line, or -1 at the end of the file
+	 */
+	private long nextLine(Text nextLine) throws IOException {
+
+		if (!this.lookahead.isEmpty()) {
+			long linePos = this.lookaheadPos.remove(0);
+			nextLine.set(this.lookahead.remove(0));
+			return linePos;
+		}
+
+		long linePos = this.pos;
+		int consumed = this.in.readLine(nextLine);
+
+		if (consumed == 0) {
+			return -1;
+		}
+
+		this.pos += consumed;
+
+		return linePos;
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException {
+
+		long recordStart = this.lookahead.isEmpty() ? this.pos : this.lookaheadPos.get(0);
+
+		if (this.bgzfIn != null) {
+			// Making sure the block of the record has been read
+			if (this.lookahead.isEmpty() && !this.fillLookahead(1)) {
+				return false;
+			}
+
+			recordStart = this.bgzfIn.getVirtualOffset(recordStart);
+
+			long blockAddress = recordStart >>> 16;
+
+			if ((blockAddress >= this.end) && ((blockAddress != this.bgzfIn.getBlockAtSplitEnd()) || ((recordStart & 0xffff) != 0))) {
+				return false;
+			}
+		}
+		else if (recordStart >= this.end) {
+			return false;
+		}
+
+		this.value.clear();
+
+		for (int i = 0; i < 4 * this.recordsPerValue; i++) {
+			if (this.nextLine(this.line) < 0) {
+				if (i == 0) {
+					return false;
+				}
+
+				throw new IOException("Truncated FASTQ record at position " + recordStart);
+			}
+
+			this.value.append(this.line.getBytes(), 0, this.line.getLength());
+			this.value.append(NEW_LINE, 0, 1);
+		}
+
+		this.key.set(recordStart);
+
+		return true;
+	}
+
+	@Override
+	public LongWritable getCurrentKey() {
+		return this.key;
+	}
+
+	@Override
+	public Text getCurrentValue() {
+		return this.value;
+	}
+
+	@Override
+	public float getProgress() throws IOException {
+
+		if (this.bgzfIn != null) {
+			return Math.max(0.0f, Math.min(1.0f, (this.bgzfIn.getBlockAddress() - this.start) / (float) Math.max(1, this.end - this.start)));
+		}
+
+		if (this.decompressor != null) {
+			return Math.min(1.0f, this.fileIn.getPos() / (float) Math.max(1, this.compressedLength));
+		}
+
+		if (this.start == this.end) {
+			return 0.0f;
+		}
+
+		return Math.min(1.0f, (this.pos - this.start) / (float) (this.end - this.start));
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		try {
+			if (this.in != null) {
+				this.in.close();
+			}
+		}
+		finally {
+			if (this.decompressor != null) {
+				CodecPool.returnDecompressor(this.decompressor);
+				this.decompressor = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Sends each alignment to the reducer that owns its range of the genome, so
+ * the sorted outputs of the reducers, one after the other, are sorted too.
+ * The ranges are given by their boundaries, in the "sortBoundaries" property,
+ * as a list of "reference:position" separated by commas. The SAM headers of
+ * the mappers go to the first reducer. The unmapped reads go to an extra
+ * reducer after the ranges of the genome, so a run with many of them does
+ * not overload the reducer of the last range.
+ *
+ * @author José M. Abuín
+ */
+public class GenomeRangePartitioner<V> extends Partitioner<AlignmentKey, V> implements Configurable {
+
+	public static final String BOUNDARIES = "sortBoundaries";
+
+	private Configuration conf;
+
+	private int[] references = new int[0];
+	private int[] positions = new int[0];
+
+	@Override
+	public void setConf(Configuration conf) {
+
+		this.conf = conf;
+
+		String boundaries = conf.get(BOUNDARIES, "");
+
+		if (boundaries.isEmpty()) {
+			this.references = new int[0];
+			this.positions = new int[0];
+			return;
+		}
+
+		String[] fields = boundaries.split(",");
+
+		this.references = new int[fields.length];
+		this.positions = new int[fields.length];
+
+		for (int i = 0; i < fields.length; i++) {
+			int separator = fields[i].indexOf(':');
+
+			this.references[i] = Integer.parseInt(fields[i].substring(0, separator));
+			this.positions[i] = Integer.parseInt(fields[i].substring(separator + 1));
+		}
+	}
+
+	@Override
+	public Configuration getConf() {
+		return this.conf;
+	}
+
+	@Override
+	public int getPartition(AlignmentKey key, V value, int numPartitions) {
+
+		if (key.getReference() == AlignmentKey.HEADER) {
+			return 0;
+		}
+
+		if (key.getReference() == AlignmentKey.UNMAPPED) {
+			return numPartitions - 1;
+		}
+
+		// The last partition only has the unmapped reads, unless there is only one
+		int rangePartitions = Math.max(1, numPartitions - 1);
+
+		// Number of boundaries at or before the alignment
+		int low = 0;
+		int high = this.references.length;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if ((this.references[middle] < key.getReference())
+					|| ((this.references[middle] == key.getReference()) && (this.positions[middle] <= key.getPosition()))) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+
+		return Math.min(low, rangePartitions - 1);
+	}
+
+	/**
+	 * Splits the genome in ranges of about the same length, made of whole bins
+	 *
+	 * @param dictionary Sequences of the reference
+	 * @param numPartitions Number of ranges
+	 * @param binSize Length of the bins. Boundaries are always at the start of a bin
+	 * @return The boundaries, in the format of the "sortBoundaries" property
+	 */
+	public static String computeBoundaries(ReferenceDictionary dictionary, int numPartitions, int binSize) {
+
+		long genomeLength = 0;
+
+		for (int i = 0; i < dictionary.size(); i++) {
+			genomeLength += dictionary.getLength(i);
+		}
+
+		StringBuilder boundaries = new StringBuilder();
+
+		long accumulated = 0;
+		int partition = 1;
+
+		for (int reference = 0; (reference < dictionary.size()) && (partition < numPartitions); reference++) {
+			for (long start = 0; (start < dictionary.getLength(reference)) && (partition < numPartitions); start += binSize) {
+
+				// The boundary is placed at the bin where the range reaches its share of the genome
+				if ((accumulated > 0) && (accumulated >= genomeLength * partition / numPartitions)) {
+					if (boundaries.length() > 0) {
+						boundaries.append(',');
+					}
+
+					boundaries.append(reference).append(':').append(start);
+					partition++;
+				}
+
+				accumulated += Math.min(binSize, dictionary.getLength(reference) - start);
+			}
+		}
+
+		return boundaries.toString();
+	}
+
+}
@@ -0,0 +1,499 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Index in HDFS that is copied to the nodes through the distributed cache, so
+ * it does not have to be in the local disk of every node beforehand. The
+ * index files are packed in a zip archive next to them, named after a checksum
+ * of the files, so a new version of the index gets a new archive. YARN then
+ * downloads the archive once per node and keeps it for the next jobs, as a
+ * public resource when the archive and its directories can be read by
+ * everybody.
+ *
+ * The archive has a manifest with the MD5 of each file. The first task of a
+ * node checks the files against it, and later tasks only check their sizes.
+ * The files are read ahead in a thread while the mapper reads its input, so
+ * bwa finds them in the page cache.
+ *
+ * @author José M. Abuín
+ */
+public class IndexLocalizer {
+
+	private static final Log LOG = LogFactory.getLog(IndexLocalizer.class);
+
+	// Properties given to the tasks
+	public static final String LINK = "indexLocalLink";
+	public static final String NAME = "indexLocalName";
+	public static final String CHECKSUM = "indexLocalChecksum";
+
+	private static final String MANIFEST = "bigbwa-index.md5";
+
+	private static final String[] INDEX_SUFFIXES = {".bwt", ".sa", ".pac", ".ann", ".amb"};
+	private static final String[] OPTIONAL_SUFFIXES = {".alt"};
+
+	private FileSystem fs;
+	private Path indexPrefix;
+
+	private ArrayList<Path> files = new ArrayList<Path>();
+	private long indexBytes = 0;
+
+	private String checksum;
+	private Path archive;
+
+	/**
+	 * @param conf Job configuration
+	 * @param indexPath Prefix for the index created by bwa
+	 * @return Whether the index has to be localized: it is in a file system other than the local one, or
+	 *         "indexLocalize" is set
+	 */
+	public static boolean isRemote(Configuration conf, String indexPath) {
+
+		if (conf.getBoolean("indexLocalize", false)) {
+			return true;
+		}
+
+		String scheme = new Path(indexPath).toUri().getScheme();
+
+		return (scheme != null) && !scheme.equals("file");
+	}
+
+	/**
+	 * Finds the index files and creates their archive if there is none for this version of the index
+	 *
+	 * @param conf Job configuration. The archive is written in "indexArchiveDir", or next to the index
+	 * @param indexPath Prefix for the index created by bwa
+	 * @throws IOException If an index file is missing or the archive could not be written
+	 */
+	public IndexLocalizer(Configuration conf, String indexPath) throws IOException {
+
+		this.indexPrefix = new Path(indexPath);
+		this.fs = this.indexPrefix.getFileSystem(conf);
+		this.indexPrefix = this.fs.makeQualified(this.indexPrefix);
+
+		for (String suffix : INDEX_SUFFIXES) {
+			Path file = this.indexPrefix.suffix(suffix);
+
+			if (!this.fs.exists(file)) {
+				throw new IOException("Index file " + file + " not found");
+			}
+
+			this.files.add(file);
+		}
+
+		for (String suffix : OPTIONAL_SUFFIXES) {
+			if (this.fs.exists(this.indexPrefix.suffix(suffix))) {
+				this.files.add(this.indexPrefix.suffix(suffix));
+			}
+		}
+
+		this.checksum = this.computeChecksum();
+
+		Path archiveDir = (conf.get("indexArchiveDir") != null) ? this.fs.makeQualified(new Path(conf.get("indexArchiveDir")))
+				: this.indexPrefix.getParent();
+
+		this.archive = new Path(archiveDir, this.indexPrefix.getName() + "." + this.checksum + ".zip");
+
+		if (!this.fs.exists(this.archive)) {
+			LOG.info("Creating the archive " + this.archive + " of index " + this.indexPrefix);
+			this.createArchive();
+		}
+
+		if (!this.isPublic(this.archive)) {
+			LOG.warn("Archive " + this.archive + " or one of its directories can not be read by everybody. It is localized for each user");
+		}
+	}
+
+	/**
+	 * Adds the archive to the distributed cache of a job and tells its tasks where to find the index
+	 *
+	 * @param job The job
+	 * @throws IOException If the URI of the archive is not valid
+	 */
+	public void addTo(Job job) throws IOException {
+
+		String link = "bigbwa-index-" + this.checksum;
+		URI uri = this.archive.toUri();
+
+		try {
+			job.addCacheArchive(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, link));
+		}
+		catch (URISyntaxException e) {
+			throw new IOException("Wrong archive path " + this.archive, e);
+		}
+
+		job.getConfiguration().set(LINK, link);
+		job.getConfiguration().set(NAME, this.indexPrefix.getName());
+		job.getConfiguration().set(CHECKSUM, this.checksum);
+	}
+
+	/**
+	 * @return The archive with the index files
+	 */
+	public Path getArchive() {
+		return this.archive;
+	}
+
+	/**
+	 * @return The size of the index files that bwa loads in memory
+	 */
+	public long getIndexBytes() {
+		return this.indexBytes;
+	}
+
+	/**
+	 * @return The dictionary of the index, read from its file system
+	 * @throws IOException If the .ann file could not be read
+	 */
+	public ReferenceDictionary getDictionary() throws IOException {
+		return ReferenceDictionary.fromIndex(this.fs, this.indexPrefix);
+	}
+
+	/**
+	 * Checksum of the version of the index, from the checksums the file system keeps for each file, or from the
+	 * modification times when it keeps none. No file is read
+	 */
+	private String computeChecksum() throws IOException {
+
+		MessageDigest digest = newMd5();
+
+		for (Path file : this.files) {
+			FileStatus status = this.fs.getFileStatus(file);
+			FileChecksum fileChecksum = this.fs.getFileChecksum(file);
+
+			digest.update(file.getName().getBytes("UTF-8"));
+			digest.update(Long.toString(status.getLen()).getBytes("UTF-8"));
+
+			if (fileChecksum != null) {
+				digest.update(fileChecksum.getBytes());
+			}
+			else {
+				digest.update(Long.toString(status.getModificationTime()).getBytes("UTF-8"));
+			}
+
+			if (!file.getName().endsWith(".ann") && !file.getName().endsWith(".amb") && !file.getName().endsWith(".alt")) {
+				this.indexBytes += status.getLen();
+			}
+		}
+
+		return toHex(digest.digest()).substring(0, 16);
+	}
+
+	/**
+	 * Writes the archive without compression, as the index hardly compresses, to a temporary file that is renamed,
+	 * so concurrent clients never use half an archive
+	 */
+	private void createArchive() throws IOException {
+
+		Path tmp = new Path(this.archive.getParent(), "." + this.archive.getName() + "." + System.nanoTime() + ".tmp");
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(this.fs.create(tmp, false), 1 << 20));
+		StringBuilder manifest = new StringBuilder();
+		byte[] buffer = new byte[1 << 20];
+
+		try {
+			zip.setLevel(Deflater.NO_COMPRESSION);
+
+			for (Path file : this.files) {
+				MessageDigest digest = newMd5();
+				InputStream in = this.fs.open(file);
+				long length = 0;
+
+				zip.putNextEntry(new ZipEntry(file.getName()));
+
+				try {
+					int read;
+
+					while ((read = in.read(buffer)) > 0) {
+						digest.update(buffer, 0, read);
+						zip.write(buffer, 0, read);
+						length += read;
+					}
+				}
+				finally {
+					in.close();
+				}
+
+				zip.closeEntry();
+
+				manifest.append(toHex(digest.digest())).append(' ').append(length).append(' ').append(file.getName()).append('\n');
+			}
+
+			zip.putNextEntry(new ZipEntry(MANIFEST));
+			zip.write(manifest.toString().getBytes("UTF-8"));
+			zip.closeEntry();
+
+			zip.close();
+		}
+		catch (IOException e) {
+			try {
+				zip.close();
+			}
+			catch (IOException closeException) {
+				LOG.warn("Could not close " + tmp + ": " + closeException.toString());
+			}
+
+			this.fs.delete(tmp, false);
+			throw e;
+		}
+
+		this.fs.setPermission(tmp, new FsPermission((short) 0644));
+
+		// Another client may have created the same archive in the meantime
+		if (!this.fs.rename(tmp, this.archive)) {
+			this.fs.delete(tmp, false);
+
+			if (!this.fs.exists(this.archive)) {
+				throw new IOException("Could not create the archive " + this.archive);
+			}
+		}
+	}
+
+	/**
+	 * @return Whether YARN localizes the file as a public resource: everybody can read it and enter its directories
+	 */
+	private boolean isPublic(Path file) throws IOException {
+
+		if (!this.fs.getFileStatus(file).getPermission().getOtherAction().implies(FsAction.READ)) {
+			return false;
+		}
+
+		for (Path dir = file.getParent(); dir != null; dir = dir.getParent()) {
+			if (!this.fs.getFileStatus(dir).getPermission().getOtherAction().implies(FsAction.EXECUTE)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static MessageDigest newMd5() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+
+		return hex.toString();
+	}
+
+	/**
+	 * Index localized for a task. Its files are read ahead, and checked against the manifest of the archive the
+	 * first time the node uses it, in a thread that runs while the mapper reads its input
+	 */
+	public static class LocalIndex {
+
+		private File dir;
+		private String indexPrefix;
+
+		private ArrayList<File> files = new ArrayList<File>();
+		private ArrayList<String> md5s = new ArrayList<String>();
+
+		// Marker of a node where the files of this archive have already been checked
+		private File verifiedMarker;
+		private boolean verify;
+
+		private Thread prefetcher = null;
+		private IOException error = null;
+		private boolean done = false;
+
+		/**
+		 * Finds the index in the working directory of the task and checks the sizes of its files
+		 *
+		 * @param conf Job configuration. "indexVerify" can be "md5", the default, or "size" to only check the
+		 *             sizes. The markers of checked nodes are kept in "indexVerifyDir"
+		 * @throws IOException If the index has not been localized or the size of a file is wrong
+		 */
+		public LocalIndex(Configuration conf) throws IOException {
+
+			File link = new File(conf.get(LINK));
+
+			if (!link.isDirectory()) {
+				throw new IOException("Index archive " + link.getAbsolutePath() + " has not been localized");
+			}
+
+			// The path where YARN keeps the archive is the same for every task, so the index cache and the shared
+			// memory of the node find it under the same name
+			this.dir = link.getCanonicalFile();
+			this.indexPrefix = new File(this.dir, conf.get(NAME)).getPath();
+
+			BufferedReader manifest = new BufferedReader(new InputStreamReader(new FileInputStream(new File(this.dir, MANIFEST)), "UTF-8"));
+
+			try {
+				String line;
+
+				while ((line = manifest.readLine()) != null) {
+					String[] fields = line.split(" ", 3);
+					File file = new File(this.dir, fields[2]);
+
+					if (file.length() != Long.parseLong(fields[1])) {
+						throw new IOException("Localized index file " + file.getPath() + " has " + file.length() + " bytes instead of " + fields[1]);
+					}
+
+					this.files.add(file);
+					this.md5s.add(fields[0]);
+				}
+			}
+			finally {
+				manifest.close();
+			}
+
+			this.verifiedMarker = new File(conf.get("indexVerifyDir", "/tmp"),
+					"bigbwa-index-" + conf.get(CHECKSUM) + "-" + Integer.toHexString(this.dir.getPath().hashCode()) + ".verified");
+			this.verify = conf.get("indexVerify", "md5").equals("md5") && !this.verifiedMarker.exists();
+		}
+
+		/**
+		 * @return Prefix of the index in the local disk
+		 */
+		public String getIndexPrefix() {
+			return this.indexPrefix;
+		}
+
+		/**
+		 * Starts reading the index files in a thread
+		 */
+		public synchronized void startPrefetch() {
+
+			if (this.prefetcher != null || this.done) {
+				return;
+			}
+
+			this.prefetcher = new Thread("BigBWA index prefetch") {
+				@Override
+				public void run() {
+					try {
+						readFiles();
+					}
+					catch (IOException e) {
+						error = e;
+					}
+				}
+			};
+
+			this.prefetcher.setDaemon(true);
+			this.prefetcher.start();
+		}
+
+		/**
+		 * Waits until the files have been read ahead and checked. Without a prefetch, they are checked now
+		 *
+		 * @throws IOException If a file does not match the manifest or could not be read
+		 */
+		public synchronized void await() throws IOException {
+
+			if (!this.done) {
+				if (this.prefetcher != null) {
+					try {
+						this.prefetcher.join();
+					}
+					catch (InterruptedException e) {
+						throw new IOException("Interrupted while reading the index ahead", e);
+					}
+				}
+				else if (this.verify) {
+					this.readFiles();
+				}
+
+				this.done = true;
+			}
+
+			if (this.error != null) {
+				throw this.error;
+			}
+		}
+
+		private void readFiles() throws IOException {
+
+			byte[] buffer = new byte[1 << 20];
+			long startTime = System.currentTimeMillis();
+			long bytes = 0;
+
+			for (int i = 0; i < this.files.size(); i++) {
+				MessageDigest digest = this.verify ? newMd5() : null;
+				InputStream in = new FileInputStream(this.files.get(i));
+
+				try {
+					int read;
+
+					while ((read = in.read(buffer)) > 0) {
+						if (digest != null) {
+							digest.update(buffer, 0, read);
+						}
+
+						bytes += read;
+					}
+				}
+				finally {
+					in.close();
+				}
+
+				if ((digest != null) && !toHex(digest.digest()).equals(this.md5s.get(i))) {
+					throw new IOException("Localized index file " + this.files.get(i).getPath() + " does not match its checksum");
+				}
+			}
+
+			if (this.verify) {
+				this.verifiedMarker.createNewFile();
+			}
+
+			LOG.info("Index " + this.indexPrefix + " read ahead" + (this.verify ? " and checked" : "") + ": " + bytes + " bytes in "
+					+ (System.currentTimeMillis() - startTime) + " ms");
+		}
+
+	}
+
+}
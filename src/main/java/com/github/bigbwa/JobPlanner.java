@@ -0,0 +1,331 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Chooses the number of splits, the bwa threads of each mapper and the memory
+ * of its container from the size of the index, the size of the input and the
+ * resources of the cluster.
+ *
+ * The memory of a mapper is its Java heap, the index, which bwa loads whole,
+ * a fixed amount for each bwa thread and some overhead, rounded up to the
+ * container sizes of YARN. The threads per mapper are chosen so that the
+ * mappers that fit at the same time use as many cores as possible, with
+ * fewer and bigger mappers when there is a tie, as each one loads the index.
+ * Then there is one split per mapper, and more waves of them if asked, but
+ * never splits smaller than the minimum split size.
+ *
+ * Any of the three values can be fixed, and the others are chosen around it.
+ *
+ * @author José M. Abuín
+ */
+public class JobPlanner {
+
+	private static final String[] INDEX_SUFFIXES = {".bwt", ".sa", ".pac", ".ann", ".amb"};
+
+	private ClusterResources cluster;
+
+	private long indexBytes = 0;
+	private long inputBytes = 0;
+
+	private int heapMB = 1024;
+	private int threadMemoryMB = 300;
+	private int overheadMB = 256;
+	private long minSplitBytes = 128L << 20;
+	private int waves = 1;
+
+	private int fixedSplits = 0;
+	private int fixedThreads = 0;
+	private int fixedMemoryMB = 0;
+
+	/**
+	 * Result of the planning
+	 */
+	public static class Plan {
+
+		private int splits;
+		private long splitBytes;
+		private int threads;
+		private int containerMemoryMB;
+		private int heapMB;
+		private int concurrentMappers;
+		private int requiredMemoryMB;
+
+		/**
+		 * @return The number of input splits, which is the number of mappers
+		 */
+		public int getSplits() {
+			return this.splits;
+		}
+
+		/**
+		 * @return The size of each split
+		 */
+		public long getSplitBytes() {
+			return this.splitBytes;
+		}
+
+		/**
+		 * @return The number of bwa threads of each mapper
+		 */
+		public int getThreads() {
+			return this.threads;
+		}
+
+		/**
+		 * @return The memory of the container of each mapper
+		 */
+		public int getContainerMemoryMB() {
+			return this.containerMemoryMB;
+		}
+
+		/**
+		 * @return The Java heap of each mapper
+		 */
+		public int getHeapMB() {
+			return this.heapMB;
+		}
+
+		/**
+		 * @return The number of mappers that fit in the cluster at the same time
+		 */
+		public int getConcurrentMappers() {
+			return this.concurrentMappers;
+		}
+
+		/**
+		 * @return The memory a mapper is expected to use
+		 */
+		public int getRequiredMemoryMB() {
+			return this.requiredMemoryMB;
+		}
+
+		@Override
+		public String toString() {
+			return this.splits + " splits of " + (this.splitBytes >> 20) + " MB, " + this.threads + " bwa threads and "
+					+ this.containerMemoryMB + " MB (" + this.heapMB + " MB of Java heap, " + this.requiredMemoryMB
+					+ " MB expected) per mapper, " + this.concurrentMappers + " mappers at the same time";
+		}
+	}
+
+	/**
+	 * @param cluster Resources of the cluster
+	 */
+	public JobPlanner(ClusterResources cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * @param indexPrefix Prefix of the index, which has to be in the local file system
+	 * @return The size of the index files that bwa loads in memory, or 0 if they are not found
+	 */
+	public static long getIndexBytes(String indexPrefix) {
+
+		long bytes = 0;
+
+		for (String suffix : INDEX_SUFFIXES) {
+			bytes += new File(indexPrefix + suffix).length();
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @param bwaArgs Arguments passed to bwa with -w
+	 * @return The number of threads given with -t, or 0 if there is none
+	 */
+	public static int getBwaThreads(String bwaArgs) {
+
+		String[] arguments = bwaArgs.trim().split(" +");
+
+		for (int i = 0; i < arguments.length; i++) {
+			String threads = null;
+
+			if (arguments[i].equals("-t") && (i + 1 < arguments.length)) {
+				threads = arguments[i + 1];
+			}
+			else if (arguments[i].startsWith("-t") && (arguments[i].length() > 2)) {
+				threads = arguments[i].substring(2);
+			}
+
+			if (threads != null) {
+				try {
+					return Integer.parseInt(threads);
+				}
+				catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Chooses the values that are not fixed
+	 *
+	 * @return The plan
+	 * @throws IOException If no mapper fits in any node
+	 */
+	public Plan plan() throws IOException {
+
+		int indexMB = (int) ((this.indexBytes + (1 << 20) - 1) >> 20);
+
+		int maxThreads = 1;
+
+		for (int i = 0; i < this.cluster.getNumNodes(); i++) {
+			maxThreads = Math.max(maxThreads, Math.min(this.cluster.getNodeVcores(i), this.cluster.getMaxAllocationVcores()));
+		}
+
+		int firstThreads = (this.fixedThreads > 0) ? this.fixedThreads : 1;
+		int lastThreads = (this.fixedThreads > 0) ? this.fixedThreads : maxThreads;
+
+		Plan best = null;
+		long bestUsedThreads = -1;
+
+		for (int threads = firstThreads; threads <= lastThreads; threads++) {
+			int required = this.heapMB + indexMB + threads * this.threadMemoryMB + this.overheadMB;
+			int memory = (this.fixedMemoryMB > 0) ? this.fixedMemoryMB : this.roundToContainer(required);
+
+			if (memory > this.cluster.getMaxAllocationMB()) {
+				continue;
+			}
+
+			int mappers = 0;
+
+			for (int i = 0; i < this.cluster.getNumNodes(); i++) {
+				// A fixed number of threads may be above the cores of a node, and then it runs one mapper
+				int byCores = Math.max((threads <= this.cluster.getNodeVcores(i)) ? 0 : 1, this.cluster.getNodeVcores(i) / threads);
+
+				mappers += Math.min(byCores, this.cluster.getNodeMemoryMB(i) / memory);
+			}
+
+			long usedThreads = (long) mappers * threads;
+
+			// With a tie, more threads per mapper are better, as each mapper loads the index
+			if ((mappers > 0) && (usedThreads >= bestUsedThreads)) {
+				best = new Plan();
+				best.threads = threads;
+				best.containerMemoryMB = memory;
+				best.requiredMemoryMB = required;
+				best.concurrentMappers = mappers;
+				bestUsedThreads = usedThreads;
+			}
+		}
+
+		if (best == null) {
+			throw new IOException("A mapper with the index (" + indexMB + " MB) does not fit in any node of the cluster: " + this.cluster);
+		}
+
+		best.heapMB = this.heapMB;
+
+		if (this.fixedSplits > 0) {
+			best.splits = this.fixedSplits;
+		}
+		else {
+			// Rounded down, so no split is smaller than the minimum
+			long bySize = Math.max(1, this.inputBytes / this.minSplitBytes);
+			best.splits = (int) Math.max(1, Math.min((long) best.concurrentMappers * this.waves, bySize));
+		}
+
+		best.splitBytes = Math.max(1, this.inputBytes / best.splits);
+
+		return best;
+	}
+
+	private int roundToContainer(int memoryMB) {
+		int unit = this.cluster.getMinAllocationMB();
+		return ((memoryMB + unit - 1) / unit) * unit;
+	}
+
+	/**
+	 * @param indexBytes Size of the index files
+	 */
+	public void setIndexBytes(long indexBytes) {
+		this.indexBytes = indexBytes;
+	}
+
+	/**
+	 * @param inputBytes Size of the input
+	 */
+	public void setInputBytes(long inputBytes) {
+		this.inputBytes = inputBytes;
+	}
+
+	/**
+	 * @param heapMB Java heap of each mapper
+	 */
+	public void setHeapMB(int heapMB) {
+		this.heapMB = heapMB;
+	}
+
+	/**
+	 * @param threadMemoryMB Memory used by each bwa thread, besides the index
+	 */
+	public void setThreadMemoryMB(int threadMemoryMB) {
+		this.threadMemoryMB = threadMemoryMB;
+	}
+
+	/**
+	 * @param overheadMB Memory used by each mapper besides its heap, the index and the bwa threads
+	 */
+	public void setOverheadMB(int overheadMB) {
+		this.overheadMB = overheadMB;
+	}
+
+	/**
+	 * @param minSplitBytes Minimum size of a split
+	 */
+	public void setMinSplitBytes(long minSplitBytes) {
+		this.minSplitBytes = Math.max(1, minSplitBytes);
+	}
+
+	/**
+	 * @param waves Number of rounds of mappers the splits are made for
+	 */
+	public void setWaves(int waves) {
+		this.waves = Math.max(1, waves);
+	}
+
+	/**
+	 * @param splits Number of splits given by the user, or 0 to choose it
+	 */
+	public void setFixedSplits(int splits) {
+		this.fixedSplits = splits;
+	}
+
+	/**
+	 * @param threads Number of bwa threads given by the user, or 0 to choose it
+	 */
+	public void setFixedThreads(int threads) {
+		this.fixedThreads = threads;
+	}
+
+	/**
+	 * @param memoryMB Memory of the containers given by the user, or 0 to choose it
+	 */
+	public void setFixedMemoryMB(int memoryMB) {
+		this.fixedMemoryMB = memoryMB;
+	}
+
+}
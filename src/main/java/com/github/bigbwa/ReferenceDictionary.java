@@ -0,0 +1,167 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Names and lengths of the reference sequences of a bwa index, in the order
+ * bwa numbers them. It is read from the .ann file of the index, and gives the
+ * "@SQ" lines of the SAM header and the reference ids of BAM records.
+ *
+ * @author José M. Abuín
+ */
+public class ReferenceDictionary {
+
+	private List<String> names = new ArrayList<String>();
+	private List<Integer> lengths = new ArrayList<Integer>();
+
+	private HashMap<String,Integer> ids = new HashMap<String,Integer>();
+
+	/**
+	 * Reads the dictionary of an index
+	 *
+	 * @param indexPrefix Prefix for the index created by bwa
+	 * @return The sequences of the index
+	 * @throws IOException If the .ann file could not be read
+	 */
+	public static ReferenceDictionary fromIndex(String indexPrefix) throws IOException {
+		return read(new BufferedReader(new FileReader(indexPrefix + ".ann")), indexPrefix + ".ann");
+	}
+
+	/**
+	 * Reads the dictionary of an index in a Hadoop file system
+	 *
+	 * @param fs File system of the index
+	 * @param indexPrefix Prefix for the index created by bwa
+	 * @return The sequences of the index
+	 * @throws IOException If the .ann file could not be read
+	 */
+	public static ReferenceDictionary fromIndex(FileSystem fs, Path indexPrefix) throws IOException {
+		Path annFile = indexPrefix.suffix(".ann");
+
+		return read(new BufferedReader(new InputStreamReader(fs.open(annFile), "UTF-8")), annFile.toString());
+	}
+
+	private static ReferenceDictionary read(BufferedReader reader, String fileName) throws IOException {
+
+		ReferenceDictionary dictionary = new ReferenceDictionary();
+
+		try {
+			// First line: length of the packed sequence, number of sequences and seed
+			String line = reader.readLine();
+
+			if (line == null) {
+				throw new IOException("Empty file " + fileName);
+			}
+
+			int numSequences = Integer.parseInt(line.trim().split(" ")[1]);
+
+			// Two lines per sequence: "gi name [annotation]" and "offset length ambiguities"
+			for (int i = 0; i < numSequences; i++) {
+				String nameLine = reader.readLine();
+				String lengthLine = reader.readLine();
+
+				if ((nameLine == null) || (lengthLine == null)) {
+					throw new IOException("Truncated file " + fileName);
+				}
+
+				dictionary.add(nameLine.split(" ")[1], Integer.parseInt(lengthLine.trim().split(" ")[1]));
+			}
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Wrong format in " + fileName + ": " + e.toString(), e);
+		}
+		finally {
+			reader.close();
+		}
+
+		return dictionary;
+	}
+
+	/**
+	 * Adds a sequence at the end of the dictionary
+	 *
+	 * @param name Name of the sequence
+	 * @param length Length of the sequence
+	 */
+	public void add(String name, int length) {
+		this.ids.put(name, this.names.size());
+		this.names.add(name);
+		this.lengths.add(length);
+	}
+
+	/**
+	 * @return The number of sequences
+	 */
+	public int size() {
+		return this.names.size();
+	}
+
+	/**
+	 * @param id Position of the sequence in the dictionary
+	 * @return The name of the sequence
+	 */
+	public String getName(int id) {
+		return this.names.get(id);
+	}
+
+	/**
+	 * @param id Position of the sequence in the dictionary
+	 * @return The length of the sequence
+	 */
+	public int getLength(int id) {
+		return this.lengths.get(id);
+	}
+
+	/**
+	 * @param name Name of a sequence
+	 * @return The position of the sequence in the dictionary, or -1 if it is not there
+	 */
+	public int getId(String name) {
+		Integer id = this.ids.get(name);
+
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * @return The "@SQ" lines for the SAM header, each one ended by a new line
+	 */
+	public String toSamHeader() {
+
+		StringBuilder header = new StringBuilder();
+
+		for (int i = 0; i < this.names.size(); i++) {
+			header.append("@SQ\tSN:").append(this.names.get(i)).append("\tLN:").append(this.lengths.get(i)).append('\n');
+		}
+
+		return header.toString();
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the SAM header and the records given by bwa to different streams.
+ * The header is made of the lines at the start of the output that begin with
+ * '@'. Once the first record arrives, the rest of the output goes straight to
+ * the records stream, so only the header lines are looked at.
+ *
+ * @author José M. Abuín
+ */
+public class SamHeaderSplitter extends OutputStream {
+
+	private OutputStream header;
+	private OutputStream records;
+
+	private boolean inHeader = true;
+	private boolean lineStart = true;
+
+	private long headerLength = 0;
+
+	/**
+	 * @param header Stream for the header lines. It is closed with this one
+	 * @param records Stream for the records. It is closed with this one
+	 */
+	public SamHeaderSplitter(OutputStream header, OutputStream records) {
+		this.header = header;
+		this.records = records;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+
+		int end = offset + length;
+
+		while (this.inHeader && (offset < end)) {
+			if (this.lineStart) {
+				if (data[offset] != '@') {
+					this.inHeader = false;
+					break;
+				}
+
+				this.lineStart = false;
+			}
+
+			int newLine = offset;
+
+			while ((newLine < end) && (data[newLine] != '\n')) {
+				newLine++;
+			}
+
+			if (newLine < end) {
+				newLine++;
+				this.lineStart = true;
+			}
+
+			this.header.write(data, offset, newLine - offset);
+			this.headerLength += newLine - offset;
+
+			offset = newLine;
+		}
+
+		if (offset < end) {
+			this.records.write(data, offset, end - offset);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.header.flush();
+		this.records.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.header.close();
+		}
+		finally {
+			this.records.close();
+		}
+	}
+
+	/**
+	 * @return The length of the header, which is the offset of the first record in the SAM output
+	 */
+	public long getHeaderLength() {
+		return this.headerLength;
+	}
+
+}
@@ -0,0 +1,369 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Joins the SAM outputs of the mappers into one file without parsing them.
+ * Each mapper writes its header and its records to separate files (see
+ * SamHeaderSplitter). The headers are merged into one, which is written to
+ * the final file, and the record files are appended to it as they are: with
+ * HDFS concat, which only moves their blocks, or else by copying them with
+ * several threads reading chunks ahead of the one being written.
+ *
+ * The merge is written to a hidden file next to the target and renamed to
+ * it at the end, and the files of the mappers are only removed after that,
+ * so a merge that fails can be run again. As HDFS concat moves the record
+ * files, a merge that finds them gone takes the hidden file that got them,
+ * or the target if it was already renamed.
+ *
+ * @author José M. Abuín
+ */
+public class SamOutputMerger {
+
+	private static final Log LOG = LogFactory.getLog(SamOutputMerger.class);
+
+	private FileSystem fs;
+
+	private int threads;
+	private int chunkSize;
+
+	private boolean concatenated = false;
+
+	/**
+	 * @param fs File system of the outputs
+	 * @param threads Number of threads reading the record files when they are copied
+	 * @param chunkSize Bytes read by each thread at once
+	 */
+	public SamOutputMerger(FileSystem fs, int threads, int chunkSize) {
+		this.fs = fs;
+		this.threads = Math.max(1, threads);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param records Path of the records file of a mapper
+	 * @return The path of the header file of the same mapper
+	 */
+	public static Path getHeaderPath(Path records) {
+		return new Path(records.getParent(), records.getName() + ".header");
+	}
+
+	/**
+	 * Writes the merged header and the records of all the mappers to the target. The files of the mappers are removed
+	 * once the target is complete
+	 *
+	 * @param records Record files of the mappers, in the order their records go in the target
+	 * @param target Final SAM file
+	 * @throws IOException If the files could not be read or written
+	 */
+	public void merge(List<Path> records, Path target) throws IOException {
+
+		this.concatenated = false;
+
+		FileStatus[] previousMerges = this.fs.globStatus(new Path(target.getParent(), "." + target.getName() + ".merging-*"));
+
+		for (Path recordsPath : records) {
+			if (!this.fs.exists(recordsPath)) {
+				this.resume(records, target, previousMerges);
+				return;
+			}
+		}
+
+		ArrayList<String> headers = new ArrayList<String>();
+
+		for (Path recordsPath : records) {
+			headers.add(this.readHeader(getHeaderPath(recordsPath)));
+		}
+
+		byte[] header = mergeHeaders(headers).getBytes("UTF-8");
+
+		// Empty files can not be concatenated, and they add nothing
+		ArrayList<Path> sources = new ArrayList<Path>();
+
+		for (Path recordsPath : records) {
+			if (this.fs.getFileStatus(recordsPath).getLen() > 0) {
+				sources.add(recordsPath);
+			}
+		}
+
+		// The hidden file is in the directory of the target, as HDFS only concatenates files of the same directory
+		Path merging = new Path(target.getParent(), "." + target.getName() + ".merging-" + UUID.randomUUID());
+
+		OutputStream out = this.fs.create(merging, true);
+
+		try {
+			out.write(header);
+		}
+		finally {
+			out.close();
+		}
+
+		if (!sources.isEmpty()) {
+			try {
+				this.fs.concat(merging, sources.toArray(new Path[sources.size()]));
+				this.concatenated = true;
+			}
+			catch (UnsupportedOperationException e) {
+				LOG.info("The file system can not concatenate files. The mapper outputs are copied");
+			}
+			catch (IOException e) {
+				LOG.warn("The mapper outputs could not be concatenated. They are copied: " + e.toString());
+			}
+			catch (IllegalArgumentException e) {
+				LOG.warn("The mapper outputs could not be concatenated. They are copied: " + e.toString());
+			}
+		}
+
+		if (!this.concatenated) {
+			out = this.fs.create(merging, true);
+
+			try {
+				out.write(header);
+				this.copy(sources, out);
+			}
+			finally {
+				out.close();
+			}
+		}
+
+		this.commit(merging, records, target, previousMerges);
+	}
+
+	/**
+	 * Finishes a merge whose record files were already moved by HDFS concat, or removed after the target was written
+	 */
+	private void resume(List<Path> records, Path target, FileStatus[] previousMerges) throws IOException {
+
+		// Concat is atomic, so the largest hidden file is the one that got the records
+		FileStatus concatenatedMerge = null;
+
+		if (previousMerges != null) {
+			for (FileStatus previousMerge : previousMerges) {
+				if ((concatenatedMerge == null) || (previousMerge.getLen() > concatenatedMerge.getLen())) {
+					concatenatedMerge = previousMerge;
+				}
+			}
+		}
+
+		if (concatenatedMerge != null) {
+			LOG.info("Mapper outputs already concatenated to " + concatenatedMerge.getPath() + ". It is renamed to " + target);
+
+			this.concatenated = true;
+			this.commit(concatenatedMerge.getPath(), records, target, previousMerges);
+		}
+		else if (this.fs.exists(target)) {
+			LOG.info("Mapper outputs already merged into " + target);
+
+			this.removeSources(records);
+		}
+		else {
+			throw new FileNotFoundException("Some mapper outputs to merge into " + target + " do not exist");
+		}
+	}
+
+	/**
+	 * Renames a complete merge to the target, and removes the files of the mappers and the other hidden files
+	 */
+	private void commit(Path merging, List<Path> records, Path target, FileStatus[] previousMerges) throws IOException {
+
+		this.fs.delete(target, false);
+
+		if (!this.fs.rename(merging, target)) {
+			throw new IOException("Could not rename " + merging + " to " + target);
+		}
+
+		this.removeSources(records);
+
+		if (previousMerges != null) {
+			for (FileStatus previousMerge : previousMerges) {
+				this.fs.delete(previousMerge.getPath(), false);
+			}
+		}
+	}
+
+	private void removeSources(List<Path> records) throws IOException {
+		for (Path recordsPath : records) {
+			this.fs.delete(recordsPath, false);
+			this.fs.delete(getHeaderPath(recordsPath), false);
+		}
+	}
+
+	/**
+	 * @return Whether the last merge was done with HDFS concat
+	 */
+	public boolean isConcatenated() {
+		return this.concatenated;
+	}
+
+	/**
+	 * Merges the headers of several mappers. The first header is kept as it is, and the read groups, programs and
+	 * comments of the rest are added if they are not in it. Programs and read groups are compared by their ID
+	 *
+	 * @param headers SAM headers of the mappers
+	 * @return The merged header
+	 */
+	public static String mergeHeaders(List<String> headers) {
+
+		StringBuilder merged = new StringBuilder();
+		HashSet<String> seen = new HashSet<String>();
+
+		for (int i = 0; i < headers.size(); i++) {
+			for (String line : headers.get(i).split("\n")) {
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				String type = (line.length() >= 3) ? line.substring(0, 3) : line;
+				String key = line;
+
+				if (type.equals("@RG") || type.equals("@PG")) {
+					for (String field : line.split("\t")) {
+						if (field.startsWith("ID:")) {
+							key = type + "\t" + field;
+						}
+					}
+				}
+
+				if ((i > 0) && !type.equals("@RG") && !type.equals("@PG") && !type.equals("@CO")) {
+					continue;
+				}
+
+				if (seen.add(key)) {
+					merged.append(line).append('\n');
+				}
+			}
+		}
+
+		return merged.toString();
+	}
+
+	private String readHeader(Path headerPath) throws IOException {
+
+		if (!this.fs.exists(headerPath)) {
+			return "";
+		}
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		IOUtils.copyBytes(this.fs.open(headerPath), header, 4096, true);
+
+		return new String(header.toByteArray(), "UTF-8");
+	}
+
+	/**
+	 * Copies the files in order. The pool reads the next chunks while the current one is written
+	 */
+	private void copy(List<Path> sources, OutputStream out) throws IOException {
+
+		ExecutorService pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "BigBWA-merge");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		ArrayDeque<Future<byte[]>> pendingChunks = new ArrayDeque<Future<byte[]>>();
+
+		try {
+			for (Path source : sources) {
+				FileStatus status = this.fs.getFileStatus(source);
+
+				for (long offset = 0; offset < status.getLen(); offset += this.chunkSize) {
+					final Path path = source;
+					final long position = offset;
+					final int length = (int) Math.min(this.chunkSize, status.getLen() - offset);
+
+					pendingChunks.add(pool.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws IOException {
+							return readChunk(path, position, length);
+						}
+					}));
+
+					while (pendingChunks.size() > 2 * this.threads) {
+						out.write(waitChunk(pendingChunks.poll()));
+					}
+				}
+			}
+
+			while (!pendingChunks.isEmpty()) {
+				out.write(waitChunk(pendingChunks.poll()));
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private byte[] readChunk(Path path, long position, int length) throws IOException {
+
+		byte[] chunk = new byte[length];
+
+		FSDataInputStream in = this.fs.open(path);
+
+		try {
+			in.readFully(position, chunk);
+		}
+		finally {
+			in.close();
+		}
+
+		return chunk;
+	}
+
+	private static byte[] waitChunk(Future<byte[]> chunk) throws IOException {
+		try {
+			return chunk.get();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while merging the mapper outputs");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Could not read a mapper output", e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Output of a mapper in the coordinate sort. The SAM text of bwa is encoded
+ * as BAM records, which are sent to the reducers keyed by their reference
+ * and position, instead of being written to a file. The SAM header of the
+ * mapper is sent with an AlignmentKey.HEADER key, so the first reducer gets
+ * it before any record.
+ *
+ * @author José M. Abuín
+ */
+public class SortedAlignmentOutput extends BamOutputStream {
+
+	private TaskInputOutputContext<?, ?, ? super AlignmentKey, ? super BytesWritable> context;
+
+	private AlignmentKey key = new AlignmentKey();
+	private BytesWritable value = new BytesWritable();
+
+	private long order;
+
+	/**
+	 * @param context Context of the map task
+	 * @param dictionary Sequences of the reference, or null to take them from the "@SQ" lines of the SAM header
+	 * @param taskId Number of the map task. It goes in the upper bits of the order of the records
+	 */
+	public SortedAlignmentOutput(TaskInputOutputContext<?, ?, ? super AlignmentKey, ? super BytesWritable> context, ReferenceDictionary dictionary, int taskId) {
+		super(dictionary);
+		this.context = context;
+		this.order = (long) taskId << 40;
+	}
+
+	@Override
+	protected void writeHeader(String samHeader) throws IOException {
+
+		byte[] text = samHeader.getBytes("UTF-8");
+
+		this.value.set(text, 0, text.length);
+		this.emit(AlignmentKey.HEADER, 0);
+	}
+
+	@Override
+	protected void writeRecord(byte[] record, int length) throws IOException {
+
+		int reference = BamRecordEncoder.getRefId(record);
+
+		this.value.set(record, 0, length);
+		this.emit((reference < 0) ? AlignmentKey.UNMAPPED : reference, BamRecordEncoder.getPosition(record));
+	}
+
+	private void emit(int reference, int position) throws IOException {
+
+		this.key.set(reference, position, this.order++);
+
+		try {
+			this.context.write(this.key, this.value);
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while writing an alignment");
+		}
+	}
+
+}
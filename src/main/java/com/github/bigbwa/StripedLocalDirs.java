@@ -0,0 +1,301 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package com.github.bigbwa;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Local directories where a mapper writes its temporary files: the FASTQ
+ * files of each mate, the .sai files of aln and the SAM output of bwa.
+ * They are the local directories of the YARN container (LOCAL_DIRS), which
+ * are usually in different disks, or the ones in "tmpDirs", and each file
+ * goes to the directory with the fewest files of the task among the ones
+ * with enough free space for it, so the files of a task are read and
+ * written in different disks. Tasks start at different directories, so the
+ * tasks of a node are spread over all of them. Without several directories,
+ * the files go to "hadoop.tmp.dir" as before.
+ *
+ * The bytes written to and read from each directory, and the time spent in
+ * it, are published as counters of the group "BigBWA local dirs", as
+ * "DIR3_WRITE_BYTES" for the fourth directory. The time of a bwa command is
+ * added to each directory it reads or writes, so the bytes divided by the
+ * time give the throughput of each disk while it was in use.
+ *
+ * @author José M. Abuín
+ */
+public class StripedLocalDirs {
+
+	private static final Log LOG = LogFactory.getLog(StripedLocalDirs.class);
+
+	public static final String COUNTER_GROUP = "BigBWA local dirs";
+
+	private List<File> dirs = new ArrayList<File>();
+
+	// Index of each directory in the list of the configuration, for the counter names
+	private List<Integer> ids = new ArrayList<Integer>();
+
+	private int start;
+	private long minFreeBytes;
+
+	private int[] files;
+	private long[] writeBytes;
+	private long[] readBytes;
+	private long[] ioNanos;
+
+	// Directory of each file placed
+	private HashMap<String, Integer> placed = new HashMap<String, Integer>();
+
+	/**
+	 * Finds the directories of the task
+	 *
+	 * @param conf Job configuration. "tmpDirs" gives the directories instead of the ones of YARN, "tmpStriping" set to
+	 *             false uses only the default directory, and "tmpMinFreeMB" is the space left free in each directory
+	 * @param defaultDir Directory used when there are no others
+	 * @param task Number of the task, to choose the first directory
+	 */
+	public StripedLocalDirs(Configuration conf, String defaultDir, int task) {
+
+		String[] names = null;
+
+		if (conf.get("tmpDirs") != null) {
+			names = conf.getTrimmedStrings("tmpDirs");
+		}
+		else if (conf.getBoolean("tmpStriping", true) && (System.getenv("LOCAL_DIRS") != null)) {
+			names = System.getenv("LOCAL_DIRS").split(",");
+		}
+
+		if (names != null) {
+			for (int i = 0; i < names.length; i++) {
+				File dir = new File(names[i].trim());
+
+				if ((dir.isDirectory() || dir.mkdirs()) && dir.canWrite()) {
+					this.dirs.add(dir);
+					this.ids.add(i);
+				}
+				else {
+					LOG.warn("Local directory " + dir + " can not be written. It is not used");
+				}
+			}
+		}
+
+		if (this.dirs.isEmpty()) {
+			this.dirs.add(new File(defaultDir));
+			this.ids.add(0);
+		}
+
+		this.start = task % this.dirs.size();
+		this.minFreeBytes = conf.getLong("tmpMinFreeMB", 1024) << 20;
+
+		this.files = new int[this.dirs.size()];
+		this.writeBytes = new long[this.dirs.size()];
+		this.readBytes = new long[this.dirs.size()];
+		this.ioNanos = new long[this.dirs.size()];
+
+		if (this.dirs.size() > 1) {
+			LOG.info("Temporary files striped over " + this.dirs);
+		}
+	}
+
+	/**
+	 * Chooses the directory of a file
+	 *
+	 * @param name Name of the file
+	 * @param expectedBytes Expected size of the file, to check the free space
+	 * @return The path of the file
+	 */
+	public String place(String name, long expectedBytes) {
+
+		int chosen = -1;
+
+		// With one directory there is nothing to choose
+		if (this.dirs.size() == 1) {
+			chosen = 0;
+		}
+		else {
+			for (int i = 0; i < this.dirs.size(); i++) {
+				int dir = (this.start + i) % this.dirs.size();
+
+				if (this.dirs.get(dir).getUsableSpace() < expectedBytes + this.minFreeBytes) {
+					continue;
+				}
+
+				if ((chosen < 0) || (this.files[dir] < this.files[chosen])) {
+					chosen = dir;
+				}
+			}
+		}
+
+		// No directory has enough space. The file goes to the one with the most
+		if (chosen < 0) {
+			chosen = 0;
+
+			for (int dir = 1; dir < this.dirs.size(); dir++) {
+				if (this.dirs.get(dir).getUsableSpace() > this.dirs.get(chosen).getUsableSpace()) {
+					chosen = dir;
+				}
+			}
+
+			LOG.warn("No local directory has " + ((expectedBytes + this.minFreeBytes) >> 20) + " MB free for " + name + ". It goes to "
+					+ this.dirs.get(chosen) + ", with " + (this.dirs.get(chosen).getUsableSpace() >> 20) + " MB");
+		}
+
+		this.files[chosen]++;
+
+		String path = new File(this.dirs.get(chosen), name).getPath();
+		this.placed.put(path, chosen);
+
+		return path;
+	}
+
+	/**
+	 * Opens a file placed in the directories, counting the bytes written and the time spent writing them
+	 *
+	 * @param path Path given by place()
+	 * @return The stream of the file
+	 * @throws FileNotFoundException If the file could not be created
+	 */
+	public FileOutputStream create(String path) throws FileNotFoundException {
+
+		final int dir = this.getDir(path);
+
+		return new FileOutputStream(path) {
+
+			@Override
+			public void write(byte[] data, int offset, int length) throws IOException {
+
+				long startTime = System.nanoTime();
+
+				super.write(data, offset, length);
+
+				addWrite(dir, length, System.nanoTime() - startTime);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				super.write(b);
+				addWrite(dir, 1, 0);
+			}
+		};
+	}
+
+	/**
+	 * Adds a bwa command to the counters of the directories of the files it reads and writes
+	 *
+	 * @param parameters Parameters of the command. The file after "-f" is written and the rest are read
+	 * @param millis Time of the command
+	 */
+	public void addCommand(String[] parameters, long millis) {
+
+		boolean[] used = new boolean[this.dirs.size()];
+
+		for (int i = 0; i < parameters.length; i++) {
+			Integer dir = this.placed.get(parameters[i]);
+
+			if (dir == null) {
+				continue;
+			}
+
+			// Named pipes do not use the disk
+			File file = new File(parameters[i]);
+
+			if (!file.isFile()) {
+				continue;
+			}
+
+			if ((i > 0) && parameters[i - 1].equals("-f")) {
+				this.writeBytes[dir] += file.length();
+			}
+			else {
+				this.readBytes[dir] += file.length();
+			}
+
+			used[dir] = true;
+		}
+
+		for (int dir = 0; dir < used.length; dir++) {
+			if (used[dir]) {
+				this.ioNanos[dir] += millis * 1000000;
+			}
+		}
+	}
+
+	/**
+	 * Adds a file read by the task, as when it is copied to HDFS
+	 *
+	 * @param path Path given by place()
+	 * @param millis Time of the read
+	 */
+	public void addRead(String path, long millis) {
+
+		Integer dir = this.placed.get(path);
+
+		if (dir != null) {
+			this.readBytes[dir] += new File(path).length();
+			this.ioNanos[dir] += millis * 1000000;
+		}
+	}
+
+	/**
+	 * Sets the counters of the directories used by the task
+	 *
+	 * @param context The task context
+	 */
+	public void publishCounters(TaskInputOutputContext<?, ?, ?, ?> context) {
+
+		for (int dir = 0; dir < this.dirs.size(); dir++) {
+			if (this.files[dir] == 0) {
+				continue;
+			}
+
+			String prefix = "DIR" + this.ids.get(dir) + "_";
+
+			context.getCounter(COUNTER_GROUP, prefix + "WRITE_BYTES").increment(this.writeBytes[dir]);
+			context.getCounter(COUNTER_GROUP, prefix + "READ_BYTES").increment(this.readBytes[dir]);
+			context.getCounter(COUNTER_GROUP, prefix + "IO_MS").increment(this.ioNanos[dir] / 1000000);
+
+			LOG.info("Local directory " + this.dirs.get(dir) + ": " + this.files[dir] + " files, " + (this.writeBytes[dir] >> 20) + " MB written, "
+					+ (this.readBytes[dir] >> 20) + " MB read in " + (this.ioNanos[dir] / 1000000) + " ms");
+		}
+	}
+
+	private int getDir(String path) {
+
+		Integer dir = this.placed.get(path);
+
+		return (dir == null) ? 0 : dir;
+	}
+
+	private synchronized void addWrite(int dir, long bytes, long nanos) {
+		this.writeBytes[dir] += bytes;
+		this.ioNanos[dir] += nanos;
+	}
+
+}
@@ -2,6 +2,7 @@
 #include <stdio.h>
 #include <zlib.h>
 #include <assert.h>
+#include <sys/mman.h>
 #include "bntseq.h"
 #include "bwa.h"
 #include "ksw.h"
@@ -14,8 +15,7 @@
 #endif
 
 int bwa_verbose = 3;
-char bwa_rg_id[256];
-char *bwa_pg;
+// bwa_rg_id and bwa_pg are in the thread context (bwa_thread.h)
 
 /************************
  * Batch FASTA/Q reader *
@@ -278,14 +278,28 @@ bwaidx_t *bwa_idx_load_from_disk(const char *hint, int which)
 	return idx;
 }
 
+bwaidx_t *(*bwa_idx_cache_get)(const char *hint) = 0;
+void (*bwa_idx_cache_put)(bwaidx_t *idx) = 0;
+
+bwaidx_t *bwa_idx_load_cached(const char *hint)
+{
+	return bwa_idx_cache_get? bwa_idx_cache_get(hint) : 0;
+}
+
 bwaidx_t *bwa_idx_load(const char *hint, int which)
 {
+	bwaidx_t *idx;
+	if ((idx = bwa_idx_load_cached(hint)) != 0) return idx;
 	return bwa_idx_load_from_disk(hint, which);
 }
 
 void bwa_idx_destroy(bwaidx_t *idx)
 {
 	if (idx == 0) return;
+	if (idx->is_cached && bwa_idx_cache_put) {
+		bwa_idx_cache_put(idx);
+		return;
+	}
 	if (idx->mem == 0) {
 		if (idx->bwt) bwt_destroy(idx->bwt);
 		if (idx->bns) bns_destroy(idx->bns);
@@ -293,6 +307,7 @@ void bwa_idx_destroy(bwaidx_t *idx)
 	} else {
 		free(idx->bwt); free(idx->bns->anns); free(idx->bns);
 		if (!idx->is_shm) free(idx->mem);
+		else munmap(idx->mem, idx->l_mem);
 	}
 	free(idx);
 }
@@ -370,7 +385,6 @@ int bwa_idx2mem(bwaidx_t *idx)
 void bwa_print_sam_hdr(const bntseq_t *bns, const char *hdr_line)
 {
 	int i, n_SQ = 0;
-	extern char *bwa_pg;
 	if (hdr_line) {
 		const char *p = hdr_line;
 		while ((p = strstr(p, "@SQ\t")) != 0) {
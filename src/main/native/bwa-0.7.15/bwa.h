@@ -23,6 +23,7 @@ typedef struct {
 	uint8_t  *pac; // the actual 2-bit encoded reference sequences with 'N' converted to a random base
 
 	int    is_shm;
+	int    is_cached; // owned by an index cache; bwa_idx_destroy() gives it back
 	int64_t l_mem;
 	uint8_t  *mem;
 } bwaidx_t;
@@ -33,7 +34,12 @@ typedef struct {
 } bseq1_t;
 
 extern int bwa_verbose;
-extern char bwa_rg_id[256];
+
+/* Optional index cache. When set, bwa_idx_cache_get() returns a fully loaded
+ * index (BWA_IDX_ALL) marked as is_cached, or 0 to load it as usual, and
+ * bwa_idx_destroy() hands cached indexes to bwa_idx_cache_put(). */
+extern bwaidx_t *(*bwa_idx_cache_get)(const char *hint);
+extern void (*bwa_idx_cache_put)(bwaidx_t *idx);
 
 #ifdef __cplusplus
 extern "C" {
@@ -52,8 +58,12 @@ extern "C" {
 	bwt_t *bwa_idx_load_bwt(const char *hint);
 
 	bwaidx_t *bwa_idx_load_from_shm(const char *hint);
+	int bwa_shm_stage(bwaidx_t *idx, const char *hint, const char *tmpfn);
+	int bwa_shm_test(const char *hint);
+	int bwa_shm_drop(const char *hint);
 	bwaidx_t *bwa_idx_load_from_disk(const char *hint, int which);
 	bwaidx_t *bwa_idx_load(const char *hint, int which);
+	bwaidx_t *bwa_idx_load_cached(const char *hint);
 	void bwa_idx_destroy(bwaidx_t *idx);
 	int bwa_idx2mem(bwaidx_t *idx);
 	int bwa_mem2idx(int64_t l_mem, uint8_t *mem, bwaidx_t *idx);
@@ -0,0 +1,162 @@
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "bwa_thread.h"
+
+/* See bwa_thread.h. This file works with the real symbols, so the names
+ * redefined for the rest of bwa are restored. */
+#undef stdout
+#undef getopt
+#undef optarg
+#undef optind
+#undef opterr
+#undef optopt
+#undef bwa_pg
+#undef bwa_rg_id
+#undef pthread_create
+
+static bwa_thread_context_t default_context = { 0, 0, {0}, 0, 1, 1, 0, 0, {0}, -2, 0 };
+static __thread bwa_thread_context_t *thread_context = 0;
+
+typedef struct {
+	void *(*start)(void *);
+	void *arg;
+	bwa_thread_context_t *ctx;
+} bwa_thread_start_t;
+
+void bwa_thread_context_init(bwa_thread_context_t *ctx, FILE *out)
+{
+	memset(ctx, 0, sizeof(bwa_thread_context_t));
+	ctx->out = out;
+	ctx->optind = 1;
+	ctx->opterr = 1;
+	ctx->sam_field = -2;
+}
+
+void bwa_thread_set_context(bwa_thread_context_t *ctx)
+{
+	thread_context = ctx;
+}
+
+bwa_thread_context_t *bwa_thread_context(void)
+{
+	return thread_context? thread_context : &default_context;
+}
+
+FILE *bwa_thread_stdout(void)
+{
+	bwa_thread_context_t *ctx = bwa_thread_context();
+	return ctx->out? ctx->out : stdout;
+}
+
+int bwa_thread_closes_stdout(void)
+{
+	return bwa_thread_context()->out == 0;
+}
+
+void bwa_thread_stat_add(int stat, long value)
+{
+	__sync_fetch_and_add(&bwa_thread_context()->stats[stat], value);
+}
+
+long bwa_thread_nanotime(void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+static void bwa_thread_end_record(bwa_thread_context_t *ctx)
+{
+	int flag = ctx->sam_flag;
+	if (ctx->sam_field < 1 || (flag & 0x900)) return; // header, or secondary and supplementary alignments
+	__sync_fetch_and_add(&ctx->stats[BWA_STAT_RECORDS], 1);
+	if (flag & 0x4) __sync_fetch_and_add(&ctx->stats[BWA_STAT_UNMAPPED], 1);
+	else {
+		__sync_fetch_and_add(&ctx->stats[BWA_STAT_MAPPED], 1);
+		if ((flag & 0x1) && (flag & 0x2)) __sync_fetch_and_add(&ctx->stats[BWA_STAT_PROPER_PAIRS], 1);
+	}
+}
+
+/* Only the FLAG field is read. A record is counted when its line ends */
+void bwa_thread_count_sam(bwa_thread_context_t *ctx, const char *buf, size_t len)
+{
+	size_t i;
+
+	__sync_fetch_and_add(&ctx->stats[BWA_STAT_SAM_BYTES], (long)len);
+	for (i = 0; i < len; ++i) {
+		char c = buf[i];
+		if (c == '\n') {
+			bwa_thread_end_record(ctx);
+			ctx->sam_field = -2, ctx->sam_flag = 0;
+			continue;
+		}
+		if (ctx->sam_field == -2) ctx->sam_field = c == '@'? -1 : 0; // first character of a line
+		if (ctx->sam_field < 0) continue;
+		if (c == '\t') ++ctx->sam_field;
+		else if (ctx->sam_field == 1 && c >= '0' && c <= '9') ctx->sam_flag = ctx->sam_flag * 10 + (c - '0');
+	}
+}
+
+/* POSIX getopt(), without the argument permutation of glibc. Options must go before the other arguments */
+int bwa_thread_getopt(int argc, char *const argv[], const char *optstring)
+{
+	bwa_thread_context_t *ctx = bwa_thread_context();
+	const char *spec;
+	char *arg;
+	int c;
+
+	ctx->optarg = 0;
+	if (ctx->optpos == 0) { // start of a new argument
+		if (ctx->optind >= argc || argv[ctx->optind] == 0 || argv[ctx->optind][0] != '-' || argv[ctx->optind][1] == 0)
+			return -1;
+		if (strcmp(argv[ctx->optind], "--") == 0) {
+			++ctx->optind;
+			return -1;
+		}
+		ctx->optpos = 1;
+	}
+	arg = argv[ctx->optind];
+	c = (unsigned char)arg[ctx->optpos++];
+	spec = c == ':'? 0 : strchr(optstring, c);
+	if (spec == 0) {
+		ctx->optopt = c;
+		if (ctx->opterr && optstring[0] != ':') fprintf(stderr, "%s: invalid option -- '%c'\n", argv[0], c);
+		if (arg[ctx->optpos] == 0) ++ctx->optind, ctx->optpos = 0;
+		return '?';
+	}
+	if (spec[1] == ':') { // the option takes an argument, in this one or in the next one
+		if (arg[ctx->optpos] != 0) ctx->optarg = &arg[ctx->optpos];
+		else if (ctx->optind + 1 < argc) ctx->optarg = argv[++ctx->optind];
+		else {
+			ctx->optopt = c;
+			++ctx->optind, ctx->optpos = 0;
+			if (optstring[0] == ':') return ':';
+			if (ctx->opterr) fprintf(stderr, "%s: option requires an argument -- '%c'\n", argv[0], c);
+			return '?';
+		}
+		++ctx->optind, ctx->optpos = 0;
+	} else if (arg[ctx->optpos] == 0) ++ctx->optind, ctx->optpos = 0;
+	return c;
+}
+
+static void *bwa_thread_start(void *data)
+{
+	bwa_thread_start_t s = *(bwa_thread_start_t*)data;
+	free(data);
+	thread_context = s.ctx;
+	return s.start(s.arg);
+}
+
+/* pthread_create() for bwa threads. The new thread works in the same context as its creator */
+int bwa_thread_create(pthread_t *thread, const pthread_attr_t *attr, void *(*start)(void *), void *arg)
+{
+	bwa_thread_start_t *s;
+	int ret;
+
+	s = (bwa_thread_start_t*)malloc(sizeof(bwa_thread_start_t));
+	s->start = start, s->arg = arg, s->ctx = thread_context;
+	ret = pthread_create(thread, attr, bwa_thread_start, s);
+	if (ret != 0) free(s);
+	return ret;
+}
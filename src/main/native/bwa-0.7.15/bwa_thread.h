@@ -0,0 +1,90 @@
+#ifndef BWA_THREAD_H
+#define BWA_THREAD_H
+
+/* State that bwa keeps in globals (stdout, the getopt() parser, @PG and
+ * read group) is moved to a context, so that BigBWA can run several bwa
+ * commands at the same time in one process. Each thread uses the context
+ * set with bwa_thread_set_context(), which threads created by bwa inherit,
+ * or a global default one as standalone bwa does.
+ *
+ * This header is included before every bwa source file (-include in the
+ * Makefile), after the system headers whose names it redefines. Code that
+ * only calls the functions defines BWA_THREAD_NO_MACROS before including it. */
+
+#include <stdio.h>
+#include <unistd.h>
+#include <getopt.h>
+#include <pthread.h>
+
+/* Statistics of a command, returned to Java. Times are in nanoseconds, added over all the threads of the command */
+enum {
+	BWA_STAT_RECORDS,        // primary SAM records, one per read
+	BWA_STAT_MAPPED,
+	BWA_STAT_UNMAPPED,
+	BWA_STAT_PROPER_PAIRS,   // reads mapped in a proper pair
+	BWA_STAT_SAM_BYTES,
+	BWA_STAT_SEED_NS,        // bwa mem: finding and chaining seeds
+	BWA_STAT_EXTEND_NS,      // bwa mem: extending the chains
+	BWA_STAT_ISIZE_BATCHES,  // batches where the insert size was estimated
+	BWA_STAT_ISIZE_AVG,      // sum of the estimated averages
+	BWA_STAT_ISIZE_STD,      // sum of the estimated standard deviations
+	BWA_STAT_INDEX_LOAD_NS,
+	BWA_NUM_STATS
+};
+
+typedef struct {
+	FILE *out;          // output of the command, or 0 for the process stdout
+	char *pg;           // @PG line of the command
+	char rg_id[256];    // read group of the records
+	// getopt() state
+	char *optarg;
+	int optind, opterr, optopt;
+	int optpos;         // position in the current group of options ("-ab")
+	long stats[BWA_NUM_STATS];
+	// SAM parser state, as records may be split between two writes
+	int sam_field;      // field of the current line, -1 in a header line and -2 at the start of a line
+	int sam_flag;
+} bwa_thread_context_t;
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+	/* Initializes a context for a new command. Its output is "out", which the command does not close */
+	void bwa_thread_context_init(bwa_thread_context_t *ctx, FILE *out);
+
+	/* Sets the context of the calling thread. With 0, the thread goes back to the default one */
+	void bwa_thread_set_context(bwa_thread_context_t *ctx);
+
+	bwa_thread_context_t *bwa_thread_context(void);
+	FILE *bwa_thread_stdout(void);
+	int bwa_thread_closes_stdout(void);
+
+	/* Adds to a statistic of the current context. It can be called from several threads at the same time */
+	void bwa_thread_stat_add(int stat, long value);
+	long bwa_thread_nanotime(void);
+
+	/* Counts the records of a piece of SAM output written by a command */
+	void bwa_thread_count_sam(bwa_thread_context_t *ctx, const char *buf, size_t len);
+
+	int bwa_thread_getopt(int argc, char *const argv[], const char *optstring);
+	int bwa_thread_create(pthread_t *thread, const pthread_attr_t *attr, void *(*start)(void *), void *arg);
+
+#ifdef __cplusplus
+}
+#endif
+
+#ifndef BWA_THREAD_NO_MACROS
+#undef stdout
+#define stdout (bwa_thread_stdout())
+#define getopt(argc, argv, optstring) bwa_thread_getopt(argc, argv, optstring)
+#define optarg (bwa_thread_context()->optarg)
+#define optind (bwa_thread_context()->optind)
+#define opterr (bwa_thread_context()->opterr)
+#define optopt (bwa_thread_context()->optopt)
+#define bwa_pg (bwa_thread_context()->pg)
+#define bwa_rg_id (bwa_thread_context()->rg_id)
+#define pthread_create(thread, attr, start, arg) bwa_thread_create(thread, attr, start, arg)
+#endif
+
+#endif
@@ -1019,15 +1019,19 @@ void mem_reg2sam(const mem_opt_t *opt, const bntseq_t *bns, const uint8_t *pac,
 mem_alnreg_v mem_align1_core(const mem_opt_t *opt, const bwt_t *bwt, const bntseq_t *bns, const uint8_t *pac, int l_seq, char *seq, void *buf)
 {
 	int i;
+	long t_seed, t_extend;
 	mem_chain_v chn;
 	mem_alnreg_v regs;
 
 	for (i = 0; i < l_seq; ++i) // convert to 2-bit encoding if we have not done so
 		seq[i] = seq[i] < 4? seq[i] : nst_nt4_table[(int)seq[i]];
 
+	t_seed = bwa_thread_nanotime();
 	chn = mem_chain(opt, bwt, bns, l_seq, (uint8_t*)seq, buf);
 	chn.n = mem_chain_flt(opt, chn.n, chn.a);
 	mem_flt_chained_seeds(opt, bns, pac, l_seq, (uint8_t*)seq, chn.n, chn.a);
+	t_extend = bwa_thread_nanotime();
+	bwa_thread_stat_add(BWA_STAT_SEED_NS, t_extend - t_seed);
 	if (bwa_verbose >= 4) mem_print_chain(bns, &chn);
 
 	kv_init(regs);
@@ -1038,6 +1042,7 @@ mem_alnreg_v mem_align1_core(const mem_opt_t *opt, const bwt_t *bwt, const bntse
 		free(chn.a[i].seeds);
 	}
 	free(chn.a);
+	bwa_thread_stat_add(BWA_STAT_EXTEND_NS, bwa_thread_nanotime() - t_extend);
 	regs.n = mem_sort_dedup_patch(opt, bns, pac, (uint8_t*)seq, regs.n, regs.a);
 	if (bwa_verbose >= 4) {
 		err_printf("* %ld chains remain after removing duplicated chains\n", regs.n);
@@ -1192,7 +1197,14 @@ void mem_process_seqs(const mem_opt_t *opt, const bwt_t *bwt, const bntseq_t *bn
 	free(w.aux);
 	if (opt->flag&MEM_F_PE) { // infer insert sizes if not provided
 		if (pes0) memcpy(pes, pes0, 4 * sizeof(mem_pestat_t)); // if pes0 != NULL, set the insert-size distribution as pes0
-		else mem_pestat(opt, bns->l_pac, n, w.regs, pes); // otherwise, infer the insert size distribution from data
+		else { // otherwise, infer the insert size distribution from data
+			mem_pestat(opt, bns->l_pac, n, w.regs, pes);
+			if (!pes[1].failed) {
+				bwa_thread_stat_add(BWA_STAT_ISIZE_BATCHES, 1);
+				bwa_thread_stat_add(BWA_STAT_ISIZE_AVG, (long)(pes[1].avg + .499));
+				bwa_thread_stat_add(BWA_STAT_ISIZE_STD, (long)(pes[1].std + .499));
+			}
+		}
 	}
 	kt_for(opt->n_threads, worker2, &w, (opt->flag&MEM_F_PE)? n>>1 : n); // generate alignment
 	free(w.regs);
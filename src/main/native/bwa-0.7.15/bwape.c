@@ -41,7 +41,7 @@ typedef struct {
 #define MIN_HASH_WIDTH 1000
 
 extern int g_log_n[256]; // in bwase.c
-static kh_b128_t *g_hash;
+static __thread kh_b128_t *g_hash;
 
 void bwa_aln2seq_core(int n_aln, const bwt_aln1_t *aln, bwa_seq_t *s, int set_main, int n_multi);
 void bwa_aln2seq(int n_aln, const bwt_aln1_t *aln, bwa_seq_t *s);
@@ -303,7 +303,11 @@ int bwa_cal_pac_pos_pe(const bntseq_t *bns, const char *prefix, bwt_t *const _bw
 	}
 
 	// infer isize
-	infer_isize(n_seqs, seqs, ii, opt->ap_prior, bwt->seq_len/2);
+	if (infer_isize(n_seqs, seqs, ii, opt->ap_prior, bwt->seq_len/2) == 0) {
+		bwa_thread_stat_add(BWA_STAT_ISIZE_BATCHES, 1);
+		bwa_thread_stat_add(BWA_STAT_ISIZE_AVG, (long)(ii->avg + .499));
+		bwa_thread_stat_add(BWA_STAT_ISIZE_STD, (long)(ii->std + .499));
+	}
 	if (ii->avg < 0.0 && last_ii->avg > 0.0) *ii = *last_ii;
 	if (opt->force_isize) {
 		fprintf(stderr, "[%s] discard insert size estimate as user's request.\n", __func__);
@@ -636,12 +640,15 @@ void bwa_sai2sam_pe_core(const char *prefix, char *const fn_sa[2], char *const f
 	char str[1024], magic[2][4];
 	bwt_t *bwt;
 	uint8_t *pac;
+	bwaidx_t *cached;
 
 	// initialization
 	bwase_initialize(); // initialize g_log_n[] in bwase.c
 	pac = 0; bwt = 0;
 	for (i = 1; i != 256; ++i) g_log_n[i] = (int)(4.343 * log(i) + 0.5);
-	bns = bns_restore(prefix);
+	if ((cached = bwa_idx_load_cached(prefix)) != 0) { // the cached index is already preloaded
+		bns = cached->bns; bwt = cached->bwt; pac = cached->pac;
+	} else bns = bns_restore(prefix);
 	srand48(bns->seed);
 	fp_sa[0] = xopen(fn_sa[0], "r");
 	fp_sa[1] = xopen(fn_sa[1], "r");
@@ -660,7 +667,7 @@ void bwa_sai2sam_pe_core(const char *prefix, char *const fn_sa[2], char *const f
 	err_fread_noeof(&opt, sizeof(gap_opt_t), 1, fp_sa[1]); // overwritten!
 	ks[1] = bwa_open_reads(opt.mode, fn_fa[1]);
 	{ // for Illumina alignment only
-		if (popt->is_preload) {
+		if (popt->is_preload && cached == 0) {
 			strcpy(str, prefix); strcat(str, ".bwt");  bwt = bwt_restore_bwt(str);
 			strcpy(str, prefix); strcat(str, ".sa"); bwt_restore_sa(str, bwt);
 			pac = (ubyte_t*)calloc(bns->l_pac/4+1, 1);
@@ -716,7 +723,7 @@ void bwa_sai2sam_pe_core(const char *prefix, char *const fn_sa[2], char *const f
 	}
 
 	// destroy
-	bns_destroy(bns);
+	if (cached == 0) bns_destroy(bns);
 	for (i = 0; i < 2; ++i) {
 		bwa_seq_close(ks[i]);
 		err_fclose(fp_sa[i]);
@@ -724,7 +731,8 @@ void bwa_sai2sam_pe_core(const char *prefix, char *const fn_sa[2], char *const f
 	for (iter = kh_begin(g_hash); iter != kh_end(g_hash); ++iter)
 		if (kh_exist(g_hash, iter)) free(kh_val(g_hash, iter).a);
 	kh_destroy(b128, g_hash);
-	if (pac) {
+	if (cached) bwa_idx_destroy(cached);
+	else if (pac) {
 		free(pac); bwt_destroy(bwt);
 	}
 }
@@ -146,9 +146,13 @@ void bwa_cal_pac_pos(const bntseq_t *bns, const char *prefix, int n_seqs, bwa_se
 	int i, j, strand, n_multi;
 	char str[1024];
 	bwt_t *bwt;
+	bwaidx_t *cached;
 	// load forward SA
-	strcpy(str, prefix); strcat(str, ".bwt");  bwt = bwt_restore_bwt(str);
-	strcpy(str, prefix); strcat(str, ".sa"); bwt_restore_sa(str, bwt);
+	if ((cached = bwa_idx_load_cached(prefix)) != 0) bwt = cached->bwt;
+	else {
+		strcpy(str, prefix); strcat(str, ".bwt");  bwt = bwt_restore_bwt(str);
+		strcpy(str, prefix); strcat(str, ".sa"); bwt_restore_sa(str, bwt);
+	}
 	for (i = 0; i != n_seqs; ++i) {
 		bwa_seq_t *p = &seqs[i];
 		bwa_cal_pac_pos_core(bns, bwt, p, max_mm, fnr);
@@ -161,7 +165,8 @@ void bwa_cal_pac_pos(const bntseq_t *bns, const char *prefix, int n_seqs, bwa_se
 		}
 		p->n_multi = n_multi;
 	}
-	bwt_destroy(bwt);
+	if (cached) bwa_idx_destroy(cached);
+	else bwt_destroy(bwt);
 }
 
 #define SW_BW 50
@@ -511,13 +516,15 @@ void bwa_sai2sam_se_core(const char *prefix, const char *fn_sa, const char *fn_f
 	bwa_seqio_t *ks;
 	clock_t t;
 	bntseq_t *bns;
+	bwaidx_t *cached;
 	FILE *fp_sa;
 	gap_opt_t opt;
 	char magic[4];
 
 	// initialization
 	bwase_initialize();
-	bns = bns_restore(prefix);
+	if ((cached = bwa_idx_load_cached(prefix)) != 0) bns = cached->bns;
+	else bns = bns_restore(prefix);
 	srand48(bns->seed);
 	fp_sa = xopen(fn_sa, "r");
 
@@ -554,7 +561,7 @@ void bwa_sai2sam_se_core(const char *prefix, const char *fn_sa, const char *fn_f
 		fprintf(stderr, "%.2f sec\n", (float)(clock() - t) / CLOCKS_PER_SEC); t = clock();
 
 		fprintf(stderr, "[bwa_aln_core] refine gapped alignments... ");
-		bwa_refine_gapped(bns, n_seqs, seqs, 0);
+		bwa_refine_gapped(bns, n_seqs, seqs, cached? cached->pac : 0);
 		fprintf(stderr, "%.2f sec\n", (float)(clock() - t) / CLOCKS_PER_SEC); t = clock();
 
 		fprintf(stderr, "[bwa_aln_core] print alignments... ");
@@ -568,7 +575,8 @@ void bwa_sai2sam_se_core(const char *prefix, const char *fn_sa, const char *fn_f
 
 	// destroy
 	bwa_seq_close(ks);
-	bns_destroy(bns);
+	if (cached) bwa_idx_destroy(cached);
+	else bns_destroy(bns);
 	err_fclose(fp_sa);
 	free(aln);
 }
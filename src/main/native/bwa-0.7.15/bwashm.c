@@ -137,6 +137,37 @@ int bwa_shm_test(const char *hint)
 	return 0;
 }
 
+int bwa_shm_drop(const char *hint)
+{
+	const char *name;
+	uint8_t *shm;
+	uint16_t *cnt, i;
+	char *p, path[PATH_MAX + 1];
+	int shmid, l, found = 0;
+
+	if (hint == 0 || hint[0] == 0) return -1;
+	for (name = hint + strlen(hint) - 1; name >= hint && *name != '/'; --name);
+	++name;
+	strcat(strcpy(path, "/bwaidx-"), name);
+	shm_unlink(path); // processes that mapped the index keep it until they unmap it
+	if ((shmid = shm_open("/bwactl", O_RDWR, 0)) < 0) return 0;
+	shm = mmap(0, BWA_CTL_SIZE, PROT_READ|PROT_WRITE, MAP_SHARED, shmid, 0);
+	close(shmid);
+	cnt = (uint16_t*)shm;
+	for (i = 0, p = (char*)shm + 4; i < cnt[0]; ++i) {
+		l = 8 + strlen(p + 8) + 1;
+		if (strcmp(p + 8, name) == 0) {
+			memmove(p, p + l, (char*)shm + cnt[1] - (p + l));
+			cnt[1] -= l; --cnt[0];
+			found = 1;
+			break;
+		}
+		p += l;
+	}
+	munmap(shm, BWA_CTL_SIZE);
+	return found;
+}
+
 int bwa_shm_list(void)
 {
 	int shmid;
@@ -163,11 +163,13 @@ void bwa_aln_core(const char *prefix, const char *fn_fa, const gap_opt_t *opt)
 	bwa_seqio_t *ks;
 	clock_t t;
 	bwt_t *bwt;
+	bwaidx_t *cached;
 
 	// initialization
 	ks = bwa_open_reads(opt->mode, fn_fa);
 
-	{ // load BWT
+	if ((cached = bwa_idx_load_cached(prefix)) != 0) bwt = cached->bwt;
+	else { // load BWT
 		char *str = (char*)calloc(strlen(prefix) + 10, 1);
 		strcpy(str, prefix); strcat(str, ".bwt");  bwt = bwt_restore_bwt(str);
 		free(str);
@@ -222,7 +224,8 @@ void bwa_aln_core(const char *prefix, const char *fn_fa, const gap_opt_t *opt)
 	}
 
 	// destroy
-	bwt_destroy(bwt);
+	if (cached) bwa_idx_destroy(cached);
+	else bwt_destroy(bwt);
 	bwa_seq_close(ks);
 }
 
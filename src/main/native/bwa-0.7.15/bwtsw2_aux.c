@@ -724,7 +724,7 @@ static void process_seqs(bsw2seq_t *_seq, const bsw2opt_t *opt, const bntseq_t *
 	_seq->n = 0;
 }
 
-void bsw2_aln(const bsw2opt_t *opt, const bntseq_t *bns, bwt_t * const target, const char *fn, const char *fn2)
+void bsw2_aln(const bsw2opt_t *opt, const bntseq_t *bns, bwt_t * const target, const char *fn, const char *fn2, uint8_t *_pac)
 {
 	gzFile fp, fp2;
 	kseq_t *ks, *ks2;
@@ -733,10 +733,12 @@ void bsw2_aln(const bsw2opt_t *opt, const bntseq_t *bns, bwt_t * const target, c
 	bsw2seq_t *_seq;
 	bseq1_t *bseq;
 
-	pac = calloc(bns->l_pac/4+1, 1);
 	for (l = 0; l < bns->n_seqs; ++l)
 		err_printf("@SQ\tSN:%s\tLN:%d\n", bns->anns[l].name, bns->anns[l].len);
-	err_fread_noeof(pac, 1, bns->l_pac/4+1, bns->fp_pac);
+	if (_pac == 0) { // the index was loaded without the packed sequence
+		pac = calloc(bns->l_pac/4+1, 1);
+		err_fread_noeof(pac, 1, bns->l_pac/4+1, bns->fp_pac);
+	} else pac = _pac;
 	fp = xzopen(fn, "r");
 	ks = kseq_init(fp);
 	_seq = calloc(1, sizeof(bsw2seq_t));
@@ -765,7 +767,7 @@ void bsw2_aln(const bsw2opt_t *opt, const bntseq_t *bns, bwt_t * const target, c
 		process_seqs(_seq, opt, bns, pac, target, is_pe);
 	}
 	// free
-	free(pac);
+	if (_pac == 0) free(pac);
 	free(_seq->seq); free(_seq);
 	kseq_destroy(ks);
 	err_gzclose(fp);
@@ -81,7 +81,7 @@ int bwa_bwtsw2(int argc, char *argv[])
 	opt->coef *= opt->a;
 
 	if ((idx = bwa_idx_load(argv[optind], BWA_IDX_BWT|BWA_IDX_BNS)) == 0) return 1;
-	bsw2_aln(opt, idx->bns, idx->bwt, argv[optind+1], optind+2 < argc? argv[optind+2] : 0);
+	bsw2_aln(opt, idx->bns, idx->bwt, argv[optind+1], optind+2 < argc? argv[optind+2] : 0, idx->pac);
 	bwa_idx_destroy(idx);
 	free(opt);
 	
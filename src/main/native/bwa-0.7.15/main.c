@@ -60,7 +60,6 @@ static int usage()
 
 int main(int argc, char *argv[])
 {
-	extern char *bwa_pg;
 	int i, ret;
 	double t_real;
 	kstring_t pg = {0,0,0};
@@ -91,7 +90,8 @@ int main(int argc, char *argv[])
 		return 1;
 	}
 	err_fflush(stdout);
-	err_fclose(stdout);
+	// When the output was given by BigBWA, it is closed by the caller
+	if (bwa_thread_closes_stdout()) err_fclose(stdout);
 	if (ret == 0) {
 		fprintf(stderr, "[%s] Version: %s\n", __func__, PACKAGE_VERSION);
 		fprintf(stderr, "[%s] CMD:", __func__);
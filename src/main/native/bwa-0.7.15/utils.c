@@ -221,7 +221,7 @@ int err_fputs(const char *s, FILE *stream)
 
 int err_puts(const char *s)
 {
-	int ret = puts(s);
+	int ret = fputs(s, stdout) == EOF? EOF : fputc('\n', stdout);
 	if (EOF == ret)
 	{
 		_err_fatal_simple("puts", strerror(errno));
@@ -241,8 +241,10 @@ int err_fflush(FILE *stream)
 	   (e.g. NFS, lustre) as an error may still occur while the kernel
 	   is copying the buffered data to the file server.  To be sure of
 	   catching these errors, we need to call fsync() on the file
-	   descriptor, but only if it is a regular file.  */
-	{
+	   descriptor, but only if it is a regular file. Streams without
+	   a descriptor (BigBWA counts the records with fopencookie())
+	   are left as they are. */
+	if (fileno(stream) >= 0) {
 		struct stat sbuf;
 		if (0 != fstat(fileno(stream), &sbuf))
 			_err_fatal_simple("fstat", strerror(errno));
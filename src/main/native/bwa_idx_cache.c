@@ -0,0 +1,512 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+/*
+ * Cache of loaded indexes shared by every alignment in the JVM. It is plugged
+ * into bwa through bwa_idx_cache_get/bwa_idx_cache_put, so "bwa mem", "bwasw",
+ * "aln", "samse" and "sampe" run through bwa main() attach to the resident
+ * index instead of reading it again from disk, as the in-process aligner does.
+ * Indexes stay loaded after their last user releases them while they fit in
+ * the memory budget. Indexes staged in shared memory (see bwa_shm_jni.c) are
+ * mapped from there.
+ *
+ * Indexes can also be memory-mapped from their files instead of read into
+ * private memory, so every task of the node shares the same pages of the page
+ * cache and a warm index takes no time to "load". The .bwt, .sa and .pac files
+ * are mapped as they are, or the whole index is packed once into a .bwaidx
+ * file with the layout of bwa_idx2mem() and mapped in one piece. Mapped
+ * indexes do not count against the memory budget.
+ */
+
+#include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
+#include <stdio.h>
+#include <pthread.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include "bwa-0.7.15/bwa.h"
+#define BWA_THREAD_NO_MACROS
+#include "bwa-0.7.15/bwa_thread.h"
+#include "com_github_bigbwa_BwaJni.h"
+
+#define BIGBWA_MMAP_OFF    0
+#define BIGBWA_MMAP_FILES  1
+#define BIGBWA_MMAP_PACKED 2
+
+#define BIGBWA_PACKED_MAGIC  "BWAIDX1"
+#define BIGBWA_PACKED_HEADER 16 // magic and l_mem
+
+// Memory maps of an index that is mapped instead of loaded
+typedef struct {
+	void *addr[3];
+	size_t len[3];
+	int n;
+	int packed;
+} bigbwa_idx_map_t;
+
+typedef struct bigbwa_cache_entry {
+	char *hint;
+	bwaidx_t *idx;
+	bigbwa_idx_map_t *map;
+	int refs;
+	int drop;           // free it as soon as it is not in use
+	int64_t bytes;
+	uint64_t last_used;
+	struct bigbwa_cache_entry *next;
+} bigbwa_cache_entry_t;
+
+static pthread_mutex_t cache_lock = PTHREAD_MUTEX_INITIALIZER;
+static bigbwa_cache_entry_t *cache_entries = 0;
+static int64_t cache_budget = 0; // 0 means no limit
+static int64_t cache_bytes = 0;
+static uint64_t cache_clock = 0;
+static int mmap_mode = BIGBWA_MMAP_OFF;
+
+static int64_t bigbwa_file_size(const char *prefix, const char *suffix)
+{
+	char *fn = (char *) malloc(strlen(prefix) + strlen(suffix) + 1);
+	struct stat st;
+	int64_t size = 0;
+
+	strcat(strcpy(fn, prefix), suffix);
+	if (stat(fn, &st) == 0) size = st.st_size;
+	free(fn);
+
+	return size;
+}
+
+static int64_t bigbwa_idx_bytes(const bwaidx_t *idx)
+{
+	int64_t bytes = 0;
+	int i;
+
+	if (idx->mem) return idx->l_mem;
+
+	bytes += idx->bwt->bwt_size * 4 + idx->bwt->n_sa * sizeof(bwtint_t);
+	bytes += idx->bns->l_pac / 4 + 1;
+	for (i = 0; i < idx->bns->n_seqs; ++i)
+		bytes += sizeof(bntann1_t) + strlen(idx->bns->anns[i].name) + strlen(idx->bns->anns[i].anno) + 2;
+
+	return bytes;
+}
+
+static uint8_t *bigbwa_map_file(bigbwa_idx_map_t *map, const char *prefix, const char *suffix, int writable, size_t *len)
+{
+	char *fn = (char *) malloc(strlen(prefix) + strlen(suffix) + 1);
+	struct stat st;
+	void *addr = MAP_FAILED;
+	int fd;
+
+	strcat(strcpy(fn, prefix), suffix);
+	if ((fd = open(fn, O_RDONLY)) >= 0) {
+		if (fstat(fd, &st) == 0 && st.st_size > 0) // writable maps are private copies, the file is never modified
+			addr = mmap(0, st.st_size, writable? PROT_READ | PROT_WRITE : PROT_READ, writable? MAP_PRIVATE : MAP_SHARED, fd, 0);
+		else errno = EINVAL;
+		close(fd);
+	}
+
+	if (addr == MAP_FAILED) {
+		fprintf(stderr, "[%s] Could not map '%s': %s.\n", __func__, fn, strerror(errno));
+		free(fn);
+		return 0;
+	}
+
+	free(fn);
+	map->addr[map->n] = addr;
+	map->len[map->n++] = st.st_size;
+	*len = st.st_size;
+
+	return (uint8_t *) addr;
+}
+
+// Frees a mapped index. bwa_idx_destroy() can not be used, as it would free the mapped arrays
+static void bigbwa_idx_unmap(bwaidx_t *idx, bigbwa_idx_map_t *map)
+{
+	int i;
+
+	if (idx) {
+		if (map->packed) { // as bwa_idx_destroy() does for indexes in memory
+			free(idx->bwt);
+			if (idx->bns) free(idx->bns->anns);
+			free(idx->bns);
+		} else {
+			if (idx->bwt) {
+				idx->bwt->bwt = 0;
+				idx->bwt->sa = 0;
+				bwt_destroy(idx->bwt);
+			}
+			if (idx->bns) bns_destroy(idx->bns);
+		}
+		free(idx);
+	}
+
+	for (i = 0; i < map->n; ++i) munmap(map->addr[i], map->len[i]);
+	free(map);
+}
+
+// Maps the .bwt, .sa and .pac files as bwt_restore_bwt(), bwt_restore_sa() and bwa_idx_load_from_disk() read them
+static bwaidx_t *bigbwa_idx_map_files(const char *prefix, bigbwa_idx_map_t **map_out)
+{
+	bigbwa_idx_map_t *map = (bigbwa_idx_map_t *) calloc(1, sizeof(bigbwa_idx_map_t));
+	bwaidx_t *idx = (bwaidx_t *) calloc(1, sizeof(bwaidx_t));
+	bwtint_t primary, sa_intv, seq_len;
+	bwt_t *bwt;
+	uint8_t *data;
+	size_t len;
+
+	// .bwt: primary, L2[1..4] and the BWT itself
+	if ((data = bigbwa_map_file(map, prefix, ".bwt", 0, &len)) == 0 || len < 5 * sizeof(bwtint_t)) goto fail;
+	idx->bwt = bwt = (bwt_t *) calloc(1, sizeof(bwt_t));
+	memcpy(&bwt->primary, data, sizeof(bwtint_t));
+	memcpy(bwt->L2 + 1, data + sizeof(bwtint_t), 4 * sizeof(bwtint_t));
+	bwt->bwt_size = (len - 5 * sizeof(bwtint_t)) >> 2;
+	bwt->bwt = (uint32_t *) (data + 5 * sizeof(bwtint_t));
+	bwt->seq_len = bwt->L2[4];
+	bwt_gen_cnt_table(bwt);
+
+	// .sa: primary, L2[1..4], sa_intv, seq_len and the SA from its second element. The first element is set to -1 as
+	// bwt_restore_sa() does, which only copies the first page of the private map
+	if ((data = bigbwa_map_file(map, prefix, ".sa", 1, &len)) == 0 || len < 7 * sizeof(bwtint_t)) goto fail;
+	memcpy(&primary, data, sizeof(bwtint_t));
+	memcpy(&sa_intv, data + 5 * sizeof(bwtint_t), sizeof(bwtint_t));
+	memcpy(&seq_len, data + 6 * sizeof(bwtint_t), sizeof(bwtint_t));
+	if (primary != bwt->primary || seq_len != bwt->seq_len || sa_intv == 0) {
+		fprintf(stderr, "[%s] The .sa file of '%s' does not match its .bwt file.\n", __func__, prefix);
+		goto fail;
+	}
+	bwt->sa_intv = sa_intv;
+	bwt->n_sa = (seq_len + sa_intv) / sa_intv;
+	if (len < (6 + bwt->n_sa) * sizeof(bwtint_t)) goto fail;
+	bwt->sa = (bwtint_t *) (data + 6 * sizeof(bwtint_t));
+	bwt->sa[0] = -1;
+
+	// .pac, read through the sequence names and lengths of the .ann and .amb files
+	idx->bns = bns_restore(prefix);
+	if (idx->bns->fp_pac) {
+		fclose(idx->bns->fp_pac);
+		idx->bns->fp_pac = 0;
+	}
+	if ((data = bigbwa_map_file(map, prefix, ".pac", 0, &len)) == 0 || len < (size_t) (idx->bns->l_pac / 4 + 1)) goto fail;
+	idx->pac = data;
+
+	*map_out = map;
+	return idx;
+
+fail:
+	fprintf(stderr, "[%s] Could not map index '%s'.\n", __func__, prefix);
+	bigbwa_idx_unmap(idx, map);
+	return 0;
+}
+
+// The packed index is rebuilt when any of the files it was made from is newer
+static int bigbwa_packed_is_fresh(const char *prefix, const char *fn)
+{
+	static const char *suffixes[] = { ".bwt", ".sa", ".pac", ".ann", ".amb" };
+	char *name = (char *) malloc(strlen(prefix) + 5);
+	struct stat packed, st;
+	int i, fresh = 1;
+
+	if (stat(fn, &packed) != 0) fresh = 0;
+	for (i = 0; fresh && i < 5; ++i) {
+		strcat(strcpy(name, prefix), suffixes[i]);
+		if (stat(name, &st) == 0 && st.st_mtime > packed.st_mtime) fresh = 0;
+	}
+	free(name);
+
+	return fresh;
+}
+
+// Writes the index in the layout of bwa_idx2mem() to a temporary file that is renamed, so readers never see half of it
+static int bigbwa_idx_pack(const char *prefix, const char *fn)
+{
+	char *tmp = (char *) malloc(strlen(fn) + 32);
+	char header[BIGBWA_PACKED_HEADER];
+	bwaidx_t *idx;
+	FILE *fp;
+	int ret = -1, ok;
+
+	if ((idx = bwa_idx_load_from_disk(prefix, BWA_IDX_ALL)) == 0) {
+		free(tmp);
+		return -1;
+	}
+	bwa_idx2mem(idx);
+
+	sprintf(tmp, "%s.%ld.tmp", fn, (long) getpid());
+	if ((fp = fopen(tmp, "wb")) != 0) {
+		memset(header, 0, BIGBWA_PACKED_HEADER);
+		memcpy(header, BIGBWA_PACKED_MAGIC, sizeof(BIGBWA_PACKED_MAGIC));
+		memcpy(header + 8, &idx->l_mem, sizeof(int64_t));
+
+		ok = fwrite(header, 1, BIGBWA_PACKED_HEADER, fp) == BIGBWA_PACKED_HEADER && fwrite(idx->mem, 1, idx->l_mem, fp) == (size_t) idx->l_mem;
+		if (fclose(fp) == 0 && ok) ret = rename(tmp, fn);
+	}
+
+	if (ret != 0) {
+		fprintf(stderr, "[%s] Could not write '%s': %s.\n", __func__, tmp, strerror(errno));
+		unlink(tmp);
+	}
+
+	free(tmp);
+	bwa_idx_destroy(idx);
+
+	return ret;
+}
+
+static bwaidx_t *bigbwa_idx_map_packed(const char *prefix, bigbwa_idx_map_t **map_out)
+{
+	char *fn = (char *) malloc(strlen(prefix) + 8);
+	bigbwa_idx_map_t *map;
+	bwaidx_t *idx;
+	uint8_t *data;
+	int64_t l_mem;
+	size_t len;
+
+	strcat(strcpy(fn, prefix), ".bwaidx");
+	if (!bigbwa_packed_is_fresh(prefix, fn)) {
+		fprintf(stderr, "[%s] Packing index '%s' into '%s'.\n", __func__, prefix, fn);
+		if (bigbwa_idx_pack(prefix, fn) != 0) {
+			free(fn);
+			return 0;
+		}
+	}
+	free(fn);
+
+	map = (bigbwa_idx_map_t *) calloc(1, sizeof(bigbwa_idx_map_t));
+	map->packed = 1;
+
+	if ((data = bigbwa_map_file(map, prefix, ".bwaidx", 0, &len)) != 0 && len >= BIGBWA_PACKED_HEADER)
+		memcpy(&l_mem, data + 8, sizeof(int64_t));
+	if (data == 0 || len < BIGBWA_PACKED_HEADER || memcmp(data, BIGBWA_PACKED_MAGIC, sizeof(BIGBWA_PACKED_MAGIC)) != 0
+			|| l_mem != (int64_t) (len - BIGBWA_PACKED_HEADER)) {
+		fprintf(stderr, "[%s] '%s.bwaidx' is not a packed index.\n", __func__, prefix);
+		bigbwa_idx_unmap(0, map);
+		return 0;
+	}
+
+	idx = (bwaidx_t *) calloc(1, sizeof(bwaidx_t));
+	bwa_mem2idx(l_mem, data + BIGBWA_PACKED_HEADER, idx);
+
+	*map_out = map;
+	return idx;
+}
+
+static void bigbwa_cache_free_entry(bigbwa_cache_entry_t *e)
+{
+	fprintf(stderr, "[%s] Freeing index '%s' (%ld bytes).\n", __func__, e->hint, (long) e->bytes);
+
+	e->idx->is_cached = 0;
+	if (e->map) bigbwa_idx_unmap(e->idx, e->map);
+	else bwa_idx_destroy(e->idx);
+	cache_bytes -= e->bytes;
+	free(e->hint);
+	free(e);
+}
+
+// Frees the least recently used indexes that are not in use until "needed" more bytes fit in the budget
+static void bigbwa_cache_make_room(int64_t needed)
+{
+	bigbwa_cache_entry_t **p, **lru;
+
+	while (cache_budget > 0 && cache_bytes + needed > cache_budget) {
+		lru = 0;
+		for (p = &cache_entries; *p; p = &(*p)->next)
+			if ((*p)->refs == 0 && (lru == 0 || (*p)->last_used < (*lru)->last_used)) lru = p;
+		if (lru == 0) break;
+
+		bigbwa_cache_entry_t *e = *lru;
+		*lru = e->next;
+		bigbwa_cache_free_entry(e);
+	}
+}
+
+static bwaidx_t *bigbwa_cache_get(const char *hint)
+{
+	bigbwa_cache_entry_t *e;
+	bigbwa_idx_map_t *map = 0;
+	bwaidx_t *idx = 0;
+	int64_t estimated;
+	long load_start;
+	char *prefix;
+
+	pthread_mutex_lock(&cache_lock);
+
+	for (e = cache_entries; e; e = e->next) {
+		if (strcmp(e->hint, hint) == 0) {
+			++e->refs;
+			e->last_used = ++cache_clock;
+			pthread_mutex_unlock(&cache_lock);
+			fprintf(stderr, "[%s] Attached to cached index '%s'.\n", __func__, hint);
+			return e->idx;
+		}
+	}
+
+	load_start = bwa_thread_nanotime();
+
+	// An index staged in shared memory by another task of the node is mapped instead of loaded
+	if ((idx = bwa_idx_load_from_shm(hint)) == 0) {
+
+		// Loading under the lock, so concurrent users of the same index wait for a single copy
+		prefix = bwa_idx_infer_prefix(hint);
+		if (prefix == 0) {
+			pthread_mutex_unlock(&cache_lock);
+			return 0;
+		}
+
+		// Mapping falls back to the files when the packed index can not be written, and to reading when mapping fails
+		if (mmap_mode == BIGBWA_MMAP_PACKED) idx = bigbwa_idx_map_packed(prefix, &map);
+		if (idx == 0 && mmap_mode != BIGBWA_MMAP_OFF) idx = bigbwa_idx_map_files(prefix, &map);
+
+		if (idx == 0) {
+			estimated = bigbwa_file_size(prefix, ".bwt") + bigbwa_file_size(prefix, ".sa") + bigbwa_file_size(prefix, ".pac");
+			bigbwa_cache_make_room(estimated);
+
+			idx = bwa_idx_load_from_disk(hint, BWA_IDX_ALL);
+			if (idx == 0 || idx->bwt == 0 || idx->bns == 0 || idx->pac == 0) {
+				bwa_idx_destroy(idx);
+				free(prefix);
+				pthread_mutex_unlock(&cache_lock);
+				return 0;
+			}
+		}
+
+		free(prefix);
+	}
+
+	bwa_thread_stat_add(BWA_STAT_INDEX_LOAD_NS, bwa_thread_nanotime() - load_start);
+
+	e = (bigbwa_cache_entry_t *) calloc(1, sizeof(bigbwa_cache_entry_t));
+	e->hint = strdup(hint);
+	e->idx = idx;
+	e->map = map;
+	e->refs = 1;
+	e->bytes = (idx->is_shm || map)? 0 : bigbwa_idx_bytes(idx); // shared memory and page cache do not count against the budget
+	e->last_used = ++cache_clock;
+	e->next = cache_entries;
+	cache_entries = e;
+	cache_bytes += e->bytes;
+
+	if (cache_budget > 0 && cache_bytes > cache_budget) {
+		fprintf(stderr, "[%s] Index '%s' does not fit in the cache budget (%ld of %ld bytes). It will be freed after use.\n",
+				__func__, hint, (long) cache_bytes, (long) cache_budget);
+		e->drop = 1;
+	}
+
+	idx->is_cached = 1;
+
+	pthread_mutex_unlock(&cache_lock);
+
+	if (idx->is_shm) fprintf(stderr, "[%s] Attached to index '%s' in shared memory.\n", __func__, hint);
+	else if (map) fprintf(stderr, "[%s] Mapped index '%s'%s.\n", __func__, hint, map->packed? " from its packed file" : "");
+	else fprintf(stderr, "[%s] Loaded index '%s' into the cache (%ld bytes).\n", __func__, hint, (long) e->bytes);
+
+	return idx;
+}
+
+static void bigbwa_cache_put(bwaidx_t *idx)
+{
+	bigbwa_cache_entry_t **p;
+
+	pthread_mutex_lock(&cache_lock);
+
+	for (p = &cache_entries; *p; p = &(*p)->next) {
+		if ((*p)->idx == idx) {
+			bigbwa_cache_entry_t *e = *p;
+
+			if (e->refs > 0) --e->refs;
+			e->last_used = ++cache_clock;
+
+			if (e->refs == 0 && e->drop) {
+				*p = e->next;
+				bigbwa_cache_free_entry(e);
+			}
+			break;
+		}
+	}
+
+	bigbwa_cache_make_room(0);
+
+	pthread_mutex_unlock(&cache_lock);
+}
+
+__attribute__((constructor)) static void bigbwa_cache_init(void)
+{
+	bwa_idx_cache_get = bigbwa_cache_get;
+	bwa_idx_cache_put = bigbwa_cache_put;
+}
+
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1cache_1budget(JNIEnv *env, jclass thisClass, jlong bytes)
+{
+	pthread_mutex_lock(&cache_lock);
+	cache_budget = bytes > 0? bytes : 0;
+	bigbwa_cache_make_room(0);
+	pthread_mutex_unlock(&cache_lock);
+}
+
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1mmap(JNIEnv *env, jclass thisClass, jint mode)
+{
+	pthread_mutex_lock(&cache_lock);
+	mmap_mode = (mode == BIGBWA_MMAP_FILES || mode == BIGBWA_MMAP_PACKED)? mode : BIGBWA_MMAP_OFF;
+	pthread_mutex_unlock(&cache_lock);
+}
+
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1cache_1release(JNIEnv *env, jclass thisClass, jstring indexPrefix)
+{
+	bigbwa_cache_entry_t **p;
+	const char *hint = indexPrefix? (*env)->GetStringUTFChars(env, indexPrefix, 0) : 0;
+	int freed = 0;
+
+	pthread_mutex_lock(&cache_lock);
+
+	p = &cache_entries;
+	while (*p) {
+		bigbwa_cache_entry_t *e = *p;
+
+		if (hint == 0 || strcmp(e->hint, hint) == 0) {
+			if (e->refs == 0) {
+				*p = e->next;
+				bigbwa_cache_free_entry(e);
+				++freed;
+				continue;
+			}
+			e->drop = 1; // the last user frees it
+		}
+		p = &e->next;
+	}
+
+	pthread_mutex_unlock(&cache_lock);
+
+	if (hint) (*env)->ReleaseStringUTFChars(env, indexPrefix, hint);
+
+	return freed;
+}
+
+JNIEXPORT jlong JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1cache_1bytes(JNIEnv *env, jclass thisClass)
+{
+	int64_t bytes;
+
+	pthread_mutex_lock(&cache_lock);
+	bytes = cache_bytes;
+	pthread_mutex_unlock(&cache_lock);
+
+	return bytes;
+}
@@ -17,144 +17,179 @@
   * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
   */
 
+#define _GNU_SOURCE
 #include <stdlib.h>
 #include <unistd.h>
 #include <string.h>
 #include <stdio.h>
+#include <sys/types.h>
+#include <sys/stat.h>
 #include "com_github_bigbwa_BwaJni.h"
 
+#define BWA_THREAD_NO_MACROS
+#include "bwa-0.7.15/bwa_thread.h"
+
 int main(int argc,char *argv[]);
 
+/*
+ * Output of a command that writes SAM. Records are counted for the
+ * statistics of the command while they are written to the file.
+ */
+typedef struct {
+	FILE *file;
+	bwa_thread_context_t *ctx;
+} bigbwa_sam_output_t;
+
+static ssize_t bigbwa_sam_write(void *cookie, const char *buf, size_t size){
 
-JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1jni(JNIEnv *env, jobject thisObj, jint argc, jobjectArray stringArray, jintArray lenStrings){
+	bigbwa_sam_output_t *output = (bigbwa_sam_output_t *) cookie;
 
-	//Parte argumentos
-	char **argv;
-	char **argvTmp;
-	
-	int stringCount = (*env)->GetArrayLength(env,stringArray);//env->GetArrayLength(stringArray);
+	bwa_thread_count_sam(output->ctx, buf, size);
 
-	argvTmp = (char **) malloc(stringCount*sizeof(char **));
+	return (fwrite(buf, 1, size, output->file) == size) ? (ssize_t) size : -1;
+}
 
+static int bigbwa_sam_close(void *cookie){
 
-	int i = 0;
-	int mem = 0;
-	int redirect = 0;
-	int getFilename = 0;
-	
-	char *output;
-	char *algorithm;
+	bigbwa_sam_output_t *output = (bigbwa_sam_output_t *) cookie;
+	int ret = fclose(output->file);
+
+	free(output);
+
+	return ret;
+}
+
+static FILE *bigbwa_sam_open(FILE *file, bwa_thread_context_t *ctx){
+
+	cookie_io_functions_t functions = { NULL, bigbwa_sam_write, NULL, bigbwa_sam_close };
+	bigbwa_sam_output_t *output = (bigbwa_sam_output_t *) malloc(sizeof(bigbwa_sam_output_t));
+	FILE *out;
+
+	output->file = file;
+	output->ctx = ctx;
 
+	if((out = fopencookie(output, "w", functions)) == NULL){
+		free(output);
+		return file;
+	}
+
+	return out;
+}
+
+
+/*
+ * Runs a bwa command. Each call has its own output and getopt() state (see
+ * bwa_thread.h), so several commands can run at the same time in one JVM.
+ * The output file given with -f is opened here and handed to bwa as its
+ * stdout, instead of redirecting the stdout of the process. The statistics of
+ * the command are copied to "stats" if it is not null.
+ */
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1jni(JNIEnv *env, jobject thisObj, jint argc, jobjectArray stringArray, jintArray lenStrings, jlongArray stats){
+
+	int stringCount = (*env)->GetArrayLength(env,stringArray);
+
+	jstring *strings = (jstring *) malloc(stringCount*sizeof(jstring));
+	const char **argvTmp = (const char **) malloc(stringCount*sizeof(char *));
+	char **argv = (char **) malloc((stringCount+1)*sizeof(char *));
+
+	int i = 0;
 	int numArgs = 0;
 
-	//PreParse
+	const char *output = NULL;
+
+	//Arguments, without -f and its file name
 	for (i=0; i<stringCount; i++) {
-    	
-    	//To get the current argument from Java
-        jstring string = (jstring) (*env)->GetObjectArrayElement(env, stringArray, i);
-        argvTmp[i] = (*env)->GetStringUTFChars(env, string, 0);
-        
-        //We save the algorithm name
-        if(i == 1){
-        	//strcpy(algorithm,argvTmp[i]);
-        	algorithm = argvTmp[i];
-        	fprintf(stderr, "[%s] Algorithm found %d '%s'\n",__func__,i, algorithm);
-        }
-        
-	//If it is the mem algorithm and the -f option has been set in the previous argument, we get the output file name.
-	if(getFilename == 1){
-		//strcpy(output,argvTmp[i]);
-		output = argvTmp[i];
-		getFilename = 0;
-		fprintf(stderr, "[%s] Filename found %d '%s'\n",__func__,i, output);
+
+		//To get the current argument from Java
+		strings[i] = (jstring) (*env)->GetObjectArrayElement(env, stringArray, i);
+		argvTmp[i] = (*env)->GetStringUTFChars(env, strings[i], 0);
+
+		fprintf(stderr, "[%s] Arg %d '%s'\n",__func__,i, argvTmp[i]);
 	}
-		
-	//We set the option to get the file name in the next iteration
-	//if((strcmp(argvTmp[i],"-f")==0) && (i<(stringCount-1)) && (strcmp(algorithm,"mem")==0)){
-	if((strcmp(argvTmp[i],"-f")==0) && (i<(stringCount-1))){
-		getFilename = 1;
-		redirect = 1;
-		if(strcmp(algorithm,"mem")==0){
-			mem = 1;
+
+	for (i=0; i<stringCount; i++) {
+		if((strcmp(argvTmp[i],"-f")==0) && (i<(stringCount-1))){
+			//Opening the output only once allows it to be a named pipe
+			output = argvTmp[++i];
+			fprintf(stderr, "[%s] Output file '%s'\n",__func__, output);
 		}
-		fprintf(stderr, "[%s] Filename parameter -f found %d '%s'\n",__func__,i, argvTmp[i]);
-	}
-        
-        fprintf(stderr, "[%s] Arg %d '%s'\n",__func__,i, argvTmp[i]);
-        
-    }
-
-    
-    //If it is the mem algorithm we create the new arguments
-	if((mem == 1) && (redirect == 1)){
-	
-		argv = (char **) malloc((argc-2)*sizeof(char **));
-
-		int j = 0;
-		i = 0;
-		
-		while(i<stringCount){
-			if(strcmp(argvTmp[i],"-f")==0){
-				i++; //To skip this option and the file name
-			}
-			else{
-				//strcpy(argv[j],argvTmp[i]);
-				argv[j] = argvTmp[i];
-				fprintf(stderr, "[%s] option[%d]: %s.\n", __func__,j,argv[j]);
-				j++;
-			}
-			
-			i++;
+		else{
+			argv[numArgs++] = (char *) argvTmp[i];
 		}
-		
-		numArgs = argc - 2;
 	}
-	//If not, arguments are already set.
+
+	argv[numArgs] = NULL;
+
+	//Output of this call. Without -f, bwa writes to a copy of the process stdout
+	FILE *out;
+
+	if(output != NULL){
+		out = fopen(output, "wb");
+	}
 	else{
-		argv = argvTmp;
-		numArgs = argc;
+		int fd = dup(fileno(stdout));
+		out = (fd == -1) ? NULL : fdopen(fd, "w");
 	}
 
+	int ret = 1;
 
-	//End arguments
-	
-	//Call to bwa main
-	
-
-	int temp_stdout;
-	temp_stdout = dup(fileno(stdout));
-	
-	if(temp_stdout == -1){
-		fprintf(stderr, "[%s] Error saving stdout.\n", __func__);
+	if(out == NULL){
+		fprintf(stderr, "[%s] Fail to open the output '%s'.\n", __func__, (output != NULL) ? output : "stdout");
 	}
-	
-	if(redirect == 1){
-		if (freopen(output, "wb", stdout) == 0) {
-			fprintf(stderr, "Fail to open file '%s' with freopen.", output);
+	else{
+		//Call to bwa main
+		bwa_thread_context_t ctx;
+
+		bwa_thread_context_init(&ctx, out);
+
+		//The output of aln is not SAM
+		if((numArgs > 1) && (strcmp(argv[1], "aln") != 0)){
+			ctx.out = out = bigbwa_sam_open(out, &ctx);
+		}
+
+		bwa_thread_set_context(&ctx);
+
+		ret = main(numArgs,argv);
+
+		bwa_thread_set_context(0);
+
+		fprintf(stderr, "[%s] Return code from BWA %d.\n", __func__,ret);
+
+		if(fclose(out) != 0){
+			fprintf(stderr, "[%s] Error closing the output.\n", __func__);
+			ret = (ret != 0) ? ret : 1;
+		}
+
+		if(stats != NULL){
+			jsize numStats = (*env)->GetArrayLength(env, stats);
+			(*env)->SetLongArrayRegion(env, stats, 0, (numStats < BWA_NUM_STATS) ? numStats : BWA_NUM_STATS, (const jlong *) ctx.stats);
 		}
 	}
-	
-	int ret = main(numArgs,argv);
-	fprintf(stderr, "[%s] Return code from BWA %d.\n", __func__,ret);
-	
-	//if((strcmp(algorithm,"mem")!=0)&&(strcmp(algorithm,"sampe")!=0)){
-	if(redirect == 1){
-		fflush(stdout);
-		fclose(stdout);
-		
-		FILE *fp2 = fdopen(temp_stdout, "w");
-		
-		stdout = fp2;
-	}
-	
-	/*
+
 	for (i=0; i<stringCount; i++) {
-    	
-        (*env)->ReleaseStringUTFChars(env, (jstring) (*env)->GetObjectArrayElement(env, stringArray, i), argv[i]);
-        
-    }*/
+		(*env)->ReleaseStringUTFChars(env, strings[i], argvTmp[i]);
+		(*env)->DeleteLocalRef(env, strings[i]);
+	}
+
+	free(argv);
+	free(argvTmp);
+	free(strings);
+
 	return ret;
 
 }
 
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mkfifo(JNIEnv *env, jclass cls, jstring path){
+
+	const char *fifoPath = (*env)->GetStringUTFChars(env, path, 0);
 
+	int ret = mkfifo(fifoPath, 0600);
+
+	if(ret != 0){
+		fprintf(stderr, "[%s] Could not create named pipe '%s'.\n", __func__, fifoPath);
+	}
+
+	(*env)->ReleaseStringUTFChars(env, path, fifoPath);
+
+	return ret;
+}
@@ -0,0 +1,460 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+/*
+ * In-process BWA-MEM entry points. Instead of going through bwa main() with
+ * FASTQ files on disk, the Java side sends packed read batches that are
+ * aligned with mem_process_seqs() against an index kept in memory, and the
+ * SAM records are handed back as a byte array.
+ */
+
+#include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
+#include <stdio.h>
+#include <ctype.h>
+#include <math.h>
+#include "bwa-0.7.15/bwa.h"
+#include "bwa-0.7.15/bwamem.h"
+#include "bwa-0.7.15/kstring.h"
+#define BWA_THREAD_NO_MACROS
+#include "bwa-0.7.15/bwa_thread.h"
+#include "com_github_bigbwa_BwaJni.h"
+
+#define BIGBWA_BWA_VERSION "0.7.15-r1140"
+
+typedef struct {
+	bwaidx_t *idx;
+	mem_opt_t *opt;
+	mem_pestat_t pes[4];
+	int use_pes;
+	int chunk_size;
+	char *hdr_line;
+	char *pg_line;
+	int64_t n_processed;
+	bwa_thread_context_t ctx; // read group of this aligner, so that several of them can be used at the same time
+} bigbwa_mem_t;
+
+static const char *mem_opts_with_arg = "kcvsrtRABOEUwLdTQDmINWxGhyKXH";
+
+/*
+ * Same options as bwa mem, parsed without getopt() so that the parser keeps no
+ * state between calls. Returns 0 on success.
+ */
+static int bigbwa_mem_parse(bigbwa_mem_t *h, int argc, char **argv)
+{
+	mem_opt_t *opt = h->opt, opt0;
+	char *p, *rg_line = 0;
+	const char *mode = 0;
+	int i, j, c;
+
+	memset(&opt0, 0, sizeof(mem_opt_t));
+
+	for (i = 0; i < argc; ++i) {
+
+		if (argv[i][0] != '-' || argv[i][1] == 0) {
+			fprintf(stderr, "[%s] Ignoring argument '%s'\n", __func__, argv[i]);
+			continue;
+		}
+
+		for (j = 1; argv[i][j] != 0; ++j) {
+
+			char *optarg = 0;
+
+			c = argv[i][j];
+
+			if (strchr(mem_opts_with_arg, c)) {
+				if (argv[i][j+1] != 0) optarg = &argv[i][j+1];
+				else if (i + 1 < argc) optarg = argv[++i];
+				else {
+					fprintf(stderr, "[%s] Option -%c requires an argument\n", __func__, c);
+					return 1;
+				}
+			}
+
+			if (c == 'k') opt->min_seed_len = atoi(optarg), opt0.min_seed_len = 1;
+			else if (c == '1') ; // I/O is already done by the caller
+			else if (c == 'x') mode = optarg;
+			else if (c == 'w') opt->w = atoi(optarg), opt0.w = 1;
+			else if (c == 'A') opt->a = atoi(optarg), opt0.a = 1;
+			else if (c == 'B') opt->b = atoi(optarg), opt0.b = 1;
+			else if (c == 'T') opt->T = atoi(optarg), opt0.T = 1;
+			else if (c == 'U') opt->pen_unpaired = atoi(optarg), opt0.pen_unpaired = 1;
+			else if (c == 't') opt->n_threads = atoi(optarg), opt->n_threads = opt->n_threads > 1? opt->n_threads : 1;
+			else if (c == 'P') opt->flag |= MEM_F_NOPAIRING;
+			else if (c == 'a') opt->flag |= MEM_F_ALL;
+			else if (c == 'p') ; // pairing is given by the batch
+			else if (c == 'M') opt->flag |= MEM_F_NO_MULTI;
+			else if (c == 'S') opt->flag |= MEM_F_NO_RESCUE;
+			else if (c == 'Y') opt->flag |= MEM_F_SOFTCLIP;
+			else if (c == 'V') opt->flag |= MEM_F_REF_HDR;
+			else if (c == 'c') opt->max_occ = atoi(optarg), opt0.max_occ = 1;
+			else if (c == 'd') opt->zdrop = atoi(optarg), opt0.zdrop = 1;
+			else if (c == 'v') bwa_verbose = atoi(optarg);
+			else if (c == 'j') ; // handled when the index is attached
+			else if (c == 'r') opt->split_factor = atof(optarg), opt0.split_factor = 1.;
+			else if (c == 'D') opt->drop_ratio = atof(optarg), opt0.drop_ratio = 1.;
+			else if (c == 'm') opt->max_matesw = atoi(optarg), opt0.max_matesw = 1;
+			else if (c == 's') opt->split_width = atoi(optarg), opt0.split_width = 1;
+			else if (c == 'G') opt->max_chain_gap = atoi(optarg), opt0.max_chain_gap = 1;
+			else if (c == 'N') opt->max_chain_extend = atoi(optarg), opt0.max_chain_extend = 1;
+			else if (c == 'W') opt->min_chain_weight = atoi(optarg), opt0.min_chain_weight = 1;
+			else if (c == 'y') opt->max_mem_intv = atol(optarg), opt0.max_mem_intv = 1;
+			else if (c == 'C') ; // comments are not sent in the batches
+			else if (c == 'K') h->chunk_size = atoi(optarg);
+			else if (c == 'X') opt->mask_level = atof(optarg);
+			else if (c == 'h') {
+				opt0.max_XA_hits = opt0.max_XA_hits_alt = 1;
+				opt->max_XA_hits = opt->max_XA_hits_alt = strtol(optarg, &p, 10);
+				if (*p != 0 && ispunct(*p) && isdigit(p[1]))
+					opt->max_XA_hits_alt = strtol(p+1, &p, 10);
+			}
+			else if (c == 'Q') {
+				opt0.mapQ_coef_len = 1;
+				opt->mapQ_coef_len = atoi(optarg);
+				opt->mapQ_coef_fac = opt->mapQ_coef_len > 0? log(opt->mapQ_coef_len) : 0;
+			}
+			else if (c == 'O') {
+				opt0.o_del = opt0.o_ins = 1;
+				opt->o_del = opt->o_ins = strtol(optarg, &p, 10);
+				if (*p != 0 && ispunct(*p) && isdigit(p[1]))
+					opt->o_ins = strtol(p+1, &p, 10);
+			}
+			else if (c == 'E') {
+				opt0.e_del = opt0.e_ins = 1;
+				opt->e_del = opt->e_ins = strtol(optarg, &p, 10);
+				if (*p != 0 && ispunct(*p) && isdigit(p[1]))
+					opt->e_ins = strtol(p+1, &p, 10);
+			}
+			else if (c == 'L') {
+				opt0.pen_clip5 = opt0.pen_clip3 = 1;
+				opt->pen_clip5 = opt->pen_clip3 = strtol(optarg, &p, 10);
+				if (*p != 0 && ispunct(*p) && isdigit(p[1]))
+					opt->pen_clip3 = strtol(p+1, &p, 10);
+			}
+			else if (c == 'R') {
+				free(rg_line);
+				if ((rg_line = bwa_set_rg(optarg)) == 0) return 1;
+			}
+			else if (c == 'H') {
+				if (optarg[0] == '@') h->hdr_line = bwa_insert_header(optarg, h->hdr_line);
+				else fprintf(stderr, "[%s] Only inline header lines are supported with -H, ignoring '%s'\n", __func__, optarg);
+			}
+			else if (c == 'I') {
+				h->use_pes = 1;
+				h->pes[1].failed = 0;
+				h->pes[1].avg = strtod(optarg, &p);
+				h->pes[1].std = h->pes[1].avg * .1;
+				if (*p != 0 && ispunct(*p) && isdigit(p[1]))
+					h->pes[1].std = strtod(p+1, &p);
+				h->pes[1].high = (int)(h->pes[1].avg + 4. * h->pes[1].std + .499);
+				h->pes[1].low  = (int)(h->pes[1].avg - 4. * h->pes[1].std + .499);
+				if (h->pes[1].low < 1) h->pes[1].low = 1;
+				if (*p != 0 && ispunct(*p) && isdigit(p[1]))
+					h->pes[1].high = (int)(strtod(p+1, &p) + .499);
+				if (*p != 0 && ispunct(*p) && isdigit(p[1]))
+					h->pes[1].low  = (int)(strtod(p+1, &p) + .499);
+			}
+			else {
+				fprintf(stderr, "[%s] Unknown option -%c\n", __func__, c);
+				free(rg_line);
+				return 1;
+			}
+
+			// The rest of the token was the argument of the option
+			if (optarg != 0) break;
+		}
+	}
+
+	if (rg_line) {
+		h->hdr_line = bwa_insert_header(rg_line, h->hdr_line);
+		free(rg_line);
+	}
+
+	if (mode) {
+		if (strcmp(mode, "intractg") == 0) {
+			if (!opt0.o_del) opt->o_del = 16;
+			if (!opt0.o_ins) opt->o_ins = 16;
+			if (!opt0.b) opt->b = 9;
+			if (!opt0.pen_clip5) opt->pen_clip5 = 5;
+			if (!opt0.pen_clip3) opt->pen_clip3 = 5;
+		} else if (strcmp(mode, "pacbio") == 0 || strcmp(mode, "pbref") == 0 || strcmp(mode, "ont2d") == 0) {
+			if (!opt0.o_del) opt->o_del = 1;
+			if (!opt0.e_del) opt->e_del = 1;
+			if (!opt0.o_ins) opt->o_ins = 1;
+			if (!opt0.e_ins) opt->e_ins = 1;
+			if (!opt0.b) opt->b = 1;
+			if (opt0.split_factor == 0.) opt->split_factor = 10.;
+			if (strcmp(mode, "ont2d") == 0) {
+				if (!opt0.min_chain_weight) opt->min_chain_weight = 20;
+				if (!opt0.min_seed_len) opt->min_seed_len = 14;
+				if (!opt0.pen_clip5) opt->pen_clip5 = 0;
+				if (!opt0.pen_clip3) opt->pen_clip3 = 0;
+			} else {
+				if (!opt0.min_chain_weight) opt->min_chain_weight = 40;
+				if (!opt0.min_seed_len) opt->min_seed_len = 17;
+				if (!opt0.pen_clip5) opt->pen_clip5 = 0;
+				if (!opt0.pen_clip3) opt->pen_clip3 = 0;
+			}
+		} else {
+			fprintf(stderr, "[%s] Unknown read type '%s'\n", __func__, mode);
+			return 1;
+		}
+	}
+	else if (opt0.a) { // matching score is changed, as update_a() in fastmap.c
+		if (!opt0.b) opt->b *= opt->a;
+		if (!opt0.T) opt->T *= opt->a;
+		if (!opt0.o_del) opt->o_del *= opt->a;
+		if (!opt0.e_del) opt->e_del *= opt->a;
+		if (!opt0.o_ins) opt->o_ins *= opt->a;
+		if (!opt0.e_ins) opt->e_ins *= opt->a;
+		if (!opt0.zdrop) opt->zdrop *= opt->a;
+		if (!opt0.pen_clip5) opt->pen_clip5 *= opt->a;
+		if (!opt0.pen_clip3) opt->pen_clip3 *= opt->a;
+		if (!opt0.pen_unpaired) opt->pen_unpaired *= opt->a;
+	}
+
+	bwa_fill_scmat(opt->a, opt->b, opt->mat);
+
+	return 0;
+}
+
+static void bigbwa_mem_free(bigbwa_mem_t *h)
+{
+	if (h == 0) return;
+	if (h->idx) bwa_idx_destroy(h->idx);
+	free(h->opt);
+	free(h->hdr_line);
+	free(h->pg_line);
+	free(h);
+}
+
+JNIEXPORT jlong JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1init(JNIEnv *env, jclass thisClass, jstring indexPrefix, jobjectArray memArgs)
+{
+	bigbwa_mem_t *h;
+	kstring_t pg = {0, 0, 0};
+	int i, argc, ignore_alt = 0, ret;
+	long load_start;
+	char **argv;
+	const char *prefix;
+
+	h = calloc(1, sizeof(bigbwa_mem_t));
+	h->opt = mem_opt_init();
+	for (i = 0; i < 4; ++i) h->pes[i].failed = 1;
+
+	argc = (*env)->GetArrayLength(env, memArgs);
+	argv = (char **) calloc(argc + 1, sizeof(char *));
+
+	for (i = 0; i < argc; ++i) {
+		jstring string = (jstring) (*env)->GetObjectArrayElement(env, memArgs, i);
+		const char *tmp = (*env)->GetStringUTFChars(env, string, 0);
+
+		argv[i] = strdup(tmp);
+		(*env)->ReleaseStringUTFChars(env, string, tmp);
+		(*env)->DeleteLocalRef(env, string);
+
+		if (strcmp(argv[i], "-j") == 0) ignore_alt = 1;
+	}
+
+	bwa_thread_context_init(&h->ctx, 0);
+	bwa_thread_set_context(&h->ctx);
+	ret = bigbwa_mem_parse(h, argc, argv);
+	bwa_thread_set_context(0);
+
+	prefix = (*env)->GetStringUTFChars(env, indexPrefix, 0);
+
+	ksprintf(&pg, "@PG\tID:bwa\tPN:bwa\tVN:%s\tCL:bwa mem", BIGBWA_BWA_VERSION);
+	for (i = 0; i < argc; ++i) ksprintf(&pg, " %s", argv[i]);
+	ksprintf(&pg, " %s", prefix);
+	h->pg_line = pg.s;
+
+	for (i = 0; i < argc; ++i) free(argv[i]);
+	free(argv);
+
+	if (ret != 0) {
+		fprintf(stderr, "[%s] Error parsing BWA-MEM options.\n", __func__);
+		(*env)->ReleaseStringUTFChars(env, indexPrefix, prefix);
+		bigbwa_mem_free(h);
+		return 0;
+	}
+
+	load_start = bwa_thread_nanotime();
+	h->idx = bwa_idx_load_from_shm(prefix);
+	if (h->idx == 0) {
+		h->idx = bwa_idx_load(prefix, BWA_IDX_ALL);
+	}
+	else {
+		fprintf(stderr, "[%s] Index '%s' loaded from shared memory.\n", __func__, prefix);
+	}
+	h->ctx.stats[BWA_STAT_INDEX_LOAD_NS] += bwa_thread_nanotime() - load_start;
+
+	(*env)->ReleaseStringUTFChars(env, indexPrefix, prefix);
+
+	if (h->idx == 0) {
+		fprintf(stderr, "[%s] Error loading the index.\n", __func__);
+		bigbwa_mem_free(h);
+		return 0;
+	}
+
+	if (ignore_alt)
+		for (i = 0; i < h->idx->bns->n_seqs; ++i)
+			h->idx->bns->anns[i].is_alt = 0;
+
+	if (h->chunk_size <= 0) h->chunk_size = h->opt->chunk_size * h->opt->n_threads;
+
+	return (jlong) (intptr_t) h;
+}
+
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1chunk_1size(JNIEnv *env, jclass thisClass, jlong handle)
+{
+	bigbwa_mem_t *h = (bigbwa_mem_t *) (intptr_t) handle;
+
+	return h->chunk_size;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1header(JNIEnv *env, jclass thisClass, jlong handle)
+{
+	bigbwa_mem_t *h = (bigbwa_mem_t *) (intptr_t) handle;
+	const bntseq_t *bns = h->idx->bns;
+	kstring_t str = {0, 0, 0};
+	jbyteArray result;
+	int i, n_SQ = 0;
+
+	// Same header that bwa_print_sam_hdr() writes to stdout
+	if (h->hdr_line) {
+		const char *p = h->hdr_line;
+		while ((p = strstr(p, "@SQ\t")) != 0) {
+			if (p == h->hdr_line || *(p-1) == '\n') ++n_SQ;
+			p += 4;
+		}
+	}
+
+	if (n_SQ == 0) {
+		for (i = 0; i < bns->n_seqs; ++i) {
+			ksprintf(&str, "@SQ\tSN:%s\tLN:%d", bns->anns[i].name, bns->anns[i].len);
+			if (bns->anns[i].is_alt) kputs("\tAH:*\n", &str);
+			else kputc('\n', &str);
+		}
+	}
+
+	if (h->hdr_line) ksprintf(&str, "%s\n", h->hdr_line);
+	ksprintf(&str, "%s\n", h->pg_line);
+
+	result = (*env)->NewByteArray(env, str.l);
+	(*env)->SetByteArrayRegion(env, result, 0, str.l, (const jbyte *) str.s);
+	free(str.s);
+
+	return result;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1align(JNIEnv *env, jclass thisClass, jlong handle, jint numReads, jbyteArray data, jint dataLength, jintArray offsets, jboolean paired)
+{
+	bigbwa_mem_t *h = (bigbwa_mem_t *) (intptr_t) handle;
+	mem_opt_t opt = *h->opt;
+	bseq1_t *seqs;
+	char *block;
+	jint *off;
+	kstring_t str = {0, 0, 0};
+	jbyteArray result;
+	int i, l;
+
+	if (numReads <= 0) return (*env)->NewByteArray(env, 0);
+
+	if (paired) {
+		if (numReads & 1) {
+			fprintf(stderr, "[%s] Paired batches need an even number of reads, got %d.\n", __func__, numReads);
+			return 0;
+		}
+		opt.flag |= MEM_F_PE;
+	}
+
+	// Reads are packed as "name\0seq\0qual\0". bwa changes the bases in place,
+	// so we work on a copy that can be released in one go afterwards.
+	block = (char *) malloc(dataLength);
+	(*env)->GetByteArrayRegion(env, data, 0, dataLength, (jbyte *) block);
+
+	off = (*env)->GetIntArrayElements(env, offsets, 0);
+
+	seqs = (bseq1_t *) calloc(numReads, sizeof(bseq1_t));
+
+	for (i = 0; i < numReads; ++i) {
+		seqs[i].id = i;
+		seqs[i].name = block + off[3*i];
+		seqs[i].seq = block + off[3*i+1];
+		seqs[i].qual = block + off[3*i+2];
+		seqs[i].l_seq = off[3*i+2] - off[3*i+1] - 1;
+
+		// As trim_readno() in bwa.c
+		l = off[3*i+1] - off[3*i] - 1;
+		if (l > 2 && seqs[i].name[l-2] == '/' && isdigit(seqs[i].name[l-1])) seqs[i].name[l-2] = 0;
+
+		if (seqs[i].qual[0] == 0) seqs[i].qual = 0;
+	}
+
+	(*env)->ReleaseIntArrayElements(env, offsets, off, JNI_ABORT);
+
+	bwa_thread_set_context(&h->ctx);
+	mem_process_seqs(&opt, h->idx->bwt, h->idx->bns, h->idx->pac, h->n_processed, numReads, seqs, h->use_pes? h->pes : 0);
+	bwa_thread_set_context(0);
+	h->n_processed += numReads;
+
+	for (i = 0; i < numReads; ++i) {
+		if (seqs[i].sam) {
+			bwa_thread_count_sam(&h->ctx, seqs[i].sam, strlen(seqs[i].sam));
+			kputs(seqs[i].sam, &str);
+			free(seqs[i].sam);
+		}
+	}
+
+	free(seqs);
+	free(block);
+
+	result = (*env)->NewByteArray(env, str.l);
+	if (str.l > 0) (*env)->SetByteArrayRegion(env, result, 0, str.l, (const jbyte *) str.s);
+	free(str.s);
+
+	return result;
+}
+
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1destroy(JNIEnv *env, jclass thisClass, jlong handle)
+{
+	bigbwa_mem_free((bigbwa_mem_t *) (intptr_t) handle);
+}
+
+JNIEXPORT jlongArray JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1stats(JNIEnv *env, jclass thisClass, jlong handle)
+{
+	bigbwa_mem_t *h = (bigbwa_mem_t *) (intptr_t) handle;
+	jlongArray result = (*env)->NewLongArray(env, BWA_NUM_STATS);
+
+	(*env)->SetLongArrayRegion(env, result, 0, BWA_NUM_STATS, (const jlong *) h->ctx.stats);
+
+	return result;
+}
+
+// bwa breaks the ties between equally good hits with the id of each read,
+// counted from the first read of the run, so skipped reads have to be counted
+JNIEXPORT jlong JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1get_1read_1ordinal(JNIEnv *env, jclass thisClass, jlong handle)
+{
+	return ((bigbwa_mem_t *) (intptr_t) handle)->n_processed;
+}
+
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1set_1read_1ordinal(JNIEnv *env, jclass thisClass, jlong handle, jlong ordinal)
+{
+	((bigbwa_mem_t *) (intptr_t) handle)->n_processed = ordinal;
+}
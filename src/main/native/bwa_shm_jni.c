@@ -0,0 +1,74 @@
+/**
+  * Copyright 2016 José Manuel Abuín Mosquera <josemanuel.abuin@usc.es>
+  *
+  * This file is part of BigBWA.
+  *
+  * BigBWA is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * BigBWA is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * along with BigBWA. If not, see <http://www.gnu.org/licenses/>.
+  */
+
+/*
+ * Access to the shared memory indexes of bwa ("bwa shm") from Java. The tasks
+ * of a node coordinate who stages and who drops an index in BwaSharedIndex;
+ * once staged, the index cache maps it instead of loading it from disk.
+ */
+
+#include <stdlib.h>
+#include <stdio.h>
+#include "bwa-0.7.15/bwa.h"
+#include "com_github_bigbwa_BwaJni.h"
+
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1shm_1stage(JNIEnv *env, jclass thisClass, jstring indexPrefix, jstring tmpFile)
+{
+	const char *hint = (*env)->GetStringUTFChars(env, indexPrefix, 0);
+	const char *tmpfn = tmpFile? (*env)->GetStringUTFChars(env, tmpFile, 0) : 0;
+	bwaidx_t *idx;
+	int ret = -1;
+
+	// Leftovers of a task that died while staging would make bwa_shm_stage() fail
+	bwa_shm_drop(hint);
+
+	if ((idx = bwa_idx_load_from_disk(hint, BWA_IDX_ALL)) != 0) {
+		ret = bwa_shm_stage(idx, hint, tmpfn);
+		if (ret < 0) {
+			fprintf(stderr, "[%s] Failed to stage the index '%s' in shared memory.\n", __func__, hint);
+			bwa_shm_drop(hint);
+		}
+		bwa_idx_destroy(idx);
+	}
+
+	if (tmpfn) (*env)->ReleaseStringUTFChars(env, tmpFile, tmpfn);
+	(*env)->ReleaseStringUTFChars(env, indexPrefix, hint);
+
+	return ret;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_github_bigbwa_BwaJni_bwa_1shm_1test(JNIEnv *env, jclass thisClass, jstring indexPrefix)
+{
+	const char *hint = (*env)->GetStringUTFChars(env, indexPrefix, 0);
+	int found = bwa_shm_test(hint);
+
+	(*env)->ReleaseStringUTFChars(env, indexPrefix, hint);
+
+	return found? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1shm_1drop(JNIEnv *env, jclass thisClass, jstring indexPrefix)
+{
+	const char *hint = (*env)->GetStringUTFChars(env, indexPrefix, 0);
+	int ret = bwa_shm_drop(hint);
+
+	(*env)->ReleaseStringUTFChars(env, indexPrefix, hint);
+
+	return ret;
+}
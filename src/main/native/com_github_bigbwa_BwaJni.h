@@ -10,10 +10,138 @@ extern "C" {
 /*
  * Class:     com_github_bigbwa_BwaJni
  * Method:    bwa_jni
- * Signature: (I[Ljava/lang/String;[I)I
+ * Signature: (I[Ljava/lang/String;[I[J)I
  */
 JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1jni
-  (JNIEnv *, jobject, jint, jobjectArray, jintArray);
+  (JNIEnv *, jobject, jint, jobjectArray, jintArray, jlongArray);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_init
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;)J
+ */
+JNIEXPORT jlong JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1init
+  (JNIEnv *, jclass, jstring, jobjectArray);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_chunk_size
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1chunk_1size
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_header
+ * Signature: (J)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1header
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_align
+ * Signature: (JI[BI[IZ)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1align
+  (JNIEnv *, jclass, jlong, jint, jbyteArray, jint, jintArray, jboolean);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_destroy
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1destroy
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_stats
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1stats
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_get_read_ordinal
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1get_1read_1ordinal
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mem_set_read_ordinal
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mem_1set_1read_1ordinal
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_index_cache_budget
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1cache_1budget
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_index_cache_release
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1cache_1release
+  (JNIEnv *, jclass, jstring);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_index_cache_bytes
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1cache_1bytes
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_index_mmap
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_github_bigbwa_BwaJni_bwa_1index_1mmap
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_shm_stage
+ * Signature: (Ljava/lang/String;Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1shm_1stage
+  (JNIEnv *, jclass, jstring, jstring);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_shm_test
+ * Signature: (Ljava/lang/String;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_github_bigbwa_BwaJni_bwa_1shm_1test
+  (JNIEnv *, jclass, jstring);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_shm_drop
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1shm_1drop
+  (JNIEnv *, jclass, jstring);
+
+/*
+ * Class:     com_github_bigbwa_BwaJni
+ * Method:    bwa_mkfifo
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_github_bigbwa_BwaJni_bwa_1mkfifo
+  (JNIEnv *, jclass, jstring);
 
 #ifdef __cplusplus
 }